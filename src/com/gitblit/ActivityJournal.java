@@ -0,0 +1,639 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.CommitTimeRevFilter;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.models.Activity.RepositoryCommit;
+import com.gitblit.utils.JGitUtils;
+import com.gitblit.utils.TimeUtils;
+
+/**
+ * The activity journal records the commits which appear on and disappear from
+ * the branches of each repository, so that the activity page does not walk
+ * the branches of every repository.
+ *
+ * The journal of a repository is an append-only file. After a push or a
+ * federation pull the branch tips are compared to the tips of the last update
+ * and only the commits between the previous and the current tips are read.
+ * Commits which are no longer reachable from any branch, for example after a
+ * forced push, are recorded as removed.
+ *
+ * Only the commits of the last journal days are kept in memory, indexed by
+ * day. Older commits are dropped from memory and the journal is compacted
+ * when it holds more dropped records than current records.
+ *
+ * @author James Moger
+ *
+ */
+public class ActivityJournal {
+
+	private static final String JOURNAL_FILE = "activity.dat";
+	private static final String CONF_FILE = "activity.conf";
+	private static final String CONF_JOURNAL = "journal";
+	private static final String CONF_BRANCH = "branch";
+	private static final String CONF_VERSION = "version";
+	private static final String CONF_LENGTH = "length";
+	private static final String CONF_LASTCHANGE = "lastChange";
+	private static final String CONF_TIP = "tip";
+	private static final int JOURNAL_VERSION = 1;
+
+	private static final byte RECORD_ADD = 1;
+	private static final byte RECORD_REMOVE = 2;
+
+	private static final int MAX_MESSAGE_LENGTH = 1024;
+
+	private final Logger logger = LoggerFactory.getLogger(ActivityJournal.class);
+
+	private final File repositoriesFolder;
+
+	private final ExecutorService executor;
+
+	private final int journalDays;
+
+	private final Map<String, RepositoryJournal> journals = new ConcurrentHashMap<String, RepositoryJournal>();
+
+	private final Set<String> queued = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	public ActivityJournal(File repositoriesFolder, ExecutorService executor, int journalDays) {
+		this.repositoriesFolder = repositoriesFolder;
+		this.executor = executor;
+		this.journalDays = journalDays;
+	}
+
+	/**
+	 * A journaled commit.
+	 */
+	private static class Entry {
+
+		final ObjectId id;
+
+		final String branch;
+
+		final String shortMessage;
+
+		final PersonIdent authorIdent;
+
+		final int parentCount;
+
+		final int commitTime;
+
+		Entry(ObjectId id, String branch, String shortMessage, PersonIdent authorIdent,
+				int parentCount, int commitTime) {
+			this.id = id;
+			this.branch = branch;
+			this.shortMessage = shortMessage;
+			this.authorIdent = authorIdent;
+			this.parentCount = parentCount;
+			this.commitTime = commitTime;
+		}
+
+		int getDay() {
+			return (int) (commitTime / (TimeUtils.ONEDAY / 1000));
+		}
+	}
+
+	/**
+	 * The journal of a repository.
+	 */
+	private static class RepositoryJournal {
+
+		final File gitDir;
+
+		final Map<String, ObjectId> tips = new HashMap<String, ObjectId>();
+
+		final TreeMap<Integer, List<Entry>> days = new TreeMap<Integer, List<Entry>>();
+
+		final Map<ObjectId, Entry> entries = new HashMap<ObjectId, Entry>();
+
+		// serializes the updates, readers only lock the journal itself
+		final Object updateLock = new Object();
+
+		Date lastChange;
+
+		long length;
+
+		int records;
+
+		RepositoryJournal(File gitDir) {
+			this.gitDir = gitDir;
+		}
+
+		void add(Entry entry) {
+			if (entries.containsKey(entry.id)) {
+				return;
+			}
+			entries.put(entry.id, entry);
+			List<Entry> day = days.get(entry.getDay());
+			if (day == null) {
+				day = new ArrayList<Entry>();
+				days.put(entry.getDay(), day);
+			}
+			day.add(entry);
+		}
+
+		void remove(ObjectId id) {
+			Entry entry = entries.remove(id);
+			if (entry != null) {
+				List<Entry> day = days.get(entry.getDay());
+				day.remove(entry);
+				if (day.isEmpty()) {
+					days.remove(entry.getDay());
+				}
+			}
+		}
+
+		void prune(int firstDay) {
+			while (!days.isEmpty() && days.firstKey() < firstDay) {
+				for (Entry entry : days.remove(days.firstKey())) {
+					entries.remove(entry.id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the journaled commits of the repository since the threshold
+	 * date. If the journal is not current or does not reach back to the
+	 * threshold date, an update is queued and null is returned.
+	 *
+	 * @param repositoryName
+	 * @param lastChange
+	 *            the last change date of the repository
+	 * @param thresholdDate
+	 * @return the commits or null if the journal can not provide them
+	 */
+	public List<RepositoryCommit> getCommits(String repositoryName, Date lastChange,
+			Date thresholdDate) {
+		if (thresholdDate.getTime() < System.currentTimeMillis() - journalDays * TimeUtils.ONEDAY) {
+			// older than the journal
+			return null;
+		}
+		RepositoryJournal journal = getJournal(repositoryName);
+		if (journal == null) {
+			return null;
+		}
+		synchronized (journal) {
+			if (journal.lastChange == null || !journal.lastChange.equals(lastChange)) {
+				update(repositoryName);
+				return null;
+			}
+			int threshold = (int) (thresholdDate.getTime() / 1000);
+			int firstDay = (int) (thresholdDate.getTime() / TimeUtils.ONEDAY);
+			List<RepositoryCommit> list = new ArrayList<RepositoryCommit>();
+			for (List<Entry> day : journal.days.tailMap(firstDay).values()) {
+				for (Entry entry : day) {
+					if (entry.commitTime >= threshold) {
+						list.add(new RepositoryCommit(repositoryName, entry.branch, entry.id
+								.getName(), entry.shortMessage, entry.authorIdent,
+								entry.parentCount, entry.commitTime));
+					}
+				}
+			}
+			return list;
+		}
+	}
+
+	/**
+	 * Queues a background update of the journal of the repository.
+	 *
+	 * @param repositoryName
+	 */
+	public void update(final String repositoryName) {
+		if (!queued.add(repositoryName)) {
+			// already queued
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				queued.remove(repositoryName);
+				try {
+					RepositoryJournal journal = getJournal(repositoryName);
+					if (journal != null) {
+						synchronized (journal.updateLock) {
+							updateJournal(repositoryName, journal);
+						}
+					}
+				} catch (Throwable t) {
+					logger.error(MessageFormat.format(
+							"Failed to update the activity journal of {0}", repositoryName), t);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Forgets the journal of the repository. The persisted journal is stored
+	 * within the repository and moves with it if it is renamed.
+	 *
+	 * @param repositoryName
+	 */
+	public void remove(String repositoryName) {
+		journals.remove(repositoryName);
+	}
+
+	/**
+	 * Returns the journal of the repository, loading the persisted journal the
+	 * first time a repository is requested.
+	 *
+	 * @param repositoryName
+	 * @return the journal or null if the repository does not exist
+	 */
+	private RepositoryJournal getJournal(String repositoryName) {
+		RepositoryJournal journal = journals.get(repositoryName);
+		if (journal == null) {
+			File gitDir = FileKey.resolve(new File(repositoriesFolder, repositoryName),
+					FS.DETECTED);
+			if (gitDir == null) {
+				return null;
+			}
+			synchronized (journals) {
+				journal = journals.get(repositoryName);
+				if (journal == null) {
+					journal = new RepositoryJournal(gitDir);
+					load(journal);
+					journals.put(repositoryName, journal);
+				}
+			}
+		}
+		return journal;
+	}
+
+	private int getFirstDay() {
+		return (int) ((System.currentTimeMillis() - journalDays * TimeUtils.ONEDAY) / TimeUtils.ONEDAY);
+	}
+
+	/**
+	 * Journals the commits which were added to or removed from the branches
+	 * of the repository since the last update. The caller must hold the update
+	 * lock of the journal so that an update always starts from the tips
+	 * recorded by the previous update and no commit is journaled twice.
+	 *
+	 * @param repositoryName
+	 * @param journal
+	 * @throws IOException
+	 */
+	private void updateJournal(String repositoryName, RepositoryJournal journal)
+			throws IOException {
+		long startTime = System.currentTimeMillis();
+		Date threshold = new Date(startTime - journalDays * TimeUtils.ONEDAY);
+		Map<String, ObjectId> tips = new HashMap<String, ObjectId>();
+		List<Entry> added = new ArrayList<Entry>();
+		List<ObjectId> removed = new ArrayList<ObjectId>();
+		Date lastChange;
+		Repository repository = new FileRepository(journal.gitDir);
+		RevWalk revWalk = new RevWalk(repository);
+		try {
+			lastChange = JGitUtils.getLastChange(repository);
+			for (Ref ref : repository.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+				tips.put(ref.getName(), ref.getObjectId());
+			}
+			Map<String, ObjectId> previousTips;
+			synchronized (journal) {
+				previousTips = new HashMap<String, ObjectId>(journal.tips);
+			}
+			if (!tips.equals(previousTips)) {
+				List<RevCommit> previous = new ArrayList<RevCommit>();
+				for (ObjectId tip : previousTips.values()) {
+					if (repository.hasObject(tip)) {
+						previous.add(revWalk.parseCommit(tip));
+					}
+				}
+
+				// commits which were added to a branch, branches are walked in
+				// name order and a commit is journaled with the first branch
+				RevFlag journaled = revWalk.newFlag("journaled");
+				for (String branch : new TreeSet<String>(tips.keySet())) {
+					ObjectId tip = tips.get(branch);
+					if (tip.equals(previousTips.get(branch))) {
+						continue;
+					}
+					revWalk.resetRetain(journaled);
+					revWalk.setRevFilter(CommitTimeRevFilter.after(threshold));
+					revWalk.markStart(revWalk.parseCommit(tip));
+					for (RevCommit commit : previous) {
+						revWalk.markUninteresting(commit);
+					}
+					String shortName = branch.substring(Constants.R_HEADS.length());
+					for (RevCommit commit : revWalk) {
+						if (commit.has(journaled)) {
+							continue;
+						}
+						commit.add(journaled);
+						String message = commit.getShortMessage();
+						if (message.length() > MAX_MESSAGE_LENGTH) {
+							message = message.substring(0, MAX_MESSAGE_LENGTH);
+						}
+						added.add(new Entry(commit.copy(), shortName, message, commit
+								.getAuthorIdent(), commit.getParentCount(), commit
+								.getCommitTime()));
+					}
+				}
+
+				// commits which are no longer on any branch
+				if (!previous.isEmpty()) {
+					revWalk.reset();
+					revWalk.setRevFilter(CommitTimeRevFilter.after(threshold));
+					for (RevCommit commit : previous) {
+						revWalk.markStart(commit);
+					}
+					for (ObjectId tip : tips.values()) {
+						revWalk.markUninteresting(revWalk.parseCommit(tip));
+					}
+					for (RevCommit commit : revWalk) {
+						removed.add(commit.copy());
+					}
+				}
+			}
+		} finally {
+			revWalk.release();
+			repository.close();
+		}
+
+		synchronized (journal) {
+			int firstDay = getFirstDay();
+			journal.prune(firstDay);
+			List<ObjectId> journaledRemovals = new ArrayList<ObjectId>();
+			for (ObjectId id : removed) {
+				if (journal.entries.containsKey(id)) {
+					journaledRemovals.add(id);
+				}
+			}
+			if (!added.isEmpty() || !journaledRemovals.isEmpty()) {
+				if (journal.records > 2 * journal.entries.size() + added.size()) {
+					// most of the journal has been removed or is too old
+					for (ObjectId id : journaledRemovals) {
+						journal.remove(id);
+					}
+					for (Entry entry : added) {
+						journal.add(entry);
+					}
+					compact(journal);
+				} else {
+					append(journal, added, journaledRemovals);
+					for (ObjectId id : journaledRemovals) {
+						journal.remove(id);
+					}
+					for (Entry entry : added) {
+						journal.add(entry);
+					}
+				}
+			}
+			journal.tips.clear();
+			journal.tips.putAll(tips);
+			journal.lastChange = lastChange;
+			save(journal);
+		}
+
+		if (!added.isEmpty() || !removed.isEmpty()) {
+			long duration = System.currentTimeMillis() - startTime;
+			logger.info(MessageFormat.format(
+					"{0} commits journaled and {1} removed for {2} in {3} msecs", added.size(),
+					removed.size(), repositoryName, duration));
+		}
+	}
+
+	/**
+	 * Appends records to the journal file, discarding a partially written
+	 * update.
+	 *
+	 * @param journal
+	 * @param added
+	 * @param removed
+	 * @throws IOException
+	 */
+	private void append(RepositoryJournal journal, List<Entry> added, List<ObjectId> removed)
+			throws IOException {
+		File file = new File(journal.gitDir, JOURNAL_FILE);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(journal.length);
+		} finally {
+			raf.close();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file, true)));
+		try {
+			for (ObjectId id : removed) {
+				out.writeByte(RECORD_REMOVE);
+				writeId(out, id);
+			}
+			for (Entry entry : added) {
+				write(out, entry);
+			}
+		} finally {
+			out.close();
+		}
+		journal.length = file.length();
+		journal.records += removed.size() + added.size();
+	}
+
+	/**
+	 * Rewrites the journal file with the journaled commits of the last journal
+	 * days.
+	 *
+	 * @param journal
+	 * @throws IOException
+	 */
+	private void compact(RepositoryJournal journal) throws IOException {
+		File file = new File(journal.gitDir, JOURNAL_FILE);
+		File tmp = new File(journal.gitDir, JOURNAL_FILE + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			for (List<Entry> day : journal.days.values()) {
+				for (Entry entry : day) {
+					write(out, entry);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException(MessageFormat.format("Failed to delete {0}", file));
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException(MessageFormat.format("Failed to rename {0}", tmp));
+		}
+		journal.length = file.length();
+		journal.records = journal.entries.size();
+	}
+
+	private void write(DataOutputStream out, Entry entry) throws IOException {
+		out.writeByte(RECORD_ADD);
+		writeId(out, entry.id);
+		out.writeInt(entry.commitTime);
+		out.writeUTF(entry.branch);
+		out.writeUTF(entry.shortMessage);
+		out.writeUTF(entry.authorIdent.getName());
+		out.writeUTF(entry.authorIdent.getEmailAddress());
+		out.writeLong(entry.authorIdent.getWhen().getTime());
+		out.writeInt(entry.authorIdent.getTimeZoneOffset());
+		out.writeInt(entry.parentCount);
+	}
+
+	private void writeId(DataOutputStream out, ObjectId id) throws IOException {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		id.copyRawTo(raw, 0);
+		out.write(raw);
+	}
+
+	private FileBasedConfig getConfig(RepositoryJournal journal) {
+		return new FileBasedConfig(new File(journal.gitDir, CONF_FILE), FS.detect());
+	}
+
+	/**
+	 * Persists the branch tips and the length of the journal file.
+	 *
+	 * @param journal
+	 */
+	private void save(RepositoryJournal journal) {
+		FileBasedConfig config = getConfig(journal);
+		config.setInt(CONF_JOURNAL, null, CONF_VERSION, JOURNAL_VERSION);
+		config.setLong(CONF_JOURNAL, null, CONF_LENGTH, journal.length);
+		config.setLong(CONF_JOURNAL, null, CONF_LASTCHANGE, journal.lastChange.getTime());
+		for (String branch : config.getSubsections(CONF_BRANCH)) {
+			if (!journal.tips.containsKey(branch)) {
+				config.unsetSection(CONF_BRANCH, branch);
+			}
+		}
+		for (Map.Entry<String, ObjectId> tip : journal.tips.entrySet()) {
+			config.setString(CONF_BRANCH, tip.getKey(), CONF_TIP, tip.getValue().getName());
+		}
+		try {
+			config.save();
+		} catch (Exception e) {
+			logger.warn(MessageFormat.format("Failed to save {0}", config.getFile()), e);
+		}
+	}
+
+	/**
+	 * Loads the persisted journal of the repository. Commits which are older
+	 * than the journal days are skipped and the journal is compacted if most
+	 * of its records are no longer needed.
+	 *
+	 * @param journal
+	 */
+	private void load(RepositoryJournal journal) {
+		FileBasedConfig config = getConfig(journal);
+		File journalFile = new File(journal.gitDir, JOURNAL_FILE);
+		if (!config.getFile().exists() || !journalFile.exists()) {
+			return;
+		}
+		try {
+			config.load();
+			if (config.getInt(CONF_JOURNAL, null, CONF_VERSION, 0) != JOURNAL_VERSION) {
+				return;
+			}
+			long length = config.getLong(CONF_JOURNAL, null, CONF_LENGTH, 0);
+			int firstDay = getFirstDay();
+			int records = 0;
+			// records after the persisted length are a partially written update
+			byte[] buffer = new byte[(int) length];
+			DataInputStream file = new DataInputStream(new FileInputStream(journalFile));
+			try {
+				file.readFully(buffer);
+			} finally {
+				file.close();
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer));
+			try {
+				byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+				while (in.available() > 0) {
+					byte type = in.readByte();
+					in.readFully(raw);
+					ObjectId id = ObjectId.fromRaw(raw);
+					if (type == RECORD_REMOVE) {
+						journal.remove(id);
+					} else {
+						int commitTime = in.readInt();
+						String branch = in.readUTF();
+						String shortMessage = in.readUTF();
+						String name = in.readUTF();
+						String email = in.readUTF();
+						long when = in.readLong();
+						int tz = in.readInt();
+						int parentCount = in.readInt();
+						Entry entry = new Entry(id, branch, shortMessage, new PersonIdent(name,
+								email, when, tz), parentCount, commitTime);
+						if (entry.getDay() >= firstDay) {
+							journal.add(entry);
+						}
+					}
+					records++;
+				}
+			} finally {
+				in.close();
+			}
+			for (String branch : config.getSubsections(CONF_BRANCH)) {
+				journal.tips.put(branch,
+						ObjectId.fromString(config.getString(CONF_BRANCH, branch, CONF_TIP)));
+			}
+			journal.lastChange = new Date(config.getLong(CONF_JOURNAL, null, CONF_LASTCHANGE, 0));
+			journal.length = length;
+			journal.records = records;
+			if (records > 2 * journal.entries.size()) {
+				compact(journal);
+			}
+		} catch (Exception e) {
+			logger.warn(MessageFormat.format("Failed to load {0}", journalFile), e);
+			journal.tips.clear();
+			journal.days.clear();
+			journal.entries.clear();
+			journal.lastChange = null;
+			journal.length = 0;
+			journal.records = 0;
+		}
+	}
+}
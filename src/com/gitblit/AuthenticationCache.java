@@ -0,0 +1,212 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gitblit.models.UserModel;
+import com.gitblit.utils.DeepCopier;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The authentication cache remembers the users of recently verified
+ * credentials so that clients which send the same Basic credentials with every
+ * request, like git fetching over http, are not verified by the user service
+ * on each request.
+ *
+ * Credentials are never stored. Entries are keyed on the SHA-1 of a random
+ * per-process salt, the length-prefixed username, and the password, so that a
+ * separator in the username can not collide with other credentials. Entries
+ * expire after a fixed time and the least recently used entries are evicted
+ * when the cache is full. Only successful authentications are cached.
+ *
+ * The cache is cleared when users, teams, or repository roles are changed
+ * through Gitblit and when the realm file is modified on disk.
+ *
+ * @author James Moger
+ *
+ */
+public class AuthenticationCache {
+
+	private final int maxEntries;
+
+	private final long timeout;
+
+	private final String salt;
+
+	private final Map<String, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private long generation;
+
+	/**
+	 * Creates an authentication cache.
+	 *
+	 * @param maxEntries
+	 *            the maximum number of cached authentications, 0 disables the
+	 *            cache
+	 * @param timeout
+	 *            the number of milliseconds an authentication is cached
+	 */
+	public AuthenticationCache(final int maxEntries, long timeout) {
+		this.maxEntries = Math.max(0, maxEntries);
+		this.timeout = timeout;
+
+		byte[] bytes = new byte[20];
+		new SecureRandom().nextBytes(bytes);
+		this.salt = StringUtils.getSHA1(bytes);
+
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	private static class Entry {
+
+		final UserModel user;
+
+		final long expires;
+
+		Entry(UserModel user, long expires) {
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Returns true if the cache is enabled.
+	 *
+	 * @return true if authentications are cached
+	 */
+	public boolean isEnabled() {
+		return maxEntries > 0 && timeout > 0;
+	}
+
+	/**
+	 * Returns the key of the credentials.
+	 *
+	 * @param username
+	 * @param password
+	 * @return the salted digest of the credentials
+	 */
+	public String getKey(String username, char[] password) {
+		return StringUtils.getSHA1(salt + username.length() + ":" + username
+				+ new String(password));
+	}
+
+	/**
+	 * Returns the generation of the cache. An authentication may only be
+	 * cached if the cache has not been cleared since the generation was
+	 * retrieved.
+	 *
+	 * @return the generation of the cache
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns a copy of the user of the credentials.
+	 *
+	 * @param key
+	 * @return the cached user or null
+	 */
+	public UserModel get(String key) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && entry.expires <= System.currentTimeMillis()) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		// the user model is mutable, callers get their own copy
+		return DeepCopier.copy(entry.user);
+	}
+
+	/**
+	 * Caches the user of the credentials unless the cache has been cleared
+	 * since the authentication started.
+	 *
+	 * @param key
+	 * @param user
+	 * @param generation
+	 *            the generation of the cache when the authentication started
+	 */
+	public void put(String key, UserModel user, long generation) {
+		if (!isEnabled() || user == null) {
+			return;
+		}
+		UserModel copy = DeepCopier.copy(user);
+		synchronized (this) {
+			if (generation == this.generation) {
+				entries.put(key, new Entry(copy, System.currentTimeMillis() + timeout));
+			}
+		}
+	}
+
+	/**
+	 * Clears the cache.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		generation++;
+	}
+
+	/**
+	 * Returns the number of cached authentications.
+	 *
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of lookups which were answered from the cache.
+	 *
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups which were not answered from the cache.
+	 *
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.models.UserModel;
+import com.gitblit.utils.DeepCopier;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The authentication tokens authenticate the browser cookies of the web
+ * interface. A token is a random value which is issued when a user logs in
+ * and which expires after a fixed lifetime. Tokens are revoked when the user
+ * logs out, when the user is deleted or renamed, and when the password of the
+ * user is changed. A token records a fingerprint of the password of the user
+ * when the token was issued so that a password which is changed in the realm
+ * file outside of Gitblit also revokes the tokens of the user.
+ *
+ * Tokens are never stored. The token table is keyed on the SHA-1 of the token
+ * and every issued or revoked token is appended to the tokens file so that
+ * logins survive a restart. The tokens file is compacted to the current token
+ * table when it is loaded, when expired tokens are swept periodically, and
+ * when most of its records are obsolete.
+ *
+ * The users of tokens are kept in a least recently used cache so that
+ * authenticating a cookie does not consult the user service. A cached user
+ * expires after a fixed time, so that changes made by user services which are
+ * not backed by a realm file are picked up. A user is evicted when the user,
+ * one of the user's teams, or a repository role is changed through Gitblit
+ * and all users are evicted when the realm file is modified on disk.
+ *
+ * @author James Moger
+ *
+ */
+public class AuthenticationTokens implements Runnable {
+
+	private static final int TOKENS_VERSION = 3;
+
+	private static final byte ISSUE = 1;
+
+	private static final byte REVOKE = 2;
+
+	// the number of obsolete records which are tolerated before the tokens
+	// file is compacted
+	private static final int MAX_OBSOLETE_RECORDS = 100;
+
+	private final Logger logger = LoggerFactory.getLogger(AuthenticationTokens.class);
+
+	private final File tokensFile;
+
+	private final long lifetime;
+
+	private final long userTimeout;
+
+	private final SecureRandom random = new SecureRandom();
+
+	private final Map<String, Token> tokens = new ConcurrentHashMap<String, Token>();
+
+	private final Map<String, CachedUser> users;
+
+	private IUserService userService;
+
+	private long generation;
+
+	private int records;
+
+	/**
+	 * Creates the authentication tokens and loads the tokens file.
+	 *
+	 * @param tokensFile
+	 * @param lifetime
+	 *            the number of milliseconds a token is valid
+	 * @param maxUsers
+	 *            the maximum number of cached users, 0 disables the cache
+	 * @param userTimeout
+	 *            the number of milliseconds a user is cached
+	 */
+	public AuthenticationTokens(File tokensFile, long lifetime, final int maxUsers,
+			long userTimeout) {
+		this.tokensFile = tokensFile;
+		this.lifetime = lifetime;
+		this.userTimeout = userTimeout;
+		this.users = new LinkedHashMap<String, CachedUser>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest) {
+				return size() > maxUsers;
+			}
+		};
+		load();
+	}
+
+	/**
+	 * An issued token.
+	 */
+	private static class Token {
+
+		final String username;
+
+		final String fingerprint;
+
+		final long expires;
+
+		Token(String username, String fingerprint, long expires) {
+			this.username = username;
+			this.fingerprint = fingerprint;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * A cached user of tokens.
+	 */
+	private static class CachedUser {
+
+		final UserModel user;
+
+		final long expires;
+
+		CachedUser(UserModel user, long expires) {
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Sets the user service which resolves the users of tokens.
+	 *
+	 * @param userService
+	 */
+	public void setUserService(IUserService userService) {
+		synchronized (users) {
+			this.userService = userService;
+			users.clear();
+			generation++;
+		}
+	}
+
+	/**
+	 * Returns the number of milliseconds a token is valid.
+	 *
+	 * @return the lifetime of tokens
+	 */
+	public long getLifetime() {
+		return lifetime;
+	}
+
+	/**
+	 * Issues a new token for the user.
+	 *
+	 * @param username
+	 * @return the token
+	 */
+	public String issue(String username) {
+		byte[] bytes = new byte[20];
+		random.nextBytes(bytes);
+		String token = StringUtils.getSHA1(bytes);
+		String key = StringUtils.getSHA1(token);
+		UserModel user = getUserModel(username);
+		String fingerprint = getFingerprint(key, user == null ? null : user.password);
+		Token entry = new Token(username, fingerprint, System.currentTimeMillis() + lifetime);
+		synchronized (this) {
+			tokens.put(key, entry);
+			append(key, entry);
+		}
+		return token;
+	}
+
+	/**
+	 * Returns the user of a token.
+	 *
+	 * @param token
+	 * @return the user or null if the token is unknown or has expired
+	 */
+	public UserModel authenticate(String token) {
+		if (StringUtils.isEmpty(token)) {
+			return null;
+		}
+		String key = StringUtils.getSHA1(token);
+		Token entry = tokens.get(key);
+		if (entry == null || entry.expires <= System.currentTimeMillis()) {
+			return null;
+		}
+		UserModel user = getUserModel(entry.username);
+		if (user == null) {
+			return null;
+		}
+		if (!entry.fingerprint.equals(getFingerprint(key, user.password))) {
+			// the password has been changed since the token was issued
+			revokeKey(key);
+			return null;
+		}
+		return user;
+	}
+
+	/**
+	 * Revokes a token.
+	 *
+	 * @param token
+	 */
+	public void revoke(String token) {
+		if (StringUtils.isEmpty(token)) {
+			return;
+		}
+		revokeKey(StringUtils.getSHA1(token));
+	}
+
+	/**
+	 * Revokes all tokens of a user.
+	 *
+	 * @param username
+	 */
+	public synchronized void revokeUser(String username) {
+		resetUser(username);
+		Iterator<Map.Entry<String, Token>> entries = tokens.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Token> entry = entries.next();
+			if (entry.getValue().username.equalsIgnoreCase(username)) {
+				entries.remove();
+				append(entry.getKey(), null);
+			}
+		}
+	}
+
+	/**
+	 * Evicts the user from the cache of users.
+	 *
+	 * @param username
+	 */
+	public void resetUser(String username) {
+		synchronized (users) {
+			users.remove(username.toLowerCase());
+			generation++;
+		}
+	}
+
+	/**
+	 * Evicts all users from the cache of users.
+	 */
+	public void resetUsers() {
+		synchronized (users) {
+			users.clear();
+			generation++;
+		}
+	}
+
+	/**
+	 * Returns the number of issued tokens.
+	 *
+	 * @return the number of tokens
+	 */
+	public int size() {
+		return tokens.size();
+	}
+
+	/**
+	 * Sweeps the expired tokens.
+	 */
+	@Override
+	public synchronized void run() {
+		long now = System.currentTimeMillis();
+		boolean expired = false;
+		Iterator<Token> entries = tokens.values().iterator();
+		while (entries.hasNext()) {
+			if (entries.next().expires <= now) {
+				entries.remove();
+				expired = true;
+			}
+		}
+		if (expired) {
+			compact();
+		}
+	}
+
+	/**
+	 * Revokes the token with the specified key.
+	 *
+	 * @param key
+	 */
+	private synchronized void revokeKey(String key) {
+		if (tokens.remove(key) != null) {
+			append(key, null);
+		}
+	}
+
+	/**
+	 * Returns the fingerprint of the password of a user. The fingerprint is
+	 * salted with the key of the token.
+	 *
+	 * @param key
+	 * @param password
+	 *            the stored password of the user, may be null
+	 * @return the fingerprint
+	 */
+	private String getFingerprint(String key, String password) {
+		return StringUtils.getSHA1(key + ":" + (password == null ? "" : password));
+	}
+
+	/**
+	 * Returns a copy of the user from the cache or from the user service.
+	 *
+	 * @param username
+	 * @return the user or null
+	 */
+	private UserModel getUserModel(String username) {
+		String key = username.toLowerCase();
+		IUserService service;
+		long currentGeneration;
+		synchronized (users) {
+			CachedUser cached = users.get(key);
+			if (cached != null) {
+				if (cached.expires > System.currentTimeMillis()) {
+					// the user model is mutable, callers get their own copy
+					return DeepCopier.copy(cached.user);
+				}
+				users.remove(key);
+			}
+			service = userService;
+			currentGeneration = generation;
+		}
+		if (service == null) {
+			return null;
+		}
+		UserModel user = service.getUserModel(username);
+		if (user == null) {
+			return null;
+		}
+		CachedUser copy = new CachedUser(DeepCopier.copy(user), System.currentTimeMillis()
+				+ userTimeout);
+		synchronized (users) {
+			// do not cache a user which was changed during the lookup
+			if (currentGeneration == generation) {
+				users.put(key, copy);
+			}
+		}
+		return user;
+	}
+
+	/**
+	 * Loads the unexpired tokens of the tokens file and compacts the file.
+	 */
+	private synchronized void load() {
+		if (tokensFile == null || !tokensFile.exists()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(tokensFile)));
+			int version = in.readInt();
+			if (version != TOKENS_VERSION) {
+				logger.warn(MessageFormat.format("Ignoring tokens file {0} version {1}",
+						tokensFile, version));
+			} else {
+				int type;
+				while ((type = in.read()) != -1) {
+					String key = in.readUTF();
+					if (type == REVOKE) {
+						tokens.remove(key);
+					} else if (type == ISSUE) {
+						String username = in.readUTF();
+						String fingerprint = in.readUTF();
+						long expires = in.readLong();
+						if (expires > now) {
+							tokens.put(key, new Token(username, fingerprint, expires));
+						}
+					} else {
+						throw new IOException(MessageFormat.format("Unknown record type {0}",
+								type));
+					}
+				}
+			}
+		} catch (EOFException e) {
+			// the last record was not completely written
+			logger.warn(MessageFormat.format("Ignoring the truncated record of {0}", tokensFile));
+		} catch (IOException e) {
+			logger.error(MessageFormat.format("Failed to read tokens file {0}", tokensFile), e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		compact();
+	}
+
+	/**
+	 * Appends an issued or a revoked token to the tokens file. The tokens file
+	 * is compacted instead if most of its records are obsolete.
+	 *
+	 * @param key
+	 * @param token
+	 *            the issued token or null if the token was revoked
+	 */
+	private void append(String key, Token token) {
+		if (tokensFile == null) {
+			return;
+		}
+		if (!tokensFile.exists() || records >= 2 * tokens.size() + MAX_OBSOLETE_RECORDS) {
+			compact();
+			return;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tokensFile, true)));
+			try {
+				write(out, key, token);
+			} finally {
+				out.close();
+			}
+			records++;
+		} catch (IOException e) {
+			logger.error(MessageFormat.format("Failed to write tokens file {0}", tokensFile), e);
+		}
+	}
+
+	/**
+	 * Rewrites the tokens file with the current token table.
+	 */
+	private void compact() {
+		if (tokensFile == null) {
+			return;
+		}
+		File tmp = new File(tokensFile.getAbsolutePath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			try {
+				out.writeInt(TOKENS_VERSION);
+				for (Map.Entry<String, Token> entry : tokens.entrySet()) {
+					write(out, entry.getKey(), entry.getValue());
+				}
+			} finally {
+				out.close();
+			}
+			if (tokensFile.exists() && !tokensFile.delete()) {
+				throw new IOException(MessageFormat.format("Failed to delete {0}", tokensFile));
+			}
+			if (!tmp.renameTo(tokensFile)) {
+				throw new IOException(MessageFormat.format("Failed to rename {0}", tmp));
+			}
+			records = tokens.size();
+		} catch (IOException e) {
+			logger.error(MessageFormat.format("Failed to write tokens file {0}", tokensFile), e);
+		}
+	}
+
+	private void write(DataOutputStream out, String key, Token token) throws IOException {
+		if (token == null) {
+			out.writeByte(REVOKE);
+			out.writeUTF(key);
+		} else {
+			out.writeByte(ISSUE);
+			out.writeUTF(key);
+			out.writeUTF(token.username);
+			out.writeUTF(token.fingerprint);
+			out.writeLong(token.expires);
+		}
+	}
+}
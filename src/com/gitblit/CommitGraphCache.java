@@ -0,0 +1,946 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdSubclassMap;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.utils.JGitUtils;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The commit graph cache maintains the commit graph of each repository: the
+ * parents, commit time, and generation number of every commit reachable from
+ * the refs.
+ *
+ * A page of the commit log is read from the graph in the same order as a
+ * RevWalk would produce it, without reading the skipped commits from the
+ * object database. Only the commits of the requested page are parsed.
+ *
+ * Every commit of the graph also has a Bloom filter of the paths it changed
+ * relative to its first parent, in the style of the changed-path filters of
+ * git. A path history walk only compares the trees of the commits whose filter
+ * may contain the path, all other commits are known not to touch the path.
+ *
+ * The graph is persisted in the repository and is updated incrementally in
+ * the background after a push. Only the commits which are not already in the
+ * graph are read and appended to the graph file. The graphs of the most
+ * recently used repositories are kept in memory, a dropped graph is loaded
+ * from its graph file when it is needed again.
+ *
+ * @author James Moger
+ *
+ */
+public class CommitGraphCache {
+
+	private static final String GRAPH_FILE = "commitgraph.dat";
+	private static final String CONF_FILE = "commitgraph.conf";
+	private static final String CONF_GRAPH = "graph";
+	private static final String CONF_VERSION = "version";
+	private static final String CONF_COUNT = "count";
+	private static final String CONF_LENGTH = "length";
+	private static final int GRAPH_VERSION = 2;
+
+	// changed-path filters use the parameters of git: 10 bits per path and 7
+	// hash functions, commits which change too many paths have no filter
+	private static final int BLOOM_BITS_PER_PATH = 10;
+	private static final int BLOOM_HASHES = 7;
+	private static final int BLOOM_MAX_PATHS = 512;
+	private static final int BLOOM_SEED_1 = 0x293ae76f;
+	private static final int BLOOM_SEED_2 = 0x7e646e2c;
+
+	private final Logger logger = LoggerFactory.getLogger(CommitGraphCache.class);
+
+	private final File repositoriesFolder;
+
+	private final ExecutorService executor;
+
+	private final Map<String, CommitGraph> graphs;
+
+	private final Set<String> queued = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Creates the commit graph cache.
+	 *
+	 * @param repositoriesFolder
+	 * @param executor
+	 *            the executor of the background updates
+	 * @param maxGraphs
+	 *            the maximum number of graphs kept in memory
+	 */
+	public CommitGraphCache(File repositoriesFolder, ExecutorService executor,
+			final int maxGraphs) {
+		this.repositoriesFolder = repositoriesFolder;
+		this.executor = executor;
+		this.graphs = new LinkedHashMap<String, CommitGraph>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CommitGraph> eldest) {
+				// a graph is not dropped while it is updated
+				return size() > Math.max(1, maxGraphs) && eldest.getValue().updates == 0;
+			}
+		};
+	}
+
+	/**
+	 * A commit of the graph. Parents are always added to the graph before
+	 * their children.
+	 */
+	private static class Node extends ObjectId {
+
+		private static final long serialVersionUID = 1L;
+
+		final int index;
+
+		final int commitTime;
+
+		final int generation;
+
+		final Node[] parents;
+
+		final byte[] changedPaths;
+
+		Node(AnyObjectId id, int index, int commitTime, int generation, Node[] parents,
+				byte[] changedPaths) {
+			super(id);
+			this.index = index;
+			this.commitTime = commitTime;
+			this.generation = generation;
+			this.parents = parents;
+			this.changedPaths = changedPaths;
+		}
+
+		/**
+		 * Indicates if the commit may have changed the path relative to its
+		 * first parent. False is definite, true may be a false positive.
+		 *
+		 * @param key
+		 *            the hashes of the path
+		 * @return false if the commit did not change the path
+		 */
+		boolean mayChange(int[] key) {
+			if (changedPaths == null) {
+				return true;
+			}
+			return mightContain(changedPaths, key);
+		}
+	}
+
+	/**
+	 * The commit graph of a repository.
+	 */
+	private static class CommitGraph {
+
+		final File gitDir;
+
+		final ObjectIdSubclassMap<Node> nodes = new ObjectIdSubclassMap<Node>();
+
+		long length;
+
+		// the number of running updates, guarded by the graphs map
+		int updates;
+
+		CommitGraph(File gitDir) {
+			this.gitDir = gitDir;
+		}
+	}
+
+	/**
+	 * The commits waiting to be emitted by the simulated walk, ordered like
+	 * the date queue of a RevWalk: newest commit first. A commit is queued
+	 * ahead of the queued commits with the same time, unless the first commit
+	 * of the queue has the same time, in which case it is queued right behind
+	 * the first commit.
+	 */
+	private static class DateQueue {
+
+		private static class Entry {
+
+			final Node node;
+
+			Entry next;
+
+			Entry(Node node) {
+				this.node = node;
+			}
+		}
+
+		private Entry head;
+
+		void add(Node node) {
+			Entry entry = new Entry(node);
+			Entry q = head;
+			if (q == null || node.commitTime > q.node.commitTime) {
+				entry.next = q;
+				head = entry;
+				return;
+			}
+			Entry p = q.next;
+			while (p != null && p.node.commitTime > node.commitTime) {
+				q = p;
+				p = q.next;
+			}
+			entry.next = q.next;
+			q.next = entry;
+		}
+
+		Node next() {
+			Entry q = head;
+			if (q == null) {
+				return null;
+			}
+			head = q.next;
+			return q.node;
+		}
+	}
+
+	/**
+	 * Selects the commits of a path history like the tree filter of a RevWalk
+	 * does, including the simplification of merges which took the path from
+	 * one of their parents. Trees are only compared for commits whose
+	 * changed-path filter may contain the path.
+	 */
+	private static class PathHistoryFilter {
+
+		final int[] key;
+
+		final RevWalk revWalk;
+
+		final TreeWalk treeWalk;
+
+		final Map<Node, Node[]> rewrittenParents = new IdentityHashMap<Node, Node[]>();
+
+		PathHistoryFilter(Repository repository, String path) {
+			String key = path;
+			while (key.endsWith("/")) {
+				key = key.substring(0, key.length() - 1);
+			}
+			this.key = hash(key);
+			this.revWalk = new RevWalk(repository);
+			this.revWalk.setRetainBody(false);
+			TreeFilter filter = AndTreeFilter.create(
+					PathFilterGroup.createFromStrings(Collections.singleton(path)),
+					TreeFilter.ANY_DIFF);
+			this.treeWalk = new TreeWalk(repository);
+			this.treeWalk.setFilter(filter);
+			this.treeWalk.setRecursive(filter.shouldBeRecursive());
+		}
+
+		Node[] getParents(Node node) {
+			Node[] parents = rewrittenParents.get(node);
+			return parents == null ? node.parents : parents;
+		}
+
+		/**
+		 * Indicates if the commit changed the path. A merge which did not
+		 * change the path relative to one of its parents is only followed
+		 * through that parent.
+		 *
+		 * @param node
+		 * @return true if the commit belongs to the path history
+		 * @throws IOException
+		 */
+		boolean include(Node node) throws IOException {
+			Node[] parents = getParents(node);
+			if (parents == node.parents && !node.mayChange(key)) {
+				// same as the first parent
+				if (parents.length > 1) {
+					rewrittenParents.put(node, new Node[] { parents[0] });
+				}
+				return false;
+			}
+
+			int count = parents.length;
+			ObjectId[] trees = new ObjectId[count + 1];
+			for (int i = 0; i < count; i++) {
+				trees[i] = revWalk.parseCommit(parents[i]).getTree();
+			}
+			trees[count] = revWalk.parseCommit(node).getTree();
+			treeWalk.reset(trees);
+			if (count < 2) {
+				return treeWalk.next();
+			}
+
+			int[] changes = new int[count];
+			int[] adds = new int[count];
+			while (treeWalk.next()) {
+				int mode = treeWalk.getRawMode(count);
+				for (int i = 0; i < count; i++) {
+					int parentMode = treeWalk.getRawMode(i);
+					if (parentMode == mode && treeWalk.idEqual(i, count)) {
+						continue;
+					}
+					changes[i]++;
+					if (parentMode == 0 && mode != 0) {
+						adds[i]++;
+					}
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				if (changes[i] == 0) {
+					// the path was taken from this parent
+					rewrittenParents.put(node, new Node[] { parents[i] });
+					return false;
+				}
+				if (changes[i] == adds[i]) {
+					// the path was added by the merge, the history of this
+					// parent is not relevant
+					rewrittenParents.put(parents[i], new Node[0]);
+				}
+			}
+			return true;
+		}
+
+		void release() {
+			treeWalk.release();
+			revWalk.release();
+		}
+	}
+
+	/**
+	 * Returns a page of the commit log of the repository from the commit
+	 * graph. If the start commit is not in the graph yet, an update of the
+	 * graph is queued and null is returned.
+	 *
+	 * @param repositoryName
+	 * @param repository
+	 * @param objectId
+	 *            if unspecified, HEAD is assumed.
+	 * @param path
+	 *            if unspecified, commits for repository are returned. If
+	 *            specified, commits for the path are returned.
+	 * @param offset
+	 * @param maxCount
+	 *            if < 0, all commits are returned.
+	 * @return a paged list of commits or null if the graph can not provide the
+	 *         log
+	 */
+	public List<RevCommit> getRevLog(String repositoryName, Repository repository,
+			String objectId, String path, int offset, int maxCount) {
+		if (maxCount == 0 || !JGitUtils.hasCommits(repository)) {
+			return null;
+		}
+		try {
+			ObjectId startId;
+			if (StringUtils.isEmpty(objectId)) {
+				startId = JGitUtils.getDefaultBranch(repository);
+			} else {
+				startId = repository.resolve(objectId);
+			}
+			if (startId == null) {
+				return null;
+			}
+			CommitGraph graph = getGraph(repositoryName);
+			if (graph == null) {
+				return null;
+			}
+			Node start;
+			synchronized (graph) {
+				start = graph.nodes.get(startId);
+				if (start == null) {
+					// a tag or a commit which has not been added yet
+					RevWalk revWalk = new RevWalk(repository);
+					try {
+						start = graph.nodes.get(revWalk.parseCommit(startId));
+					} finally {
+						revWalk.release();
+					}
+				}
+			}
+			if (start == null) {
+				update(repositoryName);
+				return null;
+			}
+			// nodes are never modified, the walk does not need the lock
+			List<ObjectId> ids;
+			if (StringUtils.isEmpty(path)) {
+				ids = getLog(start, null, offset, maxCount);
+			} else {
+				PathHistoryFilter filter = new PathHistoryFilter(repository, path);
+				try {
+					ids = getLog(start, filter, offset, maxCount);
+				} finally {
+					filter.release();
+				}
+			}
+
+			List<RevCommit> list = new ArrayList<RevCommit>(ids.size());
+			RevWalk revWalk = new RevWalk(repository);
+			try {
+				for (ObjectId id : ids) {
+					list.add(revWalk.parseCommit(id));
+				}
+			} finally {
+				revWalk.release();
+			}
+			return list;
+		} catch (Exception e) {
+			logger.error(MessageFormat.format("Failed to read the commit graph of {0}",
+					repositoryName), e);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the generation number of a commit. Root commits are generation
+	 * 1, every other commit is one more than its highest parent.
+	 *
+	 * @param repositoryName
+	 * @param commitId
+	 * @return the generation number or 0 if the commit is not in the graph
+	 */
+	public int getGeneration(String repositoryName, AnyObjectId commitId) {
+		CommitGraph graph = getGraph(repositoryName);
+		if (graph == null) {
+			return 0;
+		}
+		synchronized (graph) {
+			Node node = graph.nodes.get(commitId);
+			return node == null ? 0 : node.generation;
+		}
+	}
+
+	/**
+	 * Indicates if a commit is reachable from another commit. Only commits
+	 * with a generation number which is not lower than the generation of the
+	 * base commit are visited.
+	 *
+	 * @param repositoryName
+	 * @param base
+	 * @param tip
+	 * @return true if base is reachable from tip or null if either commit is
+	 *         not in the graph
+	 */
+	public Boolean isMergedInto(String repositoryName, AnyObjectId base, AnyObjectId tip) {
+		CommitGraph graph = getGraph(repositoryName);
+		if (graph == null) {
+			return null;
+		}
+		Node baseNode;
+		Node tipNode;
+		synchronized (graph) {
+			baseNode = graph.nodes.get(base);
+			tipNode = graph.nodes.get(tip);
+		}
+		if (baseNode == null || tipNode == null) {
+			return null;
+		}
+		Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+		LinkedList<Node> stack = new LinkedList<Node>();
+		stack.push(tipNode);
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			if (node == baseNode) {
+				return true;
+			}
+			for (Node parent : node.parents) {
+				if (parent.generation >= baseNode.generation && seen.add(parent)) {
+					stack.push(parent);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Queues a background update of the commit graph of the repository.
+	 *
+	 * @param repositoryName
+	 */
+	public void update(final String repositoryName) {
+		if (!queued.add(repositoryName)) {
+			// already queued
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				queued.remove(repositoryName);
+				CommitGraph graph = null;
+				try {
+					graph = getGraph(repositoryName, true);
+					if (graph != null) {
+						updateGraph(repositoryName, graph);
+					}
+				} catch (Throwable t) {
+					logger.error(MessageFormat.format("Failed to update the commit graph of {0}",
+							repositoryName), t);
+				} finally {
+					if (graph != null) {
+						synchronized (graphs) {
+							graph.updates--;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Forgets the commit graph of the repository. The persisted graph is
+	 * stored within the repository and moves with it if it is renamed.
+	 *
+	 * @param repositoryName
+	 */
+	public void remove(String repositoryName) {
+		synchronized (graphs) {
+			graphs.remove(repositoryName);
+		}
+	}
+
+	/**
+	 * Emits the commits reachable from the start commit in the order of a
+	 * RevWalk, skipping the first offset commits.
+	 *
+	 * @param start
+	 * @param filter
+	 *            the path history filter, may be null
+	 * @param offset
+	 * @param maxCount
+	 * @return the ids of the commits of the page
+	 * @throws IOException
+	 */
+	private List<ObjectId> getLog(Node start, PathHistoryFilter filter, int offset, int maxCount)
+			throws IOException {
+		List<ObjectId> list = new ArrayList<ObjectId>();
+		Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+		DateQueue queue = new DateQueue();
+		seen.add(start);
+		queue.add(start);
+		int count = 0;
+		Node node;
+		while ((node = queue.next()) != null) {
+			boolean include = filter == null || filter.include(node);
+			Node[] parents = filter == null ? node.parents : filter.getParents(node);
+			for (Node parent : parents) {
+				if (seen.add(parent)) {
+					queue.add(parent);
+				}
+			}
+			if (include && count++ >= offset) {
+				list.add(node);
+				if (maxCount > 0 && list.size() == maxCount) {
+					break;
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the commit graph of the repository, loading the persisted graph
+	 * the first time a repository is requested. If the repository does not
+	 * have a persisted graph, a build of the graph is queued.
+	 *
+	 * @param repositoryName
+	 * @return the commit graph or null if the repository does not exist
+	 */
+	private CommitGraph getGraph(String repositoryName) {
+		return getGraph(repositoryName, false);
+	}
+
+	/**
+	 * Returns the commit graph of the repository. A graph which is acquired
+	 * for an update is not dropped from memory until the update is complete
+	 * so that the graph file is never written through two graphs.
+	 *
+	 * @param repositoryName
+	 * @param update
+	 *            true to acquire the graph for an update
+	 * @return the commit graph or null if the repository does not exist
+	 */
+	private CommitGraph getGraph(String repositoryName, boolean update) {
+		synchronized (graphs) {
+			CommitGraph graph = graphs.get(repositoryName);
+			if (graph != null) {
+				if (update) {
+					graph.updates++;
+				}
+				return graph;
+			}
+		}
+		File gitDir = FileKey.resolve(new File(repositoriesFolder, repositoryName), FS.DETECTED);
+		if (gitDir == null) {
+			return null;
+		}
+		synchronized (graphs) {
+			CommitGraph graph = graphs.get(repositoryName);
+			if (graph == null) {
+				graph = new CommitGraph(gitDir);
+				if (!load(graph) && !update) {
+					update(repositoryName);
+				}
+				graphs.put(repositoryName, graph);
+			}
+			if (update) {
+				graph.updates++;
+			}
+			return graph;
+		}
+	}
+
+	/**
+	 * Adds the commits which are reachable from the refs of the repository and
+	 * not yet in the graph. The new commits are appended to the graph file.
+	 *
+	 * @param repositoryName
+	 * @param graph
+	 * @throws IOException
+	 */
+	private void updateGraph(String repositoryName, CommitGraph graph) throws IOException {
+		Repository repository = new FileRepository(graph.gitDir);
+		long startTime = System.currentTimeMillis();
+		List<RevCommit> commits = new ArrayList<RevCommit>();
+		List<byte[]> changedPaths = new ArrayList<byte[]>();
+		RevWalk revWalk = new RevWalk(repository);
+		revWalk.setRetainBody(false);
+		TreeWalk treeWalk = new TreeWalk(repository);
+		treeWalk.setFilter(TreeFilter.ANY_DIFF);
+		treeWalk.setRecursive(true);
+		try {
+			// parents are ordered before their children
+			RevFlag added = revWalk.newFlag("added");
+			for (Ref ref : repository.getAllRefs().values()) {
+				RevObject object = revWalk.peel(revWalk.parseAny(ref.getObjectId()));
+				if (!(object instanceof RevCommit)) {
+					continue;
+				}
+				LinkedList<RevCommit> stack = new LinkedList<RevCommit>();
+				stack.push((RevCommit) object);
+				while (!stack.isEmpty()) {
+					RevCommit commit = stack.peek();
+					if (commit.has(added) || contains(graph, commit)) {
+						stack.pop();
+						continue;
+					}
+					boolean hasPendingParents = false;
+					for (RevCommit parent : commit.getParents()) {
+						if (!parent.has(added) && !contains(graph, parent)) {
+							revWalk.parseHeaders(parent);
+							stack.push(parent);
+							hasPendingParents = true;
+						}
+					}
+					if (!hasPendingParents) {
+						stack.pop();
+						commit.add(added);
+						commits.add(commit);
+						changedPaths.add(getChangedPaths(revWalk, treeWalk, commit));
+					}
+				}
+			}
+		} finally {
+			treeWalk.release();
+			revWalk.release();
+			repository.close();
+		}
+		if (commits.isEmpty()) {
+			return;
+		}
+
+		int count = 0;
+		synchronized (graph) {
+			File file = new File(graph.gitDir, GRAPH_FILE);
+			// discard a partially written update
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(graph.length);
+			} finally {
+				raf.close();
+			}
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file, true)));
+			try {
+				for (int c = 0; c < commits.size(); c++) {
+					RevCommit commit = commits.get(c);
+					if (graph.nodes.contains(commit)) {
+						// added by a concurrent update after the scan
+						continue;
+					}
+					Node[] parents = new Node[commit.getParentCount()];
+					int generation = 1;
+					for (int i = 0; i < parents.length; i++) {
+						parents[i] = graph.nodes.get(commit.getParent(i));
+						generation = Math.max(generation, parents[i].generation + 1);
+					}
+					Node node = new Node(commit, graph.nodes.size(), commit.getCommitTime(),
+							generation, parents, changedPaths.get(c));
+					graph.nodes.add(node);
+					write(out, node);
+					count++;
+				}
+			} finally {
+				out.close();
+			}
+			graph.length = file.length();
+			FileBasedConfig config = getConfig(graph);
+			config.setInt(CONF_GRAPH, null, CONF_VERSION, GRAPH_VERSION);
+			config.setInt(CONF_GRAPH, null, CONF_COUNT, graph.nodes.size());
+			config.setLong(CONF_GRAPH, null, CONF_LENGTH, graph.length);
+			config.save();
+		}
+		long duration = System.currentTimeMillis() - startTime;
+		logger.info(MessageFormat.format("{0} commits added to the commit graph of {1} in {2} msecs",
+				count, repositoryName, duration));
+	}
+
+	private boolean contains(CommitGraph graph, AnyObjectId id) {
+		synchronized (graph) {
+			return graph.nodes.contains(id);
+		}
+	}
+
+	/**
+	 * Returns the changed-path filter of a commit: the paths of the files
+	 * which differ from the first parent and all their parent folders.
+	 *
+	 * @param revWalk
+	 * @param treeWalk
+	 * @param commit
+	 * @return the Bloom filter or null if the commit changed too many paths
+	 * @throws IOException
+	 */
+	private byte[] getChangedPaths(RevWalk revWalk, TreeWalk treeWalk, RevCommit commit)
+			throws IOException {
+		treeWalk.reset();
+		if (commit.getParentCount() == 0) {
+			treeWalk.addTree(new EmptyTreeIterator());
+		} else {
+			RevCommit parent = commit.getParent(0);
+			revWalk.parseHeaders(parent);
+			treeWalk.addTree(parent.getTree());
+		}
+		treeWalk.addTree(commit.getTree());
+		Set<String> paths = new HashSet<String>();
+		while (treeWalk.next()) {
+			String path = treeWalk.getPathString();
+			paths.add(path);
+			for (int slash = path.indexOf('/'); slash > 0; slash = path.indexOf('/', slash + 1)) {
+				paths.add(path.substring(0, slash));
+			}
+			if (paths.size() > BLOOM_MAX_PATHS) {
+				return null;
+			}
+		}
+		byte[] bloom = new byte[Math.max(1, (paths.size() * BLOOM_BITS_PER_PATH + 7) / 8)];
+		for (String path : paths) {
+			int[] key = hash(path);
+			long bits = bloom.length * 8L;
+			for (int i = 0; i < BLOOM_HASHES; i++) {
+				int bit = getBit(key, i, bits);
+				bloom[bit >>> 3] |= 1 << (bit & 7);
+			}
+		}
+		return bloom;
+	}
+
+	private static boolean mightContain(byte[] bloom, int[] key) {
+		long bits = bloom.length * 8L;
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			int bit = getBit(key, i, bits);
+			if ((bloom[bit >>> 3] & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int getBit(int[] key, int i, long bits) {
+		long hash = ((key[0] & 0xffffffffL) + i * (key[1] & 0xffffffffL)) & 0xffffffffL;
+		return (int) (hash % bits);
+	}
+
+	/**
+	 * Returns the two murmur3 hashes of a path from which the bit positions of
+	 * the path in a changed-path filter are derived.
+	 *
+	 * @param path
+	 * @return the hashes
+	 */
+	private static int[] hash(String path) {
+		byte[] data = Constants.encode(path);
+		return new int[] { murmur3(BLOOM_SEED_1, data), murmur3(BLOOM_SEED_2, data) };
+	}
+
+	private static int murmur3(int seed, byte[] data) {
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+		int h = seed;
+		int blocks = data.length / 4;
+		for (int i = 0; i < blocks; i++) {
+			int k = (data[i * 4] & 0xff) | ((data[i * 4 + 1] & 0xff) << 8)
+					| ((data[i * 4 + 2] & 0xff) << 16) | ((data[i * 4 + 3] & 0xff) << 24);
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			h ^= k;
+			h = Integer.rotateLeft(h, 13);
+			h = h * 5 + 0xe6546b64;
+		}
+		int k = 0;
+		int tail = blocks * 4;
+		switch (data.length & 3) {
+		case 3:
+			k ^= (data[tail + 2] & 0xff) << 16;
+		case 2:
+			k ^= (data[tail + 1] & 0xff) << 8;
+		case 1:
+			k ^= data[tail] & 0xff;
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			h ^= k;
+		}
+		h ^= data.length;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private FileBasedConfig getConfig(CommitGraph graph) {
+		return new FileBasedConfig(new File(graph.gitDir, CONF_FILE), FS.detect());
+	}
+
+	/**
+	 * Writes a commit record: the commit id, commit time, generation number,
+	 * the indexes of the parents, and the changed-path filter.
+	 *
+	 * @param out
+	 * @param node
+	 * @throws IOException
+	 */
+	private void write(DataOutputStream out, Node node) throws IOException {
+		byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+		node.copyRawTo(id, 0);
+		out.write(id);
+		out.writeInt(node.commitTime);
+		out.writeInt(node.generation);
+		out.writeInt(node.parents.length);
+		for (Node parent : node.parents) {
+			out.writeInt(parent.index);
+		}
+		if (node.changedPaths == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(node.changedPaths.length);
+			out.write(node.changedPaths);
+		}
+	}
+
+	/**
+	 * Loads the persisted commit graph of the repository.
+	 *
+	 * @param graph
+	 * @return true if the graph was loaded
+	 */
+	private boolean load(CommitGraph graph) {
+		FileBasedConfig config = getConfig(graph);
+		File file = new File(graph.gitDir, GRAPH_FILE);
+		if (!config.getFile().exists() || !file.exists()) {
+			return false;
+		}
+		try {
+			config.load();
+			if (config.getInt(CONF_GRAPH, null, CONF_VERSION, 0) != GRAPH_VERSION) {
+				return false;
+			}
+			int count = config.getInt(CONF_GRAPH, null, CONF_COUNT, 0);
+			long length = config.getLong(CONF_GRAPH, null, CONF_LENGTH, 0);
+			List<Node> nodes = new ArrayList<Node>(count);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+				for (int i = 0; i < count; i++) {
+					in.readFully(id);
+					int commitTime = in.readInt();
+					int generation = in.readInt();
+					Node[] parents = new Node[in.readInt()];
+					for (int j = 0; j < parents.length; j++) {
+						parents[j] = nodes.get(in.readInt());
+					}
+					byte[] changedPaths = null;
+					int bloomLength = in.readInt();
+					if (bloomLength >= 0) {
+						changedPaths = new byte[bloomLength];
+						in.readFully(changedPaths);
+					}
+					nodes.add(new Node(ObjectId.fromRaw(id), i, commitTime, generation, parents,
+							changedPaths));
+				}
+			} finally {
+				in.close();
+			}
+			for (Node node : nodes) {
+				graph.nodes.add(node);
+			}
+			graph.length = length;
+			return true;
+		} catch (Exception e) {
+			logger.warn(MessageFormat.format("Failed to load {0}", file), e);
+			graph.nodes.clear();
+			graph.length = 0;
+		}
+		return false;
+	}
+}
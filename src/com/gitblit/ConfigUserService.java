@@ -21,11 +21,12 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
@@ -50,6 +51,10 @@ import com.gitblit.utils.StringUtils;
  * Additionally, this format allows for expansion of the user model without
  * bringing in the complexity of a database.
  * 
+ * The realm is held in memory as an immutable snapshot which is replaced as a
+ * whole when the realm file is reloaded or written. Readers never lock and
+ * only check the realm file for modification once per second.
+ * 
  * @author James Moger
  * 
  */
@@ -75,20 +80,147 @@ public class ConfigUserService implements IUserService {
 
 	private final Logger logger = LoggerFactory.getLogger(ConfigUserService.class);
 
-	private final Map<String, UserModel> users = new ConcurrentHashMap<String, UserModel>();
-
-	private final Map<String, UserModel> cookies = new ConcurrentHashMap<String, UserModel>();
+	// the realm file is checked for modification at most once per second
+	private static final long REALM_CHECK_INTERVAL = 1000L;
 
-	private final Map<String, TeamModel> teams = new ConcurrentHashMap<String, TeamModel>();
+	private volatile Realm realm = new Realm();
 
 	private volatile long lastModified;
-	
+
 	private volatile boolean forceReload;
 
+	private volatile long nextCheck;
+
 	public ConfigUserService(File realmFile) {
 		this.realmFile = realmFile;
 	}
 
+	/**
+	 * An immutable snapshot of the realm with the users, the teams, the
+	 * cookies, and the users and teams of each repository role.
+	 * 
+	 * A published realm is never modified. Updates are applied to a copy of
+	 * the current realm which replaces the current realm once it has been
+	 * written.
+	 */
+	private static class Realm {
+
+		final Map<String, UserModel> users = new HashMap<String, UserModel>();
+
+		final Map<String, UserModel> cookies = new HashMap<String, UserModel>();
+
+		final Map<String, TeamModel> teams = new HashMap<String, TeamModel>();
+
+		final Map<String, List<String>> userRoles = new HashMap<String, List<String>>();
+
+		final Map<String, List<String>> teamRoles = new HashMap<String, List<String>>();
+
+		final List<String> usernames;
+
+		final List<String> teamnames;
+
+		Realm() {
+			this(new ArrayList<UserModel>(), new ArrayList<TeamModel>());
+		}
+
+		/**
+		 * Creates a realm from new copies of the specified users and teams.
+		 * The copies are normalized in the same way as the models which are
+		 * read from the realm file.
+		 * 
+		 * @param userModels
+		 * @param teamModels
+		 */
+		Realm(Collection<UserModel> userModels, Collection<TeamModel> teamModels) {
+			for (UserModel model : userModels) {
+				UserModel user = new UserModel(model.username.toLowerCase());
+				user.password = model.password;
+				user.canAdmin = model.canAdmin;
+				user.excludeFromFederation = model.excludeFromFederation;
+				// null check on "final" repositories because JSON-sourced
+				// UserModel can have a null repositories object
+				if (!ArrayUtils.isEmpty(model.repositories)) {
+					for (String repository : model.repositories) {
+						user.addRepository(repository);
+					}
+				}
+				users.put(user.username, user);
+				cookies.put(StringUtils.getSHA1(user.username + user.password), user);
+				for (String repository : user.repositories) {
+					index(userRoles, repository, user.username);
+				}
+			}
+
+			for (TeamModel model : teamModels) {
+				if (ArrayUtils.isEmpty(model.repositories) && ArrayUtils.isEmpty(model.users)
+						&& ArrayUtils.isEmpty(model.mailingLists)
+						&& ArrayUtils.isEmpty(model.preReceiveScripts)
+						&& ArrayUtils.isEmpty(model.postReceiveScripts)) {
+					// a team without any settings is not written to the realm
+					// file and therefore does not survive a reload
+					continue;
+				}
+				TeamModel team = new TeamModel(model.name);
+				if (!ArrayUtils.isEmpty(model.repositories)) {
+					team.addRepositories(model.repositories);
+				}
+				if (!ArrayUtils.isEmpty(model.users)) {
+					team.addUsers(model.users);
+				}
+				if (!ArrayUtils.isEmpty(model.mailingLists)) {
+					team.addMailingLists(model.mailingLists);
+				}
+				if (!ArrayUtils.isEmpty(model.preReceiveScripts)) {
+					team.preReceiveScripts.addAll(model.preReceiveScripts);
+				}
+				if (!ArrayUtils.isEmpty(model.postReceiveScripts)) {
+					team.postReceiveScripts.addAll(model.postReceiveScripts);
+				}
+				teams.put(team.name.toLowerCase(), team);
+				for (String repository : team.repositories) {
+					index(teamRoles, repository, team.name);
+				}
+
+				// set the teams on the users
+				for (String username : team.users) {
+					UserModel user = users.get(username);
+					if (user != null) {
+						user.teams.add(team);
+					}
+				}
+			}
+
+			for (List<String> list : userRoles.values()) {
+				Collections.sort(list);
+			}
+			for (List<String> list : teamRoles.values()) {
+				Collections.sort(list);
+			}
+			usernames = new ArrayList<String>(users.keySet());
+			Collections.sort(usernames);
+			teamnames = new ArrayList<String>(teams.keySet());
+			Collections.sort(teamnames);
+		}
+
+		private static void index(Map<String, List<String>> roles, String role, String name) {
+			List<String> names = roles.get(role);
+			if (names == null) {
+				names = new ArrayList<String>();
+				roles.put(role, names);
+			}
+			names.add(name);
+		}
+
+		/**
+		 * Returns a copy of this realm which may be modified.
+		 * 
+		 * @return a copy of the realm
+		 */
+		Realm copy() {
+			return new Realm(users.values(), teams.values());
+		}
+	}
+
 	/**
 	 * Setup the user service.
 	 * 
@@ -117,8 +249,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public char[] getCookie(UserModel model) {
-		read();
-		UserModel storedModel = users.get(model.username.toLowerCase());
+		UserModel storedModel = getRealm().users.get(model.username.toLowerCase());
 		String cookie = StringUtils.getSHA1(model.username + storedModel.password);
 		return cookie.toCharArray();
 	}
@@ -135,10 +266,10 @@ public class ConfigUserService implements IUserService {
 		if (StringUtils.isEmpty(hash)) {
 			return null;
 		}
-		read();
-		UserModel model = null;
-		if (cookies.containsKey(hash)) {
-			model = cookies.get(hash);
+		UserModel model = getRealm().cookies.get(hash);
+		if (model != null) {
+			// clone the model, the realm is shared by all readers
+			model = DeepCopier.copy(model);
 		}
 		return model;
 	}
@@ -152,7 +283,6 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public UserModel authenticate(String username, char[] password) {
-		read();
 		UserModel returnedUser = null;
 		UserModel user = getUserModel(username);
 		if (user == null) {
@@ -186,8 +316,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public UserModel getUserModel(String username) {
-		read();
-		UserModel model = users.get(username.toLowerCase());
+		UserModel model = getRealm().users.get(username.toLowerCase());
 		if (model != null) {
 			// clone the model, otherwise all changes to this object are
 			// live and unpersisted
@@ -218,9 +347,11 @@ public class ConfigUserService implements IUserService {
 	 * @return true if update is successful
 	 */
 	@Override
-	public boolean updateUserModel(String username, UserModel model) {
+	public synchronized boolean updateUserModel(String username, UserModel model) {
 		try {
-			read();
+			Realm edit = editRealm();
+			Map<String, UserModel> users = edit.users;
+			Map<String, TeamModel> teams = edit.teams;
 			UserModel oldUser = users.remove(username.toLowerCase());
 			users.put(model.username.toLowerCase(), model);
 			// null check on "final" teams because JSON-sourced UserModel
@@ -249,7 +380,7 @@ public class ConfigUserService implements IUserService {
 					}
 				}
 			}
-			write();
+			write(edit);
 			return true;
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Failed to update user model {0}!", model.username),
@@ -276,11 +407,11 @@ public class ConfigUserService implements IUserService {
 	 * @return true if successful
 	 */
 	@Override
-	public boolean deleteUser(String username) {
+	public synchronized boolean deleteUser(String username) {
 		try {
-			// Read realm file
-			read();
-			UserModel model = users.remove(username.toLowerCase());
+			Realm edit = editRealm();
+			Map<String, TeamModel> teams = edit.teams;
+			UserModel model = edit.users.remove(username.toLowerCase());
 			// remove user from team
 			for (TeamModel team : model.teams) {
 				TeamModel t = teams.get(team.name);
@@ -293,7 +424,7 @@ public class ConfigUserService implements IUserService {
 					t.removeUser(username);
 				}
 			}
-			write();
+			write(edit);
 			return true;
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Failed to delete user {0}!", username), t);
@@ -309,10 +440,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public List<String> getAllTeamNames() {
-		read();
-		List<String> list = new ArrayList<String>(teams.keySet());
-		Collections.sort(list);
-		return list;
+		return new ArrayList<String>(getRealm().teamnames);
 	}
 
 	/**
@@ -323,8 +451,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public List<TeamModel> getAllTeams() {
-		read();
-		List<TeamModel> list = new ArrayList<TeamModel>(teams.values());
+		List<TeamModel> list = new ArrayList<TeamModel>(getRealm().teams.values());
 		list = DeepCopier.copy(list);
 		Collections.sort(list);
 		return list;
@@ -340,20 +467,11 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public List<String> getTeamnamesForRepositoryRole(String role) {
-		List<String> list = new ArrayList<String>();
-		try {
-			read();
-			for (Map.Entry<String, TeamModel> entry : teams.entrySet()) {
-				TeamModel model = entry.getValue();
-				if (model.hasRepository(role)) {
-					list.add(model.name);
-				}
-			}
-		} catch (Throwable t) {
-			logger.error(MessageFormat.format("Failed to get teamnames for role {0}!", role), t);
+		List<String> list = getRealm().teamRoles.get(role.toLowerCase());
+		if (list == null) {
+			return new ArrayList<String>();
 		}
-		Collections.sort(list);
-		return list;
+		return new ArrayList<String>(list);
 	}
 
 	/**
@@ -366,17 +484,17 @@ public class ConfigUserService implements IUserService {
 	 * @return true if successful
 	 */
 	@Override
-	public boolean setTeamnamesForRepositoryRole(String role, List<String> teamnames) {
+	public synchronized boolean setTeamnamesForRepositoryRole(String role, List<String> teamnames) {
 		try {
 			Set<String> specifiedTeams = new HashSet<String>();
 			for (String teamname : teamnames) {
 				specifiedTeams.add(teamname.toLowerCase());
 			}
 
-			read();
+			Realm edit = editRealm();
 
 			// identify teams which require add or remove role
-			for (TeamModel team : teams.values()) {
+			for (TeamModel team : edit.teams.values()) {
 				// team has role, check against revised team list
 				if (specifiedTeams.contains(team.name.toLowerCase())) {
 					team.addRepository(role);
@@ -387,7 +505,7 @@ public class ConfigUserService implements IUserService {
 			}
 
 			// persist changes
-			write();
+			write(edit);
 			return true;
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Failed to set teams for role {0}!", role), t);
@@ -404,8 +522,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public TeamModel getTeamModel(String teamname) {
-		read();
-		TeamModel model = teams.get(teamname.toLowerCase());
+		TeamModel model = getRealm().teams.get(teamname.toLowerCase());
 		if (model != null) {
 			// clone the model, otherwise all changes to this object are
 			// live and unpersisted
@@ -438,12 +555,12 @@ public class ConfigUserService implements IUserService {
 	 * @since 0.8.0
 	 */
 	@Override
-	public boolean updateTeamModel(String teamname, TeamModel model) {
+	public synchronized boolean updateTeamModel(String teamname, TeamModel model) {
 		try {
-			read();
-			teams.remove(teamname.toLowerCase());
-			teams.put(model.name.toLowerCase(), model);
-			write();
+			Realm edit = editRealm();
+			edit.teams.remove(teamname.toLowerCase());
+			edit.teams.put(model.name.toLowerCase(), model);
+			write(edit);
 			return true;
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Failed to update team model {0}!", model.name), t);
@@ -471,12 +588,11 @@ public class ConfigUserService implements IUserService {
 	 * @since 0.8.0
 	 */
 	@Override
-	public boolean deleteTeam(String teamname) {
+	public synchronized boolean deleteTeam(String teamname) {
 		try {
-			// Read realm file
-			read();
-			teams.remove(teamname.toLowerCase());
-			write();
+			Realm edit = editRealm();
+			edit.teams.remove(teamname.toLowerCase());
+			write(edit);
 			return true;
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Failed to delete team {0}!", teamname), t);
@@ -491,10 +607,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public List<String> getAllUsernames() {
-		read();
-		List<String> list = new ArrayList<String>(users.keySet());
-		Collections.sort(list);
-		return list;
+		return new ArrayList<String>(getRealm().usernames);
 	}
 	
 	/**
@@ -504,8 +617,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public List<UserModel> getAllUsers() {
-		read();
-		List<UserModel> list = new ArrayList<UserModel>(users.values());
+		List<UserModel> list = new ArrayList<UserModel>(getRealm().users.values());
 		list = DeepCopier.copy(list);
 		Collections.sort(list);
 		return list;
@@ -521,20 +633,11 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public List<String> getUsernamesForRepositoryRole(String role) {
-		List<String> list = new ArrayList<String>();
-		try {
-			read();
-			for (Map.Entry<String, UserModel> entry : users.entrySet()) {
-				UserModel model = entry.getValue();
-				if (model.hasRepository(role)) {
-					list.add(model.username);
-				}
-			}
-		} catch (Throwable t) {
-			logger.error(MessageFormat.format("Failed to get usernames for role {0}!", role), t);
+		List<String> list = getRealm().userRoles.get(role.toLowerCase());
+		if (list == null) {
+			return new ArrayList<String>();
 		}
-		Collections.sort(list);
-		return list;
+		return new ArrayList<String>(list);
 	}
 
 	/**
@@ -547,17 +650,17 @@ public class ConfigUserService implements IUserService {
 	 * @return true if successful
 	 */
 	@Override
-	public boolean setUsernamesForRepositoryRole(String role, List<String> usernames) {
+	public synchronized boolean setUsernamesForRepositoryRole(String role, List<String> usernames) {
 		try {
 			Set<String> specifiedUsers = new HashSet<String>();
 			for (String username : usernames) {
 				specifiedUsers.add(username.toLowerCase());
 			}
 
-			read();
+			Realm edit = editRealm();
 
 			// identify users which require add or remove role
-			for (UserModel user : users.values()) {
+			for (UserModel user : edit.users.values()) {
 				// user has role, check against revised user list
 				if (specifiedUsers.contains(user.username.toLowerCase())) {
 					user.addRepository(role);
@@ -568,7 +671,7 @@ public class ConfigUserService implements IUserService {
 			}
 
 			// persist changes
-			write();
+			write(edit);
 			return true;
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Failed to set usernames for role {0}!", role), t);
@@ -584,11 +687,11 @@ public class ConfigUserService implements IUserService {
 	 * @return true if successful
 	 */
 	@Override
-	public boolean renameRepositoryRole(String oldRole, String newRole) {
+	public synchronized boolean renameRepositoryRole(String oldRole, String newRole) {
 		try {
-			read();
+			Realm edit = editRealm();
 			// identify users which require role rename
-			for (UserModel model : users.values()) {
+			for (UserModel model : edit.users.values()) {
 				if (model.hasRepository(oldRole)) {
 					model.removeRepository(oldRole);
 					model.addRepository(newRole);
@@ -596,14 +699,14 @@ public class ConfigUserService implements IUserService {
 			}
 
 			// identify teams which require role rename
-			for (TeamModel model : teams.values()) {
+			for (TeamModel model : edit.teams.values()) {
 				if (model.hasRepository(oldRole)) {
 					model.removeRepository(oldRole);
 					model.addRepository(newRole);
 				}
 			}
 			// persist changes
-			write();
+			write(edit);
 			return true;
 		} catch (Throwable t) {
 			logger.error(
@@ -619,22 +722,22 @@ public class ConfigUserService implements IUserService {
 	 * @return true if successful
 	 */
 	@Override
-	public boolean deleteRepositoryRole(String role) {
+	public synchronized boolean deleteRepositoryRole(String role) {
 		try {
-			read();
+			Realm edit = editRealm();
 
 			// identify users which require role rename
-			for (UserModel user : users.values()) {
+			for (UserModel user : edit.users.values()) {
 				user.removeRepository(role);
 			}
 
 			// identify teams which require role rename
-			for (TeamModel team : teams.values()) {
+			for (TeamModel team : edit.teams.values()) {
 				team.removeRepository(role);
 			}
 
 			// persist changes
-			write();
+			write(edit);
 			return true;
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Failed to delete role {0}!", role), t);
@@ -643,12 +746,56 @@ public class ConfigUserService implements IUserService {
 	}
 
 	/**
-	 * Writes the properties file.
+	 * Returns the current realm. The realm file is checked for modification at
+	 * most once per second, all other calls return the current realm without
+	 * locking or touching the filesystem. The check itself does not lock the
+	 * user service, the lock is only taken to read a modified realm file.
 	 * 
-	 * @param properties
+	 * @return the current realm
+	 */
+	private Realm getRealm() {
+		long now = System.currentTimeMillis();
+		if (now >= nextCheck) {
+			nextCheck = now + REALM_CHECK_INTERVAL;
+			if (isModified()) {
+				read();
+			}
+		}
+		return realm;
+	}
+
+	/**
+	 * Returns true if the realm file must be read.
+	 * 
+	 * @return true if the realm file has been modified since it was read
+	 */
+	private boolean isModified() {
+		return realmFile.exists() && (forceReload || (realmFile.lastModified() != lastModified));
+	}
+
+	/**
+	 * Returns a copy of the current realm for an update. The caller must hold
+	 * the lock of the user service until the copy is written.
+	 * 
+	 * @return a copy of the realm which may be modified
+	 */
+	private Realm editRealm() {
+		read();
+		return realm.copy();
+	}
+
+	/**
+	 * Writes the realm file and replaces the current realm with the updated
+	 * realm.
+	 * 
+	 * @param edit
+	 *            the updated copy of the realm
 	 * @throws IOException
 	 */
-	private synchronized void write() throws IOException {
+	private synchronized void write(Realm edit) throws IOException {
+		Map<String, UserModel> users = edit.users;
+		Map<String, TeamModel> teams = edit.teams;
+
 		// Write a temporary copy of the users file
 		File realmFileCopy = new File(realmFile.getAbsolutePath() + ".tmp");
 
@@ -734,18 +881,24 @@ public class ConfigUserService implements IUserService {
 			throw new IOException(MessageFormat.format("Failed to save {0}!",
 					realmFileCopy.getAbsolutePath()));
 		}
+
+		// publish the written realm, the forced reload reads the file once
+		// more to pick up an external change made within the same
+		// lastModified resolution
+		lastModified = realmFile.lastModified();
+		realm = new Realm(users.values(), teams.values());
 	}
 
 	/**
-	 * Reads the realm file and rebuilds the in-memory lookup tables.
+	 * Reads the realm file, if it has been modified, and replaces the current
+	 * realm.
 	 */
 	protected synchronized void read() {
-		if (realmFile.exists() && (forceReload || (realmFile.lastModified() != lastModified))) {
+		if (isModified()) {
 			forceReload = false;
 			lastModified = realmFile.lastModified();
-			users.clear();
-			cookies.clear();
-			teams.clear();
+			Map<String, UserModel> users = new HashMap<String, UserModel>();
+			List<TeamModel> teams = new ArrayList<TeamModel>();
 
 			try {
 				StoredConfig config = new FileBasedConfig(realmFile, FS.detect());
@@ -768,9 +921,7 @@ public class ConfigUserService implements IUserService {
 						user.addRepository(repository);
 					}
 
-					// update cache
 					users.put(user.username, user);
-					cookies.put(StringUtils.getSHA1(user.username + user.password), user);
 				}
 
 				// load the teams
@@ -787,16 +938,12 @@ public class ConfigUserService implements IUserService {
 					team.postReceiveScripts.addAll(Arrays.asList(config.getStringList(TEAM,
 							teamname, POSTRECEIVE)));
 
-					teams.put(team.name.toLowerCase(), team);
-
-					// set the teams on the users
-					for (String user : team.users) {
-						UserModel model = users.get(user);
-						if (model != null) {
-							model.teams.add(team);
-						}
-					}
+					teams.add(team);
 				}
+
+				// the realm sets the teams on the users and builds the lookup
+				// tables
+				realm = new Realm(users.values(), teams);
 			} catch (Exception e) {
 				logger.error(MessageFormat.format("Failed to read {0}", realmFile), e);
 			}
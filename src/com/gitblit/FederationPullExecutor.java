@@ -281,8 +281,14 @@ public class FederationPullExecutor implements Runnable {
 
 			GitBlit.self().updateConfiguration(r, repository);
 			r.close();
+
+			// journal the pulled commits
+			GitBlit.self().updateActivityJournal(repositoryName);
 		}
 
+		// catalog any newly cloned repositories
+		GitBlit.self().refreshRepositoryList();
+
 		IUserService userService = null;
 
 		try {
@@ -30,6 +30,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -37,11 +38,16 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -52,14 +58,16 @@ import javax.servlet.http.Cookie;
 
 import org.apache.wicket.protocol.http.WebResponse;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.lib.RepositoryCache.FileKey;
 import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
 import org.eclipse.jgit.transport.resolver.FileResolver;
 import org.eclipse.jgit.transport.resolver.RepositoryResolver;
 import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
 import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
-import org.eclipse.jgit.util.FS;
 import org.eclipse.jgit.util.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -68,6 +76,9 @@ import com.gitblit.Constants.AccessRestrictionType;
 import com.gitblit.Constants.FederationRequest;
 import com.gitblit.Constants.FederationStrategy;
 import com.gitblit.Constants.FederationToken;
+import com.gitblit.Constants.SearchType;
+import com.gitblit.models.Activity;
+import com.gitblit.models.Activity.RepositoryCommit;
 import com.gitblit.models.FederationModel;
 import com.gitblit.models.FederationProposal;
 import com.gitblit.models.FederationSet;
@@ -78,11 +89,14 @@ import com.gitblit.models.ServerStatus;
 import com.gitblit.models.SettingModel;
 import com.gitblit.models.TeamModel;
 import com.gitblit.models.UserModel;
+import com.gitblit.utils.ActivityUtils;
 import com.gitblit.utils.ArrayUtils;
 import com.gitblit.utils.ByteFormat;
 import com.gitblit.utils.FederationUtils;
+import com.gitblit.utils.IssueUtils;
 import com.gitblit.utils.JGitUtils;
 import com.gitblit.utils.JsonUtils;
+import com.gitblit.utils.LuceneUtils;
 import com.gitblit.utils.MetricUtils;
 import com.gitblit.utils.ObjectCache;
 import com.gitblit.utils.StringUtils;
@@ -106,6 +120,13 @@ import com.gitblit.utils.StringUtils;
 public class GitBlit implements ServletContextListener {
 
 	private static GitBlit gitblit;
+
+	// the realm file is checked for modification at most once per second
+	private static final long REALM_CHECK_INTERVAL = 1000L;
+
+	// the files of a cached repository model are checked at most once per
+	// second, pushes through Gitblit clear the cached model immediately
+	private static final long MODEL_CHECK_INTERVAL = 1000L;
 	
 	private final Logger logger = LoggerFactory.getLogger(GitBlit.class);
 
@@ -116,10 +137,12 @@ public class GitBlit implements ServletContextListener {
 
 	private final Map<String, FederationModel> federationPullResults = new ConcurrentHashMap<String, FederationModel>();
 
-	private final ObjectCache<Long> repositorySizeCache = new ObjectCache<Long>();
-
 	private final ObjectCache<List<Metric>> repositoryMetricsCache = new ObjectCache<List<Metric>>();
 
+	private final Map<String, CachedRepositoryModel> repositoryModelCache = new ConcurrentHashMap<String, CachedRepositoryModel>();
+
+	private final AtomicLong repositoryCacheClears = new AtomicLong();
+
 	private RepositoryResolver<Void> repositoryResolver;
 
 	private ServletContext servletContext;
@@ -137,6 +160,34 @@ public class GitBlit implements ServletContextListener {
 	private MailExecutor mailExecutor;
 	
 	private LuceneExecutor luceneExecutor;
+
+	private RepositoryCatalog repositoryCatalog;
+
+	private RepositorySizeTracker repositorySizeTracker;
+
+	private CommitGraphCache commitGraphCache;
+
+	private MetricsStore metricsStore;
+
+	private ActivityJournal activityJournal;
+
+	private ExecutorService repositoryLoader;
+
+	private ExecutorService activityCollector;
+
+	private ExecutorService cacheUpdater;
+
+	private AuthenticationCache authenticationCache;
+
+	private final RepositoryAccessIndex repositoryAccess = new RepositoryAccessIndex();
+
+	private AuthenticationTokens authenticationTokens;
+
+	private volatile File realmFile;
+
+	private volatile long realmModified;
+
+	private volatile long realmChecked;
 	
 	private TimeZone timezone;
 
@@ -346,6 +397,10 @@ public class GitBlit implements ServletContextListener {
 		// update heap memory status
 		serverStatus.heapAllocated = Runtime.getRuntime().totalMemory();
 		serverStatus.heapFree = Runtime.getRuntime().freeMemory();
+		if (authenticationCache != null) {
+			serverStatus.authenticationCacheHits = authenticationCache.getHits();
+			serverStatus.authenticationCacheMisses = authenticationCache.getMisses();
+		}
 		return serverStatus;
 	}
 
@@ -374,6 +429,13 @@ public class GitBlit implements ServletContextListener {
 		logger.info("Setting up user service " + userService.toString());
 		this.userService = userService;
 		this.userService.setup(settings);
+		clearAuthenticationCache();
+		repositoryAccess.reset();
+		if (authenticationTokens != null) {
+			authenticationTokens.setUserService(userService);
+		}
+		realmFile = getFileOrFolder(settings.getString(Keys.realm.userService, "users.conf"));
+		realmModified = realmFile.lastModified();
 	}
 
 	/**
@@ -412,11 +474,69 @@ public class GitBlit implements ServletContextListener {
 		if (userService == null) {
 			return null;
 		}
-		return userService.authenticate(username, password);
+		checkRealm();
+		if (authenticationCache == null || !authenticationCache.isEnabled()) {
+			return userService.authenticate(username, password);
+		}
+		String key = authenticationCache.getKey(username, password);
+		UserModel user = authenticationCache.get(key);
+		if (user == null) {
+			long generation = authenticationCache.getGeneration();
+			user = userService.authenticate(username, password);
+			authenticationCache.put(key, user, generation);
+		}
+		return user;
+	}
+
+	/**
+	 * Clears the cached authentications. Must be called whenever users, teams,
+	 * or repository roles are changed.
+	 */
+	private void clearAuthenticationCache() {
+		if (authenticationCache != null) {
+			authenticationCache.clear();
+		}
 	}
 
 	/**
-	 * Authenticate a user based on their cookie.
+	 * Evicts the users of the authentication tokens. Must be called whenever
+	 * teams or repository roles are changed.
+	 */
+	private void resetTokenUsers() {
+		if (authenticationTokens != null) {
+			authenticationTokens.resetUsers();
+		}
+	}
+
+	/**
+	 * Resets the cached authentications, users, and access grants if the realm
+	 * file has been modified since the last check. The user service reloads a
+	 * modified realm file.
+	 */
+	private void checkRealm() {
+		File file = realmFile;
+		if (file == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now - realmChecked < REALM_CHECK_INTERVAL) {
+			return;
+		}
+		realmChecked = now;
+		long modified = file.lastModified();
+		if (modified != realmModified) {
+			realmModified = modified;
+			clearAuthenticationCache();
+			repositoryAccess.reset();
+			resetTokenUsers();
+		}
+	}
+
+	/**
+	 * Authenticate a user based on their cookie. The cookie is an
+	 * authentication token. Cookies which were generated by the user service
+	 * before authentication tokens were introduced are only authenticated by
+	 * the user service if web.allowLegacyCookies is enabled.
 	 * 
 	 * @param cookies
 	 * @return a user object or null
@@ -426,12 +546,45 @@ public class GitBlit implements ServletContextListener {
 			return null;
 		}
 		if (userService.supportsCookies()) {
-			if (cookies != null && cookies.length > 0) {
-				for (Cookie cookie : cookies) {
-					if (cookie.getName().equals(Constants.NAME)) {
-						String value = cookie.getValue();
-						return userService.authenticate(value.toCharArray());
-					}
+			String value = getCookieValue(cookies);
+			if (value != null) {
+				checkRealm();
+				UserModel user = null;
+				if (authenticationTokens != null) {
+					user = authenticationTokens.authenticate(value);
+				}
+				if (user == null && settings.getBoolean(Keys.web.allowLegacyCookies, false)) {
+					user = userService.authenticate(value.toCharArray());
+				}
+				return user;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Revokes the authentication token of the Gitblit cookie.
+	 * 
+	 * @param cookies
+	 */
+	public void revokeCookie(Cookie[] cookies) {
+		String value = getCookieValue(cookies);
+		if (value != null && authenticationTokens != null) {
+			authenticationTokens.revoke(value);
+		}
+	}
+
+	/**
+	 * Returns the value of the Gitblit cookie.
+	 * 
+	 * @param cookies
+	 * @return the cookie value or null
+	 */
+	private String getCookieValue(Cookie[] cookies) {
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (cookie.getName().equals(Constants.NAME)) {
+					return cookie.getValue();
 				}
 			}
 		}
@@ -453,6 +606,11 @@ public class GitBlit implements ServletContextListener {
 			if (user == null) {
 				// clear cookie for logout
 				userCookie = new Cookie(Constants.NAME, "");
+			} else if (authenticationTokens != null) {
+				// set cookie for login
+				String token = authenticationTokens.issue(user.username);
+				userCookie = new Cookie(Constants.NAME, token);
+				userCookie.setMaxAge((int) (authenticationTokens.getLifetime() / 1000L));
 			} else {
 				// set cookie for login
 				char[] cookie = userService.getCookie(user);
@@ -494,7 +652,13 @@ public class GitBlit implements ServletContextListener {
 	 * @return true if successful
 	 */
 	public boolean deleteUser(String username) {
-		return userService.deleteUser(username);
+		boolean success = userService.deleteUser(username);
+		clearAuthenticationCache();
+		repositoryAccess.resetUser(username);
+		if (authenticationTokens != null) {
+			authenticationTokens.revokeUser(username);
+		}
+		return success;
 	}
 
 	/**
@@ -531,7 +695,12 @@ public class GitBlit implements ServletContextListener {
 	 * @return true if successful
 	 */
 	public boolean setRepositoryUsers(RepositoryModel repository, List<String> repositoryUsers) {
-		return userService.setUsernamesForRepositoryRole(repository.name, repositoryUsers);
+		boolean success = userService.setUsernamesForRepositoryRole(repository.name,
+				repositoryUsers);
+		clearAuthenticationCache();
+		repositoryAccess.reset();
+		resetTokenUsers();
+		return success;
 	}
 
 	/**
@@ -553,7 +722,24 @@ public class GitBlit implements ServletContextListener {
 						user.username));
 			}
 		}
-		if (!userService.updateUserModel(username, user)) {
+		UserModel previous = isCreate ? null : userService.getUserModel(username);
+		boolean success = userService.updateUserModel(username, user);
+		clearAuthenticationCache();
+		repositoryAccess.resetUser(username);
+		repositoryAccess.resetUser(user.username);
+		if (authenticationTokens != null) {
+			boolean renamed = !username.equalsIgnoreCase(user.username);
+			boolean passwordChanged = previous != null && previous.password != null
+					&& !previous.password.equals(user.password);
+			if (renamed || passwordChanged) {
+				// the cookies of a renamed user or of a changed password are
+				// no longer valid
+				authenticationTokens.revokeUser(username);
+			} else {
+				authenticationTokens.resetUser(username);
+			}
+		}
+		if (!success) {
 			throw new GitBlitException(isCreate ? "Failed to add user!" : "Failed to update user!");
 		}
 	}
@@ -612,7 +798,12 @@ public class GitBlit implements ServletContextListener {
 	 * @return true if successful
 	 */
 	public boolean setRepositoryTeams(RepositoryModel repository, List<String> repositoryTeams) {
-		return userService.setTeamnamesForRepositoryRole(repository.name, repositoryTeams);
+		boolean success = userService.setTeamnamesForRepositoryRole(repository.name,
+				repositoryTeams);
+		clearAuthenticationCache();
+		repositoryAccess.reset();
+		resetTokenUsers();
+		return success;
 	}
 
 	/**
@@ -631,7 +822,16 @@ public class GitBlit implements ServletContextListener {
 						team.name));
 			}
 		}
-		if (!userService.updateTeamModel(teamname, team)) {
+		boolean success = userService.updateTeamModel(teamname, team);
+		clearAuthenticationCache();
+		repositoryAccess.resetTeam(teamname);
+		repositoryAccess.resetTeam(team.name);
+		for (String username : team.users) {
+			// new members of the team
+			repositoryAccess.resetUser(username);
+		}
+		resetTokenUsers();
+		if (!success) {
 			throw new GitBlitException(isCreate ? "Failed to add team!" : "Failed to update team!");
 		}
 	}
@@ -644,7 +844,11 @@ public class GitBlit implements ServletContextListener {
 	 * @return true if successful
 	 */
 	public boolean deleteTeam(String teamname) {
-		return userService.deleteTeam(teamname);
+		boolean success = userService.deleteTeam(teamname);
+		clearAuthenticationCache();
+		repositoryAccess.resetTeam(teamname);
+		resetTokenUsers();
+		return success;
 	}
 
 	/**
@@ -653,7 +857,10 @@ public class GitBlit implements ServletContextListener {
 	 * @param repositoryName
 	 */
 	public void clearRepositoryCache(String repositoryName) {
-		repositorySizeCache.remove(repositoryName);
+		repositoryCacheClears.incrementAndGet();
+		repositoryModelCache.remove(repositoryName);
+		repositoryAccess.removeRepository(repositoryName);
+		repositorySizeTracker.remove(repositoryName);
 		repositoryMetricsCache.remove(repositoryName);
 	}
 
@@ -664,9 +871,21 @@ public class GitBlit implements ServletContextListener {
 	 * @return list of all repositories
 	 */
 	public List<String> getRepositoryList() {
-		return JGitUtils.getRepositoryList(repositoriesFolder, 
-				settings.getBoolean(Keys.git.onlyAccessBareRepositories, false),
-				settings.getBoolean(Keys.git.searchRepositoriesSubfolders, true));
+		boolean onlyBare = settings.getBoolean(Keys.git.onlyAccessBareRepositories, false);
+		boolean searchSubfolders = settings.getBoolean(Keys.git.searchRepositoriesSubfolders, true);
+		if (!repositoryCatalog.isBuilt(onlyBare, searchSubfolders)) {
+			// catalog the repositories with the current settings
+			repositoryCatalog.build(onlyBare, searchSubfolders);
+		}
+		return new ArrayList<String>(repositoryCatalog.getRepositoryList());
+	}
+
+	/**
+	 * Checks the repositories folder for repositories which have been added or
+	 * removed outside of Gitblit and updates the repository list.
+	 */
+	public void refreshRepositoryList() {
+		repositoryCatalog.refresh();
 	}
 
 	/**
@@ -714,36 +933,135 @@ public class GitBlit implements ServletContextListener {
 
 	/**
 	 * Returns the list of repository models that are accessible to the user.
+	 * The repository list is filtered by the repository access index so that
+	 * only the models of the repositories which the user may view are loaded.
+	 * The models and their sizes are loaded in parallel by the repository
+	 * loader threads and are returned in the order of the repository list.
 	 * 
 	 * @param user
 	 * @return list of repository models accessible to user
 	 */
-	public List<RepositoryModel> getRepositoryModels(UserModel user) {
-		List<String> list = getRepositoryList();
+	public List<RepositoryModel> getRepositoryModels(final UserModel user) {
+		long startTime = System.currentTimeMillis();
+		checkRealm();
+		List<String> repositoryList = getRepositoryList();
+		List<String> list = repositoryAccess.filter(user, repositoryList);
+		if (list.size() < repositoryList.size() && forgetStaleRepositories(list, repositoryList)) {
+			list = repositoryAccess.filter(user, repositoryList);
+		}
+		long listTime = System.currentTimeMillis();
+
+		List<Callable<RepositoryModel>> loads = new ArrayList<Callable<RepositoryModel>>();
+		for (final String repo : list) {
+			loads.add(new Callable<RepositoryModel>() {
+				@Override
+				public RepositoryModel call() {
+					return getRepositoryModel(user, repo);
+				}
+			});
+		}
 		List<RepositoryModel> repositories = new ArrayList<RepositoryModel>();
-		for (String repo : list) {
-			RepositoryModel model = getRepositoryModel(user, repo);
+		for (RepositoryModel model : invokeAll(loads)) {
 			if (model != null) {
 				repositories.add(model);
 			}
 		}
+		long modelsTime = System.currentTimeMillis();
+		logger.info(MessageFormat.format(
+				"{0} repositories listed in {1} msecs, {2} repository models loaded in {3} msecs",
+				list.size(), listTime - startTime, repositories.size(), modelsTime - listTime));
+
 		if (getBoolean(Keys.web.showRepositorySizes, true)) {
-			int repoCount = 0;
-			long startTime = System.currentTimeMillis();
+			// sizes of changed repositories are updated in the background so
+			// retrieving the last known size is a lookup
 			ByteFormat byteFormat = new ByteFormat();
+			int repoCount = 0;
 			for (RepositoryModel model : repositories) {
 				if (!model.skipSizeCalculation) {
-					repoCount++;
-					model.size = byteFormat.format(calculateSize(model));
+					long size = repositorySizeTracker.getSize(model.name, model.lastChange);
+					if (size > -1) {
+						model.size = byteFormat.format(size);
+						repoCount++;
+					}
 				}
 			}
-			long duration = System.currentTimeMillis() - startTime;
-			logger.info(MessageFormat.format("{0} repository sizes calculated in {1} msecs",
+			long duration = System.currentTimeMillis() - modelsTime;
+			logger.info(MessageFormat.format("{0} repository sizes retrieved in {1} msecs",
 					repoCount, duration));
 		}
 		return repositories;
 	}
 
+	/**
+	 * Removes the hidden repositories whose cached model is no longer current
+	 * from the repository access index. The access restriction or owner of a
+	 * hidden repository may have been changed on disk and the index only
+	 * learns about the change when the model is reloaded.
+	 * 
+	 * @param visible
+	 *            the repositories the user may view
+	 * @param repositories
+	 *            all repositories
+	 * @return true if a repository was removed from the index
+	 */
+	private boolean forgetStaleRepositories(List<String> visible, List<String> repositories) {
+		Set<String> shown = new HashSet<String>(visible);
+		boolean stale = false;
+		for (String repository : repositories) {
+			if (shown.contains(repository)) {
+				continue;
+			}
+			CachedRepositoryModel cached = repositoryModelCache.get(repository);
+			if (cached == null || !cached.isCurrent()) {
+				repositoryAccess.removeRepository(repository);
+				stale = true;
+			}
+		}
+		return stale;
+	}
+
+	/**
+	 * Executes the tasks on the repository loader threads and waits for them
+	 * to complete. The results are in the same order as the tasks. A task which
+	 * fails has a null result. If the calling thread is interrupted the
+	 * remaining tasks are cancelled, the results of the completed tasks are
+	 * returned, and the interrupt status of the thread is restored.
+	 * 
+	 * @param tasks
+	 * @return the list of results
+	 */
+	private <X> List<X> invokeAll(List<Callable<X>> tasks) {
+		List<X> results = new ArrayList<X>(tasks.size());
+		if (repositoryLoader == null) {
+			// serial loading
+			for (Callable<X> task : tasks) {
+				try {
+					results.add(task.call());
+				} catch (Exception e) {
+					logger.error("Repository loader task failed", e);
+					results.add(null);
+				}
+			}
+			return results;
+		}
+		try {
+			for (Future<X> future : repositoryLoader.invokeAll(tasks)) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					logger.error("Repository loader task failed", e.getCause());
+					results.add(null);
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.warn(MessageFormat.format(
+					"Interrupted while loading repositories, returning {0} of {1} results",
+					results.size(), tasks.size()));
+			Thread.currentThread().interrupt();
+		}
+		return results;
+	}
+
 	/**
 	 * Returns a repository model if the repository exists and the user may
 	 * access the repository.
@@ -757,28 +1075,80 @@ public class GitBlit implements ServletContextListener {
 		if (model == null) {
 			return null;
 		}
-		if (model.accessRestriction.atLeast(AccessRestrictionType.VIEW)) {
-			if (user != null && user.canAccessRepository(model)) {
-				return model;
-			}
-			return null;
-		} else {
+		checkRealm();
+		if (repositoryAccess.canView(user, model)) {
 			return model;
 		}
+		return null;
 	}
 
 	/**
 	 * Returns the repository model for the specified repository. This method
 	 * does not consider user access permissions.
 	 * 
+	 * Repository models are cached and are only reloaded from the repository
+	 * when the config file, HEAD, or the refs have changed on disk or when the
+	 * cache entry has been explicitly cleared. A copy of the cached model is
+	 * returned so that modifications to the model are non-destructive.
+	 * 
 	 * @param repositoryName
 	 * @return repository model or null
 	 */
 	public RepositoryModel getRepositoryModel(String repositoryName) {
+		CachedRepositoryModel cached = repositoryModelCache.get(repositoryName);
+		if (cached != null && cached.isCurrent()) {
+			return cached.model.copy();
+		}
 		Repository r = getRepository(repositoryName);
 		if (r == null) {
+			repositoryModelCache.remove(repositoryName);
 			return null;
 		}
+		// stamp the repository before reading it so that a concurrent change
+		// invalidates the model we are about to load
+		long clears = repositoryCacheClears.get();
+		cached = new CachedRepositoryModel(r.getDirectory());
+		cached.model = loadRepositoryModel(repositoryName, r);
+		catalogRepository(repositoryName, r);
+		r.close();
+		// do not cache a model which a push may have changed during the load
+		if (clears == repositoryCacheClears.get()) {
+			repositoryModelCache.put(repositoryName, cached);
+			repositoryAccess.setRepository(cached.model);
+		}
+		return cached.model.copy();
+	}
+
+	/**
+	 * Adds a repository which has been opened by name to the repository
+	 * catalog. Repositories created in the repositories folder by other tools
+	 * are listed as soon as they are accessed instead of after the next
+	 * catalog refresh.
+	 *
+	 * @param repositoryName
+	 * @param r
+	 */
+	private void catalogRepository(String repositoryName, Repository r) {
+		if (!r.isBare() && settings.getBoolean(Keys.git.onlyAccessBareRepositories, false)) {
+			return;
+		}
+		String basePath = repositoriesFolder.getAbsolutePath();
+		File folder = r.isBare() ? r.getDirectory() : r.getDirectory().getParentFile();
+		String path = folder.getAbsolutePath();
+		if (path.length() > basePath.length() && path.startsWith(basePath)
+				&& StringUtils.getRelativePath(basePath, path).equals(repositoryName)) {
+			repositoryCatalog.addRepository(repositoryName);
+		}
+	}
+
+	/**
+	 * Reads the repository model from the repository config and refs.
+	 * 
+	 * @param repositoryName
+	 * @param r
+	 * @return a repository model
+	 */
+	private RepositoryModel loadRepositoryModel(String repositoryName, Repository r) {
 		RepositoryModel model = new RepositoryModel();
 		model.name = repositoryName;
 		model.hasCommits = JGitUtils.hasCommits(r);
@@ -812,27 +1182,149 @@ public class GitBlit implements ServletContextListener {
 		}
 		model.HEAD = JGitUtils.getHEADRef(r);
 		model.availableRefs = JGitUtils.getAvailableHeadTargets(r);
-		r.close();
 		return model;
 	}
 
 	/**
-	 * Returns the size in bytes of the repository. Gitblit caches the
-	 * repository sizes to reduce the performance penalty of recursive
-	 * calculation. The cache is updated if the repository has been changed
-	 * since the last calculation.
+	 * A cached repository model and the modification times and lengths of the
+	 * files and folders from which it was loaded. Loose ref updates are atomic
+	 * renames so they always touch the containing refs folder.
+	 * 
+	 * The files are checked at most once per check interval. A file which was
+	 * modified within the timestamp resolution of the file system before the
+	 * model was loaded may be modified again without changing its timestamp,
+	 * the model is reloaded until the timestamps of its files are older.
+	 */
+	private static class CachedRepositoryModel {
+
+		// the coarsest timestamp resolution of the supported file systems
+		static final long TIMESTAMP_RESOLUTION = 2000L;
+
+		final Map<File, long[]> stamps = new HashMap<File, long[]>();
+
+		final long loaded = System.currentTimeMillis();
+
+		volatile long checked = loaded;
+
+		volatile RepositoryModel model;
+
+		CachedRepositoryModel(File gitDir) {
+			stamp(new File(gitDir, "config"));
+			stamp(new File(gitDir, org.eclipse.jgit.lib.Constants.HEAD));
+			stamp(new File(gitDir, org.eclipse.jgit.lib.Constants.PACKED_REFS));
+			stamp(new File(gitDir, org.eclipse.jgit.lib.Constants.R_REFS));
+		}
+
+		private void stamp(File file) {
+			stamps.put(file, new long[] { file.lastModified(), file.length() });
+			if (file.isDirectory()) {
+				File[] folders = file.listFiles(new FileFilter() {
+					@Override
+					public boolean accept(File pathname) {
+						return pathname.isDirectory();
+					}
+				});
+				if (folders != null) {
+					for (File folder : folders) {
+						stamp(folder);
+					}
+				}
+			}
+		}
+
+		boolean isCurrent() {
+			long now = System.currentTimeMillis();
+			if (now - checked < MODEL_CHECK_INTERVAL) {
+				return true;
+			}
+			for (Entry<File, long[]> entry : stamps.entrySet()) {
+				File file = entry.getKey();
+				long modified = entry.getValue()[0];
+				if (file.lastModified() != modified || file.length() != entry.getValue()[1]
+						|| modified > loaded - TIMESTAMP_RESOLUTION) {
+					return false;
+				}
+			}
+			checked = now;
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the size in bytes of the packed and loose objects of the
+	 * repository. Gitblit tracks the size of each object folder and only
+	 * re-sums the folders which have been modified since the last calculation.
 	 * 
 	 * @param model
 	 * @return size in bytes
 	 */
 	public long calculateSize(RepositoryModel model) {
-		if (repositorySizeCache.hasCurrent(model.name, model.lastChange)) {
-			return repositorySizeCache.getObject(model.name);
+		return repositorySizeTracker.calculateSize(model.name, model.lastChange);
+	}
+
+	/**
+	 * Queues a background update of the repository size.
+	 * 
+	 * @param model
+	 */
+	public void updateRepositorySize(RepositoryModel model) {
+		repositorySizeTracker.update(model.name, model.lastChange);
+	}
+
+	/**
+	 * Returns a page of the commit log of the repository. The page is read
+	 * from the commit graph of the repository if the start commit is in the
+	 * graph, otherwise the commit history is walked.
+	 * 
+	 * @param repositoryName
+	 * @param repository
+	 * @param objectId
+	 *            if unspecified, HEAD is assumed.
+	 * @param offset
+	 * @param maxCount
+	 *            if < 0, all commits are returned.
+	 * @return a paged list of commits
+	 */
+	public List<RevCommit> getRevLog(String repositoryName, Repository repository,
+			String objectId, int offset, int maxCount) {
+		return getRevLog(repositoryName, repository, objectId, null, offset, maxCount);
+	}
+
+	/**
+	 * Returns a page of the commit log of a repository or of a path within
+	 * the repository. Path histories consult the changed-path filters of the
+	 * commit graph and only compare the trees of the commits which may have
+	 * changed the path.
+	 * 
+	 * @param repositoryName
+	 * @param repository
+	 * @param objectId
+	 *            if unspecified, HEAD is assumed.
+	 * @param path
+	 *            if unspecified, commits for repository are returned. If
+	 *            specified, commits for the path are returned.
+	 * @param offset
+	 * @param maxCount
+	 *            if < 0, all commits are returned.
+	 * @return a paged list of commits
+	 */
+	public List<RevCommit> getRevLog(String repositoryName, Repository repository,
+			String objectId, String path, int offset, int maxCount) {
+		List<RevCommit> commits = commitGraphCache.getRevLog(repositoryName, repository,
+				objectId, path, offset, maxCount);
+		if (commits == null) {
+			commits = JGitUtils.getRevLog(repository, objectId, path, offset, maxCount);
 		}
-		File gitDir = FileKey.resolve(new File(repositoriesFolder, model.name), FS.DETECTED);
-		long size = com.gitblit.utils.FileUtils.folderSize(gitDir);
-		repositorySizeCache.updateObject(model.name, model.lastChange, size);
-		return size;
+		return commits;
+	}
+
+	/**
+	 * Queues a background update of the commit graph of the repository.
+	 * 
+	 * @param model
+	 */
+	public void updateCommitGraph(RepositoryModel model) {
+		commitGraphCache.update(model.name);
 	}
 
 	/**
@@ -872,15 +1364,22 @@ public class GitBlit implements ServletContextListener {
 
 	/**
 	 * Returns the metrics for the default branch of the specified repository.
-	 * This method builds a metrics cache. The cache is updated if the
-	 * repository is updated. A new copy of the metrics list is returned on each
-	 * call so that modifications to the list are non-destructive.
+	 * The metrics are read from the metrics store if the counters of the
+	 * default branch are current. Otherwise this method builds a metrics
+	 * cache. The cache is updated if the repository is updated. A new copy of
+	 * the metrics list is returned on each call so that modifications to the
+	 * list are non-destructive.
 	 * 
 	 * @param model
 	 * @param repository
 	 * @return a new array list of metrics
 	 */
 	public List<Metric> getRepositoryDefaultMetrics(RepositoryModel model, Repository repository) {
+		List<Metric> stored = metricsStore.getDateMetrics(model.name, repository, null, true,
+				null, getTimezone());
+		if (stored != null) {
+			return stored;
+		}
 		if (repositoryMetricsCache.hasCurrent(model.name, model.lastChange)) {
 			return new ArrayList<Metric>(repositoryMetricsCache.getObject(model.name));
 		}
@@ -889,6 +1388,109 @@ public class GitBlit implements ServletContextListener {
 		return new ArrayList<Metric>(metrics);
 	}
 
+	/**
+	 * Returns the date metrics of a branch of the repository. The metrics are
+	 * read from the metrics store if the counters of the branch are current,
+	 * otherwise the branch history is walked.
+	 * 
+	 * @param repositoryName
+	 * @param repository
+	 * @param objectId
+	 *            if null or empty, HEAD is assumed.
+	 * @param includeTotal
+	 * @param dateFormat
+	 * @param timezone
+	 * @return list of metrics
+	 */
+	public List<Metric> getDateMetrics(String repositoryName, Repository repository,
+			String objectId, boolean includeTotal, String dateFormat, TimeZone timezone) {
+		List<Metric> metrics = metricsStore.getDateMetrics(repositoryName, repository, objectId,
+				includeTotal, dateFormat, timezone);
+		if (metrics == null) {
+			metrics = MetricUtils.getDateMetrics(repository, objectId, includeTotal, dateFormat,
+					timezone);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Returns the author metrics of a branch of the repository. The metrics
+	 * are read from the metrics store if the counters of the branch are
+	 * current, otherwise the branch history is walked.
+	 * 
+	 * @param repositoryName
+	 * @param repository
+	 * @param objectId
+	 *            if null or empty, HEAD is assumed.
+	 * @param byEmailAddress
+	 *            group metrics by author email address otherwise by author name
+	 * @return list of metrics
+	 */
+	public List<Metric> getAuthorMetrics(String repositoryName, Repository repository,
+			String objectId, boolean byEmailAddress) {
+		List<Metric> metrics = metricsStore.getAuthorMetrics(repositoryName, repository,
+				objectId, byEmailAddress);
+		if (metrics == null) {
+			metrics = MetricUtils.getAuthorMetrics(repository, objectId, byEmailAddress);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Returns the recent activity of the repositories for the last daysBack
+	 * days on the specified branch. Repositories which are not served by the
+	 * activity journal are walked in parallel until web.activityTimeout
+	 * expires.
+	 * 
+	 * @param models
+	 * @param daysBack
+	 * @param objectId
+	 *            the branch to retrieve. If this value is null or empty all
+	 *            branches are queried.
+	 * @param timezone
+	 * @param pending
+	 *            receives the names of the repositories which were not walked
+	 *            before the timeout expired
+	 * @return the daily activity
+	 */
+	public List<Activity> getRecentActivity(List<RepositoryModel> models, int daysBack,
+			String objectId, TimeZone timezone, Collection<String> pending) {
+		long timeout = TimeUnit.SECONDS.toMillis(settings.getInteger(Keys.web.activityTimeout, 10));
+		return ActivityUtils.getRecentActivity(models, daysBack, objectId, timezone,
+				activityCollector, Math.max(0, timeout), pending);
+	}
+
+	/**
+	 * Returns the commits of all branches of the repository since the
+	 * threshold date from the activity journal.
+	 * 
+	 * @param model
+	 * @param thresholdDate
+	 * @return the commits or null if the journal of the repository is not
+	 *         current
+	 */
+	public List<RepositoryCommit> getJournaledCommits(RepositoryModel model, Date thresholdDate) {
+		return activityJournal.getCommits(model.name, model.lastChange, thresholdDate);
+	}
+
+	/**
+	 * Queues a background update of the activity journal of the repository.
+	 * 
+	 * @param repositoryName
+	 */
+	public void updateActivityJournal(String repositoryName) {
+		activityJournal.update(repositoryName);
+	}
+
+	/**
+	 * Queues a background update of the metrics of the repository.
+	 * 
+	 * @param model
+	 */
+	public void updateMetrics(RepositoryModel model) {
+		metricsStore.update(model.name);
+	}
+
 	/**
 	 * Returns the gitblit string value for the specified key. If key is not
 	 * set, returns defaultValue.
@@ -949,6 +1551,7 @@ public class GitBlit implements ServletContextListener {
 			// create repository
 			logger.info("create repository " + repository.name);
 			r = JGitUtils.createRepository(repositoriesFolder, repository.name);
+			repositoryCatalog.addRepository(repository.name);
 		} else {
 			// rename repository
 			if (!repositoryName.equalsIgnoreCase(repository.name)) {
@@ -961,6 +1564,11 @@ public class GitBlit implements ServletContextListener {
 							"Failed to rename ''{0}'' because ''{1}'' already exists.",
 							repositoryName, repository.name));
 				}
+				luceneExecutor.deleteIndex(repositoryName);
+				commitGraphCache.remove(repositoryName);
+				metricsStore.remove(repositoryName);
+				activityJournal.remove(repositoryName);
+				IssueUtils.removeIssueIndex(new File(repositoriesFolder, repositoryName));
 				closeRepository(repositoryName);
 				File folder = new File(repositoriesFolder, repositoryName);
 				File destFolder = new File(repositoriesFolder, repository.name);
@@ -981,7 +1589,12 @@ public class GitBlit implements ServletContextListener {
 							repository.name));
 				}
 				// rename the roles
-				if (!userService.renameRepositoryRole(repositoryName, repository.name)) {
+				boolean renamed = userService.renameRepositoryRole(repositoryName,
+						repository.name);
+				clearAuthenticationCache();
+				repositoryAccess.reset();
+				resetTokenUsers();
+				if (!renamed) {
 					throw new GitBlitException(MessageFormat.format(
 							"Failed to rename repository permissions ''{0}'' to ''{1}''.",
 							repositoryName, repository.name));
@@ -989,6 +1602,10 @@ public class GitBlit implements ServletContextListener {
 
 				// clear the cache
 				clearRepositoryCache(repositoryName);
+				repositoryCatalog.renameRepository(repositoryName, repository.name);
+
+				// the index is rebuilt with the new repository name
+				luceneExecutor.queue(repository);
 			}
 
 			// load repository
@@ -1062,6 +1679,7 @@ public class GitBlit implements ServletContextListener {
 		} catch (IOException e) {
 			logger.error("Failed to save repository config!", e);
 		}
+		repositoryModelCache.remove(repository.name);
 	}
 
 	/**
@@ -1084,17 +1702,27 @@ public class GitBlit implements ServletContextListener {
 	 */
 	public boolean deleteRepository(String repositoryName) {
 		try {
+			luceneExecutor.deleteIndex(repositoryName);
+			commitGraphCache.remove(repositoryName);
+			metricsStore.remove(repositoryName);
+			activityJournal.remove(repositoryName);
+			IssueUtils.removeIssueIndex(new File(repositoriesFolder, repositoryName));
 			closeRepository(repositoryName);
+			// clear the repository cache
+			clearRepositoryCache(repositoryName);
+
 			File folder = new File(repositoriesFolder, repositoryName);
 			if (folder.exists() && folder.isDirectory()) {
 				FileUtils.delete(folder, FileUtils.RECURSIVE | FileUtils.RETRY);
-				if (userService.deleteRepositoryRole(repositoryName)) {
+				repositoryCatalog.removeRepository(repositoryName);
+				boolean deleted = userService.deleteRepositoryRole(repositoryName);
+				clearAuthenticationCache();
+				repositoryAccess.reset();
+				resetTokenUsers();
+				if (deleted) {
 					return true;
 				}
 			}
-
-			// clear the repository cache
-			clearRepositoryCache(repositoryName);
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Failed to delete repository {0}", repositoryName), t);
 		}
@@ -1705,6 +2333,55 @@ public class GitBlit implements ServletContextListener {
 		luceneExecutor.queue(repository);
 	}
 
+	/**
+	 * Update the Lucene index of a repository with the ref updates of a push.
+	 * 
+	 * @param repository
+	 * @param commands
+	 */
+	public void updateLuceneIndex(RepositoryModel repository, Collection<ReceiveCommand> commands) {
+		luceneExecutor.queue(repository, commands);
+	}
+
+	/**
+	 * Search the commit history of a branch for a case-insensitive match to
+	 * the value. If Lucene is enabled and the branch is indexed, the indexed
+	 * commits are searched. Otherwise the commit history is walked.
+	 * 
+	 * @param repository
+	 * @param objectId
+	 *            if unspecified, HEAD is assumed.
+	 * @param value
+	 * @param type
+	 *            AUTHOR, COMMITTER, COMMIT
+	 * @param offset
+	 * @param maxCount
+	 *            if < 0, all matches are returned
+	 * @return matching list of commits
+	 */
+	public List<RevCommit> searchRevlogs(Repository repository, String objectId, String value,
+			SearchType type, int offset, int maxCount) {
+		if (luceneExecutor.isReady()) {
+			List<String> ids = LuceneUtils.searchCommits(repository, objectId, value, type,
+					offset, maxCount);
+			if (ids != null) {
+				List<RevCommit> commits = new ArrayList<RevCommit>();
+				RevWalk revWalk = new RevWalk(repository);
+				try {
+					for (String id : ids) {
+						commits.add(revWalk.parseCommit(ObjectId.fromString(id)));
+					}
+					return commits;
+				} catch (IOException e) {
+					logger.error("Failed to read the indexed commits", e);
+				} finally {
+					revWalk.release();
+				}
+			}
+		}
+		return JGitUtils.searchRevlogs(repository, objectId, value, type, offset, maxCount);
+	}
+
 	/**
 	 * Returns the descriptions/comments of the Gitblit config settings.
 	 * 
@@ -1800,12 +2477,60 @@ public class GitBlit implements ServletContextListener {
 		repositoriesFolder = getRepositoriesFolder();
 		logger.info("Git repositories folder " + repositoriesFolder.getAbsolutePath());
 		repositoryResolver = new FileResolver<Void>(repositoriesFolder, true);
+		int loaderThreads = settings.getInteger(Keys.git.repositoryLoaderThreads, 0);
+		if (loaderThreads <= 0) {
+			loaderThreads = Runtime.getRuntime().availableProcessors();
+		}
+		if (loaderThreads > 1) {
+			logger.info(MessageFormat.format("Loading repositories with {0} threads",
+					loaderThreads));
+			repositoryLoader = Executors.newFixedThreadPool(loaderThreads);
+		}
+		int activityThreads = settings.getInteger(Keys.web.activityThreads, 0);
+		if (activityThreads <= 0) {
+			activityThreads = Runtime.getRuntime().availableProcessors();
+		}
+		if (activityThreads > 1) {
+			activityCollector = Executors.newFixedThreadPool(activityThreads);
+		}
+		// the cache updates do not delay the mail and federation jobs of the
+		// scheduled executor
+		int cacheThreads = Math.max(1, settings.getInteger(Keys.git.cacheUpdateThreads, 2));
+		cacheUpdater = Executors.newFixedThreadPool(cacheThreads);
+		repositorySizeTracker = new RepositorySizeTracker(repositoriesFolder, cacheUpdater);
+		commitGraphCache = new CommitGraphCache(repositoriesFolder, cacheUpdater,
+				settings.getInteger(Keys.git.commitGraphCacheSize, 100));
+		metricsStore = new MetricsStore(repositoriesFolder, cacheUpdater, commitGraphCache,
+				settings.getInteger(Keys.web.metricsBranches, 20));
+		activityJournal = new ActivityJournal(repositoriesFolder, cacheUpdater,
+				settings.getInteger(Keys.web.activityJournalDays, 180));
+		repositoryCatalog = new RepositoryCatalog(repositoriesFolder);
+		repositoryCatalog.build(settings.getBoolean(Keys.git.onlyAccessBareRepositories, false),
+				settings.getBoolean(Keys.git.searchRepositoriesSubfolders, true));
+		int catalogInterval = settings.getInteger(Keys.git.catalogRefreshInterval, 30);
+		if (catalogInterval > 0) {
+			scheduledExecutor.scheduleWithFixedDelay(repositoryCatalog, catalogInterval,
+					catalogInterval, TimeUnit.SECONDS);
+		}
 		
 		logTimezone("JVM", TimeZone.getDefault());
 		logTimezone(Constants.NAME, getTimezone());
 
 		serverStatus = new ServerStatus(isGO());
 		String realm = settings.getString(Keys.realm.userService, "users.properties");
+		int authenticationCacheSize = settings.getInteger(Keys.realm.authenticationCacheSize, 1000);
+		long authenticationCacheTimeout = 1000L * settings.getInteger(
+				Keys.realm.authenticationCacheTimeout, 300);
+		authenticationCache = new AuthenticationCache(authenticationCacheSize,
+				authenticationCacheTimeout);
+		long tokenLifetime = TimeUnit.DAYS.toMillis(Math.max(1,
+				settings.getInteger(Keys.web.authenticationTokenDays, 30)));
+		long tokenUserTimeout = 1000L * settings.getInteger(
+				Keys.web.authenticationTokenCacheTimeout, 300);
+		authenticationTokens = new AuthenticationTokens(new File(getFileOrFolder(realm)
+				.getParentFile(), "tokens.dat"), tokenLifetime, settings.getInteger(
+				Keys.web.authenticationTokenCacheSize, 1000), tokenUserTimeout);
+		scheduledExecutor.scheduleAtFixedRate(authenticationTokens, 1, 60, TimeUnit.MINUTES);
 		IUserService loginService = null;
 		try {
 			// check to see if this "file" is a login service class
@@ -1824,8 +2549,13 @@ public class GitBlit implements ServletContextListener {
 		}
 		luceneExecutor = new LuceneExecutor(settings);
 		if (luceneExecutor.isReady()) {
-			logger.info("Lucene executor is scheduled to process the repository queue every 2 minutes.");
-			scheduledExecutor.scheduleAtFixedRate(luceneExecutor, 1, 2, TimeUnit.MINUTES);
+			if (settings.getBoolean(Keys.lucene.pollingMode, false)) {
+				logger.info("Lucene executor is scheduled to poll the repositories every 2 minutes.");
+				scheduledExecutor.scheduleAtFixedRate(luceneExecutor, 1, 2, TimeUnit.MINUTES);
+			} else {
+				logger.info("Lucene executor will index pushes as they are received.");
+				scheduledExecutor.schedule(luceneExecutor, 1, TimeUnit.MINUTES);
+			}
 		} else {
 			logger.warn("Lucene executor is disabled.");
 		}
@@ -1901,6 +2631,15 @@ public class GitBlit implements ServletContextListener {
 	public void contextDestroyed(ServletContextEvent contextEvent) {
 		logger.info("Gitblit context destroyed by servlet container.");
 		scheduledExecutor.shutdownNow();
+		if (repositoryLoader != null) {
+			repositoryLoader.shutdownNow();
+		}
+		if (activityCollector != null) {
+			activityCollector.shutdownNow();
+		}
+		if (cacheUpdater != null) {
+			cacheUpdater.shutdownNow();
+		}
 		luceneExecutor.close();
 	}
 }
@@ -188,6 +188,8 @@ public class GitServlet extends org.eclipse.jgit.http.server.GitServlet {
 				logger.info("skipping post-receive hooks, no refs created, updated, or removed");
 				return;
 			}
+			// the refs have changed, reload the repository model
+			GitBlit.self().clearRepositoryCache(getRepositoryName(rp));
 			RepositoryModel repository = getRepositoryModel(rp);
 			Set<String> scripts = new LinkedHashSet<String>();
 			scripts.addAll(GitBlit.self().getPostReceiveScriptsInherited(repository));
@@ -198,8 +200,20 @@ public class GitServlet extends org.eclipse.jgit.http.server.GitServlet {
 			// Experimental
 			// runNativeScript(rp, "hooks/post-receive", commands);
 			
+			// Update the repository size
+			GitBlit.self().updateRepositorySize(repository);
+
+			// Update the commit graph
+			GitBlit.self().updateCommitGraph(repository);
+
+			// Update the branch metrics
+			GitBlit.self().updateMetrics(repository);
+
+			// Update the activity journal
+			GitBlit.self().updateActivityJournal(repository.name);
+
 			// Update the Lucene search index
-			GitBlit.self().updateLuceneIndex(repository);
+			GitBlit.self().updateLuceneIndex(repository, commands);
 		}
 
 		/**
@@ -209,12 +223,22 @@ public class GitServlet extends org.eclipse.jgit.http.server.GitServlet {
 		 * @return a RepositoryModel
 		 */
 		protected RepositoryModel getRepositoryModel(ReceivePack rp) {
+			RepositoryModel model = GitBlit.self().getRepositoryModel(getRepositoryName(rp));
+			return model;
+		}
+
+		/**
+		 * Returns the name of the repository we are pushing into.
+		 * 
+		 * @param rp
+		 * @return a repository name
+		 */
+		protected String getRepositoryName(ReceivePack rp) {
 			Repository repository = rp.getRepository();
 			String rootPath = GitBlit.getRepositoriesFolder().getAbsolutePath();
 			String repositoryName = StringUtils.getRelativePath(rootPath, repository.getDirectory()
 					.getAbsolutePath());
-			RepositoryModel model = GitBlit.self().getRepositoryModel(repositoryName);
-			return model;
+			return repositoryName;
 		}
 
 		/**
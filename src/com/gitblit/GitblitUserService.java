@@ -69,10 +69,31 @@ public class GitblitUserService implements IUserService {
 		} else if (realmFile.getName().toLowerCase().endsWith(".conf")) {
 			// v0.8.0+ config-based realm file
 			service = new ConfigUserService(realmFile);
+		} else if (realmFile.getName().toLowerCase().endsWith(".db")) {
+			// v0.9.0+ journal-based realm file
+			service = new JournalUserService(realmFile);
 		}
 
 		assert service != null;
 
+		if (service instanceof JournalUserService && !realmFile.exists()) {
+			// automatically import the users and teams of an existing
+			// users.conf or users.properties file
+			File usersConfig = new File(realmFile.getParentFile(), "users.conf");
+			File usersProperties = new File(realmFile.getParentFile(), "users.properties");
+			IUserService source = null;
+			if (usersConfig.exists()) {
+				source = new ConfigUserService(usersConfig);
+			} else if (usersProperties.exists()) {
+				source = new FileUserService(usersProperties);
+			}
+			if (source != null) {
+				logger.info(MessageFormat.format("Automatically importing {0} into {1}",
+						source.toString(), realmFile.getAbsolutePath()));
+				((JournalUserService) service).importUsers(source);
+			}
+		}
+
 		if (!realmFile.exists()) {
 			// Create the Administrator account for a new realm file
 			try {
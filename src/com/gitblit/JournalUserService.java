@@ -0,0 +1,1182 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.models.TeamModel;
+import com.gitblit.models.UserModel;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * JournalUserService stores users and teams in a transactional journal file
+ * (users.db) instead of a text file which is rewritten on every change.
+ *
+ * The journal is a local key-value store of user and team records. Each update
+ * is appended to the journal as one transaction, protected by a checksum and
+ * synced to disk, so user administration writes only the changed records no
+ * matter how many users the realm has. A transaction which was not completely
+ * written, for example because of a crash, is discarded when the journal is
+ * loaded. The journal is compacted when it holds more replaced records than
+ * current records.
+ *
+ * All users and teams are held in memory with indexes of the team memberships
+ * and of the users and teams of each repository role. Writing the journal does
+ * not block readers. The journal is binary and must not be edited by hand, the
+ * users and teams of an existing users.conf or users.properties file may be
+ * imported with {@link #importUsers(IUserService)}.
+ *
+ * @author James Moger
+ *
+ */
+public class JournalUserService implements IUserService {
+
+	private static final int JOURNAL_VERSION = 1;
+
+	private static final byte RECORD_USER = 1;
+	private static final byte RECORD_DELETE_USER = 2;
+	private static final byte RECORD_TEAM = 3;
+	private static final byte RECORD_DELETE_TEAM = 4;
+
+	// the journal is compacted when it holds more than this number of
+	// replaced records and more replaced records than current records
+	private static final int MIN_COMPACT_RECORDS = 1000;
+
+	private final File journalFile;
+
+	private final Logger logger = LoggerFactory.getLogger(JournalUserService.class);
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Map<String, UserModel> users = new HashMap<String, UserModel>();
+
+	private final Map<String, TeamModel> teams = new HashMap<String, TeamModel>();
+
+	private final Map<String, String> cookies = new HashMap<String, String>();
+
+	private final Map<String, Set<String>> memberships = new HashMap<String, Set<String>>();
+
+	private final Map<String, Set<String>> userRoles = new HashMap<String, Set<String>>();
+
+	private final Map<String, Set<String>> teamRoles = new HashMap<String, Set<String>>();
+
+	// the length of the committed transactions, -1 if the journal could not
+	// be read and must not be overwritten
+	private long length;
+
+	private int records;
+
+	public JournalUserService(File journalFile) {
+		this.journalFile = journalFile;
+		load();
+	}
+
+	/**
+	 * A change of a transaction: a user or team record or the deletion of a
+	 * user or team.
+	 */
+	private static class Change {
+
+		final byte type;
+
+		final String key;
+
+		final UserModel user;
+
+		final TeamModel team;
+
+		Change(byte type, String key, UserModel user, TeamModel team) {
+			this.type = type;
+			this.key = key;
+			this.user = user;
+			this.team = team;
+		}
+
+		static Change putUser(UserModel user) {
+			return new Change(RECORD_USER, user.username.toLowerCase(), user, null);
+		}
+
+		static Change deleteUser(String username) {
+			return new Change(RECORD_DELETE_USER, username.toLowerCase(), null, null);
+		}
+
+		static Change putTeam(TeamModel team) {
+			return new Change(RECORD_TEAM, team.name.toLowerCase(), null, team);
+		}
+
+		static Change deleteTeam(String teamname) {
+			return new Change(RECORD_DELETE_TEAM, teamname.toLowerCase(), null, null);
+		}
+	}
+
+	/**
+	 * Setup the user service.
+	 *
+	 * @param settings
+	 * @since 0.7.0
+	 */
+	@Override
+	public void setup(IStoredSettings settings) {
+	}
+
+	/**
+	 * Does the user service support cookie authentication?
+	 *
+	 * @return true or false
+	 */
+	@Override
+	public boolean supportsCookies() {
+		return true;
+	}
+
+	/**
+	 * Returns the cookie value for the specified user.
+	 *
+	 * @param model
+	 * @return cookie value
+	 */
+	@Override
+	public char[] getCookie(UserModel model) {
+		UserModel storedModel = getUserModel(model.username);
+		String cookie = StringUtils.getSHA1(storedModel.username + storedModel.password);
+		return cookie.toCharArray();
+	}
+
+	/**
+	 * Authenticate a user based on their cookie.
+	 *
+	 * @param cookie
+	 * @return a user object or null
+	 */
+	@Override
+	public UserModel authenticate(char[] cookie) {
+		String hash = new String(cookie);
+		if (StringUtils.isEmpty(hash)) {
+			return null;
+		}
+		String username;
+		lock.readLock().lock();
+		try {
+			username = cookies.get(hash);
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (username == null) {
+			return null;
+		}
+		return getUserModel(username);
+	}
+
+	/**
+	 * Authenticate a user based on a username and password.
+	 *
+	 * @param username
+	 * @param password
+	 * @return a user object or null
+	 */
+	@Override
+	public UserModel authenticate(String username, char[] password) {
+		UserModel returnedUser = null;
+		UserModel user = getUserModel(username);
+		if (user == null || user.password == null) {
+			return null;
+		}
+		if (user.password.startsWith(StringUtils.MD5_TYPE)) {
+			// password digest
+			String md5 = StringUtils.MD5_TYPE + StringUtils.getMD5(new String(password));
+			if (user.password.equalsIgnoreCase(md5)) {
+				returnedUser = user;
+			}
+		} else if (user.password.startsWith(StringUtils.COMBINED_MD5_TYPE)) {
+			// username+password digest
+			String md5 = StringUtils.COMBINED_MD5_TYPE
+					+ StringUtils.getMD5(username.toLowerCase() + new String(password));
+			if (user.password.equalsIgnoreCase(md5)) {
+				returnedUser = user;
+			}
+		} else if (user.password.equals(new String(password))) {
+			// plain-text password
+			returnedUser = user;
+		}
+		return returnedUser;
+	}
+
+	/**
+	 * Retrieve the user object for the specified username.
+	 *
+	 * @param username
+	 * @return a user object or null
+	 */
+	@Override
+	public UserModel getUserModel(String username) {
+		lock.readLock().lock();
+		try {
+			return getUser(username.toLowerCase());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Updates/writes a complete user object.
+	 *
+	 * @param model
+	 * @return true if update is successful
+	 */
+	@Override
+	public boolean updateUserModel(UserModel model) {
+		return updateUserModel(model.username, model);
+	}
+
+	/**
+	 * Updates/writes and replaces a complete user object keyed by username.
+	 * This method allows for renaming a user.
+	 *
+	 * @param username
+	 *            the old username
+	 * @param model
+	 *            the user object to use for username
+	 * @return true if update is successful
+	 */
+	@Override
+	public synchronized boolean updateUserModel(String username, UserModel model) {
+		try {
+			String oldKey = username.toLowerCase();
+			String newKey = model.username.toLowerCase();
+			boolean rename = !oldKey.equals(newKey);
+			List<Change> changes = new ArrayList<Change>();
+			if (rename) {
+				changes.add(Change.deleteUser(oldKey));
+			}
+			changes.add(Change.putUser(copy(model)));
+
+			// null check on "final" teams because JSON-sourced UserModel
+			// can have a null teams object
+			if (model.teams != null) {
+				Set<String> memberOf = new HashSet<String>();
+				for (TeamModel team : model.teams) {
+					String teamKey = team.name.toLowerCase();
+					memberOf.add(teamKey);
+					TeamModel t = teams.get(teamKey);
+					if (t == null) {
+						// new team
+						t = copy(team);
+					} else if (!rename && t.hasUser(newKey)) {
+						// existing membership
+						continue;
+					} else {
+						// do not clobber existing team definition
+						// maybe because this is a federated user
+						t = copy(t);
+					}
+					t.removeUser(oldKey);
+					t.addUser(newKey);
+					changes.add(Change.putTeam(t));
+				}
+
+				// check for implicit team removal
+				for (String teamKey : getSet(memberships, oldKey)) {
+					if (users.containsKey(oldKey) && !memberOf.contains(teamKey)) {
+						TeamModel t = copy(teams.get(teamKey));
+						t.removeUser(oldKey);
+						changes.add(Change.putTeam(t));
+					}
+				}
+			}
+			commit(changes);
+			return true;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to update user model {0}!", model.username),
+					t);
+		}
+		return false;
+	}
+
+	/**
+	 * Deletes the user object from the user service.
+	 *
+	 * @param model
+	 * @return true if successful
+	 */
+	@Override
+	public boolean deleteUserModel(UserModel model) {
+		return deleteUser(model.username);
+	}
+
+	/**
+	 * Delete the user object with the specified username
+	 *
+	 * @param username
+	 * @return true if successful
+	 */
+	@Override
+	public synchronized boolean deleteUser(String username) {
+		try {
+			String key = username.toLowerCase();
+			if (!users.containsKey(key)) {
+				return false;
+			}
+			List<Change> changes = new ArrayList<Change>();
+			changes.add(Change.deleteUser(key));
+			// remove user from team
+			for (String teamKey : getSet(memberships, key)) {
+				TeamModel t = copy(teams.get(teamKey));
+				t.removeUser(key);
+				changes.add(Change.putTeam(t));
+			}
+			commit(changes);
+			return true;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to delete user {0}!", username), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the list of all teams available to the login service.
+	 *
+	 * @return list of all teams
+	 * @since 0.8.0
+	 */
+	@Override
+	public List<String> getAllTeamNames() {
+		List<String> list;
+		lock.readLock().lock();
+		try {
+			list = new ArrayList<String>(teams.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Returns the list of all teams available to the login service.
+	 *
+	 * @return list of all teams
+	 * @since 0.8.0
+	 */
+	@Override
+	public List<TeamModel> getAllTeams() {
+		List<TeamModel> list = new ArrayList<TeamModel>();
+		lock.readLock().lock();
+		try {
+			for (TeamModel team : teams.values()) {
+				list.add(copy(team));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Returns the list of all teams who are allowed to bypass the access
+	 * restriction placed on the specified repository.
+	 *
+	 * @param role
+	 *            the repository name
+	 * @return list of all teamnames that can bypass the access restriction
+	 */
+	@Override
+	public List<String> getTeamnamesForRepositoryRole(String role) {
+		List<String> list = new ArrayList<String>();
+		lock.readLock().lock();
+		try {
+			for (String teamKey : getSet(teamRoles, role.toLowerCase())) {
+				list.add(teams.get(teamKey).name);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Sets the list of all teams who are allowed to bypass the access
+	 * restriction placed on the specified repository.
+	 *
+	 * @param role
+	 *            the repository name
+	 * @param teamnames
+	 * @return true if successful
+	 */
+	@Override
+	public synchronized boolean setTeamnamesForRepositoryRole(String role, List<String> teamnames) {
+		try {
+			Set<String> specifiedTeams = new HashSet<String>();
+			for (String teamname : teamnames) {
+				specifiedTeams.add(teamname.toLowerCase());
+			}
+			Set<String> currentTeams = getSet(teamRoles, role.toLowerCase());
+
+			List<Change> changes = new ArrayList<Change>();
+			for (String teamKey : currentTeams) {
+				if (!specifiedTeams.contains(teamKey)) {
+					// remove role from team
+					TeamModel team = copy(teams.get(teamKey));
+					team.removeRepository(role);
+					changes.add(Change.putTeam(team));
+				}
+			}
+			for (String teamKey : specifiedTeams) {
+				if (teams.containsKey(teamKey) && !currentTeams.contains(teamKey)) {
+					// add role to team
+					TeamModel team = copy(teams.get(teamKey));
+					team.addRepository(role);
+					changes.add(Change.putTeam(team));
+				}
+			}
+			commit(changes);
+			return true;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to set teams for role {0}!", role), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Retrieve the team object for the specified team name.
+	 *
+	 * @param teamname
+	 * @return a team object or null
+	 * @since 0.8.0
+	 */
+	@Override
+	public TeamModel getTeamModel(String teamname) {
+		lock.readLock().lock();
+		try {
+			TeamModel team = teams.get(teamname.toLowerCase());
+			return team == null ? null : copy(team);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Updates/writes a complete team object.
+	 *
+	 * @param model
+	 * @return true if update is successful
+	 * @since 0.8.0
+	 */
+	@Override
+	public boolean updateTeamModel(TeamModel model) {
+		return updateTeamModel(model.name, model);
+	}
+
+	/**
+	 * Updates/writes and replaces a complete team object keyed by teamname.
+	 * This method allows for renaming a team.
+	 *
+	 * @param teamname
+	 *            the old teamname
+	 * @param model
+	 *            the team object to use for teamname
+	 * @return true if update is successful
+	 * @since 0.8.0
+	 */
+	@Override
+	public synchronized boolean updateTeamModel(String teamname, TeamModel model) {
+		try {
+			List<Change> changes = new ArrayList<Change>();
+			if (!teamname.equalsIgnoreCase(model.name)) {
+				changes.add(Change.deleteTeam(teamname));
+			}
+			changes.add(Change.putTeam(copy(model)));
+			commit(changes);
+			return true;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to update team model {0}!", model.name), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Deletes the team object from the user service.
+	 *
+	 * @param model
+	 * @return true if successful
+	 * @since 0.8.0
+	 */
+	@Override
+	public boolean deleteTeamModel(TeamModel model) {
+		return deleteTeam(model.name);
+	}
+
+	/**
+	 * Delete the team object with the specified teamname
+	 *
+	 * @param teamname
+	 * @return true if successful
+	 * @since 0.8.0
+	 */
+	@Override
+	public synchronized boolean deleteTeam(String teamname) {
+		try {
+			commit(Collections.singletonList(Change.deleteTeam(teamname)));
+			return true;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to delete team {0}!", teamname), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the list of all users available to the login service.
+	 *
+	 * @return list of all usernames
+	 */
+	@Override
+	public List<String> getAllUsernames() {
+		List<String> list;
+		lock.readLock().lock();
+		try {
+			list = new ArrayList<String>(users.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Returns the list of all users available to the login service.
+	 *
+	 * @return list of all usernames
+	 */
+	@Override
+	public List<UserModel> getAllUsers() {
+		List<UserModel> list = new ArrayList<UserModel>();
+		lock.readLock().lock();
+		try {
+			for (String username : users.keySet()) {
+				list.add(getUser(username));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Returns the list of all users who are allowed to bypass the access
+	 * restriction placed on the specified repository.
+	 *
+	 * @param role
+	 *            the repository name
+	 * @return list of all usernames that can bypass the access restriction
+	 */
+	@Override
+	public List<String> getUsernamesForRepositoryRole(String role) {
+		List<String> list;
+		lock.readLock().lock();
+		try {
+			list = new ArrayList<String>(getSet(userRoles, role.toLowerCase()));
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Sets the list of all uses who are allowed to bypass the access
+	 * restriction placed on the specified repository.
+	 *
+	 * @param role
+	 *            the repository name
+	 * @param usernames
+	 * @return true if successful
+	 */
+	@Override
+	public synchronized boolean setUsernamesForRepositoryRole(String role, List<String> usernames) {
+		try {
+			Set<String> specifiedUsers = new HashSet<String>();
+			for (String username : usernames) {
+				specifiedUsers.add(username.toLowerCase());
+			}
+			Set<String> currentUsers = getSet(userRoles, role.toLowerCase());
+
+			List<Change> changes = new ArrayList<Change>();
+			for (String username : currentUsers) {
+				if (!specifiedUsers.contains(username)) {
+					// remove role from user
+					UserModel user = copy(users.get(username));
+					user.removeRepository(role);
+					changes.add(Change.putUser(user));
+				}
+			}
+			for (String username : specifiedUsers) {
+				if (users.containsKey(username) && !currentUsers.contains(username)) {
+					// add role to user
+					UserModel user = copy(users.get(username));
+					user.addRepository(role);
+					changes.add(Change.putUser(user));
+				}
+			}
+			commit(changes);
+			return true;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to set usernames for role {0}!", role), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Renames a repository role.
+	 *
+	 * @param oldRole
+	 * @param newRole
+	 * @return true if successful
+	 */
+	@Override
+	public synchronized boolean renameRepositoryRole(String oldRole, String newRole) {
+		try {
+			List<Change> changes = new ArrayList<Change>();
+			for (String username : getSet(userRoles, oldRole.toLowerCase())) {
+				UserModel user = copy(users.get(username));
+				user.removeRepository(oldRole);
+				user.addRepository(newRole);
+				changes.add(Change.putUser(user));
+			}
+			for (String teamKey : getSet(teamRoles, oldRole.toLowerCase())) {
+				TeamModel team = copy(teams.get(teamKey));
+				team.removeRepository(oldRole);
+				team.addRepository(newRole);
+				changes.add(Change.putTeam(team));
+			}
+			commit(changes);
+			return true;
+		} catch (Throwable t) {
+			logger.error(
+					MessageFormat.format("Failed to rename role {0} to {1}!", oldRole, newRole), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Removes a repository role from all users.
+	 *
+	 * @param role
+	 * @return true if successful
+	 */
+	@Override
+	public synchronized boolean deleteRepositoryRole(String role) {
+		try {
+			List<Change> changes = new ArrayList<Change>();
+			for (String username : getSet(userRoles, role.toLowerCase())) {
+				UserModel user = copy(users.get(username));
+				user.removeRepository(role);
+				changes.add(Change.putUser(user));
+			}
+			for (String teamKey : getSet(teamRoles, role.toLowerCase())) {
+				TeamModel team = copy(teams.get(teamKey));
+				team.removeRepository(role);
+				changes.add(Change.putTeam(team));
+			}
+			commit(changes);
+			return true;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to delete role {0}!", role), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Imports all users and teams of another user service, for example a
+	 * ConfigUserService or a FileUserService, in a single transaction. Users
+	 * and teams which already exist are replaced.
+	 *
+	 * @param service
+	 * @return true if successful
+	 */
+	public synchronized boolean importUsers(IUserService service) {
+		try {
+			List<Change> changes = new ArrayList<Change>();
+			for (String username : service.getAllUsernames()) {
+				UserModel user = service.getUserModel(username);
+				if (user != null) {
+					changes.add(Change.putUser(copy(user)));
+				}
+			}
+			for (TeamModel team : service.getAllTeams()) {
+				changes.add(Change.putTeam(copy(team)));
+			}
+			commit(changes);
+			logger.info(MessageFormat.format("Imported {0} users and teams from {1}",
+					changes.size(), service.toString()));
+			return true;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to import {0}!", service.toString()), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a copy of a stored user with copies of the user's teams. The
+	 * caller must hold the read lock or the lock of the user service.
+	 *
+	 * @param username
+	 * @return a user object or null
+	 */
+	private UserModel getUser(String username) {
+		UserModel user = users.get(username);
+		if (user == null) {
+			return null;
+		}
+		UserModel model = copy(user);
+		for (String teamKey : getSet(memberships, username)) {
+			model.teams.add(copy(teams.get(teamKey)));
+		}
+		return model;
+	}
+
+	/**
+	 * Returns a normalized copy of a user without teams. Usernames and
+	 * repository roles are lowercase.
+	 *
+	 * @param model
+	 * @return a copy of the user
+	 */
+	private UserModel copy(UserModel model) {
+		UserModel user = new UserModel(model.username.toLowerCase());
+		user.password = model.password;
+		user.canAdmin = model.canAdmin;
+		user.excludeFromFederation = model.excludeFromFederation;
+		// null check on "final" repositories because JSON-sourced UserModel
+		// can have a null repositories object
+		if (model.repositories != null) {
+			for (String repository : model.repositories) {
+				user.addRepository(repository);
+			}
+		}
+		return user;
+	}
+
+	/**
+	 * Returns a normalized copy of a team. Usernames, repository roles, and
+	 * mailing lists are lowercase.
+	 *
+	 * @param model
+	 * @return a copy of the team
+	 */
+	private TeamModel copy(TeamModel model) {
+		TeamModel team = new TeamModel(model.name);
+		// null checks on "final" collections because JSON-sourced TeamModel
+		// can have null collections
+		if (model.repositories != null) {
+			team.addRepositories(model.repositories);
+		}
+		if (model.users != null) {
+			team.addUsers(model.users);
+		}
+		if (model.mailingLists != null) {
+			team.addMailingLists(model.mailingLists);
+		}
+		if (model.preReceiveScripts != null) {
+			team.preReceiveScripts.addAll(model.preReceiveScripts);
+		}
+		if (model.postReceiveScripts != null) {
+			team.postReceiveScripts.addAll(model.postReceiveScripts);
+		}
+		return team;
+	}
+
+	private static Set<String> getSet(Map<String, Set<String>> index, String key) {
+		Set<String> set = index.get(key);
+		if (set == null) {
+			return Collections.emptySet();
+		}
+		return new HashSet<String>(set);
+	}
+
+	private static void index(Map<String, Set<String>> index, String key, String value) {
+		Set<String> set = index.get(key);
+		if (set == null) {
+			set = new HashSet<String>();
+			index.put(key, set);
+		}
+		set.add(value);
+	}
+
+	private static void unindex(Map<String, Set<String>> index, String key, String value) {
+		Set<String> set = index.get(key);
+		if (set != null) {
+			set.remove(value);
+			if (set.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Writes a transaction to the journal and then applies it to the users and
+	 * teams in memory. The caller must hold the lock of the user service.
+	 *
+	 * @param changes
+	 * @throws IOException
+	 */
+	private void commit(List<Change> changes) throws IOException {
+		if (changes.isEmpty()) {
+			return;
+		}
+		append(changes);
+		lock.writeLock().lock();
+		try {
+			apply(changes);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (records > MIN_COMPACT_RECORDS && records > 2 * (users.size() + teams.size())) {
+			try {
+				compact();
+			} catch (IOException e) {
+				logger.warn(MessageFormat.format("Failed to compact {0}", journalFile), e);
+			}
+		}
+	}
+
+	/**
+	 * Applies a transaction and updates the indexes. The caller must hold the
+	 * write lock.
+	 *
+	 * @param changes
+	 */
+	private void apply(Collection<Change> changes) {
+		for (Change change : changes) {
+			switch (change.type) {
+			case RECORD_USER:
+				removeUser(change.key);
+				users.put(change.key, change.user);
+				cookies.put(StringUtils.getSHA1(change.user.username + change.user.password),
+						change.key);
+				for (String repository : change.user.repositories) {
+					index(userRoles, repository, change.key);
+				}
+				break;
+			case RECORD_DELETE_USER:
+				removeUser(change.key);
+				break;
+			case RECORD_TEAM:
+				removeTeam(change.key);
+				TeamModel team = change.team;
+				if (team.repositories.isEmpty() && team.users.isEmpty()
+						&& team.mailingLists.isEmpty() && team.preReceiveScripts.isEmpty()
+						&& team.postReceiveScripts.isEmpty()) {
+					// a team without any settings is dropped, as in users.conf
+					break;
+				}
+				teams.put(change.key, change.team);
+				for (String repository : change.team.repositories) {
+					index(teamRoles, repository, change.key);
+				}
+				for (String username : change.team.users) {
+					index(memberships, username, change.key);
+				}
+				break;
+			case RECORD_DELETE_TEAM:
+				removeTeam(change.key);
+				break;
+			}
+			records++;
+		}
+	}
+
+	private void removeUser(String username) {
+		UserModel user = users.remove(username);
+		if (user == null) {
+			return;
+		}
+		cookies.remove(StringUtils.getSHA1(user.username + user.password));
+		for (String repository : user.repositories) {
+			unindex(userRoles, repository, username);
+		}
+	}
+
+	private void removeTeam(String teamname) {
+		TeamModel team = teams.remove(teamname);
+		if (team == null) {
+			return;
+		}
+		for (String repository : team.repositories) {
+			unindex(teamRoles, repository, teamname);
+		}
+		for (String username : team.users) {
+			unindex(memberships, username, teamname);
+		}
+	}
+
+	/**
+	 * Appends a transaction to the journal file and syncs it to disk. A
+	 * partially written transaction of a failed append is overwritten.
+	 *
+	 * @param changes
+	 * @throws IOException
+	 */
+	private void append(Collection<Change> changes) throws IOException {
+		if (length < 0) {
+			throw new IOException(MessageFormat.format("{0} could not be read", journalFile));
+		}
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		try {
+			if (length == 0) {
+				raf.setLength(0);
+				raf.writeInt(JOURNAL_VERSION);
+				length = raf.getFilePointer();
+			}
+			raf.seek(length);
+			raf.write(toTransaction(changes));
+			raf.setLength(raf.getFilePointer());
+			raf.getFD().sync();
+			length = raf.getFilePointer();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Rewrites the journal with the current users and teams.
+	 *
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		List<Change> changes = new ArrayList<Change>();
+		for (UserModel user : users.values()) {
+			changes.add(Change.putUser(user));
+		}
+		for (TeamModel team : teams.values()) {
+			changes.add(Change.putTeam(team));
+		}
+		File tmp = new File(journalFile.getAbsolutePath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			out.writeInt(JOURNAL_VERSION);
+			out.write(toTransaction(changes));
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (journalFile.exists() && !journalFile.delete()) {
+			throw new IOException(MessageFormat.format("Failed to delete {0}", journalFile));
+		}
+		if (!tmp.renameTo(journalFile)) {
+			throw new IOException(MessageFormat.format("Failed to rename {0}", tmp));
+		}
+		length = journalFile.length();
+		records = changes.size();
+	}
+
+	/**
+	 * Serializes a transaction: the length and checksum of the changes
+	 * followed by the changes.
+	 *
+	 * @param changes
+	 * @return the transaction
+	 * @throws IOException
+	 */
+	private byte[] toTransaction(Collection<Change> changes) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(changes.size());
+		for (Change change : changes) {
+			out.writeByte(change.type);
+			switch (change.type) {
+			case RECORD_USER:
+				UserModel user = change.user;
+				out.writeUTF(user.username);
+				writeString(out, user.password);
+				out.writeBoolean(user.canAdmin);
+				out.writeBoolean(user.excludeFromFederation);
+				writeStrings(out, user.repositories);
+				break;
+			case RECORD_TEAM:
+				TeamModel team = change.team;
+				out.writeUTF(team.name);
+				writeStrings(out, team.repositories);
+				writeStrings(out, team.users);
+				writeStrings(out, team.mailingLists);
+				writeStrings(out, team.preReceiveScripts);
+				writeStrings(out, team.postReceiveScripts);
+				break;
+			default:
+				out.writeUTF(change.key);
+				break;
+			}
+		}
+		out.close();
+		byte[] data = os.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ByteArrayOutputStream transaction = new ByteArrayOutputStream(data.length + 12);
+		DataOutputStream header = new DataOutputStream(transaction);
+		header.writeInt(data.length);
+		header.writeLong(crc.getValue());
+		header.write(data);
+		header.close();
+		return transaction.toByteArray();
+	}
+
+	private void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private void writeStrings(DataOutputStream out, Collection<String> values)
+			throws IOException {
+		out.writeInt(values.size());
+		for (String value : values) {
+			out.writeUTF(value);
+		}
+	}
+
+	private String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private List<String> readStrings(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String> values = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			values.add(in.readUTF());
+		}
+		return values;
+	}
+
+	/**
+	 * Loads the journal. Reading stops at the first transaction which is
+	 * incomplete or whose checksum does not match, that transaction is
+	 * overwritten by the next update.
+	 */
+	private void load() {
+		if (!journalFile.exists() || journalFile.length() == 0) {
+			return;
+		}
+		try {
+			byte[] buffer = new byte[(int) journalFile.length()];
+			DataInputStream file = new DataInputStream(new FileInputStream(journalFile));
+			try {
+				file.readFully(buffer);
+			} finally {
+				file.close();
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer));
+			int version = in.readInt();
+			if (version != JOURNAL_VERSION) {
+				throw new IOException(MessageFormat.format(
+						"Unsupported journal version {0} of {1}", version, journalFile));
+			}
+			long position = 4;
+			lock.writeLock().lock();
+			try {
+				while (buffer.length - position >= 12) {
+					int size = in.readInt();
+					long checksum = in.readLong();
+					if (size < 0 || size > buffer.length - position - 12) {
+						break;
+					}
+					CRC32 crc = new CRC32();
+					crc.update(buffer, (int) position + 12, size);
+					if (crc.getValue() != checksum) {
+						break;
+					}
+					apply(readTransaction(in));
+					position += 12 + size;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+			if (position < buffer.length) {
+				logger.warn(MessageFormat.format(
+						"Discarded {0} bytes of an incomplete transaction of {1}",
+						buffer.length - position, journalFile));
+			}
+			length = position;
+		} catch (IOException e) {
+			logger.error(MessageFormat.format("Failed to read {0}", journalFile), e);
+			length = -1;
+		}
+	}
+
+	private List<Change> readTransaction(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<Change> changes = new ArrayList<Change>(count);
+		for (int i = 0; i < count; i++) {
+			byte type = in.readByte();
+			switch (type) {
+			case RECORD_USER:
+				UserModel user = new UserModel(in.readUTF());
+				user.password = readString(in);
+				user.canAdmin = in.readBoolean();
+				user.excludeFromFederation = in.readBoolean();
+				user.repositories.addAll(readStrings(in));
+				changes.add(Change.putUser(user));
+				break;
+			case RECORD_TEAM:
+				TeamModel team = new TeamModel(in.readUTF());
+				team.repositories.addAll(readStrings(in));
+				team.users.addAll(readStrings(in));
+				team.mailingLists.addAll(readStrings(in));
+				team.preReceiveScripts.addAll(readStrings(in));
+				team.postReceiveScripts.addAll(readStrings(in));
+				changes.add(Change.putTeam(team));
+				break;
+			default:
+				changes.add(new Change(type, in.readUTF(), null, null));
+				break;
+			}
+		}
+		return changes;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "(" + journalFile.getAbsolutePath() + ")";
+	}
+}
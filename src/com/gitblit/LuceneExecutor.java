@@ -15,14 +15,20 @@
  */
 package com.gitblit;
 
+import java.io.File;
 import java.text.MessageFormat;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.Queue;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceiveCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,6 +41,11 @@ import com.gitblit.utils.LuceneUtils.IndexResult;
  * The Lucene executor handles indexing repositories synchronously and
  * asynchronously from a queue.
  * 
+ * Pushes are indexed as they arrive by a pool of indexer threads. The queue
+ * coalesces the pending updates of a repository and a repository is only
+ * indexed by one thread at a time. When the executor is run, it queues all
+ * repositories for an update on the first run or in polling mode.
+ * 
  * @author James Moger
  * 
  */
@@ -42,7 +53,11 @@ public class LuceneExecutor implements Runnable {
 
 	private final Logger logger = LoggerFactory.getLogger(LuceneExecutor.class);
 
-	private final Queue<String> queue = new ConcurrentLinkedQueue<String>();
+	private final Map<String, PendingUpdate> queue = new LinkedHashMap<String, PendingUpdate>();
+
+	private final Set<String> active = new HashSet<String>();
+
+	private final ExecutorService indexers;
 
 	private final IStoredSettings settings;
 
@@ -56,6 +71,23 @@ public class LuceneExecutor implements Runnable {
 		this.settings = settings;
 		this.isLuceneEnabled = settings.getBoolean(Keys.lucene.enable, false);
 		this.isPollingMode = settings.getBoolean(Keys.lucene.pollingMode, false);
+		if (isLuceneEnabled) {
+			int threads = Math.max(1, settings.getInteger(Keys.lucene.updateThreads, 2));
+			this.indexers = Executors.newFixedThreadPool(threads);
+		} else {
+			this.indexers = null;
+		}
+		LuceneUtils.setIndexingOptions(settings.getInteger(Keys.lucene.indexThreads, 0),
+				settings.getInteger(Keys.lucene.ramBufferSize, 16),
+				settings.getInteger(Keys.lucene.maxIndexedSize, 1024) * 1024L);
+		if (settings.getBoolean(Keys.lucene.sharedIndex, false)) {
+			File folder = GitBlit.getFileOrFolder(settings.getString(
+					Keys.lucene.sharedIndexFolder, "lucene"));
+			logger.info("Lucene shared index folder is " + folder.getAbsolutePath());
+			LuceneUtils.setSharedIndexFolder(folder);
+		} else {
+			LuceneUtils.setSharedIndexFolder(null);
+		}
 	}
 
 	/**
@@ -73,20 +105,58 @@ public class LuceneExecutor implements Runnable {
 	 * @return true, if the queue is empty
 	 */
 	public boolean hasEmptyQueue() {
-		return queue.isEmpty();
+		synchronized (queue) {
+			return queue.isEmpty() && active.isEmpty();
+		}
 	}
 
 	/**
-	 * Queues a repository to be asynchronously indexed.
+	 * Queues a repository to be asynchronously indexed. All branches of the
+	 * repository are checked for updates.
 	 * 
 	 * @param repository
 	 * @return true if the repository was queued
 	 */
 	public boolean queue(RepositoryModel repository) {
+		return queue(repository.name, null);
+	}
+
+	/**
+	 * Queues the ref updates of a push to be asynchronously indexed. Only the
+	 * pushed commit ranges are indexed.
+	 * 
+	 * @param repository
+	 * @param commands
+	 *            the ref updates of the push
+	 * @return true if the updates were queued
+	 */
+	public boolean queue(RepositoryModel repository, Collection<ReceiveCommand> commands) {
+		return queue(repository.name, commands);
+	}
+
+	private boolean queue(String repositoryName, Collection<ReceiveCommand> commands) {
 		if (!isReady()) {
 			return false;
 		}
-		queue.add(repository.name);
+		synchronized (queue) {
+			PendingUpdate update = queue.get(repositoryName);
+			if (update == null) {
+				update = new PendingUpdate();
+				queue.put(repositoryName, update);
+			}
+			if (commands == null) {
+				update.isFullUpdate = true;
+			} else {
+				for (ReceiveCommand command : commands) {
+					if (ReceiveCommand.Result.OK.equals(command.getResult())) {
+						update.add(command.getRefName(), command.getOldId(), command.getNewId());
+					}
+				}
+			}
+			if (active.add(repositoryName)) {
+				indexers.execute(new Indexer(repositoryName));
+			}
+		}
 		return true;
 	}
 
@@ -99,37 +169,108 @@ public class LuceneExecutor implements Runnable {
 		if (firstRun.get() || isPollingMode) {
 			// update all indexes on first run or if polling mode
 			firstRun.set(false);
-			queue.addAll(GitBlit.self().getRepositoryList());
+			for (String repositoryName : GitBlit.self().getRepositoryList()) {
+				queue(repositoryName, null);
+			}
 		}
+	}
+
+	/**
+	 * The coalesced updates of a repository which are waiting to be indexed.
+	 * For each ref the oldest old id and the newest new id are kept.
+	 */
+	private static class PendingUpdate {
 
-		Set<String> processed = new HashSet<String>();
-		if (!queue.isEmpty()) {
-			// update the repository Lucene index
-			String repositoryName = null;
-			while ((repositoryName = queue.poll()) != null) {
-				if (processed.contains(repositoryName)) {
-					// skipping multi-queued repository
-					continue;
+		boolean isFullUpdate;
+
+		final Map<String, ObjectId[]> refs = new LinkedHashMap<String, ObjectId[]>();
+
+		void add(String ref, ObjectId oldId, ObjectId newId) {
+			ObjectId[] ids = refs.get(ref);
+			if (ids == null) {
+				refs.put(ref, new ObjectId[] { oldId, newId });
+			} else {
+				ids[1] = newId;
+			}
+		}
+	}
+
+	/**
+	 * Indexes the pending updates of a repository until there are no more
+	 * pending updates.
+	 */
+	private class Indexer implements Runnable {
+
+		final String repositoryName;
+
+		Indexer(String repositoryName) {
+			this.repositoryName = repositoryName;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				PendingUpdate update;
+				synchronized (queue) {
+					update = queue.remove(repositoryName);
+					if (update == null) {
+						active.remove(repositoryName);
+						return;
+					}
 				}
+				Repository repository = null;
 				try {
-					Repository repository = GitBlit.self().getRepository(repositoryName);
+					repository = GitBlit.self().getRepository(repositoryName);
 					if (repository == null) {
 						logger.warn(MessageFormat.format(
 								"Lucene executor could not find repository {0}. Skipping.",
 								repositoryName));
 						continue;
 					}
-					index(repositoryName, repository);
-					repository.close();
-					processed.add(repositoryName);
+					if (update.isFullUpdate || LuceneUtils.shouldReindex(repository)) {
+						index(repositoryName, repository);
+					} else {
+						index(repositoryName, repository, update.refs);
+					}
 				} catch (Throwable e) {
 					logger.error(MessageFormat.format("Failed to update {0} Lucene index",
 							repositoryName), e);
+				} finally {
+					if (repository != null) {
+						repository.close();
+					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * Synchronously indexes the ref updates of a repository.
+	 * 
+	 * @param repositoryName
+	 * @param repository
+	 * @param refs
+	 *            the old and new ids of the updated refs
+	 */
+	private void index(String repositoryName, Repository repository, Map<String, ObjectId[]> refs) {
+		long start = System.currentTimeMillis();
+		int commitCount = 0;
+		for (Map.Entry<String, ObjectId[]> ref : refs.entrySet()) {
+			ObjectId[] ids = ref.getValue();
+			IndexResult result = LuceneUtils.index(repository, ref.getKey(), ids[0], ids[1]);
+			if (!result.success) {
+				String msg = "Could not update {0} Lucene index for {1}!";
+				logger.error(MessageFormat.format(msg, repositoryName, ref.getKey()));
+			}
+			commitCount += result.commitCount;
+		}
+		long duration = System.currentTimeMillis() - start;
+		if (commitCount > 0) {
+			String msg = "Updated {0} Lucene index with {1} pushed commits in {2} msecs";
+			logger.info(MessageFormat.format(msg, repositoryName, commitCount, duration));
+		}
+	}
+
 	/**
 	 * Synchronously indexes a repository. This may build a complete index of a
 	 * repository or it may update an existing index.
@@ -141,6 +282,10 @@ public class LuceneExecutor implements Runnable {
 	 */
 	public void index(String repositoryName, Repository repository) {
 		try {
+			if (LuceneUtils.migrateIndex(repository)) {
+				logger.info(MessageFormat.format("Migrated {0} Lucene index to the shared index",
+						repositoryName));
+			}
 			if (JGitUtils.hasCommits(repository)) {
 				if (LuceneUtils.shouldReindex(repository)) {
 					// (re)build the entire index
@@ -149,9 +294,9 @@ public class LuceneExecutor implements Runnable {
 					long duration = System.currentTimeMillis() - start;
 					if (result.success) {
 						if (result.commitCount > 0) {
-							String msg = "Built {0} Lucene index from {1} commits in {2} msecs";
+							String msg = "Built {0} Lucene index from {1} commits and {2} files in {3} msecs";
 							logger.info(MessageFormat.format(msg, repositoryName,
-									result.commitCount, duration));
+									result.commitCount, result.blobCount, duration));
 						}
 					} else {
 						String msg = "Could not build {0} Lucene index!";
@@ -182,11 +327,31 @@ public class LuceneExecutor implements Runnable {
 		}
 	}
 
+	/**
+	 * Deletes the Lucene index of a repository which is about to be deleted or
+	 * renamed.
+	 * 
+	 * @param repositoryName
+	 */
+	public void deleteIndex(String repositoryName) {
+		if (!isReady()) {
+			return;
+		}
+		Repository repository = GitBlit.self().getRepository(repositoryName);
+		if (repository != null) {
+			LuceneUtils.deleteIndex(repository);
+			repository.close();
+		}
+	}
+
 	/**
 	 * Close all Lucene indexers.
 	 * 
 	 */
 	public void close() {
+		if (indexers != null) {
+			indexers.shutdownNow();
+		}
 		LuceneUtils.close();
 	}
 }
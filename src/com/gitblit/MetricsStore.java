@@ -0,0 +1,762 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.MessageFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.models.Metric;
+import com.gitblit.utils.JGitUtils;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The metrics store maintains the commit counters of every branch of each
+ * repository: the number of commits per quarter of an hour, the number of
+ * commits per author, and the tagged commits.
+ *
+ * Commits are counted in quarter hour buckets so that the daily, monthly, and
+ * weekday metrics can be formatted in any timezone without reading the
+ * commits again.
+ *
+ * The counters are persisted in the repository and are updated in the
+ * background after a push. Only the commits which were added to or removed
+ * from a branch are read. A new branch starts from the counters of the default
+ * branch.
+ *
+ * The counters of the default branch are always kept. Every other branch holds
+ * a full copy of the counters, so only a limited number of other branches are
+ * kept: those whose metrics were requested most recently. The counters of any
+ * other branch are counted when its metrics are requested.
+ *
+ * @author James Moger
+ *
+ */
+public class MetricsStore {
+
+	private static final String METRICS_FILE = "metrics.dat";
+	private static final int METRICS_VERSION = 1;
+	private static final int BUCKET_SECONDS = 15 * 60;
+
+	private final Logger logger = LoggerFactory.getLogger(MetricsStore.class);
+
+	private final File repositoriesFolder;
+
+	private final ExecutorService executor;
+
+	private final CommitGraphCache commitGraphCache;
+
+	private final int maxBranches;
+
+	private final Map<String, RepositoryMetrics> metrics = new ConcurrentHashMap<String, RepositoryMetrics>();
+
+	private final Set<String> queued = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Creates the metrics store.
+	 *
+	 * @param repositoriesFolder
+	 * @param executor
+	 *            the executor of the background updates
+	 * @param commitGraphCache
+	 * @param maxBranches
+	 *            the maximum number of branches besides the default branch
+	 *            whose counters are kept for a repository
+	 */
+	public MetricsStore(File repositoriesFolder, ExecutorService executor,
+			CommitGraphCache commitGraphCache, int maxBranches) {
+		this.repositoriesFolder = repositoriesFolder;
+		this.executor = executor;
+		this.commitGraphCache = commitGraphCache;
+		this.maxBranches = maxBranches;
+	}
+
+	/**
+	 * The counters of a branch.
+	 */
+	private static class BranchMetrics {
+
+		ObjectId tip;
+
+		int tipTime;
+
+		final Map<Integer, Integer> buckets = new HashMap<Integer, Integer>();
+
+		final Map<String, Integer> emails = new HashMap<String, Integer>();
+
+		final Map<String, Integer> names = new HashMap<String, Integer>();
+
+		final Map<ObjectId, Integer> tagged = new HashMap<ObjectId, Integer>();
+
+		// the time the metrics of the branch were last requested
+		volatile long lastUsed;
+
+		BranchMetrics copy() {
+			BranchMetrics copy = new BranchMetrics();
+			copy.tip = tip;
+			copy.tipTime = tipTime;
+			copy.buckets.putAll(buckets);
+			copy.emails.putAll(emails);
+			copy.names.putAll(names);
+			copy.tagged.putAll(tagged);
+			return copy;
+		}
+
+		int getFirstTime() {
+			int first = tipTime;
+			for (int bucket : buckets.keySet()) {
+				first = Math.min(first, bucket * BUCKET_SECONDS);
+			}
+			return first;
+		}
+	}
+
+	/**
+	 * The counters of all branches of a repository.
+	 */
+	private static class RepositoryMetrics {
+
+		final File gitDir;
+
+		volatile Map<String, BranchMetrics> branches = new HashMap<String, BranchMetrics>();
+
+		Set<ObjectId> tagCommits = new HashSet<ObjectId>();
+
+		// the branches without counters whose metrics were requested
+		final Set<String> requested = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		boolean isLoaded;
+
+		RepositoryMetrics(File gitDir) {
+			this.gitDir = gitDir;
+		}
+	}
+
+	/**
+	 * Returns the date metrics of a branch from the stored counters. If the
+	 * counters of the branch are not current, an update is queued and null is
+	 * returned.
+	 *
+	 * @param repositoryName
+	 * @param repository
+	 * @param objectId
+	 *            if null or empty, HEAD is assumed.
+	 * @param includeTotal
+	 * @param dateFormat
+	 * @param timezone
+	 * @return list of metrics or null if the store can not provide them
+	 * @see com.gitblit.utils.MetricUtils#getDateMetrics(Repository, String,
+	 *      boolean, String, TimeZone)
+	 */
+	public List<Metric> getDateMetrics(String repositoryName, Repository repository,
+			String objectId, boolean includeTotal, String dateFormat, TimeZone timezone) {
+		BranchMetrics branch = getBranch(repositoryName, repository, objectId);
+		if (branch == null) {
+			return null;
+		}
+		Metric total = new Metric("TOTAL");
+		DateFormat df;
+		if (StringUtils.isEmpty(dateFormat)) {
+			// dynamically determine date format
+			int diffDays = (branch.tipTime - branch.getFirstTime()) / (60 * 60 * 24);
+			total.duration = diffDays;
+			if (diffDays <= 365) {
+				// Days
+				df = new SimpleDateFormat("yyyy-MM-dd");
+			} else {
+				// Months
+				df = new SimpleDateFormat("yyyy-MM");
+			}
+		} else {
+			// use specified date format
+			df = new SimpleDateFormat(dateFormat);
+		}
+		df.setTimeZone(timezone);
+
+		Map<String, Metric> metricMap = new HashMap<String, Metric>();
+		for (Map.Entry<Integer, Integer> entry : branch.buckets.entrySet()) {
+			String p = df.format(new Date(entry.getKey() * BUCKET_SECONDS * 1000L));
+			Metric m = getMetric(metricMap, p);
+			m.count += entry.getValue();
+			total.count += entry.getValue();
+		}
+		for (int commitTime : branch.tagged.values()) {
+			String p = df.format(new Date(commitTime * 1000L));
+			getMetric(metricMap, p).tag++;
+			total.tag++;
+		}
+		List<Metric> list = getSortedMetrics(metricMap);
+		if (includeTotal) {
+			list.add(0, total);
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the author metrics of a branch from the stored counters. If the
+	 * counters of the branch are not current, an update is queued and null is
+	 * returned.
+	 *
+	 * @param repositoryName
+	 * @param repository
+	 * @param objectId
+	 *            if null or empty, HEAD is assumed.
+	 * @param byEmailAddress
+	 *            group metrics by author email address otherwise by author name
+	 * @return list of metrics or null if the store can not provide them
+	 */
+	public List<Metric> getAuthorMetrics(String repositoryName, Repository repository,
+			String objectId, boolean byEmailAddress) {
+		BranchMetrics branch = getBranch(repositoryName, repository, objectId);
+		if (branch == null) {
+			return null;
+		}
+		Map<String, Metric> metricMap = new HashMap<String, Metric>();
+		Map<String, Integer> authors = byEmailAddress ? branch.emails : branch.names;
+		for (Map.Entry<String, Integer> entry : authors.entrySet()) {
+			getMetric(metricMap, entry.getKey()).count = entry.getValue();
+		}
+		return getSortedMetrics(metricMap);
+	}
+
+	/**
+	 * Queues a background update of the counters of the repository.
+	 *
+	 * @param repositoryName
+	 */
+	public void update(final String repositoryName) {
+		if (!queued.add(repositoryName)) {
+			// already queued
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				queued.remove(repositoryName);
+				try {
+					RepositoryMetrics repositoryMetrics = getRepositoryMetrics(repositoryName);
+					if (repositoryMetrics != null) {
+						updateMetrics(repositoryName, repositoryMetrics);
+					}
+				} catch (Throwable t) {
+					logger.error(MessageFormat.format("Failed to update the metrics of {0}",
+							repositoryName), t);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Forgets the counters of the repository. The persisted counters are
+	 * stored within the repository and move with it if it is renamed.
+	 *
+	 * @param repositoryName
+	 */
+	public void remove(String repositoryName) {
+		metrics.remove(repositoryName);
+	}
+
+	/**
+	 * Returns the counters of the branch whose tip is the specified commit.
+	 *
+	 * @param repositoryName
+	 * @param repository
+	 * @param objectId
+	 * @return the branch counters or null if no stored branch has this tip
+	 */
+	private BranchMetrics getBranch(String repositoryName, Repository repository,
+			String objectId) {
+		if (!JGitUtils.hasCommits(repository)) {
+			return null;
+		}
+		RepositoryMetrics repositoryMetrics = getRepositoryMetrics(repositoryName);
+		if (repositoryMetrics == null) {
+			return null;
+		}
+		try {
+			ObjectId id;
+			if (StringUtils.isEmpty(objectId)) {
+				id = JGitUtils.getDefaultBranch(repository);
+			} else {
+				id = repository.resolve(objectId);
+			}
+			if (id == null) {
+				return null;
+			}
+			for (BranchMetrics branch : repositoryMetrics.branches.values()) {
+				if (id.equals(branch.tip)) {
+					branch.lastUsed = System.currentTimeMillis();
+					return branch;
+				}
+			}
+			for (Ref ref : repository.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+				if (id.equals(ref.getObjectId())) {
+					// the branch has changed since the last update or its
+					// counters are not kept
+					repositoryMetrics.requested.add(ref.getName());
+					update(repositoryName);
+					break;
+				}
+			}
+		} catch (Exception e) {
+			logger.error(MessageFormat.format("Failed to read the metrics of {0}",
+					repositoryName), e);
+		}
+		return null;
+	}
+
+	private Metric getMetric(Map<String, Metric> metricMap, String name) {
+		Metric m = metricMap.get(name);
+		if (m == null) {
+			m = new Metric(name);
+			metricMap.put(name, m);
+		}
+		return m;
+	}
+
+	private List<Metric> getSortedMetrics(Map<String, Metric> metricMap) {
+		List<String> keys = new ArrayList<String>(metricMap.keySet());
+		Collections.sort(keys);
+		List<Metric> list = new ArrayList<Metric>();
+		for (String key : keys) {
+			list.add(metricMap.get(key));
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the counters of the repository, loading the persisted counters
+	 * the first time a repository is requested. If the repository does not
+	 * have persisted counters, an update is queued.
+	 *
+	 * @param repositoryName
+	 * @return the repository counters or null if the repository does not exist
+	 */
+	private RepositoryMetrics getRepositoryMetrics(String repositoryName) {
+		RepositoryMetrics repositoryMetrics = metrics.get(repositoryName);
+		if (repositoryMetrics == null) {
+			File gitDir = FileKey.resolve(new File(repositoriesFolder, repositoryName),
+					FS.DETECTED);
+			if (gitDir == null) {
+				return null;
+			}
+			synchronized (metrics) {
+				repositoryMetrics = metrics.get(repositoryName);
+				if (repositoryMetrics == null) {
+					repositoryMetrics = new RepositoryMetrics(gitDir);
+					if (!load(repositoryMetrics)) {
+						update(repositoryName);
+					}
+					metrics.put(repositoryName, repositoryMetrics);
+				}
+			}
+		}
+		return repositoryMetrics;
+	}
+
+	/**
+	 * Updates the counters of the kept branches of the repository. The commits
+	 * which were added to a branch since the last update are counted and the
+	 * commits which were removed from it, for example by a forced push, are
+	 * discounted. The counters of the requested branches are added and the
+	 * least recently requested branches are dropped.
+	 *
+	 * @param repositoryName
+	 * @param repositoryMetrics
+	 * @throws IOException
+	 */
+	private void updateMetrics(String repositoryName, RepositoryMetrics repositoryMetrics)
+			throws IOException {
+		synchronized (repositoryMetrics) {
+			long startTime = System.currentTimeMillis();
+			Map<String, BranchMetrics> branches = new HashMap<String, BranchMetrics>();
+			Set<ObjectId> tagCommits = new HashSet<ObjectId>();
+			int count = 0;
+			boolean changed = !repositoryMetrics.isLoaded;
+			Set<String> requested = new HashSet<String>(repositoryMetrics.requested);
+			repositoryMetrics.requested.removeAll(requested);
+			String defaultBranch = null;
+			Repository repository = new FileRepository(repositoryMetrics.gitDir);
+			RevWalk revWalk = new RevWalk(repository);
+			try {
+				for (Ref ref : repository.getRefDatabase().getRefs(Constants.R_TAGS).values()) {
+					RevObject object = revWalk.peel(revWalk.parseAny(ref.getObjectId()));
+					if (object instanceof RevCommit) {
+						tagCommits.add(object.copy());
+					}
+				}
+				changed |= !tagCommits.equals(repositoryMetrics.tagCommits);
+
+				Map<String, Ref> heads = repository.getRefDatabase().getRefs(Constants.R_HEADS);
+				Ref head = repository.getRef(Constants.HEAD);
+				defaultBranch = head == null ? null : head.getLeaf().getName();
+				for (Map.Entry<String, Ref> entry : heads.entrySet()) {
+					String name = Constants.R_HEADS + entry.getKey();
+					BranchMetrics branch = repositoryMetrics.branches.get(name);
+					if (branch == null && !name.equals(defaultBranch)
+							&& !requested.contains(name)) {
+						// counted when the metrics of the branch are requested
+						continue;
+					}
+					RevCommit tip = revWalk.parseCommit(entry.getValue().getObjectId());
+					if (branch != null && tip.equals(branch.tip)
+							&& tagCommits.equals(repositoryMetrics.tagCommits)) {
+						branches.put(name, branch);
+						continue;
+					}
+					changed = true;
+					if (branch == null) {
+						// start from the counters of the default branch
+						branch = repositoryMetrics.branches.get(defaultBranch);
+					}
+					long lastUsed = branch == null ? 0 : branch.lastUsed;
+					if (branch == null || !repository.hasObject(branch.tip)) {
+						// the previous tip has been garbage collected
+						branch = new BranchMetrics();
+					} else {
+						branch = branch.copy();
+					}
+					branch.lastUsed = requested.contains(name) ? System.currentTimeMillis()
+							: lastUsed;
+					count += updateBranch(repositoryName, repository, branch, tip, tagCommits,
+							repositoryMetrics.tagCommits);
+					branches.put(name, branch);
+				}
+			} finally {
+				revWalk.release();
+				repository.close();
+			}
+			dropBranches(branches, defaultBranch);
+			changed |= !branches.keySet().equals(repositoryMetrics.branches.keySet());
+			if (!changed) {
+				return;
+			}
+			repositoryMetrics.branches = branches;
+			repositoryMetrics.tagCommits = tagCommits;
+			repositoryMetrics.isLoaded = true;
+			save(repositoryMetrics);
+
+			long duration = System.currentTimeMillis() - startTime;
+			logger.info(MessageFormat.format(
+					"{0} commits counted for the metrics of {1} in {2} msecs", count,
+					repositoryName, duration));
+		}
+	}
+
+	/**
+	 * Drops the least recently requested branches if more than the maximum
+	 * number of branches besides the default branch have counters.
+	 *
+	 * @param branches
+	 * @param defaultBranch
+	 */
+	private void dropBranches(final Map<String, BranchMetrics> branches, String defaultBranch) {
+		List<String> others = new ArrayList<String>(branches.keySet());
+		others.remove(defaultBranch);
+		if (others.size() <= maxBranches) {
+			return;
+		}
+		// most recently requested first
+		Collections.sort(others, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				long t1 = branches.get(o1).lastUsed;
+				long t2 = branches.get(o2).lastUsed;
+				return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+			}
+		});
+		for (String name : others.subList(Math.max(0, maxBranches), others.size())) {
+			branches.remove(name);
+		}
+	}
+
+	/**
+	 * Moves the counters of a branch to a new tip.
+	 *
+	 * @param repositoryName
+	 * @param repository
+	 * @param branch
+	 *            the counters of the previous tip or of another branch
+	 * @param tip
+	 * @param tagCommits
+	 *            the currently tagged commits
+	 * @param previousTagCommits
+	 *            the tagged commits of the last update
+	 * @return the number of commits which were counted or discounted
+	 * @throws IOException
+	 */
+	private int updateBranch(String repositoryName, Repository repository,
+			BranchMetrics branch, RevCommit tip, Set<ObjectId> tagCommits,
+			Set<ObjectId> previousTagCommits) throws IOException {
+		int count = 0;
+		RevWalk revWalk = new RevWalk(repository);
+		try {
+			RevCommit previous = null;
+			if (branch.tip != null) {
+				previous = revWalk.parseCommit(branch.tip);
+			}
+
+			// count the new commits
+			revWalk.markStart(revWalk.parseCommit(tip));
+			if (previous != null) {
+				revWalk.markUninteresting(previous);
+			}
+			for (RevCommit commit : revWalk) {
+				count(branch, commit, 1);
+				if (tagCommits.contains(commit)) {
+					branch.tagged.put(commit.copy(), commit.getCommitTime());
+				}
+				count++;
+			}
+
+			// discount the removed commits
+			if (previous != null) {
+				revWalk.reset();
+				revWalk.markStart(previous);
+				revWalk.markUninteresting(revWalk.parseCommit(tip));
+				for (RevCommit commit : revWalk) {
+					// the body of the previous tip was discarded by the first walk
+					revWalk.parseBody(commit);
+					count(branch, commit, -1);
+					branch.tagged.remove(commit);
+					count++;
+				}
+			}
+			branch.tip = tip.copy();
+			branch.tipTime = tip.getCommitTime();
+
+			// tags which were created or moved since the last update
+			branch.tagged.keySet().retainAll(tagCommits);
+			for (ObjectId tagCommit : tagCommits) {
+				if (previousTagCommits.contains(tagCommit)
+						|| branch.tagged.containsKey(tagCommit)) {
+					continue;
+				}
+				Boolean merged = commitGraphCache.isMergedInto(repositoryName, tagCommit, tip);
+				revWalk.reset();
+				RevCommit commit = revWalk.parseCommit(tagCommit);
+				if (merged == null) {
+					merged = revWalk.isMergedInto(commit, revWalk.parseCommit(tip));
+				}
+				if (merged) {
+					branch.tagged.put(commit.copy(), commit.getCommitTime());
+				}
+			}
+		} finally {
+			revWalk.release();
+		}
+		return count;
+	}
+
+	private void count(BranchMetrics branch, RevCommit commit, int delta) {
+		increment(branch.buckets, commit.getCommitTime() / BUCKET_SECONDS, delta);
+		String email = commit.getAuthorIdent().getEmailAddress().toLowerCase();
+		String name = commit.getAuthorIdent().getName().toLowerCase();
+		increment(branch.emails, StringUtils.isEmpty(email) ? name : email, delta);
+		increment(branch.names, StringUtils.isEmpty(name) ? email : name, delta);
+	}
+
+	private <K> void increment(Map<K, Integer> counters, K key, int delta) {
+		Integer value = counters.get(key);
+		int count = (value == null ? 0 : value) + delta;
+		if (count == 0) {
+			counters.remove(key);
+		} else {
+			counters.put(key, count);
+		}
+	}
+
+	/**
+	 * Persists the counters of the repository. The counters are written to a
+	 * temporary file which then replaces the previous file.
+	 *
+	 * @param repositoryMetrics
+	 */
+	private void save(RepositoryMetrics repositoryMetrics) {
+		File file = new File(repositoryMetrics.gitDir, METRICS_FILE);
+		File tmp = new File(repositoryMetrics.gitDir, METRICS_FILE + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			try {
+				out.writeInt(METRICS_VERSION);
+				writeIds(out, repositoryMetrics.tagCommits);
+				out.writeInt(repositoryMetrics.branches.size());
+				for (Map.Entry<String, BranchMetrics> entry : repositoryMetrics.branches
+						.entrySet()) {
+					BranchMetrics branch = entry.getValue();
+					out.writeUTF(entry.getKey());
+					writeId(out, branch.tip);
+					out.writeInt(branch.tipTime);
+					out.writeInt(branch.buckets.size());
+					for (Map.Entry<Integer, Integer> bucket : branch.buckets.entrySet()) {
+						out.writeInt(bucket.getKey());
+						out.writeInt(bucket.getValue());
+					}
+					writeCounters(out, branch.emails);
+					writeCounters(out, branch.names);
+					out.writeInt(branch.tagged.size());
+					for (Map.Entry<ObjectId, Integer> tagged : branch.tagged.entrySet()) {
+						writeId(out, tagged.getKey());
+						out.writeInt(tagged.getValue());
+					}
+				}
+			} finally {
+				out.close();
+			}
+			if (file.exists() && !file.delete()) {
+				throw new IOException(MessageFormat.format("Failed to delete {0}", file));
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException(MessageFormat.format("Failed to rename {0}", tmp));
+			}
+		} catch (IOException e) {
+			logger.warn(MessageFormat.format("Failed to save {0}", file), e);
+		}
+	}
+
+	private void writeId(DataOutputStream out, AnyObjectId id) throws IOException {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		id.copyRawTo(raw, 0);
+		out.write(raw);
+	}
+
+	private void writeIds(DataOutputStream out, Set<ObjectId> ids) throws IOException {
+		out.writeInt(ids.size());
+		for (ObjectId id : ids) {
+			writeId(out, id);
+		}
+	}
+
+	private void writeCounters(DataOutputStream out, Map<String, Integer> counters)
+			throws IOException {
+		out.writeInt(counters.size());
+		for (Map.Entry<String, Integer> entry : counters.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+	}
+
+	/**
+	 * Loads the persisted counters of the repository.
+	 *
+	 * @param repositoryMetrics
+	 * @return true if the counters were loaded
+	 */
+	private boolean load(RepositoryMetrics repositoryMetrics) {
+		File file = new File(repositoryMetrics.gitDir, METRICS_FILE);
+		if (!file.exists()) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != METRICS_VERSION) {
+					return false;
+				}
+				Set<ObjectId> tagCommits = readIds(in);
+				Map<String, BranchMetrics> branches = new HashMap<String, BranchMetrics>();
+				int branchCount = in.readInt();
+				for (int i = 0; i < branchCount; i++) {
+					String name = in.readUTF();
+					BranchMetrics branch = new BranchMetrics();
+					branch.tip = readId(in);
+					branch.tipTime = in.readInt();
+					int bucketCount = in.readInt();
+					for (int j = 0; j < bucketCount; j++) {
+						branch.buckets.put(in.readInt(), in.readInt());
+					}
+					readCounters(in, branch.emails);
+					readCounters(in, branch.names);
+					int taggedCount = in.readInt();
+					for (int j = 0; j < taggedCount; j++) {
+						branch.tagged.put(readId(in), in.readInt());
+					}
+					branches.put(name, branch);
+				}
+				repositoryMetrics.branches = branches;
+				repositoryMetrics.tagCommits = tagCommits;
+				repositoryMetrics.isLoaded = true;
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.warn(MessageFormat.format("Failed to load {0}", file), e);
+		}
+		return false;
+	}
+
+	private ObjectId readId(DataInputStream in) throws IOException {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		in.readFully(raw);
+		return ObjectId.fromRaw(raw);
+	}
+
+	private Set<ObjectId> readIds(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		Set<ObjectId> ids = new HashSet<ObjectId>();
+		for (int i = 0; i < count; i++) {
+			ids.add(readId(in));
+		}
+		return ids;
+	}
+
+	private void readCounters(DataInputStream in, Map<String, Integer> counters)
+			throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			counters.put(in.readUTF(), in.readInt());
+		}
+	}
+}
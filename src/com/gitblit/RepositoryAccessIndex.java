@@ -0,0 +1,329 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gitblit.Constants.AccessRestrictionType;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.TeamModel;
+import com.gitblit.models.UserModel;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The repository access index evaluates which repositories a user may view.
+ * Every repository is assigned a bit and the index keeps bitsets of the
+ * view-restricted repositories, of the repositories owned by each owner, and
+ * of the repositories granted to each user, directly or through a team.
+ * Filtering the repository list for a user is a scan of the combined bitset.
+ *
+ * The grants of a user are computed from the user model of the caller, so
+ * they follow the user service which authenticated the user, and are cached
+ * for that model instance. A different model of the user is evaluated again,
+ * grants are also recomputed when they expire, when the user or one of the
+ * user's teams is changed, and when repository roles are changed or the realm
+ * file is modified. The restriction and owner of a repository are updated
+ * whenever its model is loaded.
+ *
+ * Lookups do not lock. The restrictions and owners are replaced by an updated
+ * copy when a repository model has changed.
+ *
+ * @author James Moger
+ *
+ */
+public class RepositoryAccessIndex {
+
+	// the cached grants of a user model are recomputed once per minute
+	private static final long GRANTS_TIMEOUT = 60 * 1000L;
+
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	private final ConcurrentMap<Integer, String> owners = new ConcurrentHashMap<Integer, String>();
+
+	private final ConcurrentMap<String, Grants> users = new ConcurrentHashMap<String, Grants>();
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private volatile Restrictions restrictions = new Restrictions(new BitSet(),
+			new HashMap<String, BitSet>());
+
+	/**
+	 * An immutable snapshot of the view-restricted repositories and of the
+	 * repositories owned by each owner.
+	 */
+	private static class Restrictions {
+
+		final BitSet restricted;
+
+		final Map<String, BitSet> owned;
+
+		Restrictions(BitSet restricted, Map<String, BitSet> owned) {
+			this.restricted = restricted;
+			this.owned = owned;
+		}
+	}
+
+	/**
+	 * The repositories granted to a user model and the teams which
+	 * contributed to the grants.
+	 */
+	private static class Grants {
+
+		final UserModel user;
+
+		final long expires;
+
+		final BitSet repositories = new BitSet();
+
+		final Set<String> teams = new HashSet<String>();
+
+		Grants(UserModel user, long expires) {
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Updates the access restriction and owner of a repository from its
+	 * model.
+	 *
+	 * @param model
+	 */
+	public void setRepository(RepositoryModel model) {
+		setAccess(getId(model.name), model.accessRestriction.atLeast(AccessRestrictionType.VIEW),
+				model.owner);
+	}
+
+	/**
+	 * Forgets the access restriction and owner of a repository. The repository
+	 * model must be loaded to decide whether a user may view the repository.
+	 *
+	 * @param repositoryName
+	 */
+	public void removeRepository(String repositoryName) {
+		setAccess(getId(repositoryName), false, null);
+	}
+
+	/**
+	 * Recomputes the grants of the specified user.
+	 *
+	 * @param username
+	 */
+	public void resetUser(String username) {
+		users.remove(username.toLowerCase());
+	}
+
+	/**
+	 * Recomputes the grants of all users of the specified team.
+	 *
+	 * @param teamname
+	 */
+	public void resetTeam(String teamname) {
+		String name = teamname.toLowerCase();
+		Iterator<Grants> grants = users.values().iterator();
+		while (grants.hasNext()) {
+			if (grants.next().teams.contains(name)) {
+				grants.remove();
+			}
+		}
+	}
+
+	/**
+	 * Recomputes the grants of all users.
+	 */
+	public void reset() {
+		generation.incrementAndGet();
+		users.clear();
+	}
+
+	/**
+	 * Returns the repositories of the list which the user may view, in the
+	 * order of the list. Repositories whose model has not been loaded yet are
+	 * always returned, the caller must check them against their model. The
+	 * restriction and owner of a repository are those of its last loaded
+	 * model, the caller must remove repositories whose model has changed
+	 * since.
+	 *
+	 * @param user
+	 *            the user or null for anonymous access
+	 * @param repositories
+	 * @return the repositories the user may view
+	 */
+	public List<String> filter(UserModel user, List<String> repositories) {
+		Grants grants = getGrants(user);
+		if (grants != null && user.canAdmin) {
+			return new ArrayList<String>(repositories);
+		}
+		// the restricted repositories which are neither granted to nor owned
+		// by the user, unknown repositories are not restricted
+		Restrictions current = restrictions;
+		BitSet hidden = (BitSet) current.restricted.clone();
+		if (grants != null) {
+			hidden.andNot(grants.repositories);
+			BitSet ownedByUser = current.owned.get(user.username);
+			if (ownedByUser != null) {
+				hidden.andNot(ownedByUser);
+			}
+		}
+		List<String> list = new ArrayList<String>();
+		for (String repository : repositories) {
+			if (!hidden.get(getId(repository))) {
+				list.add(repository);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns true if the user may view the repository. The restriction and
+	 * owner of the repository are updated from the model.
+	 *
+	 * @param user
+	 *            the user or null for anonymous access
+	 * @param model
+	 * @return true if the user may view the repository
+	 */
+	public boolean canView(UserModel user, RepositoryModel model) {
+		setRepository(model);
+		if (!model.accessRestriction.atLeast(AccessRestrictionType.VIEW)) {
+			return true;
+		}
+		Grants grants = getGrants(user);
+		if (grants == null) {
+			return false;
+		}
+		boolean isOwner = !StringUtils.isEmpty(model.owner) && model.owner.equals(user.username);
+		return user.canAdmin || isOwner || grants.repositories.get(getId(model.name));
+	}
+
+	/**
+	 * Returns the grants of a user model. The grants are reused while they
+	 * are cached for the same model instance.
+	 *
+	 * @param user
+	 * @return the grants or null for anonymous access
+	 */
+	private Grants getGrants(UserModel user) {
+		if (user == null) {
+			return null;
+		}
+		String username = user.username.toLowerCase();
+		long now = System.currentTimeMillis();
+		Grants grants = users.get(username);
+		if (grants != null && grants.user == user && grants.expires > now) {
+			return grants;
+		}
+		long start = generation.get();
+		grants = new Grants(user, now + GRANTS_TIMEOUT);
+		for (String repository : user.repositories) {
+			grants.repositories.set(getId(repository));
+		}
+		for (TeamModel team : user.teams) {
+			for (String repository : team.repositories) {
+				grants.repositories.set(getId(repository));
+			}
+			grants.teams.add(team.name.toLowerCase());
+		}
+		if (start == generation.get()) {
+			users.put(username, grants);
+		}
+		return grants;
+	}
+
+	/**
+	 * Returns the bit of a repository. Repository roles are case-insensitive.
+	 *
+	 * @param repositoryName
+	 * @return the bit of the repository
+	 */
+	private int getId(String repositoryName) {
+		String name = repositoryName.toLowerCase();
+		Integer id = ids.get(name);
+		if (id == null) {
+			synchronized (ids) {
+				id = ids.get(name);
+				if (id == null) {
+					id = ids.size();
+					ids.put(name, id);
+				}
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Returns true if the restriction and owner of the repository are
+	 * current.
+	 */
+	private boolean isCurrent(int id, boolean isRestricted, String owner) {
+		String current = owners.get(id);
+		return restrictions.restricted.get(id) == isRestricted
+				&& (owner == null ? current == null : owner.equals(current));
+	}
+
+	/**
+	 * Publishes an updated copy of the restrictions if the restriction or the
+	 * owner of the repository has changed.
+	 */
+	private void setAccess(int id, boolean isRestricted, String owner) {
+		if (StringUtils.isEmpty(owner)) {
+			owner = null;
+		}
+		if (isCurrent(id, isRestricted, owner)) {
+			return;
+		}
+		synchronized (this) {
+			if (isCurrent(id, isRestricted, owner)) {
+				return;
+			}
+			Restrictions current = restrictions;
+			BitSet restricted = (BitSet) current.restricted.clone();
+			restricted.set(id, isRestricted);
+			Map<String, BitSet> owned = new HashMap<String, BitSet>(current.owned);
+			String previous = owners.get(id);
+			if (previous != null) {
+				BitSet repositories = (BitSet) owned.get(previous).clone();
+				repositories.clear(id);
+				if (repositories.isEmpty()) {
+					owned.remove(previous);
+				} else {
+					owned.put(previous, repositories);
+				}
+			}
+			if (owner != null) {
+				BitSet repositories = owned.get(owner);
+				repositories = repositories == null ? new BitSet() : (BitSet) repositories
+						.clone();
+				repositories.set(id);
+				owned.put(owner, repositories);
+				owners.put(id, owner);
+			} else {
+				owners.remove(id);
+			}
+			restrictions = new Restrictions(restricted, owned);
+		}
+	}
+}
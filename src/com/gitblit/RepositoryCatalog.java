@@ -0,0 +1,347 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.File;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The repository catalog is the list of repositories in the repositories
+ * folder. The catalog is built once on startup, scanning the top-level folders
+ * in parallel, and is kept current by Gitblit as repositories are created,
+ * renamed, and deleted.
+ *
+ * Repositories which are added to or removed from the repositories folder
+ * outside of Gitblit are discovered when the catalog is run. Each catalogued
+ * folder remembers its modification time and only folders which have changed
+ * since the last scan are scanned again. A catalogued subfolder which has
+ * become a repository, for example by running git init within it, does not
+ * change the modification time of its parent folder so the subfolders are
+ * checked for repositories on every run.
+ *
+ * @author James Moger
+ *
+ */
+public class RepositoryCatalog implements Runnable {
+
+	private final Logger logger = LoggerFactory.getLogger(RepositoryCatalog.class);
+
+	private final File repositoriesFolder;
+
+	private final Map<String, Folder> folders = new ConcurrentHashMap<String, Folder>();
+
+	private volatile List<String> repositories = Collections.emptyList();
+
+	private volatile boolean isBuilt;
+
+	private boolean onlyBare;
+
+	private boolean searchSubfolders;
+
+	public RepositoryCatalog(File repositoriesFolder) {
+		this.repositoriesFolder = repositoriesFolder;
+	}
+
+	/**
+	 * A catalogued folder, the repositories it directly contains, and the
+	 * subfolders which may contain more repositories.
+	 */
+	private static class Folder {
+
+		final long lastModified;
+
+		final Set<String> repositories = new HashSet<String>();
+
+		final Set<String> subfolders = new HashSet<String>();
+
+		Folder(long lastModified) {
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * Indicates if the catalog has been built with the specified options.
+	 *
+	 * @param onlyBare
+	 * @param searchSubfolders
+	 * @return true if the catalog is built for the specified options
+	 */
+	public synchronized boolean isBuilt(boolean onlyBare, boolean searchSubfolders) {
+		return isBuilt && this.onlyBare == onlyBare && this.searchSubfolders == searchSubfolders;
+	}
+
+	/**
+	 * Returns the sorted list of catalogued repositories. The returned list is
+	 * not modifiable.
+	 *
+	 * @return list of repository names
+	 */
+	public List<String> getRepositoryList() {
+		return repositories;
+	}
+
+	/**
+	 * Discards the current catalog and scans the entire repositories folder.
+	 * Top-level folders are scanned in parallel.
+	 *
+	 * @param onlyBare
+	 *            if true, only bare repositories are catalogued
+	 * @param searchSubfolders
+	 *            recurse into subfolders to find grouped repositories
+	 */
+	public synchronized void build(boolean onlyBare, boolean searchSubfolders) {
+		long startTime = System.currentTimeMillis();
+		this.onlyBare = onlyBare;
+		this.searchSubfolders = searchSubfolders;
+		folders.clear();
+
+		Folder root = scanFolder(repositoriesFolder);
+		folders.put("", root);
+		if (root.subfolders.size() > 0) {
+			int threads = Math.min(root.subfolders.size(), Runtime.getRuntime()
+					.availableProcessors());
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			List<Future<?>> scans = new ArrayList<Future<?>>();
+			for (final String path : root.subfolders) {
+				scans.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						scan(path);
+					}
+				}));
+			}
+			for (Future<?> scan : scans) {
+				try {
+					scan.get();
+				} catch (Exception e) {
+					logger.error("Failed to scan repositories folder", e);
+				}
+			}
+			pool.shutdown();
+		}
+		updateRepositoryList();
+		isBuilt = true;
+
+		long duration = System.currentTimeMillis() - startTime;
+		logger.info(MessageFormat.format("{0} repositories catalogued in {1} msecs",
+				repositories.size(), duration));
+	}
+
+	/**
+	 * Rescans the catalogued folders which have been modified since they were
+	 * last scanned or which have a subfolder that has become a repository.
+	 */
+	public synchronized void refresh() {
+		if (!isBuilt) {
+			return;
+		}
+		boolean changed = false;
+		for (String path : new ArrayList<String>(folders.keySet())) {
+			Folder folder = folders.get(path);
+			if (folder == null) {
+				// removed with its parent folder during this refresh
+				continue;
+			}
+			File file = getFile(path);
+			if (file.lastModified() == folder.lastModified && !hasNewRepository(folder)) {
+				continue;
+			}
+			changed = true;
+			Folder rescanned = scanFolder(file);
+			folders.put(path, rescanned);
+			for (String subfolder : folder.subfolders) {
+				if (!rescanned.subfolders.contains(subfolder)) {
+					removeFolder(subfolder);
+				}
+			}
+			for (String subfolder : rescanned.subfolders) {
+				if (!folders.containsKey(subfolder)) {
+					scan(subfolder);
+				}
+			}
+		}
+		if (changed) {
+			updateRepositoryList();
+		}
+	}
+
+	/**
+	 * Adds a repository which has been created by Gitblit to the catalog.
+	 *
+	 * @param repositoryName
+	 */
+	public synchronized void addRepository(String repositoryName) {
+		if (!isBuilt) {
+			return;
+		}
+		Folder folder = folders.get(getParentPath(repositoryName));
+		if (folder == null) {
+			// repository was created in a new folder
+			refresh();
+			return;
+		}
+		if (folder.repositories.add(repositoryName)) {
+			updateRepositoryList();
+		}
+	}
+
+	/**
+	 * Removes a repository which has been deleted by Gitblit from the catalog.
+	 *
+	 * @param repositoryName
+	 */
+	public synchronized void removeRepository(String repositoryName) {
+		if (!isBuilt) {
+			return;
+		}
+		Folder folder = folders.get(getParentPath(repositoryName));
+		if (folder != null && folder.repositories.remove(repositoryName)) {
+			updateRepositoryList();
+		}
+	}
+
+	/**
+	 * Updates the catalog for a repository which has been renamed by Gitblit.
+	 *
+	 * @param oldName
+	 * @param newName
+	 */
+	public synchronized void renameRepository(String oldName, String newName) {
+		removeRepository(oldName);
+		addRepository(newName);
+	}
+
+	@Override
+	public void run() {
+		try {
+			refresh();
+		} catch (Throwable t) {
+			logger.error("Failed to refresh the repository catalog", t);
+		}
+	}
+
+	/**
+	 * Recursively scans and catalogs the specified folder.
+	 *
+	 * @param path
+	 *            the folder path relative to the repositories folder
+	 */
+	private void scan(String path) {
+		Folder folder = scanFolder(getFile(path));
+		folders.put(path, folder);
+		for (String subfolder : folder.subfolders) {
+			scan(subfolder);
+		}
+	}
+
+	/**
+	 * Returns true if one of the catalogued subfolders of a folder has become
+	 * a repository.
+	 *
+	 * @param folder
+	 * @return true if the folder must be rescanned
+	 */
+	private boolean hasNewRepository(Folder folder) {
+		for (String subfolder : folder.subfolders) {
+			if (FileKey.resolve(getFile(subfolder), FS.DETECTED) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Lists the repositories and subfolders of a folder.
+	 *
+	 * @param file
+	 * @return the folder
+	 */
+	private Folder scanFolder(File file) {
+		Folder folder = new Folder(file.lastModified());
+		File[] files = file.listFiles();
+		if (files == null) {
+			return folder;
+		}
+		String basePath = repositoriesFolder.getAbsolutePath();
+		for (File child : files) {
+			if (!child.isDirectory()) {
+				continue;
+			}
+			File gitDir = FileKey.resolve(child, FS.DETECTED);
+			if (gitDir != null) {
+				if (onlyBare && gitDir.getName().equals(".git")) {
+					continue;
+				}
+				folder.repositories.add(StringUtils.getRelativePath(basePath,
+						child.getAbsolutePath()));
+			} else if (searchSubfolders && child.canRead()) {
+				folder.subfolders.add(StringUtils.getRelativePath(basePath,
+						child.getAbsolutePath()));
+			}
+		}
+		return folder;
+	}
+
+	private void removeFolder(String path) {
+		Folder folder = folders.remove(path);
+		if (folder != null) {
+			for (String subfolder : folder.subfolders) {
+				removeFolder(subfolder);
+			}
+		}
+	}
+
+	private void updateRepositoryList() {
+		List<String> list = new ArrayList<String>();
+		for (Folder folder : folders.values()) {
+			list.addAll(folder.repositories);
+		}
+		StringUtils.sortRepositorynames(list);
+		repositories = Collections.unmodifiableList(list);
+	}
+
+	private File getFile(String path) {
+		if (path.length() == 0) {
+			return repositoriesFolder;
+		}
+		return new File(repositoriesFolder, path);
+	}
+
+	private String getParentPath(String repositoryName) {
+		int slash = repositoryName.lastIndexOf('/');
+		if (slash < 0) {
+			return "";
+		}
+		return repositoryName.substring(0, slash);
+	}
+}
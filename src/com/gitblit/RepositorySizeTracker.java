@@ -0,0 +1,322 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.File;
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The repository size tracker maintains the size of the object storage (packs
+ * and loose objects) of each repository.
+ *
+ * Sizes are calculated per object folder. A folder is only listed again if its
+ * modification time has changed, so after a push or a garbage collection only
+ * the pack folder and the touched loose object folders are re-summed. The
+ * folder sizes are persisted in the repository so that they survive restarts.
+ *
+ * Size requests never calculate on the calling thread. The last known size is
+ * returned and a background update is queued if the repository has changed.
+ *
+ * @author James Moger
+ *
+ */
+public class RepositorySizeTracker {
+
+	private static final String CONF_FILE = "size.conf";
+	private static final String CONF_FOLDER = "folder";
+	private static final String CONF_MODIFIED = "lastModified";
+	private static final String CONF_SIZE = "size";
+
+	private final Logger logger = LoggerFactory.getLogger(RepositorySizeTracker.class);
+
+	private final File repositoriesFolder;
+
+	private final ExecutorService executor;
+
+	private final Map<String, RepositorySize> sizes = new ConcurrentHashMap<String, RepositorySize>();
+
+	private final Set<String> queued = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	public RepositorySizeTracker(File repositoriesFolder, ExecutorService executor) {
+		this.repositoriesFolder = repositoriesFolder;
+		this.executor = executor;
+	}
+
+	/**
+	 * The tracked object folders of a repository.
+	 */
+	private static class RepositorySize {
+
+		final File objectsFolder;
+
+		final Map<String, Long> modified = new HashMap<String, Long>();
+
+		final Map<String, Long> folders = new HashMap<String, Long>();
+
+		volatile long size = -1;
+
+		volatile long packModified = -1;
+
+		volatile Date lastChange = new Date(0);
+
+		RepositorySize(File gitDir) {
+			this.objectsFolder = new File(gitDir, "objects");
+		}
+
+		void stamp() {
+			Long lastModified = modified.get("pack");
+			packModified = lastModified == null ? 0 : lastModified;
+		}
+
+		boolean isPackFolderCurrent() {
+			return packModified == new File(objectsFolder, "pack").lastModified();
+		}
+	}
+
+	/**
+	 * Returns the last known size in bytes of the repository objects. If the
+	 * repository has changed since the size was calculated, an update of the
+	 * size is queued.
+	 *
+	 * @param repositoryName
+	 * @param lastChange
+	 *            the last change date of the repository
+	 * @return size in bytes or -1 if the size is not yet known
+	 */
+	public long getSize(String repositoryName, Date lastChange) {
+		RepositorySize size = getRepositorySize(repositoryName);
+		if (size == null) {
+			return -1;
+		}
+		if (size.size < 0 || !lastChange.equals(size.lastChange) || !size.isPackFolderCurrent()) {
+			// pushes change the last change date, garbage collection does
+			// not but it always rewrites the pack folder
+			update(repositoryName, lastChange);
+		}
+		return size.size;
+	}
+
+	/**
+	 * Synchronously updates and returns the size in bytes of the repository
+	 * objects.
+	 *
+	 * @param repositoryName
+	 * @param lastChange
+	 *            the last change date of the repository
+	 * @return size in bytes or -1 if the repository does not exist
+	 */
+	public long calculateSize(String repositoryName, Date lastChange) {
+		RepositorySize size = getRepositorySize(repositoryName);
+		if (size == null) {
+			return -1;
+		}
+		calculate(size, lastChange);
+		return size.size;
+	}
+
+	/**
+	 * Queues a background update of the repository size.
+	 *
+	 * @param repositoryName
+	 * @param lastChange
+	 *            the last change date of the repository
+	 */
+	public void update(final String repositoryName, final Date lastChange) {
+		if (!queued.add(repositoryName)) {
+			// already queued
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				queued.remove(repositoryName);
+				try {
+					calculateSize(repositoryName, lastChange);
+				} catch (Throwable t) {
+					logger.error(MessageFormat.format("Failed to calculate size of {0}",
+							repositoryName), t);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Forgets the tracked size of the repository. The persisted folder sizes
+	 * are stored within the repository and move with it if it is renamed.
+	 *
+	 * @param repositoryName
+	 */
+	public void remove(String repositoryName) {
+		sizes.remove(repositoryName);
+	}
+
+	/**
+	 * Returns the tracked size of the repository, loading the persisted folder
+	 * sizes the first time a repository is requested.
+	 *
+	 * @param repositoryName
+	 * @return the repository size or null if the repository does not exist
+	 */
+	private RepositorySize getRepositorySize(String repositoryName) {
+		RepositorySize size = sizes.get(repositoryName);
+		if (size == null) {
+			File gitDir = FileKey.resolve(new File(repositoriesFolder, repositoryName),
+					FS.DETECTED);
+			if (gitDir == null) {
+				return null;
+			}
+			size = new RepositorySize(gitDir);
+			load(size);
+			sizes.put(repositoryName, size);
+		}
+		return size;
+	}
+
+	/**
+	 * Re-sums the object folders which have been modified since they were last
+	 * summed and persists the result if anything changed.
+	 *
+	 * @param size
+	 * @param lastChange
+	 */
+	private void calculate(RepositorySize size, Date lastChange) {
+		synchronized (size) {
+			boolean changed = false;
+			Map<String, Long> folders = new HashMap<String, Long>();
+			File[] files = size.objectsFolder.listFiles();
+			if (files != null) {
+				for (File folder : files) {
+					String name = folder.getName();
+					if (!folder.isDirectory()
+							|| !(name.equals("pack") || (name.length() == 2 && isHex(name)))) {
+						continue;
+					}
+					long lastModified = folder.lastModified();
+					Long previous = size.modified.get(name);
+					if (previous != null && previous == lastModified) {
+						folders.put(name, size.folders.get(name));
+						continue;
+					}
+					changed = true;
+					long length = 0;
+					File[] objects = folder.listFiles();
+					if (objects != null) {
+						for (File object : objects) {
+							if (object.isFile()) {
+								length += object.length();
+							}
+						}
+					}
+					size.modified.put(name, lastModified);
+					folders.put(name, length);
+				}
+			}
+			if (folders.size() != size.folders.size()) {
+				// a loose object folder was removed
+				changed = true;
+				size.modified.keySet().retainAll(folders.keySet());
+			}
+			size.folders.clear();
+			size.folders.putAll(folders);
+
+			long total = 0;
+			for (long length : folders.values()) {
+				total += length;
+			}
+			size.size = total;
+			size.lastChange = lastChange;
+			size.stamp();
+			if (changed) {
+				save(size);
+			}
+		}
+	}
+
+	private boolean isHex(String name) {
+		for (char c : name.toCharArray()) {
+			if (Character.digit(c, 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private FileBasedConfig getConfig(RepositorySize size) {
+		File file = new File(size.objectsFolder.getParentFile(), CONF_FILE);
+		return new FileBasedConfig(file, FS.detect());
+	}
+
+	/**
+	 * Loads the persisted folder sizes of the repository.
+	 *
+	 * @param size
+	 */
+	private void load(RepositorySize size) {
+		FileBasedConfig config = getConfig(size);
+		if (!config.getFile().exists()) {
+			return;
+		}
+		try {
+			config.load();
+			long total = 0;
+			for (String folder : config.getSubsections(CONF_FOLDER)) {
+				long length = config.getLong(CONF_FOLDER, folder, CONF_SIZE, 0);
+				size.modified.put(folder, config.getLong(CONF_FOLDER, folder, CONF_MODIFIED, 0));
+				size.folders.put(folder, length);
+				total += length;
+			}
+			size.size = total;
+			size.stamp();
+		} catch (Exception e) {
+			logger.warn(MessageFormat.format("Failed to load {0}", config.getFile()), e);
+			size.modified.clear();
+			size.folders.clear();
+		}
+	}
+
+	/**
+	 * Persists the folder sizes of the repository.
+	 *
+	 * @param size
+	 */
+	private void save(RepositorySize size) {
+		FileBasedConfig config = getConfig(size);
+		for (Map.Entry<String, Long> entry : size.folders.entrySet()) {
+			String folder = entry.getKey();
+			config.setLong(CONF_FOLDER, folder, CONF_MODIFIED, size.modified.get(folder));
+			config.setLong(CONF_FOLDER, folder, CONF_SIZE, entry.getValue());
+		}
+		try {
+			config.save();
+		} catch (Exception e) {
+			logger.warn(MessageFormat.format("Failed to save {0}", config.getFile()), e);
+		}
+	}
+}
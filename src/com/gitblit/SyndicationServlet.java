@@ -162,11 +162,12 @@ public class SyndicationServlet extends HttpServlet {
 		List<RevCommit> commits;
 		if (StringUtils.isEmpty(searchString)) {
 			// standard log/history lookup
-			commits = JGitUtils.getRevLog(repository, objectId, offset, length);
+			commits = GitBlit.self().getRevLog(repositoryName, repository, objectId, offset,
+					length);
 		} else {
 			// repository search
-			commits = JGitUtils.searchRevlogs(repository, objectId, searchString, searchType,
-					offset, length);
+			commits = GitBlit.self().searchRevlogs(repository, objectId, searchString,
+					searchType, offset, length);
 		}
 		Map<ObjectId, List<RefModel>> allRefs = JGitUtils.getAllRefs(repository);
 		List<FeedEntryModel> entries = new ArrayList<FeedEntryModel>();
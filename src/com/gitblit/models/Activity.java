@@ -86,14 +86,26 @@ public class Activity implements Serializable, Comparable<Activity> {
 	 *         commit
 	 */
 	public RepositoryCommit addCommit(String repository, String branch, RevCommit commit) {
-		RepositoryCommit commitModel = new RepositoryCommit(repository, branch, commit);
+		return addCommit(new RepositoryCommit(repository, branch, commit));
+	}
+
+	/**
+	 * Adds a commit to the activity object as long as the commit is not a
+	 * duplicate.
+	 * 
+	 * @param commitModel
+	 * @return the RepositoryCommit, if it was added. Null if this is duplicate
+	 *         commit
+	 */
+	public RepositoryCommit addCommit(RepositoryCommit commitModel) {
+		String repository = commitModel.repository;
 		if (commits.add(commitModel)) {
 			if (!repositoryMetrics.containsKey(repository)) {
 				repositoryMetrics.put(repository, new Metric(repository));
 			}
 			repositoryMetrics.get(repository).count++;
 
-			String author = commit.getAuthorIdent().getEmailAddress()
+			String author = commitModel.getAuthorIdent().getEmailAddress()
 					.toLowerCase();
 			if (!authorMetrics.containsKey(author)) {
 				authorMetrics.put(author, new Metric(author));
@@ -142,14 +154,32 @@ public class Activity implements Serializable, Comparable<Activity> {
 
 		public final String branch;
 
-		private final RevCommit commit;
+		private final String name;
+
+		private final String shortMessage;
+
+		private final PersonIdent authorIdent;
+
+		private final int parentCount;
+
+		private final int commitTime;
 
 		private List<RefModel> refs;
 
 		public RepositoryCommit(String repository, String branch, RevCommit commit) {
+			this(repository, branch, commit.getName(), commit.getShortMessage(), commit
+					.getAuthorIdent(), commit.getParentCount(), commit.getCommitTime());
+		}
+
+		public RepositoryCommit(String repository, String branch, String name,
+				String shortMessage, PersonIdent authorIdent, int parentCount, int commitTime) {
 			this.repository = repository;
 			this.branch = branch;
-			this.commit = commit;
+			this.name = name;
+			this.shortMessage = shortMessage;
+			this.authorIdent = authorIdent;
+			this.parentCount = parentCount;
+			this.commitTime = commitTime;
 		}
 
 		public void setRefs(List<RefModel> refs) {
@@ -161,23 +191,27 @@ public class Activity implements Serializable, Comparable<Activity> {
 		}
 
 		public String getName() {
-			return commit.getName();
+			return name;
 		}
 
 		public String getShortName() {
-			return commit.getName().substring(0, 8);
+			return name.substring(0, 8);
 		}
 
 		public String getShortMessage() {
-			return commit.getShortMessage();
+			return shortMessage;
 		}
 
 		public int getParentCount() {
-			return commit.getParentCount();
+			return parentCount;
 		}
 
 		public PersonIdent getAuthorIdent() {
-			return commit.getAuthorIdent();
+			return authorIdent;
+		}
+
+		public int getCommitTime() {
+			return commitTime;
 		}
 		
 		@Override
@@ -191,15 +225,15 @@ public class Activity implements Serializable, Comparable<Activity> {
 		
 		@Override
 		public int hashCode() {
-			return (repository + commit).hashCode();
+			return (repository + name).hashCode();
 		}
 
 		@Override
 		public int compareTo(RepositoryCommit o) {
 			// reverse-chronological order
-			if (commit.getCommitTime() > o.commit.getCommitTime()) {
+			if (commitTime > o.commitTime) {
 				return -1;
-			} else if (commit.getCommitTime() < o.commit.getCommitTime()) {
+			} else if (commitTime < o.commitTime) {
 				return 1;
 			}
 			return 0;
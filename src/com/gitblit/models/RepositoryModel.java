@@ -77,6 +77,43 @@ public class RepositoryModel implements Serializable, Comparable<RepositoryModel
 		this.federationStrategy = FederationStrategy.FEDERATE_THIS;
 	}
 
+	/**
+	 * Returns a copy of the model. The date and the lists are copied so that
+	 * changes to the copy do not change this model.
+	 * 
+	 * @return a copy of the model
+	 */
+	public RepositoryModel copy() {
+		RepositoryModel copy = new RepositoryModel(name, description, owner,
+				lastChange == null ? null : new Date(lastChange.getTime()));
+		copy.hasCommits = hasCommits;
+		copy.showRemoteBranches = showRemoteBranches;
+		copy.useTickets = useTickets;
+		copy.useDocs = useDocs;
+		copy.accessRestriction = accessRestriction;
+		copy.isFrozen = isFrozen;
+		copy.showReadme = showReadme;
+		copy.federationStrategy = federationStrategy;
+		copy.federationSets = copy(federationSets);
+		copy.isFederated = isFederated;
+		copy.skipSizeCalculation = skipSizeCalculation;
+		copy.skipSummaryMetrics = skipSummaryMetrics;
+		copy.frequency = frequency;
+		copy.isBare = isBare;
+		copy.origin = origin;
+		copy.HEAD = HEAD;
+		copy.availableRefs = copy(availableRefs);
+		copy.size = size;
+		copy.preReceiveScripts = copy(preReceiveScripts);
+		copy.postReceiveScripts = copy(postReceiveScripts);
+		copy.mailingLists = copy(mailingLists);
+		return copy;
+	}
+
+	private static List<String> copy(List<String> list) {
+		return list == null ? null : new ArrayList<String>(list);
+	}
+
 	@Override
 	public String toString() {
 		if (displayName == null) {
@@ -25,6 +25,8 @@ public class SearchResult implements Serializable {
 	public String committer;
 
 	public String summary;
+
+	public String fragment;
 	
 	public String repository;
 	
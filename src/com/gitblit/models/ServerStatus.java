@@ -49,6 +49,10 @@ public class ServerStatus implements Serializable {
 
 	public volatile long heapFree;
 
+	public volatile long authenticationCacheHits;
+
+	public volatile long authenticationCacheMisses;
+
 	public String servletContainer;
 
 	public ServerStatus(boolean isGO) {
@@ -18,21 +18,29 @@ package com.gitblit.utils;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.Type;
-import java.text.DateFormat;
 import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.gitblit.GitBlit;
 import com.gitblit.models.Activity;
@@ -50,6 +58,8 @@ import com.google.gson.reflect.TypeToken;
  */
 public class ActivityUtils {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(ActivityUtils.class);
+
 	/**
 	 * Gets the recent activity from the repositories for the last daysBack days
 	 * on the specified branch.
@@ -67,71 +77,249 @@ public class ActivityUtils {
 	 */
 	public static List<Activity> getRecentActivity(List<RepositoryModel> models, int daysBack,
 			String objectId, TimeZone timezone) {
+		return getRecentActivity(models, daysBack, objectId, timezone, null, 0, null);
+	}
+
+	/**
+	 * Gets the recent activity from the repositories for the last daysBack days
+	 * on the specified branch.
+	 * 
+	 * Repositories which must be walked are walked in parallel on the executor
+	 * and their activity is merged as it arrives. Repositories which have not
+	 * been walked when the timeout expires are skipped and added to the pending
+	 * list.
+	 * 
+	 * @param models
+	 *            the list of repositories to query
+	 * @param daysBack
+	 *            the number of days back from Now to collect
+	 * @param objectId
+	 *            the branch to retrieve. If this value is null or empty all
+	 *            branches are queried.
+	 * @param timezone
+	 *            the timezone for aggregating commits
+	 * @param executor
+	 *            the executor for walking repositories. If null, the
+	 *            repositories are walked serially on the calling thread.
+	 * @param timeout
+	 *            the maximum time in milliseconds to wait for the walks. If
+	 *            this value is 0 there is no limit.
+	 * @param pending
+	 *            receives the names of the repositories which were not walked
+	 *            before the timeout expired, may be null
+	 * @return the activity of the walked repositories, one entry per day
+	 */
+	public static List<Activity> getRecentActivity(List<RepositoryModel> models, int daysBack,
+			final String objectId, final TimeZone timezone, ExecutorService executor,
+			long timeout, Collection<String> pending) {
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
 
 		// Activity panel shows last daysBack of activity across all
 		// repositories.
-		Date thresholdDate = new Date(System.currentTimeMillis() - daysBack * TimeUtils.ONEDAY);
+		final Date thresholdDate = new Date(System.currentTimeMillis() - daysBack
+				* TimeUtils.ONEDAY);
 
 		// Build a map of DailyActivity from the available repositories for the
 		// specified threshold date.
-		DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-		df.setTimeZone(timezone);
-		Calendar cal = Calendar.getInstance();
-		cal.setTimeZone(timezone);
-
-		Map<String, Activity> activity = new HashMap<String, Activity>();
-		for (RepositoryModel model : models) {
+		Map<Long, Activity> activity = new HashMap<Long, Activity>();
+		Map<String, Future<Map<Long, Activity>>> walks = new LinkedHashMap<String, Future<Map<Long, Activity>>>();
+		for (final RepositoryModel model : models) {
 			if (model.hasCommits && model.lastChange.after(thresholdDate)) {
-				Repository repository = GitBlit.self()
-						.getRepository(model.name);
-				List<String> branches = new ArrayList<String>();
 				if (StringUtils.isEmpty(objectId)) {
-					for (RefModel local : JGitUtils.getLocalBranches(
-							repository, true, -1)) {
-						branches.add(local.getName());
+					// the activity journal records the commits of all branches
+					List<RepositoryCommit> journaled = GitBlit.self().getJournaledCommits(model,
+							thresholdDate);
+					if (journaled != null) {
+						addJournaledActivity(activity, model, journaled, timezone);
+						continue;
 					}
-				} else {
-					branches.add(objectId);
 				}
-				Map<ObjectId, List<RefModel>> allRefs = JGitUtils
-						.getAllRefs(repository);
-
-				for (String branch : branches) {
-					String shortName = branch;
-					if (shortName.startsWith(Constants.R_HEADS)) {
-						shortName = shortName.substring(Constants.R_HEADS.length());
-					}
-					List<RevCommit> commits = JGitUtils.getRevLog(repository,
-							branch, thresholdDate);
-					for (RevCommit commit : commits) {
-						Date date = JGitUtils.getCommitDate(commit);
-						String dateStr = df.format(date);
-						if (!activity.containsKey(dateStr)) {
-							// Normalize the date to midnight
-							cal.setTime(date);
-							cal.set(Calendar.HOUR_OF_DAY, 0);
-							cal.set(Calendar.MINUTE, 0);
-							cal.set(Calendar.SECOND, 0);
-							cal.set(Calendar.MILLISECOND, 0);
-							activity.put(dateStr, new Activity(cal.getTime()));
-						}
-						RepositoryCommit commitModel = activity.get(dateStr)
-								.addCommit(model.name, shortName, commit);
-						if (commitModel != null) {
-							commitModel.setRefs(allRefs.get(commit.getId()));
-						}
+				if (executor == null) {
+					addActivity(activity, model, objectId, thresholdDate, timezone);
+					continue;
+				}
+				walks.put(model.name, executor.submit(new Callable<Map<Long, Activity>>() {
+					@Override
+					public Map<Long, Activity> call() throws Exception {
+						Map<Long, Activity> repositoryActivity = new HashMap<Long, Activity>();
+						addActivity(repositoryActivity, model, objectId, thresholdDate, timezone);
+						return repositoryActivity;
 					}
+				}));
+			}
+		}
+
+		// merge the walked activity until the deadline
+		boolean interrupted = false;
+		for (Map.Entry<String, Future<Map<Long, Activity>>> walk : walks.entrySet()) {
+			String repository = walk.getKey();
+			Future<Map<Long, Activity>> future = walk.getValue();
+			try {
+				if (interrupted) {
+					throw new TimeoutException();
+				}
+				Map<Long, Activity> repositoryActivity;
+				if (deadline == 0) {
+					repositoryActivity = future.get();
+				} else {
+					long remaining = Math.max(0, deadline - System.currentTimeMillis());
+					repositoryActivity = future.get(remaining, TimeUnit.MILLISECONDS);
 				}
-				
-				// close the repository
-				repository.close();
+				mergeActivity(activity, repositoryActivity);
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				if (pending != null) {
+					pending.add(repository);
+				}
+			} catch (InterruptedException e) {
+				// skip the remaining walks
+				interrupted = true;
+				future.cancel(true);
+				if (pending != null) {
+					pending.add(repository);
+				}
+			} catch (ExecutionException e) {
+				LOGGER.error(MessageFormat.format("Failed to collect the activity of {0}",
+						repository), e.getCause());
 			}
 		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
 
 		List<Activity> recentActivity = new ArrayList<Activity>(activity.values());
 		return recentActivity;
 	}
 
+	/**
+	 * Adds the journaled commits of a repository to the daily activity.
+	 * 
+	 * @param activity
+	 * @param model
+	 * @param journaled
+	 * @param timezone
+	 */
+	private static void addJournaledActivity(Map<Long, Activity> activity, RepositoryModel model,
+			List<RepositoryCommit> journaled, TimeZone timezone) {
+		if (journaled.size() == 0) {
+			return;
+		}
+		Repository repository = GitBlit.self().getRepository(model.name);
+		try {
+			Map<ObjectId, List<RefModel>> allRefs = JGitUtils.getAllRefs(repository);
+			for (RepositoryCommit commit : journaled) {
+				RepositoryCommit commitModel = getActivity(activity, commit.getCommitTime(),
+						timezone).addCommit(commit);
+				if (commitModel != null) {
+					commitModel.setRefs(allRefs.get(ObjectId.fromString(commit.getName())));
+				}
+			}
+		} finally {
+			repository.close();
+		}
+	}
+
+	/**
+	 * Walks the branches of a repository and adds the commits after the
+	 * threshold date to the daily activity.
+	 * 
+	 * @param activity
+	 * @param model
+	 * @param objectId
+	 *            the branch to walk. If this value is null or empty all
+	 *            branches are walked.
+	 * @param thresholdDate
+	 * @param timezone
+	 */
+	private static void addActivity(Map<Long, Activity> activity, RepositoryModel model,
+			String objectId, Date thresholdDate, TimeZone timezone) {
+		Repository repository = GitBlit.self().getRepository(model.name);
+		try {
+			List<String> branches = new ArrayList<String>();
+			if (StringUtils.isEmpty(objectId)) {
+				for (RefModel local : JGitUtils.getLocalBranches(repository, true, -1)) {
+					branches.add(local.getName());
+				}
+			} else {
+				branches.add(objectId);
+			}
+			Map<ObjectId, List<RefModel>> allRefs = JGitUtils.getAllRefs(repository);
+
+			for (String branch : branches) {
+				if (Thread.currentThread().isInterrupted()) {
+					// the walk was cancelled
+					return;
+				}
+				String shortName = branch;
+				if (shortName.startsWith(Constants.R_HEADS)) {
+					shortName = shortName.substring(Constants.R_HEADS.length());
+				}
+				List<RevCommit> commits = JGitUtils.getRevLog(repository, branch, thresholdDate);
+				for (RevCommit commit : commits) {
+					RepositoryCommit commitModel = getActivity(activity, commit.getCommitTime(),
+							timezone).addCommit(model.name, shortName, commit);
+					if (commitModel != null) {
+						commitModel.setRefs(allRefs.get(commit.getId()));
+					}
+				}
+			}
+		} finally {
+			// close the repository
+			repository.close();
+		}
+	}
+
+	/**
+	 * Merges the daily activity of a repository into the daily activity of all
+	 * repositories.
+	 * 
+	 * @param activity
+	 * @param repositoryActivity
+	 */
+	private static void mergeActivity(Map<Long, Activity> activity,
+			Map<Long, Activity> repositoryActivity) {
+		for (Map.Entry<Long, Activity> entry : repositoryActivity.entrySet()) {
+			Activity dayActivity = activity.get(entry.getKey());
+			if (dayActivity == null) {
+				activity.put(entry.getKey(), entry.getValue());
+			} else {
+				for (RepositoryCommit commit : entry.getValue().getCommits()) {
+					dayActivity.addCommit(commit);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the activity of the day of the commit time in the specified
+	 * timezone.
+	 * 
+	 * @param activity
+	 *            the daily activity keyed by the day number in the timezone
+	 * @param commitTime
+	 *            the commit time in seconds
+	 * @param timezone
+	 * @return the daily activity
+	 */
+	private static Activity getActivity(Map<Long, Activity> activity, int commitTime,
+			TimeZone timezone) {
+		long time = commitTime * 1000L;
+		long day = (time + timezone.getOffset(time)) / TimeUtils.ONEDAY;
+		Activity dayActivity = activity.get(day);
+		if (dayActivity == null) {
+			// Normalize the date to midnight
+			Calendar cal = Calendar.getInstance(timezone);
+			cal.setTimeInMillis(time);
+			cal.set(Calendar.HOUR_OF_DAY, 0);
+			cal.set(Calendar.MINUTE, 0);
+			cal.set(Calendar.SECOND, 0);
+			cal.set(Calendar.MILLISECOND, 0);
+			dayActivity = new Activity(cal.getTime());
+			activity.put(day, dayActivity);
+		}
+		return dayActivity;
+	}
+
 	/**
 	 * Returns the Gravatar profile, if available, for the specified email
 	 * address.
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.models.IssueModel;
+import com.gitblit.models.IssueModel.Change;
+import com.gitblit.models.IssueModel.Field;
+import com.gitblit.models.IssueModel.Status;
+import com.gitblit.utils.IssueUtils.IssueFilter;
+import com.google.gson.Gson;
+
+/**
+ * The issue index is a materialized table of the issues on the gb-issues
+ * branch of a repository. It holds the changes and the effective issue of each
+ * issue and indexes the issues by status, owner, milestone, and labels.
+ *
+ * The index remembers the gb-issues commit it was built from. When the branch
+ * has advanced, only the new commits are read and applied to the issues named
+ * in their commit messages. The index is rebuilt with a single walk of the
+ * branch history if the branch has been rewritten. The changes are persisted
+ * in the repository so that the index survives restarts. The indexes of the
+ * most recently used repositories are held in memory, an evicted index is
+ * reloaded from its persisted changes.
+ *
+ * @author James Moger
+ *
+ */
+class IssueIndex {
+
+	private static final String INDEX_FILE = "issues.dat";
+
+	private static final int INDEX_VERSION = 1;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(IssueIndex.class);
+
+	private static final int MAX_INDEXES = 100;
+
+	private static final Map<File, IssueIndex> INDEXES = new LinkedHashMap<File, IssueIndex>(16,
+			0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, IssueIndex> eldest) {
+			return size() > MAX_INDEXES;
+		}
+	};
+
+	private final File file;
+
+	private boolean isLoaded;
+
+	private ObjectId tip;
+
+	private final Map<String, IndexedIssue> issues = new HashMap<String, IndexedIssue>();
+
+	private final Map<Status, Set<String>> statuses = new HashMap<Status, Set<String>>();
+
+	private final Map<String, Set<String>> owners = new HashMap<String, Set<String>>();
+
+	private final Map<String, Set<String>> milestones = new HashMap<String, Set<String>>();
+
+	private final Map<String, Set<String>> labels = new HashMap<String, Set<String>>();
+
+	private IssueIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * An indexed issue, the JSON of its changes as they were committed, the
+	 * deserialized changes, and the effective issue.
+	 */
+	private static class IndexedIssue {
+
+		final List<String> json = new ArrayList<String>();
+
+		final List<Change> changes = new ArrayList<Change>();
+
+		IssueModel issue;
+	}
+
+	/**
+	 * Returns the issue index of the repository.
+	 *
+	 * @param repository
+	 * @return the issue index
+	 */
+	static IssueIndex getIndex(Repository repository) {
+		File gitDir = repository.getDirectory().getAbsoluteFile();
+		synchronized (INDEXES) {
+			IssueIndex index = INDEXES.get(gitDir);
+			if (index == null) {
+				index = new IssueIndex(new File(gitDir, INDEX_FILE));
+				INDEXES.put(gitDir, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Forgets the issue index of the repository folder. The persisted index is
+	 * stored within the repository and moves with it if it is renamed.
+	 *
+	 * @param repositoryFolder
+	 *            the folder of a bare repository or the work tree of a
+	 *            repository
+	 */
+	static void removeIndex(File repositoryFolder) {
+		File folder = repositoryFolder.getAbsoluteFile();
+		synchronized (INDEXES) {
+			INDEXES.remove(folder);
+			INDEXES.remove(new File(folder, Constants.DOT_GIT));
+		}
+	}
+
+	/**
+	 * Returns the issues which have the specified value of an indexed field
+	 * and which are accepted by the filter. The issues are copies of the
+	 * indexed issues.
+	 *
+	 * @param repository
+	 * @param field
+	 *            Status, Owner, Milestone, or Labels. If null, all issues are
+	 *            considered.
+	 * @param value
+	 *            the field value or the label
+	 * @param filter
+	 *            optional issue filter
+	 * @return the issues sorted by creation
+	 */
+	synchronized List<IssueModel> getIssues(Repository repository, Field field, Object value,
+			IssueFilter filter) {
+		update(repository);
+		Collection<String> ids;
+		if (field == null) {
+			ids = issues.keySet();
+		} else {
+			Set<String> matches;
+			switch (field) {
+			case Status:
+				matches = statuses.get(Status.fromObject(value));
+				break;
+			case Owner:
+				matches = owners.get(String.valueOf(value));
+				break;
+			case Milestone:
+				matches = milestones.get(String.valueOf(value));
+				break;
+			case Labels:
+				matches = labels.get(String.valueOf(value));
+				break;
+			default:
+				throw new RuntimeException(field + " is not an indexed issue field!");
+			}
+			if (matches == null) {
+				ids = Collections.emptySet();
+			} else {
+				ids = matches;
+			}
+		}
+		List<IssueModel> list = new ArrayList<IssueModel>();
+		for (String id : ids) {
+			IssueModel issue = issues.get(id).issue;
+			if (filter == null || filter.accept(issue)) {
+				list.add(DeepCopier.copy(issue));
+			}
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Returns a copy of the specified issue.
+	 *
+	 * @param repository
+	 * @param issueId
+	 * @param effective
+	 *            if true, the effective issue is returned. if false, the raw
+	 *            issue is built from the changes.
+	 * @return the issue or null if the issue does not exist
+	 */
+	synchronized IssueModel getIssue(Repository repository, String issueId, boolean effective) {
+		update(repository);
+		IndexedIssue indexed = issues.get(issueId);
+		if (indexed == null) {
+			return null;
+		}
+		if (effective) {
+			return DeepCopier.copy(indexed.issue);
+		}
+		return DeepCopier.copy(IssueUtils.buildIssue(indexed.changes, false));
+	}
+
+	/**
+	 * Brings the index up to date with the gb-issues branch of the repository.
+	 *
+	 * @param repository
+	 */
+	private void update(Repository repository) {
+		if (!isLoaded) {
+			isLoaded = true;
+			load();
+		}
+		try {
+			ObjectId head = repository.resolve(IssueUtils.GB_ISSUES + "^{commit}");
+			if (head == null) {
+				if (tip != null) {
+					// the gb-issues branch was deleted
+					clear();
+					tip = null;
+					file.delete();
+				}
+				return;
+			}
+			if (head.equals(tip)) {
+				return;
+			}
+			boolean rewritten = true;
+			if (tip != null && repository.hasObject(tip)) {
+				RevWalk rw = new RevWalk(repository);
+				try {
+					rewritten = !rw.isMergedInto(rw.parseCommit(tip), rw.parseCommit(head));
+				} finally {
+					rw.release();
+				}
+			}
+			Gson gson = JsonUtils.gson();
+			if (rewritten) {
+				// rebuild the index from the branch history
+				clear();
+				Map<String, List<String>> changes = IssueUtils.readChanges(repository, head);
+				for (Map.Entry<String, List<String>> entry : changes.entrySet()) {
+					IndexedIssue indexed = new IndexedIssue();
+					indexed.json.addAll(entry.getValue());
+					indexed.changes.addAll(IssueUtils.parseChanges(gson, entry.getValue()));
+					issues.put(entry.getKey(), indexed);
+					reindex(entry.getKey(), indexed);
+				}
+			} else {
+				// apply the changes of the new commits
+				Map<String, List<String>> changes = IssueUtils.readChanges(repository, head, tip);
+				for (Map.Entry<String, List<String>> entry : changes.entrySet()) {
+					String issueId = entry.getKey();
+					if (entry.getValue() == null) {
+						// the issue was deleted
+						remove(issueId);
+						continue;
+					}
+					IndexedIssue indexed = issues.get(issueId);
+					if (indexed == null) {
+						indexed = new IndexedIssue();
+						issues.put(issueId, indexed);
+					}
+					indexed.json.addAll(entry.getValue());
+					indexed.changes.addAll(IssueUtils.parseChanges(gson, entry.getValue()));
+					reindex(issueId, indexed);
+				}
+			}
+			tip = head.copy();
+			save();
+		} catch (IOException e) {
+			LOGGER.error(MessageFormat.format("Failed to update the issue index {0}", file), e);
+		}
+	}
+
+	/**
+	 * Rebuilds the effective issue and updates the field indexes.
+	 *
+	 * @param issueId
+	 * @param indexed
+	 */
+	private void reindex(String issueId, IndexedIssue indexed) {
+		if (indexed.issue != null) {
+			unindex(issueId, indexed.issue);
+		}
+		indexed.issue = IssueUtils.buildIssue(indexed.changes, true);
+		IssueModel issue = indexed.issue;
+		add(statuses, issue.status, issueId);
+		add(owners, issue.owner, issueId);
+		add(milestones, issue.milestone, issueId);
+		for (String label : issue.getLabels()) {
+			add(labels, label, issueId);
+		}
+	}
+
+	private void remove(String issueId) {
+		IndexedIssue indexed = issues.remove(issueId);
+		if (indexed != null && indexed.issue != null) {
+			unindex(issueId, indexed.issue);
+		}
+	}
+
+	private void unindex(String issueId, IssueModel issue) {
+		remove(statuses, issue.status, issueId);
+		remove(owners, issue.owner, issueId);
+		remove(milestones, issue.milestone, issueId);
+		for (String label : issue.getLabels()) {
+			remove(labels, label, issueId);
+		}
+	}
+
+	private <K> void add(Map<K, Set<String>> index, K key, String issueId) {
+		if (key == null) {
+			return;
+		}
+		Set<String> ids = index.get(key);
+		if (ids == null) {
+			ids = new HashSet<String>();
+			index.put(key, ids);
+		}
+		ids.add(issueId);
+	}
+
+	private <K> void remove(Map<K, Set<String>> index, K key, String issueId) {
+		if (key == null) {
+			return;
+		}
+		Set<String> ids = index.get(key);
+		if (ids != null) {
+			ids.remove(issueId);
+			if (ids.size() == 0) {
+				index.remove(key);
+			}
+		}
+	}
+
+	private void clear() {
+		issues.clear();
+		statuses.clear();
+		owners.clear();
+		milestones.clear();
+		labels.clear();
+	}
+
+	/**
+	 * Loads the persisted changes of the issues.
+	 */
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != INDEX_VERSION) {
+					return;
+				}
+				byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+				in.readFully(raw);
+				ObjectId loadedTip = ObjectId.fromRaw(raw);
+				int count = in.readInt();
+				Gson gson = JsonUtils.gson();
+				for (int i = 0; i < count; i++) {
+					String issueId = in.readUTF();
+					IndexedIssue indexed = new IndexedIssue();
+					int changeCount = in.readInt();
+					for (int j = 0; j < changeCount; j++) {
+						byte[] json = new byte[in.readInt()];
+						in.readFully(json);
+						indexed.json.add(new String(json, Constants.CHARACTER_ENCODING));
+					}
+					indexed.changes.addAll(IssueUtils.parseChanges(gson, indexed.json));
+					issues.put(issueId, indexed);
+					reindex(issueId, indexed);
+				}
+				tip = loadedTip;
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			LOGGER.warn(MessageFormat.format("Failed to load {0}", file), e);
+			clear();
+		}
+	}
+
+	/**
+	 * Persists the changes of the issues.
+	 */
+	private void save() {
+		File tmp = null;
+		try {
+			// an evicted index may still be saving, each save has its own
+			// temporary file
+			tmp = File.createTempFile(INDEX_FILE, ".tmp", file.getParentFile());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			try {
+				out.writeInt(INDEX_VERSION);
+				byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+				tip.copyRawTo(raw, 0);
+				out.write(raw);
+				out.writeInt(issues.size());
+				for (Map.Entry<String, IndexedIssue> entry : issues.entrySet()) {
+					out.writeUTF(entry.getKey());
+					List<String> changes = entry.getValue().json;
+					out.writeInt(changes.size());
+					for (String json : changes) {
+						byte[] bytes = json.getBytes(Constants.CHARACTER_ENCODING);
+						out.writeInt(bytes.length);
+						out.write(bytes);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			if (file.exists() && !file.delete()) {
+				throw new IOException(MessageFormat.format("Failed to delete {0}", file));
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException(MessageFormat.format("Failed to rename {0}", tmp));
+			}
+		} catch (IOException e) {
+			LOGGER.warn(MessageFormat.format("Failed to save {0}", file), e);
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.utils;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+/**
+ * An editable tree of the gb-issues branch. Folders are only read when a path
+ * within them is edited and only edited folders are written, all other
+ * entries keep the ids of the original tree. Editing one issue of a branch
+ * with thousands of issues writes the issue folder, its parent folder, and the
+ * root folder.
+ *
+ * @author James Moger
+ *
+ */
+class IssueTree {
+
+	private final ObjectReader reader;
+
+	private final Folder root;
+
+	/**
+	 * Creates an editable tree.
+	 *
+	 * @param reader
+	 * @param treeId
+	 *            the original tree or null for an empty tree
+	 */
+	IssueTree(ObjectReader reader, ObjectId treeId) {
+		this.reader = reader;
+		this.root = new Folder(treeId);
+	}
+
+	/**
+	 * A folder of the tree. A folder without an id has been edited.
+	 */
+	private static class Folder {
+
+		ObjectId id;
+
+		/**
+		 * entries keyed by their sort key, null until the folder is read
+		 */
+		Map<String, Entry> entries;
+
+		Folder(ObjectId id) {
+			this.id = id;
+		}
+	}
+
+	private static class Entry {
+
+		final String name;
+
+		final FileMode mode;
+
+		final ObjectId id;
+
+		Folder folder;
+
+		Entry(String name, FileMode mode, ObjectId id) {
+			this.name = name;
+			this.mode = mode;
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Adds or replaces a file.
+	 *
+	 * @param path
+	 * @param blobId
+	 * @throws IOException
+	 */
+	void add(String path, ObjectId blobId) throws IOException {
+		String[] names = path.split("/");
+		Folder folder = root;
+		for (int i = 0; i < names.length - 1; i++) {
+			folder = getFolder(folder, names[i], true);
+		}
+		String name = names[names.length - 1];
+		folder.entries.remove(name + "/");
+		folder.entries.put(name, new Entry(name, FileMode.REGULAR_FILE, blobId));
+	}
+
+	/**
+	 * Removes a file or a folder. Folders which become empty are removed.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	void remove(String path) throws IOException {
+		remove(root, path.split("/"), 0);
+	}
+
+	private boolean remove(Folder folder, String[] names, int index) throws IOException {
+		String name = names[index];
+		if (index < names.length - 1) {
+			Folder child = getFolder(folder, name, false);
+			if (child == null || !remove(child, names, index + 1)) {
+				return false;
+			}
+			if (child.entries.size() > 0) {
+				return true;
+			}
+		} else {
+			read(folder);
+			if (!folder.entries.containsKey(name) && !folder.entries.containsKey(name + "/")) {
+				return false;
+			}
+		}
+		folder.entries.remove(name);
+		folder.entries.remove(name + "/");
+		folder.id = null;
+		return true;
+	}
+
+	/**
+	 * Writes the edited folders.
+	 *
+	 * @param inserter
+	 * @return the id of the root tree
+	 * @throws IOException
+	 */
+	ObjectId write(ObjectInserter inserter) throws IOException {
+		return write(root, inserter);
+	}
+
+	private ObjectId write(Folder folder, ObjectInserter inserter) throws IOException {
+		if (folder.id != null) {
+			return folder.id;
+		}
+		TreeFormatter formatter = new TreeFormatter();
+		for (Entry entry : folder.entries.values()) {
+			if (entry.folder == null) {
+				formatter.append(entry.name, entry.mode, entry.id);
+			} else if (entry.folder.entries == null || entry.folder.entries.size() > 0) {
+				formatter.append(entry.name, FileMode.TREE, write(entry.folder, inserter));
+			}
+		}
+		folder.id = inserter.insert(formatter);
+		return folder.id;
+	}
+
+	/**
+	 * Returns a subfolder for editing. The folder and its parents are marked
+	 * as edited.
+	 *
+	 * @param folder
+	 * @param name
+	 * @param create
+	 *            create the subfolder if it does not exist
+	 * @return the subfolder or null
+	 * @throws IOException
+	 */
+	private Folder getFolder(Folder folder, String name, boolean create) throws IOException {
+		read(folder);
+		Entry entry = folder.entries.get(name + "/");
+		if (entry == null) {
+			if (!create) {
+				return null;
+			}
+			folder.entries.remove(name);
+			entry = new Entry(name, FileMode.TREE, null);
+			entry.folder = new Folder(null);
+			entry.folder.entries = new TreeMap<String, Entry>();
+			folder.entries.put(name + "/", entry);
+		} else if (entry.folder == null) {
+			entry.folder = new Folder(entry.id);
+		}
+		read(entry.folder);
+		folder.id = null;
+		entry.folder.id = null;
+		return entry.folder;
+	}
+
+	/**
+	 * Reads the entries of a folder. Entries are sorted in Git tree order
+	 * where folder names sort as if they were followed by a slash.
+	 *
+	 * @param folder
+	 * @throws IOException
+	 */
+	private void read(Folder folder) throws IOException {
+		if (folder.entries != null) {
+			return;
+		}
+		folder.entries = new TreeMap<String, Entry>();
+		if (folder.id == null) {
+			return;
+		}
+		CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, folder.id);
+		while (!parser.eof()) {
+			String name = parser.getEntryPathString();
+			FileMode mode = parser.getEntryFileMode();
+			Entry entry = new Entry(name, mode, parser.getEntryObjectId());
+			if ((mode.getBits() & FileMode.TYPE_MASK) == FileMode.TYPE_TREE) {
+				folder.entries.put(name + "/", entry);
+			} else {
+				folder.entries.put(name, entry);
+			}
+			parser.next();
+		}
+	}
+}
@@ -15,42 +15,37 @@
  */
 package com.gitblit.utils;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 
 import org.eclipse.jgit.JGitText;
 import org.eclipse.jgit.api.errors.ConcurrentRefUpdateException;
 import org.eclipse.jgit.api.errors.JGitInternalException;
-import org.eclipse.jgit.dircache.DirCache;
-import org.eclipse.jgit.dircache.DirCacheBuilder;
-import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.RefUpdate.Result;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
-import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
-import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,7 +57,6 @@ import com.gitblit.models.IssueModel.Status;
 import com.gitblit.models.RefModel;
 import com.gitblit.utils.JsonUtils.ExcludeField;
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
 /**
  * Utility class for reading Gitblit issues.
@@ -115,10 +109,10 @@ public class IssueUtils {
 	}
 
 	/**
-	 * Returns all the issues in the repository. Querying issues from the
-	 * repository requires deserializing all changes for all issues. This is an
-	 * expensive process and not recommended. Issues should be indexed by Lucene
-	 * and queries should be executed against that index.
+	 * Returns all the issues in the repository. Issues are served from the
+	 * issue index of the repository which is brought up to date with the
+	 * gb-issues branch before the query. Full text queries should be executed
+	 * against the Lucene index.
 	 * 
 	 * @param repository
 	 * @param filter
@@ -126,102 +120,190 @@ public class IssueUtils {
 	 * @return a list of issues
 	 */
 	public static List<IssueModel> getIssues(Repository repository, IssueFilter filter) {
-		List<IssueModel> list = new ArrayList<IssueModel>();
+		return getIssues(repository, null, null, filter);
+	}
+
+	/**
+	 * Returns the issues in the repository which have the specified value of
+	 * an indexed field. The matching issues are looked up in the field index of
+	 * the issue index and are then passed to the optional filter.
+	 * 
+	 * @param repository
+	 * @param field
+	 *            Status, Owner, Milestone, or Labels. If null, all issues are
+	 *            returned.
+	 * @param value
+	 *            the field value. For Labels, the label.
+	 * @param filter
+	 *            optional issue filter to only return matching results
+	 * @return a list of issues
+	 */
+	public static List<IssueModel> getIssues(Repository repository, Field field, Object value,
+			IssueFilter filter) {
 		RefModel issuesBranch = getIssuesBranch(repository);
 		if (issuesBranch == null) {
-			return list;
+			return new ArrayList<IssueModel>();
 		}
+		return IssueIndex.getIndex(repository).getIssues(repository, field, value, filter);
+	}
 
-		// Collect the set of all issue paths
-		Set<String> issuePaths = new HashSet<String>();
+	/**
+	 * Forgets the issue index of a repository which is deleted or renamed.
+	 * 
+	 * @param repositoryFolder
+	 *            the folder of a bare repository or the work tree of a
+	 *            repository
+	 */
+	public static void removeIssueIndex(File repositoryFolder) {
+		IssueIndex.removeIndex(repositoryFolder);
+	}
+
+	/**
+	 * Reads the changes of the issues which exist in the specified gb-issues
+	 * commit. The history of the gb-issues branch is walked once and the
+	 * changes are grouped by the issue id of the commit messages.
+	 * 
+	 * @param repository
+	 * @param headId
+	 *            the gb-issues commit
+	 * @return the JSON changes in commit order keyed by issue id
+	 * @throws IOException
+	 */
+	static Map<String, List<String>> readChanges(Repository repository, ObjectId headId)
+			throws IOException {
+		Map<String, List<String>> changes = readChanges(repository, headId, null);
+
+		// Collect the ids of all issues in the tree
+		Set<String> issueIds = new HashSet<String>();
+		RevWalk rw = new RevWalk(repository);
 		final TreeWalk tw = new TreeWalk(repository);
 		try {
-			RevCommit head = JGitUtils.getCommit(repository, GB_ISSUES);
-			tw.addTree(head.getTree());
+			tw.addTree(rw.parseTree(headId));
 			tw.setRecursive(false);
 			while (tw.next()) {
 				if (tw.getDepth() < 2 && tw.isSubtree()) {
 					tw.enterSubtree();
 					if (tw.getDepth() == 2) {
-						issuePaths.add(tw.getPathString());
+						issueIds.add(tw.getPathString().replace("/", ""));
 					}
 				}
 			}
-		} catch (IOException e) {
-			error(e, repository, "{0} failed to query issues");
 		} finally {
 			tw.release();
+			rw.release();
 		}
 
-		// Build each issue and optionally filter out unwanted issues
-
-		for (String issuePath : issuePaths) {
-			RevWalk rw = new RevWalk(repository);
-			try {
-				RevCommit start = rw.parseCommit(repository.resolve(GB_ISSUES));
-				rw.markStart(start);
-			} catch (Exception e) {
-				error(e, repository, "Failed to find {1} in {0}", GB_ISSUES);
-			}
-			TreeFilter treeFilter = AndTreeFilter.create(
-					PathFilterGroup.createFromStrings(issuePath), TreeFilter.ANY_DIFF);
-			rw.setTreeFilter(treeFilter);
-			Iterator<RevCommit> revlog = rw.iterator();
-
-			List<RevCommit> commits = new ArrayList<RevCommit>();
-			while (revlog.hasNext()) {
-				commits.add(revlog.next());
+		// drop deleted issues
+		Iterator<Map.Entry<String, List<String>>> entries = changes.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, List<String>> entry = entries.next();
+			if (entry.getValue() == null || !issueIds.remove(entry.getKey())) {
+				entries.remove();
 			}
+		}
+		for (String issueId : issueIds) {
+			LOGGER.warn("Failed to find changes for issue " + issueId);
+		}
+		return changes;
+	}
 
-			// release the revwalk
-			rw.release();
-
-			if (commits.size() == 0) {
-				LOGGER.warn("Failed to find changes for issue " + issuePath);
-				continue;
+	/**
+	 * Reads the changes of the issues in a single walk of the gb-issues
+	 * history. Changes are grouped by the issue id of the commit messages and
+	 * are kept in commit order, first commit first.
+	 * 
+	 * @param repository
+	 * @param headId
+	 *            the gb-issues commit
+	 * @param baseId
+	 *            if not null, the commits reachable from this commit are not
+	 *            read
+	 * @return the JSON changes keyed by issue id. Issues which have been
+	 *         deleted are mapped to null.
+	 * @throws IOException
+	 */
+	static Map<String, List<String>> readChanges(Repository repository, ObjectId headId,
+			ObjectId baseId) throws IOException {
+		Map<String, List<String>> changes = new LinkedHashMap<String, List<String>>();
+		RevWalk rw = new RevWalk(repository);
+		try {
+			rw.markStart(rw.parseCommit(headId));
+			if (baseId != null) {
+				rw.markUninteresting(rw.parseCommit(baseId));
 			}
-
-			// sort by commit order, first commit first
-			Collections.reverse(commits);
-
-			StringBuilder sb = new StringBuilder("[");
-			boolean first = true;
-			for (RevCommit commit : commits) {
-				if (!first) {
-					sb.append(',');
-				}
+			// first commit first
+			rw.sort(RevSort.REVERSE);
+			for (RevCommit commit : rw) {
 				String message = commit.getFullMessage();
-				// commit message is formatted: C ISSUEID\n\nJSON
-				// C is an single char commit code
-				// ISSUEID is an SHA-1 hash
-				String json = message.substring(43);
-				sb.append(json);
-				first = false;
-			}
-			sb.append(']');
-
-			// Deserialize the JSON array as a Collection<Change>, this seems
-			// slightly faster than deserializing each change by itself.
-			Collection<Change> changes = JsonUtils.fromJsonString(sb.toString(),
-					new TypeToken<Collection<Change>>() {
-					}.getType());
-
-			// create an issue object form the changes
-			IssueModel issue = buildIssue(changes, true);
-
-			// add the issue, conditionally, to the list
-			if (filter == null) {
-				list.add(issue);
-			} else {
-				if (filter.accept(issue)) {
-					list.add(issue);
+				String issueId = getIssueId(message);
+				if (issueId == null) {
+					// not an issue change
+					continue;
+				}
+				if (message.charAt(0) == '-') {
+					// the issue was deleted
+					changes.remove(issueId);
+					changes.put(issueId, null);
+					continue;
+				}
+				List<String> json = changes.get(issueId);
+				if (json == null) {
+					json = new ArrayList<String>();
+					changes.put(issueId, json);
 				}
+				json.add(getChangeJson(message));
 			}
+		} finally {
+			rw.release();
+		}
+		return changes;
+	}
+
+	/**
+	 * Returns the issue id of an issue commit message.
+	 * 
+	 * @param message
+	 * @return the issue id or null if the message is not an issue change
+	 */
+	static String getIssueId(String message) {
+		// commit message is formatted: C ISSUEID\n\nJSON
+		// C is an single char commit code
+		// ISSUEID is an SHA-1 hash
+		if (message.length() < 42 || message.charAt(1) != ' ') {
+			return null;
 		}
+		String issueId = message.substring(2, 42);
+		if (!ObjectId.isId(issueId)) {
+			return null;
+		}
+		return issueId;
+	}
+
+	/**
+	 * Returns the JSON change of an issue commit message.
+	 * 
+	 * @param message
+	 * @return the JSON change
+	 */
+	static String getChangeJson(String message) {
+		// commit message is formatted: C ISSUEID\n\nJSON
+		return message.substring(43);
+	}
 
-		// sort the issues by creation
-		Collections.sort(list);
-		return list;
+	/**
+	 * Deserializes the JSON changes of an issue.
+	 * 
+	 * @param gson
+	 * @param json
+	 *            the JSON changes in the order they were committed
+	 * @return the changes
+	 */
+	static List<Change> parseChanges(Gson gson, List<String> json) {
+		List<Change> changes = new ArrayList<Change>(json.size());
+		for (String change : json) {
+			changes.add(gson.fromJson(change, Change.class));
+		}
+		return changes;
 	}
 
 	/**
@@ -257,39 +339,7 @@ public class IssueUtils {
 			return null;
 		}
 
-		String issuePath = getIssuePath(issueId);
-
-		// Collect all changes as JSON array from commit messages
-		List<RevCommit> commits = JGitUtils.getRevLog(repository, GB_ISSUES, issuePath, 0, -1);
-
-		// sort by commit order, first commit first
-		Collections.reverse(commits);
-
-		StringBuilder sb = new StringBuilder("[");
-		boolean first = true;
-		for (RevCommit commit : commits) {
-			if (!first) {
-				sb.append(',');
-			}
-			String message = commit.getFullMessage();
-			// commit message is formatted: C ISSUEID\n\nJSON
-			// C is an single char commit code
-			// ISSUEID is an SHA-1 hash
-			String json = message.substring(43);
-			sb.append(json);
-			first = false;
-		}
-		sb.append(']');
-
-		// Deserialize the JSON array as a Collection<Change>, this seems
-		// slightly faster than deserializing each change by itself.
-		Collection<Change> changes = JsonUtils.fromJsonString(sb.toString(),
-				new TypeToken<Collection<Change>>() {
-				}.getType());
-
-		// create an issue object and apply the changes to it
-		IssueModel issue = buildIssue(changes, effective);
-		return issue;
+		return IssueIndex.getIndex(repository).getIssue(repository, issueId, effective);
 	}
 
 	/**
@@ -302,7 +352,7 @@ public class IssueUtils {
 	 *            issue is built.
 	 * @return an issue
 	 */
-	private static IssueModel buildIssue(Collection<Change> changes, boolean effective) {
+	static IssueModel buildIssue(Collection<Change> changes, boolean effective) {
 		IssueModel issue;
 		if (effective) {
 			List<Change> effectiveChanges = new ArrayList<Change>();
@@ -430,33 +480,53 @@ public class IssueUtils {
 	 * @return true if successful
 	 */
 	public static boolean updateIssue(Repository repository, String issueId, Change change) {
-		boolean success = false;
+		Map<String, List<Change>> changes = new HashMap<String, List<Change>>();
+		changes.put(issueId, Arrays.asList(change));
+		return updateIssues(repository, changes);
+	}
+
+	/**
+	 * Updates many issues in the gb-issues branch of the repository with a
+	 * single update of the branch. Each change is still committed separately
+	 * so that the history of every issue is preserved, but the commits are
+	 * built from one editable tree and the branch is only updated once after
+	 * all changes have been committed.
+	 * 
+	 * @param repository
+	 * @param changes
+	 *            the changes to apply, in order, keyed by issue id
+	 * @return true if successful
+	 */
+	public static boolean updateIssues(Repository repository, Map<String, List<Change>> changes) {
 		RefModel issuesBranch = getIssuesBranch(repository);
 
 		if (issuesBranch == null) {
 			throw new RuntimeException("gb-issues branch does not exist!");
 		}
 
-		if (change == null) {
-			throw new RuntimeException("change can not be null!");
-		}
+		for (List<Change> issueChanges : changes.values()) {
+			for (Change change : issueChanges) {
+				if (change == null) {
+					throw new RuntimeException("change can not be null!");
+				}
 
-		if (StringUtils.isEmpty(change.author)) {
-			throw new RuntimeException("must specify a change author!");
-		}
+				if (StringUtils.isEmpty(change.author)) {
+					throw new RuntimeException("must specify a change author!");
+				}
 
-		// determine update code
-		// default update code is '=' for a general change
-		change.code = '=';
-		if (change.hasField(Field.Status)) {
-			Status status = Status.fromObject(change.getField(Field.Status));
-			if (status.isClosed()) {
-				// someone closed the issue
-				change.code = 'x';
+				// determine update code
+				// default update code is '=' for a general change
+				change.code = '=';
+				if (change.hasField(Field.Status)) {
+					Status status = Status.fromObject(change.getField(Field.Status));
+					if (status.isClosed()) {
+						// someone closed the issue
+						change.code = 'x';
+					}
+				}
 			}
 		}
-		success = commit(repository, issueId, change);
-		return success;
+		return commit(repository, changes);
 	}
 
 	/**
@@ -484,85 +554,20 @@ public class IssueUtils {
 		try {
 			ObjectId headId = repository.resolve(GB_ISSUES + "^{commit}");
 			ObjectInserter odi = repository.newObjectInserter();
+			ObjectReader reader = repository.newObjectReader();
+			RevWalk revWalk = new RevWalk(reader);
 			try {
-				// Create the in-memory index of the new/updated issue
-				DirCache index = DirCache.newInCore();
-				DirCacheBuilder dcBuilder = index.builder();
-				// Traverse HEAD to add all other paths
-				TreeWalk treeWalk = new TreeWalk(repository);
-				int hIdx = -1;
-				if (headId != null)
-					hIdx = treeWalk.addTree(new RevWalk(repository).parseTree(headId));
-				treeWalk.setRecursive(true);
-				while (treeWalk.next()) {
-					String path = treeWalk.getPathString();
-					CanonicalTreeParser hTree = null;
-					if (hIdx != -1)
-						hTree = treeWalk.getTree(hIdx, CanonicalTreeParser.class);
-					if (!path.startsWith(issuePath)) {
-						// add entries from HEAD for all other paths
-						if (hTree != null) {
-							// create a new DirCacheEntry with data retrieved
-							// from HEAD
-							final DirCacheEntry dcEntry = new DirCacheEntry(path);
-							dcEntry.setObjectId(hTree.getEntryObjectId());
-							dcEntry.setFileMode(hTree.getEntryFileMode());
-
-							// add to temporary in-core index
-							dcBuilder.add(dcEntry);
-						}
-					}
-				}
-
-				// release the treewalk
-				treeWalk.release();
+				// Remove the issue from the tree of HEAD
+				IssueTree tree = new IssueTree(reader, revWalk.parseCommit(headId).getTree());
+				tree.remove(issuePath);
 
-				// finish temporary in-core index used for this commit
-				dcBuilder.finish();
-
-				ObjectId indexTreeId = index.writeTree(odi);
-
-				// Create a commit object
-				PersonIdent ident = new PersonIdent(author, "gitblit@localhost");
-				CommitBuilder commit = new CommitBuilder();
-				commit.setAuthor(ident);
-				commit.setCommitter(ident);
-				commit.setEncoding(Constants.CHARACTER_ENCODING);
-				commit.setMessage(message);
-				commit.setParentId(headId);
-				commit.setTreeId(indexTreeId);
-
-				// Insert the commit into the repository
-				ObjectId commitId = odi.insert(commit);
+				ObjectId commitId = insertCommit(odi, headId, tree.write(odi), author, message);
 				odi.flush();
 
-				RevWalk revWalk = new RevWalk(repository);
-				try {
-					RevCommit revCommit = revWalk.parseCommit(commitId);
-					RefUpdate ru = repository.updateRef(GB_ISSUES);
-					ru.setNewObjectId(commitId);
-					ru.setExpectedOldObjectId(headId);
-					ru.setRefLogMessage("commit: " + revCommit.getShortMessage(), false);
-					Result rc = ru.forceUpdate();
-					switch (rc) {
-					case NEW:
-					case FORCED:
-					case FAST_FORWARD:
-						success = true;
-						break;
-					case REJECTED:
-					case LOCK_FAILURE:
-						throw new ConcurrentRefUpdateException(JGitText.get().couldNotLockHEAD,
-								ru.getRef(), rc);
-					default:
-						throw new JGitInternalException(MessageFormat.format(
-								JGitText.get().updatingRefFailed, GB_ISSUES, commitId.toString(),
-								rc));
-					}
-				} finally {
-					revWalk.release();
-				}
+				success = updateIssuesBranch(repository, revWalk, headId, commitId);
 			} finally {
+				revWalk.release();
+				reader.release();
 				odi.release();
 			}
 		} catch (Throwable t) {
@@ -624,106 +629,61 @@ public class IssueUtils {
 	 * @return true, if the change was committed
 	 */
 	private static boolean commit(Repository repository, String issueId, Change change) {
+		Map<String, List<Change>> changes = new HashMap<String, List<Change>>();
+		changes.put(issueId, Arrays.asList(change));
+		return commit(repository, changes);
+	}
+
+	/**
+	 * Commits changes to the repository, one commit per change. The trees of
+	 * the commits are built by editing the tree of the previous commit and the
+	 * gb-issues branch is updated once, to the last commit.
+	 * 
+	 * @param repository
+	 * @param changes
+	 *            the changes to commit, in order, keyed by issue id
+	 * @return true, if the changes were committed
+	 */
+	private static boolean commit(Repository repository, Map<String, List<Change>> changes) {
 		boolean success = false;
+		String issueId = null;
 
 		try {
-			// assign ids to new attachments
-			// attachments are stored by an SHA1 id
-			if (change.hasAttachments()) {
-				for (Attachment attachment : change.attachments) {
-					if (!ArrayUtils.isEmpty(attachment.content)) {
-						byte[] prefix = (change.created.toString() + change.author).getBytes();
-						byte[] bytes = new byte[prefix.length + attachment.content.length];
-						System.arraycopy(prefix, 0, bytes, 0, prefix.length);
-						System.arraycopy(attachment.content, 0, bytes, prefix.length,
-								attachment.content.length);
-						attachment.id = "attachment-" + StringUtils.getSHA1(bytes);
-					}
-				}
-			}
-
-			// serialize the change as json
+			// serialize the changes as json
 			// exclude any attachment from json serialization
 			Gson gson = JsonUtils.gson(new ExcludeField(
 					"com.gitblit.models.IssueModel$Attachment.content"));
-			String json = gson.toJson(change);
-
-			// include the json change in the commit message
-			String issuePath = getIssuePath(issueId);
-			String message = change.code + " " + issueId + "\n\n" + json;
-
-			// Create a commit file. This is required for a proper commit and
-			// ensures we can retrieve the commit log of the issue path.
-			//
-			// This file is NOT serialized as part of the Change object.
-			switch (change.code) {
-			case '+': {
-				// New Issue.
-				Attachment placeholder = new Attachment("issue");
-				placeholder.id = placeholder.name;
-				placeholder.content = "DO NOT REMOVE".getBytes(Constants.CHARACTER_ENCODING);
-				change.addAttachment(placeholder);
-				break;
-			}
-			default: {
-				// Update Issue.
-				String changeId = StringUtils.getSHA1(json);
-				Attachment placeholder = new Attachment("change-" + changeId);
-				placeholder.id = placeholder.name;
-				placeholder.content = "REMOVABLE".getBytes(Constants.CHARACTER_ENCODING);
-				change.addAttachment(placeholder);
-				break;
-			}
-			}
 
 			ObjectId headId = repository.resolve(GB_ISSUES + "^{commit}");
 			ObjectInserter odi = repository.newObjectInserter();
+			ObjectReader reader = repository.newObjectReader();
+			RevWalk revWalk = new RevWalk(reader);
 			try {
-				// Create the in-memory index of the new/updated issue
-				DirCache index = createIndex(repository, headId, issuePath, change);
-				ObjectId indexTreeId = index.writeTree(odi);
-
-				// Create a commit object
-				PersonIdent ident = new PersonIdent(change.author, "gitblit@localhost");
-				CommitBuilder commit = new CommitBuilder();
-				commit.setAuthor(ident);
-				commit.setCommitter(ident);
-				commit.setEncoding(Constants.CHARACTER_ENCODING);
-				commit.setMessage(message);
-				commit.setParentId(headId);
-				commit.setTreeId(indexTreeId);
-
-				// Insert the commit into the repository
-				ObjectId commitId = odi.insert(commit);
-				odi.flush();
+				RevTree headTree = headId == null ? null : revWalk.parseCommit(headId).getTree();
+				IssueTree tree = new IssueTree(reader, headTree);
+				ObjectId commitId = headId;
+				for (Map.Entry<String, List<Change>> entry : changes.entrySet()) {
+					issueId = entry.getKey();
+					String issuePath = getIssuePath(issueId);
+					for (Change change : entry.getValue()) {
+						String message = createMessage(gson, issueId, change);
+
+						// Add the attachments to the tree
+						for (Attachment attachment : change.attachments) {
+							String path = issuePath + "/" + attachment.id;
+							tree.add(path, odi.insert(Constants.OBJ_BLOB, attachment.content));
+						}
 
-				RevWalk revWalk = new RevWalk(repository);
-				try {
-					RevCommit revCommit = revWalk.parseCommit(commitId);
-					RefUpdate ru = repository.updateRef(GB_ISSUES);
-					ru.setNewObjectId(commitId);
-					ru.setExpectedOldObjectId(headId);
-					ru.setRefLogMessage("commit: " + revCommit.getShortMessage(), false);
-					Result rc = ru.forceUpdate();
-					switch (rc) {
-					case NEW:
-					case FORCED:
-					case FAST_FORWARD:
-						success = true;
-						break;
-					case REJECTED:
-					case LOCK_FAILURE:
-						throw new ConcurrentRefUpdateException(JGitText.get().couldNotLockHEAD,
-								ru.getRef(), rc);
-					default:
-						throw new JGitInternalException(MessageFormat.format(
-								JGitText.get().updatingRefFailed, GB_ISSUES, commitId.toString(),
-								rc));
+						commitId = insertCommit(odi, commitId, tree.write(odi), change.author,
+								message);
 					}
-				} finally {
-					revWalk.release();
 				}
+				odi.flush();
+
+				success = updateIssuesBranch(repository, revWalk, headId, commitId);
 			} finally {
+				revWalk.release();
+				reader.release();
 				odi.release();
 			}
 		} catch (Throwable t) {
@@ -733,91 +693,136 @@ public class IssueUtils {
 	}
 
 	/**
-	 * Returns the issue path. This follows the same scheme as Git's object
-	 * store path where the first two characters of the hash id are the root
-	 * folder with the remaining characters as a subfolder within that folder.
+	 * Creates the commit message of a change and adds the commit file of the
+	 * change to its attachments.
 	 * 
+	 * @param gson
 	 * @param issueId
-	 * @return the root path of the issue content on the gb-issues branch
+	 * @param change
+	 * @return the commit message
+	 * @throws IOException
 	 */
-	static String getIssuePath(String issueId) {
-		return issueId.substring(0, 2) + "/" + issueId.substring(2);
+	private static String createMessage(Gson gson, String issueId, Change change)
+			throws IOException {
+		// assign ids to new attachments
+		// attachments are stored by an SHA1 id
+		if (change.hasAttachments()) {
+			for (Attachment attachment : change.attachments) {
+				if (!ArrayUtils.isEmpty(attachment.content)) {
+					byte[] prefix = (change.created.toString() + change.author).getBytes();
+					byte[] bytes = new byte[prefix.length + attachment.content.length];
+					System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+					System.arraycopy(attachment.content, 0, bytes, prefix.length,
+							attachment.content.length);
+					attachment.id = "attachment-" + StringUtils.getSHA1(bytes);
+				}
+			}
+		}
+
+		String json = gson.toJson(change);
+
+		// include the json change in the commit message
+		String message = change.code + " " + issueId + "\n\n" + json;
+
+		// Create a commit file. This is required for a proper commit and
+		// ensures we can retrieve the commit log of the issue path.
+		//
+		// This file is NOT serialized as part of the Change object.
+		switch (change.code) {
+		case '+': {
+			// New Issue.
+			Attachment placeholder = new Attachment("issue");
+			placeholder.id = placeholder.name;
+			placeholder.content = "DO NOT REMOVE".getBytes(Constants.CHARACTER_ENCODING);
+			change.addAttachment(placeholder);
+			break;
+		}
+		default: {
+			// Update Issue.
+			String changeId = StringUtils.getSHA1(json);
+			Attachment placeholder = new Attachment("change-" + changeId);
+			placeholder.id = placeholder.name;
+			placeholder.content = "REMOVABLE".getBytes(Constants.CHARACTER_ENCODING);
+			change.addAttachment(placeholder);
+			break;
+		}
+		}
+		return message;
 	}
 
 	/**
-	 * Creates an in-memory index of the issue change.
+	 * Inserts a gb-issues commit.
 	 * 
-	 * @param repo
-	 * @param headId
-	 * @param change
-	 * @return an in-memory index
+	 * @param odi
+	 * @param parentId
+	 * @param treeId
+	 * @param author
+	 * @param message
+	 * @return the commit id
 	 * @throws IOException
 	 */
-	private static DirCache createIndex(Repository repo, ObjectId headId, String issuePath,
-			Change change) throws IOException {
-
-		DirCache inCoreIndex = DirCache.newInCore();
-		DirCacheBuilder dcBuilder = inCoreIndex.builder();
-		ObjectInserter inserter = repo.newObjectInserter();
-
-		Set<String> ignorePaths = new TreeSet<String>();
-		try {
-			// Add any attachments to the temporary index
-			if (change.hasAttachments()) {
-				for (Attachment attachment : change.attachments) {
-					// build a path name for the attachment and mark as ignored
-					String path = issuePath + "/" + attachment.id;
-					ignorePaths.add(path);
-
-					// create an index entry for this attachment
-					final DirCacheEntry dcEntry = new DirCacheEntry(path);
-					dcEntry.setLength(attachment.content.length);
-					dcEntry.setLastModified(change.created.getTime());
-					dcEntry.setFileMode(FileMode.REGULAR_FILE);
-
-					// insert object
-					dcEntry.setObjectId(inserter.insert(Constants.OBJ_BLOB, attachment.content));
-
-					// add to temporary in-core index
-					dcBuilder.add(dcEntry);
-				}
-			}
-
-			// Traverse HEAD to add all other paths
-			TreeWalk treeWalk = new TreeWalk(repo);
-			int hIdx = -1;
-			if (headId != null)
-				hIdx = treeWalk.addTree(new RevWalk(repo).parseTree(headId));
-			treeWalk.setRecursive(true);
-
-			while (treeWalk.next()) {
-				String path = treeWalk.getPathString();
-				CanonicalTreeParser hTree = null;
-				if (hIdx != -1)
-					hTree = treeWalk.getTree(hIdx, CanonicalTreeParser.class);
-				if (!ignorePaths.contains(path)) {
-					// add entries from HEAD for all other paths
-					if (hTree != null) {
-						// create a new DirCacheEntry with data retrieved from
-						// HEAD
-						final DirCacheEntry dcEntry = new DirCacheEntry(path);
-						dcEntry.setObjectId(hTree.getEntryObjectId());
-						dcEntry.setFileMode(hTree.getEntryFileMode());
-
-						// add to temporary in-core index
-						dcBuilder.add(dcEntry);
-					}
-				}
-			}
+	private static ObjectId insertCommit(ObjectInserter odi, ObjectId parentId, ObjectId treeId,
+			String author, String message) throws IOException {
+		// Create a commit object
+		PersonIdent ident = new PersonIdent(author, "gitblit@localhost");
+		CommitBuilder commit = new CommitBuilder();
+		commit.setAuthor(ident);
+		commit.setCommitter(ident);
+		commit.setEncoding(Constants.CHARACTER_ENCODING);
+		commit.setMessage(message);
+		if (parentId != null) {
+			commit.setParentId(parentId);
+		}
+		commit.setTreeId(treeId);
 
-			// release the treewalk
-			treeWalk.release();
+		// Insert the commit into the repository
+		return odi.insert(commit);
+	}
 
-			// finish temporary in-core index used for this commit
-			dcBuilder.finish();
-		} finally {
-			inserter.release();
+	/**
+	 * Updates the gb-issues branch from the expected head to the new commit.
+	 * 
+	 * @param repository
+	 * @param revWalk
+	 * @param headId
+	 *            the expected head of the branch
+	 * @param commitId
+	 *            the new head of the branch
+	 * @return true if the branch was updated
+	 * @throws Exception
+	 */
+	private static boolean updateIssuesBranch(Repository repository, RevWalk revWalk,
+			ObjectId headId, ObjectId commitId) throws Exception {
+		RevCommit revCommit = revWalk.parseCommit(commitId);
+		RefUpdate ru = repository.updateRef(GB_ISSUES);
+		ru.setNewObjectId(commitId);
+		ru.setExpectedOldObjectId(headId);
+		ru.setRefLogMessage("commit: " + revCommit.getShortMessage(), false);
+		Result rc = ru.forceUpdate();
+		switch (rc) {
+		case NEW:
+		case FORCED:
+		case FAST_FORWARD:
+			return true;
+		case REJECTED:
+		case LOCK_FAILURE:
+			throw new ConcurrentRefUpdateException(JGitText.get().couldNotLockHEAD, ru.getRef(),
+					rc);
+		default:
+			throw new JGitInternalException(MessageFormat.format(
+					JGitText.get().updatingRefFailed, GB_ISSUES, commitId.toString(), rc));
 		}
-		return inCoreIndex;
+	}
+
+	/**
+	 * Returns the issue path. This follows the same scheme as Git's object
+	 * store path where the first two characters of the hash id are the root
+	 * folder with the remaining characters as a subfolder within that folder.
+	 * 
+	 * @param issueId
+	 * @return the root path of the issue content on the gb-issues branch
+	 */
+	static String getIssuePath(String issueId) {
+		return issueId.substring(0, 2) + "/" + issueId.substring(2);
 	}
 }
\ No newline at end of file
@@ -1,22 +1,36 @@
 package com.gitblit.utils;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.StringReader;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.DateTools.Resolution;
 import org.apache.lucene.document.Document;
@@ -29,33 +43,59 @@ import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.FieldCache.StringIndex;
+import org.apache.lucene.search.FieldCacheTermsFilter;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.search.highlight.Highlighter;
+import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.highlight.SimpleHTMLEncoder;
+import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
+import org.apache.lucene.search.highlight.SimpleSpanFragmenter;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.OpenBitSet;
 import org.apache.lucene.util.Version;
-import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.diff.RawText;
 import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.IO;
 
+import com.gitblit.Constants.SearchType;
 import com.gitblit.GitBlit;
 import com.gitblit.models.IssueModel;
 import com.gitblit.models.IssueModel.Attachment;
-import com.gitblit.models.PathModel.PathChangeModel;
 import com.gitblit.models.RefModel;
 import com.gitblit.models.SearchResult;
 
@@ -85,16 +125,19 @@ public class LuceneUtils {
 	}
 
 	private static final Version LUCENE_VERSION = Version.LUCENE_35;
-	private static final int INDEX_VERSION = 1;
+	private static final int INDEX_VERSION = 3;
 
 	private static final String FIELD_OBJECT_TYPE = "type";
 	private static final String FIELD_OBJECT_ID = "id";
+	private static final String FIELD_BLOB_ID = "blob";
 	private static final String FIELD_BRANCH = "branch";
 	private static final String FIELD_REPOSITORY = "repository";
 	private static final String FIELD_SUMMARY = "summary";
 	private static final String FIELD_CONTENT = "content";
 	private static final String FIELD_AUTHOR = "author";
 	private static final String FIELD_COMMITTER = "committer";
+	private static final String FIELD_AUTHOR_IDENT = "authorident";
+	private static final String FIELD_COMMITTER_IDENT = "committerident";
 	private static final String FIELD_DATE = "date";
 	private static final String FIELD_LABEL = "label";
 	private static final String FIELD_ATTACHMENT = "attachment";
@@ -104,14 +147,50 @@ public class LuceneUtils {
 			"lzh", "odg", "pdf", "ppt", "png", "so", "swf", "xcf", "xls", "xlsx", "zip"));
 
 	private static Set<String> excludedBranches = new TreeSet<String>(
-			Arrays.asList("/refs/heads/gb-issues"));
+			Arrays.asList(IssueUtils.GB_ISSUES));
 
-	private static final Map<File, IndexSearcher> SEARCHERS = new ConcurrentHashMap<File, IndexSearcher>();
+	private static final int MAX_COMPOSITE_SEARCHERS = 50;
+
+	private static final int BATCH_SIZE = 100;
+
+	private static volatile File sharedIndexFolder;
+
+	private static volatile int indexThreads = Runtime.getRuntime().availableProcessors();
+
+	private static volatile double ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+
+	private static final int SNIFF_SIZE = 8000;
+
+	private static final int FRAGMENT_SIZE = 150;
+
+	private static volatile long maxIndexedSize = 1024 * 1024;
+
+	private static final Map<File, SearcherManager> SEARCHERS = new ConcurrentHashMap<File, SearcherManager>();
 	private static final Map<File, IndexWriter> WRITERS = new ConcurrentHashMap<File, IndexWriter>();
 
+	/**
+	 * Composite searchers of recently searched repository sets keyed by the
+	 * sorted repository directories, least recently used first.
+	 */
+	private static final Map<String, CompositeSearcher> COMPOSITES = new LinkedHashMap<String, CompositeSearcher>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompositeSearcher> eldest) {
+			if (size() > MAX_COMPOSITE_SEARCHERS) {
+				eldest.getValue().release();
+				return true;
+			}
+			return false;
+		}
+	};
+
 	private static final String CONF_FILE = "lucene.conf";
 	private static final String CONF_INDEX = "index";
 	private static final String CONF_VERSION = "version";
+	private static final String CONF_SHARED = "shared";
 	private static final String CONF_ALIAS = "aliases";
 	private static final String CONF_BRANCH = "branches";
 
@@ -154,10 +233,75 @@ public class LuceneUtils {
 		return config;
 	}
 
+	/**
+	 * Sets the folder of the single index shared by all repositories. If the
+	 * folder is null, each repository has its own index.
+	 * 
+	 * @param folder
+	 */
+	public static void setSharedIndexFolder(File folder) {
+		sharedIndexFolder = folder;
+	}
+
+	/**
+	 * Sets the number of threads which read and tokenize blobs during a
+	 * reindex, the amount of RAM an index writer buffers before flushing, and
+	 * the maximum number of bytes of a blob which are indexed.
+	 * 
+	 * @param threads
+	 *            the number of indexing threads, 0 for one per processor
+	 * @param ramBufferSize
+	 *            the index writer RAM buffer size in megabytes
+	 * @param maxSize
+	 *            the maximum indexed size of a blob in bytes
+	 */
+	public static void setIndexingOptions(int threads, double ramBufferSize, long maxSize) {
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		indexThreads = threads;
+		ramBufferSizeMB = ramBufferSize;
+		maxIndexedSize = maxSize;
+	}
+
+	/**
+	 * Indicates if all repositories are indexed in a single shared index. The
+	 * documents of the shared index are partitioned by repository name.
+	 * 
+	 * @return true if the index is shared
+	 */
+	public static boolean isSharedIndex() {
+		return sharedIndexFolder != null;
+	}
+
+	/**
+	 * Returns the index folder of the repository.
+	 * 
+	 * @param repository
+	 * @return the shared index folder or the repository index folder
+	 */
+	private static File getIndexFolder(Repository repository) {
+		File folder = sharedIndexFolder;
+		if (folder == null) {
+			folder = new File(repository.getDirectory(), "lucene");
+		}
+		return folder;
+	}
+
+	/**
+	 * Records the index version and index mode in the Lucene config.
+	 * 
+	 * @param config
+	 */
+	private static void setIndexVersion(FileBasedConfig config) {
+		config.setInt(CONF_INDEX, null, CONF_VERSION, INDEX_VERSION);
+		config.setBoolean(CONF_INDEX, null, CONF_SHARED, isSharedIndex());
+	}
+
 	/**
 	 * Reads the Lucene config file for the repository to check the index
-	 * version. If the index version is different, then rebuild the repository
-	 * index.
+	 * version. If the index version is different or if the repository was
+	 * indexed for a different index mode, then rebuild the repository index.
 	 * 
 	 * @param repository
 	 * @return true of the on-disk index format is different than INDEX_VERSION
@@ -167,13 +311,58 @@ public class LuceneUtils {
 			FileBasedConfig config = getConfig(repository);
 			config.load();
 			int indexVersion = config.getInt(CONF_INDEX, CONF_VERSION, 0);
-			// reindex if versions do not match
-			return indexVersion != INDEX_VERSION;
+			boolean shared = config.getBoolean(CONF_INDEX, CONF_SHARED, false);
+			// reindex if versions or modes do not match
+			return indexVersion != INDEX_VERSION || shared != isSharedIndex();
 		} catch (Throwable t) {
 		}
 		return true;
 	}
 
+	/**
+	 * Moves the documents of a repository index into the shared index. The
+	 * repository index is deleted after it has been merged. If the repository
+	 * index can not be merged, the repository will be reindexed.
+	 * 
+	 * @param repository
+	 * @return true if the repository index was migrated
+	 */
+	public static boolean migrateIndex(Repository repository) {
+		File repositoryIndex = new File(repository.getDirectory(), "lucene");
+		if (!isSharedIndex() || !repositoryIndex.exists()) {
+			return false;
+		}
+		try {
+			FileBasedConfig config = getConfig(repository);
+			config.load();
+			if (config.getInt(CONF_INDEX, CONF_VERSION, 0) != INDEX_VERSION) {
+				// obsolete index, reindex the repository
+				deleteIndex(repository);
+				return false;
+			}
+			IndexWriter writer = getIndexWriter(repository, false);
+			deleteDocuments(writer, getName(repository));
+			Directory directory = FSDirectory.open(repositoryIndex);
+			try {
+				writer.addIndexes(directory);
+			} finally {
+				directory.close();
+			}
+			writer.commit();
+			refreshIndexSearcher(repository);
+
+			setIndexVersion(config);
+			config.save();
+			org.eclipse.jgit.util.FileUtils.delete(repositoryIndex,
+					org.eclipse.jgit.util.FileUtils.RECURSIVE);
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			deleteIndex(repository);
+		}
+		return false;
+	}
+
 	/**
 	 * Deletes the Lucene index for the specified repository.
 	 * 
@@ -182,6 +371,20 @@ public class LuceneUtils {
 	 */
 	public static boolean deleteIndex(Repository repository) {
 		try {
+			if (isSharedIndex()) {
+				// delete the repository documents from the shared index
+				IndexWriter writer = getIndexWriter(repository, false);
+				deleteDocuments(writer, getName(repository));
+				writer.commit();
+				refreshIndexSearcher(repository);
+			} else {
+				// discard the open searcher and writer of the repository index
+				closeIndexSearcher(repository);
+				IndexWriter writer = WRITERS.remove(getIndexFolder(repository));
+				if (writer != null) {
+					writer.rollback();
+				}
+			}
 			File luceneIndex = new File(repository.getDirectory(), "lucene");
 			if (luceneIndex.exists()) {
 				org.eclipse.jgit.util.FileUtils.delete(luceneIndex,
@@ -201,6 +404,13 @@ public class LuceneUtils {
 	 * This completely indexes the repository and will destroy any existing
 	 * index.
 	 * 
+	 * The tips of the branches are enumerated first. Each distinct blob is
+	 * then read only once, by one of the indexing threads, and indexed once
+	 * for each path with all the branches which reference it at that path.
+	 * The commit history is indexed
+	 * by the calling thread while the blobs are indexed. Documents are added to
+	 * the index writer in batches.
+	 * 
 	 * @param repository
 	 * @return IndexResult
 	 */
@@ -209,122 +419,133 @@ public class LuceneUtils {
 		if (!LuceneUtils.deleteIndex(repository)) {
 			return result;
 		}
+		ExecutorService pool = null;
 		try {
 			String repositoryName = getName(repository);
 			FileBasedConfig config = getConfig(repository);
 			Set<String> indexedCommits = new TreeSet<String>();
-			IndexWriter writer = getIndexWriter(repository, true);
+			IndexWriter writer = getIndexWriter(repository, !isSharedIndex());
 			// build a quick lookup of tags
-			Map<String, List<String>> tags = new HashMap<String, List<String>>();
-			for (RefModel tag : JGitUtils.getTags(repository, false, -1)) {
-				if (!tag.isAnnotatedTag()) {
-					// skip non-annotated tags
-					continue;
-				}
-				if (!tags.containsKey(tag.getObjectId())) {
-					tags.put(tag.getReferencedObjectId().getName(), new ArrayList<String>());
-				}
-				tags.get(tag.getReferencedObjectId().getName()).add(tag.displayName);
-			}
+			Map<String, List<String>> tags = getAnnotatedTags(repository);
 
-			// walk through each branch
+			// enumerate the blobs of the tip of each branch
+			Map<String, RevCommit> tips = new LinkedHashMap<String, RevCommit>();
+			Map<ObjectId, List<BlobPath>> blobs = new LinkedHashMap<ObjectId, List<BlobPath>>();
+			RevWalk revWalk = new RevWalk(repository);
 			List<RefModel> branches = JGitUtils.getLocalBranches(repository, true, -1);
 			for (RefModel branch : branches) {
 				if (excludedBranches.contains(branch.getName())) {
 					continue;
 				}
 				String branchName = branch.getName();
-				RevWalk revWalk = new RevWalk(repository);
 				RevCommit rev = revWalk.parseCommit(branch.getObjectId());
+				tips.put(branchName, rev);
 
 				String keyName = getBranchKey(branchName);
 				config.setString(CONF_ALIAS, null, keyName, branchName);
 				config.setString(CONF_BRANCH, null, keyName, rev.getName());
 
-				// index the blob contents of the tree
-				ByteArrayOutputStream os = new ByteArrayOutputStream();
-				byte[] tmp = new byte[32767];
+				BranchTip tip = new BranchTip(branchName, rev);
 				TreeWalk treeWalk = new TreeWalk(repository);
 				treeWalk.addTree(rev.getTree());
 				treeWalk.setRecursive(true);
-				String revDate = DateTools.timeToString(rev.getCommitTime() * 1000L,
-						Resolution.MINUTE);
 				while (treeWalk.next()) {
-					Document doc = new Document();
-					doc.add(new Field(FIELD_OBJECT_TYPE, ObjectType.blob.name(), Store.YES,
-							Index.NOT_ANALYZED_NO_NORMS));
-					doc.add(new Field(FIELD_REPOSITORY, repositoryName, Store.YES,
-							Index.NOT_ANALYZED));
-					doc.add(new Field(FIELD_BRANCH, branchName, Store.YES, Index.NOT_ANALYZED));
-					doc.add(new Field(FIELD_OBJECT_ID, treeWalk.getPathString(), Store.YES,
-							Index.NOT_ANALYZED));
-					doc.add(new Field(FIELD_DATE, revDate, Store.YES, Index.NO));
-					doc.add(new Field(FIELD_AUTHOR, rev.getAuthorIdent().getName(), Store.YES,
-							Index.NOT_ANALYZED_NO_NORMS));
-					doc.add(new Field(FIELD_COMMITTER, rev.getCommitterIdent().getName(),
-							Store.YES, Index.NOT_ANALYZED_NO_NORMS));
-					doc.add(new Field(FIELD_LABEL, branch.getName(), Store.YES, Index.ANALYZED));
-
-					// determine extension to compare to the extension
-					// blacklist
-					String ext = null;
-					String name = treeWalk.getPathString().toLowerCase();
-					if (name.indexOf('.') > -1) {
-						ext = name.substring(name.lastIndexOf('.') + 1);
+					String path = treeWalk.getPathString();
+					if (treeWalk.getFileMode(0).getObjectType() != Constants.OBJ_BLOB
+							|| isExcluded(path)) {
+						// skip submodules and blacklisted extensions
+						continue;
 					}
-
-					if (StringUtils.isEmpty(ext) || !excludedExtensions.contains(ext)) {
-						// read the blob content
-						ObjectId entid = treeWalk.getObjectId(0);
-						FileMode entmode = treeWalk.getFileMode(0);
-						RevObject ro = revWalk.lookupAny(entid, entmode.getObjectType());
-						revWalk.parseBody(ro);
-						ObjectLoader ldr = repository.open(ro.getId(), Constants.OBJ_BLOB);
-						InputStream in = ldr.openStream();
-						os.reset();
-						int n = 0;
-						while ((n = in.read(tmp)) > 0) {
-							os.write(tmp, 0, n);
-						}
-						in.close();
-						byte[] content = os.toByteArray();
-						String str = new String(content, "UTF-8");
-						doc.add(new Field(FIELD_CONTENT, str, Store.NO, Index.ANALYZED));
-						writer.addDocument(doc);
+					ObjectId blobId = treeWalk.getObjectId(0);
+					List<BlobPath> paths = blobs.get(blobId);
+					if (paths == null) {
+						paths = new ArrayList<BlobPath>(1);
+						blobs.put(blobId, paths);
 					}
+					paths.add(new BlobPath(tip, path));
 				}
-
-				os.close();
 				treeWalk.release();
+			}
+			revWalk.dispose();
 
-				// index the head commit object
-				String head = rev.getId().getName();
-				if (indexedCommits.add(head)) {
-					Document doc = createDocument(rev, tags.get(head));
-					doc.add(new Field(FIELD_REPOSITORY, repositoryName, Store.YES,
-							Index.NOT_ANALYZED));
-					doc.add(new Field(FIELD_BRANCH, branchName, Store.YES, Index.NOT_ANALYZED));
-					writer.addDocument(doc);
-					result.commitCount += 1;
+			// index the blobs in batches on the indexing threads
+			pool = Executors.newFixedThreadPool(indexThreads);
+			List<Future<Integer>> tasks = new ArrayList<Future<Integer>>();
+			Map<ObjectId, List<BlobPath>> batch = new LinkedHashMap<ObjectId, List<BlobPath>>();
+			for (Map.Entry<ObjectId, List<BlobPath>> blob : blobs.entrySet()) {
+				batch.put(blob.getKey(), blob.getValue());
+				if (batch.size() == BATCH_SIZE) {
+					tasks.add(pool.submit(new BlobIndexer(repository, repositoryName, writer,
+							batch)));
+					batch = new LinkedHashMap<ObjectId, List<BlobPath>>();
+				}
+			}
+			if (batch.size() > 0) {
+				tasks.add(pool.submit(new BlobIndexer(repository, repositoryName, writer, batch)));
+			}
+			blobs = null;
+
+			// determine the branches which contain each commit
+			Map<ObjectId, List<String>> commitBranches = new HashMap<ObjectId, List<String>>();
+			revWalk = new RevWalk(repository);
+			revWalk.setRetainBody(false);
+			for (Map.Entry<String, RevCommit> tip : tips.entrySet()) {
+				revWalk.reset();
+				revWalk.markStart(revWalk.parseCommit(tip.getValue()));
+				RevCommit rev;
+				while ((rev = revWalk.next()) != null) {
+					List<String> list = commitBranches.get(rev);
+					if (list == null) {
+						list = new ArrayList<String>(1);
+						commitBranches.put(rev, list);
+					}
+					list.add(tip.getKey());
 				}
+			}
+			revWalk.dispose();
 
-				// traverse the log and index the previous commit objects
-				revWalk.markStart(rev);
+			// traverse the log of each branch and index the commit objects.
+			// the history of the previous branches has already been indexed.
+			List<Document> docs = new ArrayList<Document>();
+			List<RevCommit> walked = new ArrayList<RevCommit>();
+			for (Map.Entry<String, RevCommit> tip : tips.entrySet()) {
+				revWalk = new RevWalk(repository);
+				revWalk.markStart(revWalk.parseCommit(tip.getValue()));
+				for (RevCommit previous : walked) {
+					revWalk.markUninteresting(revWalk.parseCommit(previous));
+				}
+				walked.add(tip.getValue());
+				RevCommit rev;
 				while ((rev = revWalk.next()) != null) {
 					String hash = rev.getId().getName();
 					if (indexedCommits.add(hash)) {
-						Document doc = createDocument(rev, tags.get(hash));
+						Document doc = createDocument(rev, tags.get(hash), commitBranches.get(rev));
 						doc.add(new Field(FIELD_REPOSITORY, repositoryName, Store.YES,
 								Index.NOT_ANALYZED));
-						doc.add(new Field(FIELD_BRANCH, branchName, Store.YES, Index.NOT_ANALYZED));
-						writer.addDocument(doc);
+						docs.add(doc);
 						result.commitCount += 1;
+						if (docs.size() == BATCH_SIZE) {
+							writer.addDocuments(docs);
+							docs.clear();
+						}
 					}
 				}
-
-				// finished
 				revWalk.dispose();
 			}
+			if (docs.size() > 0) {
+				writer.addDocuments(docs);
+				docs.clear();
+			}
+
+			// wait for the blobs to be indexed
+			for (Future<Integer> task : tasks) {
+				try {
+					result.blobCount += task.get();
+				} catch (ExecutionException e) {
+					throw new IOException("Failed to index blobs of " + repositoryName,
+							e.getCause());
+				}
+			}
 
 			// this repository has a gb-issues branch, index all issues
 			if (IssueUtils.getIssuesBranch(repository) != null) {
@@ -333,22 +554,130 @@ public class LuceneUtils {
 					Document doc = createDocument(issue);
 					doc.add(new Field(FIELD_REPOSITORY, repositoryName, Store.YES,
 							Index.NOT_ANALYZED));
-					writer.addDocument(doc);
+					docs.add(doc);
 				}
+				writer.addDocuments(docs);
 			}
 
 			// commit all changes and reset the searcher
-			config.setInt(CONF_INDEX, null, CONF_VERSION, INDEX_VERSION);
+			setIndexVersion(config);
 			config.save();
-			resetIndexSearcher(repository);
 			writer.commit();
+			refreshIndexSearcher(repository);
 			result.success = true;
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
 		}
 		return result;
 	}
 
+	/**
+	 * The tip commit of a branch being reindexed.
+	 */
+	private static class BranchTip {
+
+		final String branch;
+
+		final String date;
+
+		final String author;
+
+		final String committer;
+
+		BranchTip(String branch, RevCommit commit) {
+			this.branch = branch;
+			this.date = DateTools.timeToString(commit.getCommitTime() * 1000L, Resolution.MINUTE);
+			this.author = commit.getAuthorIdent().getName();
+			this.committer = commit.getCommitterIdent().getName();
+		}
+	}
+
+	/**
+	 * A path of a blob in the tree of a branch tip.
+	 */
+	private static class BlobPath {
+
+		final BranchTip tip;
+
+		final String path;
+
+		BlobPath(BranchTip tip, String path) {
+			this.tip = tip;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * Reads a batch of distinct blobs and adds a document for each path at
+	 * which a blob is referenced to the index.
+	 */
+	private static class BlobIndexer implements Callable<Integer> {
+
+		final Repository repository;
+
+		final String repositoryName;
+
+		final IndexWriter writer;
+
+		final Map<ObjectId, List<BlobPath>> blobs;
+
+		BlobIndexer(Repository repository, String repositoryName, IndexWriter writer,
+				Map<ObjectId, List<BlobPath>> blobs) {
+			this.repository = repository;
+			this.repositoryName = repositoryName;
+			this.writer = writer;
+			this.blobs = blobs;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			List<Document> docs = new ArrayList<Document>();
+			ObjectReader reader = repository.newObjectReader();
+			try {
+				for (Map.Entry<ObjectId, List<BlobPath>> blob : blobs.entrySet()) {
+					// sniff the blob content once
+					BlobContent content = BlobContent.open(reader, blob.getKey());
+					if (content == null) {
+						// binary content
+						continue;
+					}
+
+					// group the branches by path
+					Map<String, List<BranchTip>> paths = new LinkedHashMap<String, List<BranchTip>>();
+					for (BlobPath path : blob.getValue()) {
+						List<BranchTip> tips = paths.get(path.path);
+						if (tips == null) {
+							tips = new ArrayList<BranchTip>();
+							paths.put(path.path, tips);
+						}
+						tips.add(path.tip);
+					}
+
+					// index the blob once for each path
+					for (Map.Entry<String, List<BranchTip>> path : paths.entrySet()) {
+						List<String> branches = new ArrayList<String>();
+						for (BranchTip tip : path.getValue()) {
+							branches.add(tip.branch);
+						}
+						BranchTip tip = path.getValue().get(0);
+						Document doc = createDocument(repositoryName, branches, path.getKey(),
+								blob.getKey(), tip.date, tip.author, tip.committer);
+						doc.add(new Field(FIELD_CONTENT, content.openReader()));
+						docs.add(doc);
+					}
+				}
+				writer.addDocuments(docs);
+			} finally {
+				reader.release();
+			}
+			return docs.size();
+		}
+	}
+
 	/**
 	 * Incrementally update the index with the specified commit for the
 	 * repository.
@@ -369,63 +698,34 @@ public class LuceneUtils {
 					if (issue == null) {
 						// delete the old issue from the index, if exists
 						IndexWriter writer = getIndexWriter(repository, false);
-						writer.deleteDocuments(
-								new Term(FIELD_OBJECT_TYPE, ObjectType.issue.name()), new Term(
-										FIELD_OBJECT_ID, issueId));
+						deleteDocuments(writer, getName(repository), new Term(FIELD_OBJECT_TYPE,
+								ObjectType.issue.name()), new Term(FIELD_OBJECT_ID, issueId));
 						writer.commit();
+						refreshIndexSearcher(repository);
 						return true;
 					}
 					return index(repository, issue);
 				}
 				return false;
 			}
-			List<PathChangeModel> changedPaths = JGitUtils.getFilesInCommit(repository, commit);
-			String repositoryName = getName(repository);
-			String revDate = DateTools.timeToString(commit.getCommitTime() * 1000L,
-					Resolution.MINUTE);
+			RevTree parentTree = null;
+			if (commit.getParentCount() > 0) {
+				RevWalk revWalk = new RevWalk(repository);
+				parentTree = revWalk.parseCommit(commit.getParent(0)).getTree();
+				revWalk.dispose();
+			}
 			IndexWriter writer = getIndexWriter(repository, false);
-			for (PathChangeModel path : changedPaths) {
-				// delete the indexed blob
-				writer.deleteDocuments(new Term(FIELD_OBJECT_TYPE, ObjectType.blob.name()),
-						new Term(FIELD_BRANCH, branch), new Term(FIELD_OBJECT_ID, path.path));
-
-				// re-index the blob
-				if (!ChangeType.DELETE.equals(path.changeType)) {
-					Document doc = new Document();
-					doc.add(new Field(FIELD_OBJECT_TYPE, ObjectType.blob.name(), Store.YES,
-							Index.NOT_ANALYZED_NO_NORMS));
-					doc.add(new Field(FIELD_REPOSITORY, repositoryName, Store.YES,
-							Index.NOT_ANALYZED));
-					doc.add(new Field(FIELD_BRANCH, branch, Store.YES, Index.NOT_ANALYZED));
-					doc.add(new Field(FIELD_OBJECT_ID, path.path, Store.YES, Index.NOT_ANALYZED));
-					doc.add(new Field(FIELD_DATE, revDate, Store.YES, Index.NO));
-					doc.add(new Field(FIELD_AUTHOR, commit.getAuthorIdent().getName(), Store.YES,
-							Index.NOT_ANALYZED_NO_NORMS));
-					doc.add(new Field(FIELD_COMMITTER, commit.getCommitterIdent().getName(),
-							Store.YES, Index.NOT_ANALYZED_NO_NORMS));
-					doc.add(new Field(FIELD_LABEL, branch, Store.YES, Index.ANALYZED));
-
-					// determine extension to compare to the extension
-					// blacklist
-					String ext = null;
-					String name = path.name.toLowerCase();
-					if (name.indexOf('.') > -1) {
-						ext = name.substring(name.lastIndexOf('.') + 1);
-					}
-
-					if (StringUtils.isEmpty(ext) || !excludedExtensions.contains(ext)) {
-						// read the blob content
-						String str = JGitUtils.getStringContent(repository, commit.getTree(),
-								path.path);
-						doc.add(new Field(FIELD_CONTENT, str, Store.NO, Index.ANALYZED));
-						writer.addDocument(doc);
-					}
-				}
+			indexBlobs(repository, writer, branch, parentTree, commit);
+			SearcherManager manager = getSearcherManager(repository);
+			IndexSearcher searcher = manager.acquire();
+			try {
+				updateCommit(writer, searcher, getName(repository), commit, null, branch, true);
+			} finally {
+				manager.release(searcher);
 			}
 			writer.commit();
-
-			Document doc = createDocument(commit, null);
-			return index(repository, doc);
+			refreshIndexSearcher(repository);
+			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -433,96 +733,620 @@ public class LuceneUtils {
 	}
 
 	/**
-	 * Incrementally update the index with the specified issue for the
-	 * repository.
+	 * Incrementally update the index with a ref update of a push. The branch is
+	 * added to the commits between the previously indexed commit of the
+	 * branch, or the old id of the update if the branch is not indexed, and the
+	 * new id. A forced update removes the branch from the commits which are no
+	 * longer reachable. Only the blobs of the paths which differ between the
+	 * old and the new tree of the branch are reindexed.
 	 * 
 	 * @param repository
-	 * @param issue
-	 * @return true, if successful
+	 * @param branch
+	 *            the fully qualified branch name (e.g. refs/heads/master)
+	 * @param oldId
+	 *            the old id of the branch, zero id if the branch was created
+	 * @param newId
+	 *            the new id of the branch, zero id if the branch was deleted
+	 * @return IndexResult
 	 */
-	public static boolean index(Repository repository, IssueModel issue) {
+	public static IndexResult index(Repository repository, String branch, ObjectId oldId,
+			ObjectId newId) {
+		IndexResult result = new IndexResult();
+		if (!branch.startsWith(Constants.R_HEADS)) {
+			// only branches are indexed
+			result.success = true;
+			return result;
+		}
 		try {
-			// delete the old issue from the index, if exists
+			String repositoryName = getName(repository);
+			FileBasedConfig config = getConfig(repository);
+			config.load();
+			String keyName = getBranchKey(branch);
+			String indexedCommit = config.getString(CONF_BRANCH, null, keyName);
+			if (!StringUtils.isEmpty(indexedCommit)) {
+				oldId = ObjectId.fromString(indexedCommit);
+			}
+
 			IndexWriter writer = getIndexWriter(repository, false);
-			writer.deleteDocuments(new Term(FIELD_OBJECT_TYPE, ObjectType.issue.name()), new Term(
-					FIELD_OBJECT_ID, String.valueOf(issue.id)));
-			writer.commit();
+			if (ObjectId.zeroId().equals(newId)) {
+				// branch deleted
+				deleteBranch(repository, writer, branch);
+				config.unset(CONF_ALIAS, null, keyName);
+				config.unset(CONF_BRANCH, null, keyName);
+			} else {
+				// the tip is parsed by its own walk, the range walk frees the
+				// body of the tip if it has already been indexed
+				boolean hasOld = !ObjectId.zeroId().equals(oldId) && repository.hasObject(oldId);
+				RevCommit tip;
+				RevTree oldTree = null;
+				RevWalk revWalk = new RevWalk(repository);
+				try {
+					tip = revWalk.parseCommit(newId);
+					if (hasOld) {
+						oldTree = revWalk.parseCommit(oldId).getTree();
+					}
+				} finally {
+					revWalk.release();
+				}
+				// a new branch adds the branch to its entire history
+				List<RevCommit> added = getRevs(repository, newId, hasOld ? oldId : null);
 
-			Document doc = createDocument(issue);
-			return index(repository, doc);
+				if (excludedBranches.contains(branch)) {
+					// index the issues changed by each commit
+					Collections.reverse(added);
+					for (RevCommit commit : added) {
+						index(repository, branch, commit);
+					}
+				} else {
+					// add the branch to the new commits, remove it from the
+					// commits which were rewound, and index the changed blobs
+					List<RevCommit> removed = Collections.emptyList();
+					if (hasOld) {
+						removed = getRevs(repository, oldId, newId);
+					}
+					Map<String, List<String>> tags = getAnnotatedTags(repository);
+					SearcherManager manager = getSearcherManager(repository);
+					manager.maybeReopen();
+					IndexSearcher searcher = manager.acquire();
+					try {
+						for (RevCommit commit : added) {
+							updateCommit(writer, searcher, repositoryName, commit,
+									tags.get(commit.getName()), branch, true);
+						}
+						for (RevCommit commit : removed) {
+							updateCommit(writer, searcher, repositoryName, commit,
+									tags.get(commit.getName()), branch, false);
+						}
+					} finally {
+						manager.release(searcher);
+					}
+					indexBlobs(repository, writer, branch, oldTree, tip);
+				}
+				result.commitCount += added.size();
+				config.setString(CONF_ALIAS, null, keyName, branch);
+				config.setString(CONF_BRANCH, null, keyName, newId.getName());
+			}
+			setIndexVersion(config);
+			config.save();
+			writer.commit();
+			refreshIndexSearcher(repository);
+			result.success = true;
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		return false;
+		return result;
 	}
 
 	/**
-	 * Updates a repository index incrementally from the last indexed commits.
+	 * Returns the commits which are reachable from the start commit and not
+	 * from the end commit, newest first.
 	 * 
 	 * @param repository
-	 * @return IndexResult
+	 * @param startId
+	 * @param endId
+	 *            may be null to return the entire history of the start commit
+	 * @return the commits of the range
+	 * @throws IOException
 	 */
-	public static IndexResult updateIndex(Repository repository) {
-		IndexResult result = new IndexResult();
+	private static List<RevCommit> getRevs(Repository repository, ObjectId startId,
+			ObjectId endId) throws IOException {
+		List<RevCommit> revs = new ArrayList<RevCommit>();
+		RevWalk revWalk = new RevWalk(repository);
 		try {
-			FileBasedConfig config = getConfig(repository);
-			config.load();
-
-			// build a quick lookup of annotated tags
-			Map<String, List<String>> tags = new HashMap<String, List<String>>();
-			for (RefModel tag : JGitUtils.getTags(repository, false, -1)) {
-				if (!tag.isAnnotatedTag()) {
-					// skip non-annotated tags
-					continue;
-				}
-				if (!tags.containsKey(tag.getObjectId())) {
-					tags.put(tag.getReferencedObjectId().getName(), new ArrayList<String>());
-				}
-				tags.get(tag.getReferencedObjectId().getName()).add(tag.displayName);
+			revWalk.markStart(revWalk.parseCommit(startId));
+			if (endId != null) {
+				revWalk.markUninteresting(revWalk.parseCommit(endId));
 			}
-
-			// detect branch deletion
-			// first assume all branches are deleted and then remove each
-			// existing branch from deletedBranches during indexing
-			Set<String> deletedBranches = new TreeSet<String>();
-			for (String alias : config.getNames(CONF_ALIAS)) {
-				String branch = config.getString(CONF_ALIAS, null, alias);
-				deletedBranches.add(branch);
+			RevCommit rev;
+			while ((rev = revWalk.next()) != null) {
+				revs.add(rev);
 			}
+		} finally {
+			revWalk.dispose();
+		}
+		return revs;
+	}
 
-			// walk through each branches
-			List<RefModel> branches = JGitUtils.getLocalBranches(repository, true, -1);
-			for (RefModel branch : branches) {
-				String branchName = branch.getName();
-
-				// remove this branch from the deletedBranches set
-				deletedBranches.remove(branchName);
+	/**
+	 * Updates the blob documents for the paths which differ between two trees
+	 * of a branch. The branch is removed from the blobs of the old tree and
+	 * added to the blobs of the new tree. A blob document is only deleted when
+	 * no branch references it anymore.
+	 * 
+	 * @param repository
+	 * @param writer
+	 * @param branch
+	 * @param oldTree
+	 *            the previously indexed tree of the branch, may be null
+	 * @param commit
+	 *            the commit with the new tree of the branch
+	 * @throws IOException
+	 */
+	private static void indexBlobs(Repository repository, IndexWriter writer, String branch,
+			RevTree oldTree, RevCommit commit) throws IOException {
+		String repositoryName = getName(repository);
+		String revDate = DateTools.timeToString(commit.getCommitTime() * 1000L,
+				Resolution.MINUTE);
+		String author = commit.getAuthorIdent().getName();
+		String committer = commit.getCommitterIdent().getName();
 
-				// determine last commit
-				String keyName = getBranchKey(branchName);
-				String lastCommit = config.getString(CONF_BRANCH, null, keyName);
+		SearcherManager manager = getSearcherManager(repository);
+		manager.maybeReopen();
+		IndexSearcher searcher = manager.acquire();
+		ObjectReader reader = repository.newObjectReader();
+		TreeWalk treeWalk = new TreeWalk(reader);
+		try {
+			if (oldTree == null) {
+				treeWalk.addTree(new EmptyTreeIterator());
+			} else {
+				treeWalk.addTree(oldTree);
+			}
+			treeWalk.addTree(commit.getTree());
+			treeWalk.setFilter(TreeFilter.ANY_DIFF);
+			treeWalk.setRecursive(true);
+			while (treeWalk.next()) {
+				String path = treeWalk.getPathString();
+				ObjectId blobId = null;
+				if (treeWalk.getFileMode(1).getObjectType() == Constants.OBJ_BLOB
+						&& !isExcluded(path)) {
+					blobId = treeWalk.getObjectId(1);
+				}
 
-				List<RevCommit> revs;
-				if (StringUtils.isEmpty(lastCommit)) {
-					// new branch/unindexed branch, get all commits on branch
-					revs = JGitUtils.getRevLog(repository, branchName, 0, -1);
-				} else {
-					// pre-existing branch, get changes since last commit
-					revs = JGitUtils.getRevLog(repository, lastCommit, branchName);
+				// remove the branch from the previously indexed blob
+				Term branchTerm = new Term(FIELD_BRANCH, branch);
+				Term pathTerm = new Term(FIELD_OBJECT_ID, path);
+				for (Document doc : findDocuments(searcher, repositoryName, ObjectType.blob,
+						branchTerm, pathTerm)) {
+					if (blobId != null && blobId.getName().equals(doc.get(FIELD_BLOB_ID))) {
+						// blob is already indexed for the branch
+						continue;
+					}
+					List<String> branches = new ArrayList<String>(Arrays.asList(doc
+							.getValues(FIELD_BRANCH)));
+					branches.remove(branch);
+					updateBlob(writer, reader, doc, branches);
 				}
 
-				// reverse the list of commits so we start with the first commit
-				Collections.reverse(revs);
-				for (RevCommit commit : revs) {
-					index(repository, branchName, commit);
-					result.commitCount += 1;
+				if (blobId == null) {
+					// deleted path, submodule, or blacklisted extension
+					continue;
 				}
 
-				// update the config
-				config.setInt(CONF_INDEX, null, CONF_VERSION, INDEX_VERSION);
-				config.setString(CONF_ALIAS, null, keyName, branchName);
-				config.setString(CONF_BRANCH, null, keyName, branch.getObjectId().getName());
-				config.save();
+				// add the branch to the blob if it is indexed for another
+				// branch, otherwise index the blob
+				Term blobTerm = new Term(FIELD_BLOB_ID, blobId.getName());
+				List<Document> docs = findDocuments(searcher, repositoryName,
+						ObjectType.blob, blobTerm, pathTerm);
+				if (docs.size() > 0) {
+					Document doc = docs.get(0);
+					List<String> branches = new ArrayList<String>(Arrays.asList(doc
+							.getValues(FIELD_BRANCH)));
+					if (!branches.contains(branch)) {
+						branches.add(branch);
+						updateBlob(writer, reader, doc, branches);
+					}
+				} else {
+					BlobContent content = BlobContent.open(reader, blobId);
+					if (content == null) {
+						// binary content
+						continue;
+					}
+					Document doc = createDocument(repositoryName, Arrays.asList(branch), path,
+							blobId, revDate, author, committer);
+					doc.add(new Field(FIELD_CONTENT, content.openReader()));
+					writer.addDocument(doc);
+				}
+			}
+		} finally {
+			treeWalk.release();
+			reader.release();
+			manager.release(searcher);
+		}
+	}
+
+	/**
+	 * Removes a deleted branch from the index. Blobs and commits which are
+	 * referenced by other branches are kept.
+	 * 
+	 * @param repository
+	 * @param writer
+	 * @param branch
+	 * @throws IOException
+	 */
+	private static void deleteBranch(Repository repository, IndexWriter writer, String branch)
+			throws IOException {
+		String repositoryName = getName(repository);
+		Term branchTerm = new Term(FIELD_BRANCH, branch);
+		SearcherManager manager = getSearcherManager(repository);
+		manager.maybeReopen();
+		IndexSearcher searcher = manager.acquire();
+		ObjectReader reader = repository.newObjectReader();
+		RevWalk revWalk = new RevWalk(reader);
+		try {
+			for (Document doc : findDocuments(searcher, repositoryName, ObjectType.blob,
+					branchTerm)) {
+				List<String> branches = new ArrayList<String>(Arrays.asList(doc
+						.getValues(FIELD_BRANCH)));
+				branches.remove(branch);
+				updateBlob(writer, reader, doc, branches);
+			}
+
+			Map<String, List<String>> tags = getAnnotatedTags(repository);
+			for (Document doc : findDocuments(searcher, repositoryName, ObjectType.commit,
+					branchTerm)) {
+				List<String> branches = new ArrayList<String>(Arrays.asList(doc
+						.getValues(FIELD_BRANCH)));
+				branches.remove(branch);
+				ObjectId id = ObjectId.fromString(doc.get(FIELD_OBJECT_ID));
+				if (branches.isEmpty() || !repository.hasObject(id)) {
+					deleteDocuments(writer, repositoryName, new Term(FIELD_OBJECT_TYPE,
+							ObjectType.commit.name()), new Term(FIELD_OBJECT_ID, id.getName()));
+				} else {
+					RevCommit commit = revWalk.parseCommit(id);
+					writeCommit(writer, repositoryName, commit, tags.get(commit.getName()),
+							branches);
+				}
+			}
+		} finally {
+			revWalk.release();
+			reader.release();
+			manager.release(searcher);
+		}
+	}
+
+	/**
+	 * Adds a branch to or removes a branch from an indexed commit. The commit
+	 * is indexed if it is not already indexed for another branch and it is
+	 * removed from the index if no branch references it anymore.
+	 * 
+	 * @param writer
+	 * @param searcher
+	 * @param repositoryName
+	 * @param commit
+	 * @param tags
+	 * @param branch
+	 * @param add
+	 *            true to add the branch, false to remove it
+	 * @return true if the index was changed
+	 * @throws IOException
+	 */
+	private static boolean updateCommit(IndexWriter writer, IndexSearcher searcher,
+			String repositoryName, RevCommit commit, List<String> tags, String branch, boolean add)
+			throws IOException {
+		List<Document> docs = findDocuments(searcher, repositoryName, ObjectType.commit,
+				new Term(FIELD_OBJECT_ID, commit.getName()));
+		List<String> branches = new ArrayList<String>();
+		if (docs.size() > 0) {
+			branches.addAll(Arrays.asList(docs.get(0).getValues(FIELD_BRANCH)));
+		}
+		if (add) {
+			if (branches.contains(branch)) {
+				return false;
+			}
+			branches.add(branch);
+		} else if (!branches.remove(branch)) {
+			return false;
+		}
+		writeCommit(writer, repositoryName, commit, tags, branches);
+		return true;
+	}
+
+	/**
+	 * Replaces the indexed document of a commit with a document for the
+	 * specified branches. If there are no branches the document is deleted.
+	 * 
+	 * @param writer
+	 * @param repositoryName
+	 * @param commit
+	 * @param tags
+	 * @param branches
+	 * @throws IOException
+	 */
+	private static void writeCommit(IndexWriter writer, String repositoryName, RevCommit commit,
+			List<String> tags, List<String> branches) throws IOException {
+		deleteDocuments(writer, repositoryName, new Term(FIELD_OBJECT_TYPE,
+				ObjectType.commit.name()), new Term(FIELD_OBJECT_ID, commit.getName()));
+		if (branches.isEmpty()) {
+			return;
+		}
+		Document doc = createDocument(commit, tags, branches);
+		doc.add(new Field(FIELD_REPOSITORY, repositoryName, Store.YES, Index.NOT_ANALYZED));
+		writer.addDocument(doc);
+	}
+
+	/**
+	 * Finds the documents of the specified type of the repository which match
+	 * all of the specified terms.
+	 * 
+	 * @param searcher
+	 * @param repositoryName
+	 * @param type
+	 * @param terms
+	 * @return the matching documents
+	 * @throws IOException
+	 */
+	private static List<Document> findDocuments(IndexSearcher searcher, String repositoryName,
+			ObjectType type, Term... terms) throws IOException {
+		BooleanQuery query = new BooleanQuery();
+		query.add(new TermQuery(new Term(FIELD_REPOSITORY, repositoryName)), Occur.MUST);
+		query.add(new TermQuery(new Term(FIELD_OBJECT_TYPE, type.name())), Occur.MUST);
+		for (Term term : terms) {
+			query.add(new TermQuery(term), Occur.MUST);
+		}
+		final List<Integer> ids = new ArrayList<Integer>();
+		searcher.search(query, new Collector() {
+			private int docBase;
+
+			@Override
+			public void setScorer(Scorer scorer) {
+			}
+
+			@Override
+			public void collect(int doc) {
+				ids.add(docBase + doc);
+			}
+
+			@Override
+			public void setNextReader(IndexReader reader, int docBase) {
+				this.docBase = docBase;
+			}
+
+			@Override
+			public boolean acceptsDocsOutOfOrder() {
+				return true;
+			}
+		});
+		List<Document> docs = new ArrayList<Document>();
+		for (int id : ids) {
+			docs.add(searcher.doc(id));
+		}
+		return docs;
+	}
+
+	/**
+	 * Replaces an indexed blob document with a document for the specified
+	 * branches. The blob content is read again because it is not stored in
+	 * the index. If there are no branches the document is deleted.
+	 * 
+	 * @param writer
+	 * @param reader
+	 * @param doc
+	 *            the indexed blob document
+	 * @param branches
+	 * @throws IOException
+	 */
+	private static void updateBlob(IndexWriter writer, ObjectReader reader, Document doc,
+			List<String> branches) throws IOException {
+		String repositoryName = doc.get(FIELD_REPOSITORY);
+		String path = doc.get(FIELD_OBJECT_ID);
+		ObjectId blobId = ObjectId.fromString(doc.get(FIELD_BLOB_ID));
+		deleteDocuments(writer, repositoryName, new Term(FIELD_OBJECT_TYPE,
+				ObjectType.blob.name()), new Term(FIELD_BLOB_ID, blobId.getName()), new Term(
+				FIELD_OBJECT_ID, path));
+		BlobContent content = BlobContent.open(reader, blobId);
+		if (branches.size() > 0 && content != null) {
+			Document blob = createDocument(repositoryName, branches, path, blobId,
+					doc.get(FIELD_DATE), doc.get(FIELD_AUTHOR), doc.get(FIELD_COMMITTER));
+			blob.add(new Field(FIELD_CONTENT, content.openReader()));
+			writer.addDocument(blob);
+		}
+	}
+
+	/**
+	 * The content of a blob to be indexed. The first bytes of a blob are read
+	 * to detect binary content. The content is streamed to the analyzer and
+	 * only the first maxIndexedSize bytes of a blob are indexed.
+	 */
+	private static class BlobContent {
+
+		final ObjectReader reader;
+
+		final ObjectId blobId;
+
+		final byte[] head;
+
+		final boolean isComplete;
+
+		BlobContent(ObjectReader reader, ObjectId blobId, byte[] head, boolean isComplete) {
+			this.reader = reader;
+			this.blobId = blobId;
+			this.head = head;
+			this.isComplete = isComplete;
+		}
+
+		/**
+		 * Opens the content of a blob.
+		 * 
+		 * @param reader
+		 * @param blobId
+		 * @return the blob content or null if the blob is binary
+		 * @throws IOException
+		 */
+		static BlobContent open(ObjectReader reader, ObjectId blobId) throws IOException {
+			long maxSize = maxIndexedSize;
+			ObjectLoader ldr = reader.open(blobId, Constants.OBJ_BLOB);
+			int length = (int) Math.min(ldr.getSize(), Math.min(SNIFF_SIZE, maxSize));
+			byte[] head = new byte[length];
+			InputStream in = ldr.openStream();
+			try {
+				IO.readFully(in, head, 0, length);
+			} finally {
+				in.close();
+			}
+			if (RawText.isBinary(head)) {
+				return null;
+			}
+			boolean isComplete = ldr.getSize() <= length || length >= maxSize;
+			return new BlobContent(reader, blobId, head, isComplete);
+		}
+
+		/**
+		 * Returns a reader of the content. The blob is only opened again when
+		 * the analyzer reads content which was not sniffed.
+		 * 
+		 * @return a reader
+		 * @throws IOException
+		 */
+		Reader openReader() throws IOException {
+			InputStream in;
+			if (isComplete) {
+				in = new ByteArrayInputStream(head);
+			} else {
+				in = new ContentStream(maxIndexedSize);
+			}
+			return new InputStreamReader(in, Constants.CHARACTER_ENCODING);
+		}
+
+		/**
+		 * Lazily opened stream of the first bytes of the blob.
+		 */
+		private class ContentStream extends InputStream {
+
+			InputStream in;
+
+			long remaining;
+
+			ContentStream(long maxSize) {
+				this.remaining = maxSize;
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int n = read(b, 0, 1);
+				return n <= 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining <= 0) {
+					close();
+					return -1;
+				}
+				if (in == null) {
+					in = reader.open(blobId, Constants.OBJ_BLOB).openStream();
+				}
+				int n = in.read(b, off, (int) Math.min(len, remaining));
+				if (n < 0) {
+					close();
+					return -1;
+				}
+				remaining -= n;
+				return n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				remaining = 0;
+				if (in != null) {
+					in.close();
+					in = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Incrementally update the index with the specified issue for the
+	 * repository.
+	 * 
+	 * @param repository
+	 * @param issue
+	 * @return true, if successful
+	 */
+	public static boolean index(Repository repository, IssueModel issue) {
+		try {
+			// delete the old issue from the index, if exists
+			IndexWriter writer = getIndexWriter(repository, false);
+			deleteDocuments(writer, getName(repository), new Term(FIELD_OBJECT_TYPE,
+					ObjectType.issue.name()), new Term(FIELD_OBJECT_ID, String.valueOf(issue.id)));
+			writer.commit();
+
+			Document doc = createDocument(issue);
+			return index(repository, doc);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	/**
+	 * Updates a repository index incrementally from the last indexed commits.
+	 * 
+	 * @param repository
+	 * @return IndexResult
+	 */
+	public static IndexResult updateIndex(Repository repository) {
+		IndexResult result = new IndexResult();
+		try {
+			FileBasedConfig config = getConfig(repository);
+			config.load();
+
+			// build a quick lookup of annotated tags
+			Map<String, List<String>> tags = getAnnotatedTags(repository);
+
+			// detect branch deletion
+			// first assume all branches are deleted and then remove each
+			// existing branch from deletedBranches during indexing
+			Set<String> deletedBranches = new TreeSet<String>();
+			for (String alias : config.getNames(CONF_ALIAS)) {
+				String branch = config.getString(CONF_ALIAS, null, alias);
+				deletedBranches.add(branch);
+			}
+
+			// walk through each branches
+			List<RefModel> branches = JGitUtils.getLocalBranches(repository, true, -1);
+			for (RefModel branch : branches) {
+				String branchName = branch.getName();
+
+				// remove this branch from the deletedBranches set
+				deletedBranches.remove(branchName);
+
+				// determine last commit
+				String keyName = getBranchKey(branchName);
+				String lastCommit = config.getString(CONF_BRANCH, null, keyName);
+
+				List<RevCommit> revs;
+				if (StringUtils.isEmpty(lastCommit)) {
+					// new branch/unindexed branch, get all commits on branch
+					revs = JGitUtils.getRevLog(repository, branchName, 0, -1);
+				} else {
+					// pre-existing branch, get changes since last commit
+					revs = JGitUtils.getRevLog(repository, lastCommit, branchName);
+				}
+
+				// reverse the list of commits so we start with the first commit
+				Collections.reverse(revs);
+				for (RevCommit commit : revs) {
+					index(repository, branchName, commit);
+					result.commitCount += 1;
+				}
+
+				// update the config
+				setIndexVersion(config);
+				config.setString(CONF_ALIAS, null, keyName, branchName);
+				config.setString(CONF_BRANCH, null, keyName, branch.getObjectId().getName());
+				config.save();
 			}
 
 			// the deletedBranches set will normally be empty by this point
@@ -530,9 +1354,10 @@ public class LuceneUtils {
 			if (deletedBranches.size() > 0) {
 				for (String branch : deletedBranches) {
 					IndexWriter writer = getIndexWriter(repository, false);
-					writer.deleteDocuments(new Term(FIELD_BRANCH, branch));
+					deleteBranch(repository, writer, branch);
 					writer.commit();
 				}
+				refreshIndexSearcher(repository);
 			}
 			result.success = true;
 		} catch (Throwable t) {
@@ -541,6 +1366,75 @@ public class LuceneUtils {
 		return result;
 	}
 
+	/**
+	 * Returns the names of the annotated tags of each tagged commit.
+	 * 
+	 * @param repository
+	 * @return a map of commit id to tag names
+	 */
+	private static Map<String, List<String>> getAnnotatedTags(Repository repository) {
+		Map<String, List<String>> tags = new HashMap<String, List<String>>();
+		for (RefModel tag : JGitUtils.getTags(repository, false, -1)) {
+			if (!tag.isAnnotatedTag()) {
+				// skip non-annotated tags
+				continue;
+			}
+			String commitId = tag.getReferencedObjectId().getName();
+			if (!tags.containsKey(commitId)) {
+				tags.put(commitId, new ArrayList<String>());
+			}
+			tags.get(commitId).add(tag.displayName);
+		}
+		return tags;
+	}
+
+	/**
+	 * Determines if the extension of the path is blacklisted from indexing.
+	 * 
+	 * @param path
+	 * @return true if the blob content should not be indexed
+	 */
+	private static boolean isExcluded(String path) {
+		String name = path.substring(path.lastIndexOf('/') + 1).toLowerCase();
+		if (name.indexOf('.') > -1) {
+			String ext = name.substring(name.lastIndexOf('.') + 1);
+			return excludedExtensions.contains(ext);
+		}
+		return false;
+	}
+
+	/**
+	 * Creates a Lucene document for a blob at a path, without its content.
+	 * The branches which reference the blob at the path are stored as a
+	 * multi-valued field.
+	 * 
+	 * @param repositoryName
+	 * @param branches
+	 * @param path
+	 * @param blobId
+	 * @param date
+	 * @param author
+	 * @param committer
+	 * @return a Lucene document
+	 */
+	private static Document createDocument(String repositoryName, List<String> branches,
+			String path, ObjectId blobId, String date, String author, String committer) {
+		Document doc = new Document();
+		doc.add(new Field(FIELD_OBJECT_TYPE, ObjectType.blob.name(), Store.YES,
+				Index.NOT_ANALYZED_NO_NORMS));
+		doc.add(new Field(FIELD_REPOSITORY, repositoryName, Store.YES, Index.NOT_ANALYZED));
+		doc.add(new Field(FIELD_OBJECT_ID, path, Store.YES, Index.NOT_ANALYZED));
+		doc.add(new Field(FIELD_BLOB_ID, blobId.getName(), Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+		doc.add(new Field(FIELD_DATE, date, Store.YES, Index.NO));
+		doc.add(new Field(FIELD_AUTHOR, author, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+		doc.add(new Field(FIELD_COMMITTER, committer, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+		for (String branch : branches) {
+			doc.add(new Field(FIELD_BRANCH, branch, Store.YES, Index.NOT_ANALYZED));
+			doc.add(new Field(FIELD_LABEL, branch, Store.YES, Index.ANALYZED));
+		}
+		return doc;
+	}
+
 	/**
 	 * Creates a Lucene document from an issue.
 	 * 
@@ -570,32 +1464,49 @@ public class LuceneUtils {
 	}
 
 	/**
-	 * Creates a Lucene document for a commit
+	 * Creates a Lucene document for a commit. The lowercased name and email
+	 * address of the author and the committer are indexed for the commit log
+	 * search and the commit date is indexed for sorting.
 	 * 
 	 * @param commit
 	 * @param tags
+	 * @param branches
+	 *            the branches which contain the commit
 	 * @return a Lucene document
 	 */
-	private static Document createDocument(RevCommit commit, List<String> tags) {
+	private static Document createDocument(RevCommit commit, List<String> tags,
+			List<String> branches) {
 		Document doc = new Document();
 		doc.add(new Field(FIELD_OBJECT_TYPE, ObjectType.commit.name(), Store.YES,
 				Index.NOT_ANALYZED_NO_NORMS));
 		doc.add(new Field(FIELD_OBJECT_ID, commit.getName(), Store.YES, Index.NOT_ANALYZED));
 		doc.add(new Field(FIELD_DATE, DateTools.timeToString(commit.getCommitTime() * 1000L,
-				Resolution.MINUTE), Store.YES, Index.NO));
+				Resolution.SECOND), Store.YES, Index.NOT_ANALYZED_NO_NORMS));
 		doc.add(new Field(FIELD_AUTHOR, commit.getCommitterIdent().getName(), Store.YES,
 				Index.NOT_ANALYZED_NO_NORMS));
+		doc.add(new Field(FIELD_COMMITTER, commit.getCommitterIdent().getName(), Store.YES,
+				Index.NOT_ANALYZED_NO_NORMS));
+		addIdent(doc, FIELD_AUTHOR_IDENT, commit.getAuthorIdent());
+		addIdent(doc, FIELD_COMMITTER_IDENT, commit.getCommitterIdent());
 		doc.add(new Field(FIELD_SUMMARY, commit.getShortMessage(), Store.YES, Index.ANALYZED));
 		doc.add(new Field(FIELD_CONTENT, commit.getFullMessage(), Store.NO, Index.ANALYZED));
+		for (String branch : branches) {
+			doc.add(new Field(FIELD_BRANCH, branch, Store.YES, Index.NOT_ANALYZED));
+		}
 		if (!ArrayUtils.isEmpty(tags)) {
-			if (!ArrayUtils.isEmpty(tags)) {
-				doc.add(new Field(FIELD_LABEL, StringUtils.flattenStrings(tags), Store.YES,
-						Index.ANALYZED));
-			}
+			doc.add(new Field(FIELD_LABEL, StringUtils.flattenStrings(tags), Store.YES,
+					Index.ANALYZED));
 		}
 		return doc;
 	}
 
+	private static void addIdent(Document doc, String field, PersonIdent ident) {
+		doc.add(new Field(field, ident.getName().toLowerCase(), Store.NO,
+				Index.NOT_ANALYZED_NO_NORMS));
+		doc.add(new Field(field, ident.getEmailAddress().toLowerCase(), Store.NO,
+				Index.NOT_ANALYZED_NO_NORMS));
+	}
+
 	/**
 	 * Incrementally index an object for the repository.
 	 * 
@@ -609,8 +1520,8 @@ public class LuceneUtils {
 			doc.add(new Field(FIELD_REPOSITORY, repositoryName, Store.YES, Index.NOT_ANALYZED));
 			IndexWriter writer = getIndexWriter(repository, false);
 			writer.addDocument(doc);
-			resetIndexSearcher(repository);
 			writer.commit();
+			refreshIndexSearcher(repository);
 			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -618,7 +1529,42 @@ public class LuceneUtils {
 		return false;
 	}
 
-	private static SearchResult createSearchResult(Document doc, float score) throws ParseException {
+	/**
+	 * Deletes the documents of the repository which match all of the specified
+	 * terms. If no terms are specified, all documents of the repository are
+	 * deleted.
+	 * 
+	 * @param writer
+	 * @param repositoryName
+	 * @param terms
+	 * @throws IOException
+	 */
+	private static void deleteDocuments(IndexWriter writer, String repositoryName, Term... terms)
+			throws IOException {
+		BooleanQuery query = new BooleanQuery();
+		query.add(new TermQuery(new Term(FIELD_REPOSITORY, repositoryName)), Occur.MUST);
+		for (Term term : terms) {
+			query.add(new TermQuery(term), Occur.MUST);
+		}
+		writer.deleteDocuments(query);
+	}
+
+	/**
+	 * Creates a search result from a document. Blobs and commits which are
+	 * referenced by several branches are indexed once with all branches. The
+	 * result reports the default branch of the repository, the branch of
+	 * HEAD, if it references the object, otherwise the first branch in name
+	 * order.
+	 * 
+	 * @param doc
+	 * @param score
+	 * @param heads
+	 *            the default branches of the searched repositories
+	 * @return a search result
+	 * @throws ParseException
+	 */
+	private static SearchResult createSearchResult(Document doc, float score,
+			Map<String, String> heads) throws ParseException {
 		SearchResult result = new SearchResult();
 		result.score = score;
 		result.date = DateTools.stringToDate(doc.get(FIELD_DATE));
@@ -627,66 +1573,252 @@ public class LuceneUtils {
 		result.committer = doc.get(FIELD_COMMITTER);
 		result.type = ObjectType.fromName(doc.get(FIELD_OBJECT_TYPE));
 		result.repository = doc.get(FIELD_REPOSITORY);
-		result.branch = doc.get(FIELD_BRANCH);
+		result.branch = selectBranch(doc.getValues(FIELD_BRANCH), heads.get(result.repository));
 		result.id = doc.get(FIELD_OBJECT_ID);
-		if (doc.get(FIELD_LABEL) != null) {
-			result.labels = StringUtils.getStringsFromValue(doc.get(FIELD_LABEL));
+		String[] labels = doc.getValues(FIELD_LABEL);
+		if (labels.length > 0) {
+			result.labels = StringUtils.getStringsFromValue(StringUtils.flattenStrings(Arrays
+					.asList(labels)));
 		}
 		return result;
 	}
 
-	private static void resetIndexSearcher(Repository repository) throws IOException {
-		IndexSearcher searcher = SEARCHERS.get(repository.getDirectory());
-		if (searcher != null) {
-			SEARCHERS.remove(repository.getDirectory());
-			searcher.close();
+	/**
+	 * Selects the branch which is reported for a document.
+	 * 
+	 * @param branches
+	 *            the branches of the document
+	 * @param head
+	 *            the default branch of the repository, may be null
+	 * @return the default branch if it is one of the branches, otherwise the
+	 *         first branch in name order
+	 */
+	private static String selectBranch(String[] branches, String head) {
+		String branch = null;
+		for (String value : branches) {
+			if (value.equals(head)) {
+				return value;
+			}
+			if (branch == null || value.compareTo(branch) < 0) {
+				branch = value;
+			}
+		}
+		return branch;
+	}
+
+	/**
+	 * Returns the branch of HEAD.
+	 * 
+	 * @param repository
+	 * @return the full name of the default branch or null if HEAD is detached
+	 */
+	private static String getHeadBranch(Repository repository) {
+		try {
+			String head = repository.getFullBranch();
+			if (head != null && head.startsWith(Constants.R_HEADS)) {
+				return head;
+			}
+		} catch (IOException e) {
 		}
+		return null;
 	}
 
 	/**
-	 * Gets an index searcher for the repository.
+	 * Reopens the index searcher of the repository after a commit of the index
+	 * writer. Only the changed segments of the index are reopened and searches
+	 * in progress continue on the previous searcher.
 	 * 
 	 * @param repository
-	 * @return
 	 * @throws IOException
 	 */
-	private static IndexSearcher getIndexSearcher(Repository repository) throws IOException {
-		IndexSearcher searcher = SEARCHERS.get(repository.getDirectory());
-		if (searcher == null) {
-			IndexWriter writer = getIndexWriter(repository, false);
-			searcher = new IndexSearcher(IndexReader.open(writer, true));
-			SEARCHERS.put(repository.getDirectory(), searcher);
+	private static void refreshIndexSearcher(Repository repository) throws IOException {
+		SearcherManager manager = SEARCHERS.get(getIndexFolder(repository));
+		if (manager != null) {
+			manager.maybeReopen();
 		}
-		return searcher;
 	}
 
 	/**
-	 * Gets an index writer for the repository. The index will be created if it
-	 * does not already exist or if forceCreate is specified.
+	 * Closes the index searcher of the repository. The searcher is closed
+	 * after any searches in progress have released it.
 	 * 
 	 * @param repository
-	 * @param forceCreate
-	 * @return an IndexWriter
 	 * @throws IOException
 	 */
-	private static IndexWriter getIndexWriter(Repository repository, boolean forceCreate)
-			throws IOException {
-		IndexWriter indexWriter = WRITERS.get(repository.getDirectory());
-		File indexFolder = new File(repository.getDirectory(), "lucene");
-		Directory directory = FSDirectory.open(indexFolder);
-		if (forceCreate || !indexFolder.exists()) {
-			// if the writer is going to blow away the existing index and create
-			// a new one then it should not be cached. instead, close any open
-			// writer, create a new one, and return.
+	private static void closeIndexSearcher(Repository repository) throws IOException {
+		SearcherManager manager = SEARCHERS.remove(getIndexFolder(repository));
+		if (manager != null) {
+			manager.close();
+		}
+	}
+
+	/**
+	 * Gets the near-real-time searcher manager for the repository. Searchers
+	 * acquired from the manager must be released.
+	 * 
+	 * @param repository
+	 * @return a searcher manager
+	 * @throws IOException
+	 */
+	private static SearcherManager getSearcherManager(Repository repository) throws IOException {
+		File indexFolder = getIndexFolder(repository);
+		SearcherManager manager = SEARCHERS.get(indexFolder);
+		if (manager == null) {
+			synchronized (SEARCHERS) {
+				manager = SEARCHERS.get(indexFolder);
+				if (manager == null) {
+					IndexWriter writer = getIndexWriter(repository, false);
+					manager = new SearcherManager(writer, true, null, null);
+					SEARCHERS.put(indexFolder, manager);
+				}
+			}
+		}
+		return manager;
+	}
+
+	/**
+	 * Acquires a composite searcher for the repositories. The composite
+	 * searcher of a repository set is cached and reused until one of the
+	 * repository searchers is reopened. The acquired composite searcher must
+	 * be released.
+	 * 
+	 * @param repositories
+	 * @return a composite searcher
+	 * @throws IOException
+	 */
+	private static CompositeSearcher acquireCompositeSearcher(Repository... repositories)
+			throws IOException {
+		Repository[] sorted = Arrays.copyOf(repositories, repositories.length);
+		Arrays.sort(sorted, new Comparator<Repository>() {
+			@Override
+			public int compare(Repository r1, Repository r2) {
+				return r1.getDirectory().compareTo(r2.getDirectory());
+			}
+		});
+		List<String> folders = new ArrayList<String>();
+		for (Repository repository : sorted) {
+			folders.add(repository.getDirectory().getAbsolutePath());
+		}
+		String key = StringUtils.flattenStrings(folders, File.pathSeparator);
+
+		SearcherManager[] managers = new SearcherManager[sorted.length];
+		IndexSearcher[] searchers = new IndexSearcher[sorted.length];
+		try {
+			IndexReader[] readers = new IndexReader[sorted.length];
+			for (int i = 0; i < sorted.length; i++) {
+				managers[i] = getSearcherManager(sorted[i]);
+				searchers[i] = managers[i].acquire();
+				readers[i] = searchers[i].getIndexReader();
+			}
+			synchronized (COMPOSITES) {
+				CompositeSearcher composite = COMPOSITES.get(key);
+				if (composite == null || !Arrays.equals(composite.readers, readers)) {
+					// the composite reader holds its own reference to the
+					// repository readers
+					if (composite != null) {
+						composite.release();
+					}
+					composite = new CompositeSearcher(readers);
+					COMPOSITES.put(key, composite);
+				}
+				composite.acquire();
+				return composite;
+			}
+		} finally {
+			for (int i = 0; i < searchers.length; i++) {
+				if (searchers[i] != null) {
+					managers[i].release(searchers[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A searcher over the readers of several repository indexes. The composite
+	 * searcher is reference counted and closed when the last search which uses
+	 * it has released it.
+	 */
+	private static class CompositeSearcher {
+
+		final IndexReader[] readers;
+
+		final MultiReader reader;
+
+		final IndexSearcher searcher;
+
+		CompositeSearcher(IndexReader[] readers) {
+			this.readers = readers;
+			this.reader = new MultiReader(readers, false);
+			this.searcher = new IndexSearcher(reader);
+		}
+
+		void acquire() {
+			reader.incRef();
+		}
+
+		void release() {
+			try {
+				reader.decRef();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Gets an index writer for the repository. The index will be created if it
+	 * does not already exist or if forceCreate is specified. The shared index
+	 * must never be force created. Writers are created under the lock of the
+	 * writer map because an index folder can only have one open writer.
+	 * 
+	 * @param repository
+	 * @param forceCreate
+	 * @return an IndexWriter
+	 * @throws IOException
+	 */
+	private static IndexWriter getIndexWriter(Repository repository, boolean forceCreate)
+			throws IOException {
+		File indexFolder = getIndexFolder(repository);
+		if (!forceCreate) {
+			IndexWriter indexWriter = WRITERS.get(indexFolder);
+			if (indexWriter != null && indexFolder.exists()) {
+				return indexWriter;
+			}
+		}
+		synchronized (WRITERS) {
+			return createIndexWriter(repository, indexFolder, forceCreate);
+		}
+	}
+
+	/**
+	 * Creates the index writer of an index folder unless it already exists.
+	 * The caller must hold the lock of the writer map.
+	 * 
+	 * @param repository
+	 * @param indexFolder
+	 * @param forceCreate
+	 * @return an IndexWriter
+	 * @throws IOException
+	 */
+	private static IndexWriter createIndexWriter(Repository repository, File indexFolder,
+			boolean forceCreate) throws IOException {
+		IndexWriter indexWriter = WRITERS.get(indexFolder);
+		Directory directory = FSDirectory.open(indexFolder);
+		if (forceCreate || !indexFolder.exists()) {
+			// if the writer is going to blow away the existing index and create
+			// a new one then it should not be cached. instead, close any open
+			// writer, create a new one, and return.
+			closeIndexSearcher(repository);
 			if (indexWriter != null) {
 				indexWriter.close();
 				indexWriter = null;
-				WRITERS.remove(repository.getDirectory());
+				WRITERS.remove(indexFolder);
 			}
 			indexFolder.mkdirs();
 			IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, new StandardAnalyzer(
 					LUCENE_VERSION));
 			config.setOpenMode(OpenMode.CREATE);
+			config.setRAMBufferSizeMB(ramBufferSizeMB);
 			IndexWriter writer = new IndexWriter(directory, config);
 			writer.close();
 		}
@@ -695,8 +1827,9 @@ public class LuceneUtils {
 			IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, new StandardAnalyzer(
 					LUCENE_VERSION));
 			config.setOpenMode(OpenMode.APPEND);
+			config.setRAMBufferSizeMB(ramBufferSizeMB);
 			indexWriter = new IndexWriter(directory, config);
-			WRITERS.put(repository.getDirectory(), indexWriter);
+			WRITERS.put(indexFolder, indexWriter);
 		}
 		return indexWriter;
 	}
@@ -722,64 +1855,688 @@ public class LuceneUtils {
 		if (repositories.length == 0) {
 			return null;
 		}
-		Set<SearchResult> results = new LinkedHashSet<SearchResult>();
-		StandardAnalyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
+		List<SearchResult> results = new ArrayList<SearchResult>();
+		try {
+			Query query = parseQuery(text);
+			IndexSearch search = new IndexSearch(repositories);
+			try {
+				TopScoreDocCollector collector = TopScoreDocCollector.create(maximumHits, true);
+				search.searcher.search(search.searcher.rewrite(query), search.filter, collector);
+				for (ScoreDoc hit : collector.topDocs().scoreDocs) {
+					Document doc = search.searcher.doc(hit.doc);
+					results.add(createSearchResult(doc, hit.score, search.heads));
+				}
+			} finally {
+				search.release();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return results;
+	}
+
+	/**
+	 * Searches the specified repositories for the given text or query and
+	 * returns one page of results. The facet counts of all hits are collected
+	 * in the same pass as the page hits and fragments are only highlighted for
+	 * the results of the returned page.
+	 * 
+	 * Sequential paging should pass the cursor of the previous page. Only
+	 * pageSize hits are then collected regardless of the page number. Without
+	 * a cursor the hits of all preceding pages are collected to find the
+	 * requested page, but their documents are not loaded. A cursor is bound to
+	 * the index generation of the searched repositories; a cursor of an older
+	 * generation is ignored because its document number may refer to another
+	 * document after the index has changed.
+	 * 
+	 * @param text
+	 *            if the text is null or empty, null is returned
+	 * @param page
+	 *            the page number, starting at 1
+	 * @param pageSize
+	 *            the number of results per page
+	 * @param after
+	 *            the cursor of the previous page or null
+	 * @param repositories
+	 *            a list of repositories to search. if no repositories are
+	 *            specified null is returned.
+	 * @return a page of SearchResults in order from highest to the lowest score
+	 */
+	public static SearchPage search(String text, int page, int pageSize, SearchCursor after,
+			Repository... repositories) {
+		if (StringUtils.isEmpty(text)) {
+			return null;
+		}
+		if (repositories.length == 0) {
+			return null;
+		}
+		page = Math.max(1, page);
+		SearchPage result = new SearchPage();
+		result.page = page;
+		try {
+			Query query = parseQuery(text);
+			IndexSearch search = new IndexSearch(repositories);
+			try {
+				TopScoreDocCollector collector;
+				int start;
+				if (after == null || !search.generation.equals(after.generation)) {
+					collector = TopScoreDocCollector.create(page * pageSize, true);
+					start = (page - 1) * pageSize;
+				} else {
+					collector = TopScoreDocCollector.create(pageSize, after.hit, true);
+					start = 0;
+				}
+				FacetCollector facets = new FacetCollector(collector);
+				search.searcher.search(search.searcher.rewrite(query), search.filter, facets);
+				facets.finish();
+
+				TopDocs topDocs = collector.topDocs(start, pageSize);
+				result.totalHits = topDocs.totalHits;
+				result.repositories = facets.repositories.counts;
+				result.branches = facets.branches.counts;
+				result.types = facets.types.counts;
+				result.authors = facets.authors.counts;
+
+				List<Document> docs = new ArrayList<Document>();
+				for (ScoreDoc hit : topDocs.scoreDocs) {
+					Document doc = search.searcher.doc(hit.doc);
+					docs.add(doc);
+					result.results.add(createSearchResult(doc, hit.score, search.heads));
+					result.last = new SearchCursor(hit, search.generation);
+				}
+				highlight(query, docs, result.results, repositories);
+			} finally {
+				search.release();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	/**
+	 * Searches the indexed commits of a branch for a case-insensitive match to
+	 * the value. Author and committer searches match a part of the name or the
+	 * email address. Commit searches match the words of the commit message
+	 * which start with the words of the value. The commits are ordered by
+	 * commit date, newest first, and commits of the same date by id so that
+	 * the pages of a search are stable.
+	 * 
+	 * The commits can only be searched if the branch is indexed up to its
+	 * current tip, otherwise null is returned and the caller must walk the
+	 * history instead.
+	 * 
+	 * @param repository
+	 * @param objectId
+	 *            a branch name, if unspecified HEAD is assumed
+	 * @param value
+	 * @param type
+	 *            AUTHOR, COMMITTER, COMMIT
+	 * @param offset
+	 * @param maxCount
+	 *            if < 0, all matches are returned
+	 * @return the ids of the matching commits or null if the branch can not be
+	 *         searched
+	 */
+	public static List<String> searchCommits(Repository repository, String objectId,
+			String value, SearchType type, int offset, int maxCount) {
 		try {
-			// default search checks summary and content
+			String branch = getBranch(repository, objectId);
+			if (branch == null || excludedBranches.contains(branch)) {
+				return null;
+			}
+			FileBasedConfig config = getConfig(repository);
+			if (!config.getFile().exists()) {
+				return null;
+			}
+			config.load();
+			if (config.getInt(CONF_INDEX, CONF_VERSION, 0) != INDEX_VERSION
+					|| config.getBoolean(CONF_INDEX, CONF_SHARED, false) != isSharedIndex()) {
+				return null;
+			}
+			ObjectId tip = repository.resolve(branch);
+			String indexedCommit = config.getString(CONF_BRANCH, null, getBranchKey(branch));
+			if (tip == null || !tip.getName().equals(indexedCommit)) {
+				// the branch is not indexed or has not been indexed yet
+				return null;
+			}
+
+			Query valueQuery = createCommitQuery(value, type);
+			if (valueQuery == null) {
+				return null;
+			}
+			BooleanQuery query = new BooleanQuery();
+			query.add(new TermQuery(new Term(FIELD_REPOSITORY, getName(repository))), Occur.MUST);
+			query.add(new TermQuery(new Term(FIELD_OBJECT_TYPE, ObjectType.commit.name())),
+					Occur.MUST);
+			query.add(new TermQuery(new Term(FIELD_BRANCH, branch)), Occur.MUST);
+			query.add(valueQuery, Occur.MUST);
+
+			List<String> ids = new ArrayList<String>();
+			if (maxCount == 0) {
+				return ids;
+			}
+			SearcherManager manager = getSearcherManager(repository);
+			manager.maybeReopen();
+			IndexSearcher searcher = manager.acquire();
+			try {
+				// the sorted hits are bounded by the number of matching commits
+				// and not by the size of the index
+				TotalHitCountCollector counter = new TotalHitCountCollector();
+				searcher.search(query, counter);
+				int count = counter.getTotalHits();
+				if (maxCount > 0) {
+					count = Math.min(count, offset + maxCount);
+				}
+				if (count > offset) {
+					Sort sort = new Sort(new SortField(FIELD_DATE, SortField.STRING, true),
+							new SortField(FIELD_OBJECT_ID, SortField.STRING));
+					TopDocs topDocs = searcher.search(query, null, count, sort);
+					ScoreDoc[] hits = topDocs.scoreDocs;
+					for (int i = offset; i < hits.length; i++) {
+						ids.add(searcher.doc(hits[i].doc).get(FIELD_OBJECT_ID));
+					}
+				}
+			} finally {
+				manager.release(searcher);
+			}
+			return ids;
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the fully qualified branch name of a branch or HEAD.
+	 * 
+	 * @param repository
+	 * @param objectId
+	 * @return the branch name or null if the object id is not a branch
+	 * @throws IOException
+	 */
+	private static String getBranch(Repository repository, String objectId) throws IOException {
+		if (StringUtils.isEmpty(objectId) || Constants.HEAD.equals(objectId)) {
+			String head = repository.getFullBranch();
+			if (head != null && head.startsWith(Constants.R_HEADS)) {
+				return head;
+			}
+			return null;
+		}
+		if (objectId.startsWith(Constants.R_HEADS)) {
+			return objectId;
+		}
+		if (repository.getRef(Constants.R_HEADS + objectId) != null) {
+			return Constants.R_HEADS + objectId;
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the query of a commit log search.
+	 * 
+	 * @param value
+	 * @param type
+	 * @return the query or null if the value can not be searched in the index
+	 * @throws IOException
+	 */
+	private static Query createCommitQuery(String value, SearchType type) throws IOException {
+		switch (type) {
+		case AUTHOR:
+		case COMMITTER:
+			String lcValue = value.toLowerCase();
+			if (lcValue.length() == 0 || lcValue.indexOf('*') > -1 || lcValue.indexOf('?') > -1) {
+				// wildcards would change the meaning of the substring match
+				return null;
+			}
+			String field = SearchType.AUTHOR.equals(type) ? FIELD_AUTHOR_IDENT
+					: FIELD_COMMITTER_IDENT;
+			// the identities are few compared to the commits
+			return new WildcardQuery(new Term(field, "*" + lcValue + "*"));
+		case COMMIT:
 			BooleanQuery query = new BooleanQuery();
-			QueryParser qp;
-			qp = new QueryParser(LUCENE_VERSION, FIELD_SUMMARY, analyzer);
-			qp.setAllowLeadingWildcard(true);
-			query.add(qp.parse(text), Occur.SHOULD);
+			TokenStream stream = new StandardAnalyzer(LUCENE_VERSION).tokenStream(FIELD_CONTENT,
+					new StringReader(value));
+			CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+			stream.reset();
+			while (stream.incrementToken()) {
+				query.add(new PrefixQuery(new Term(FIELD_CONTENT, term.toString())), Occur.MUST);
+			}
+			stream.end();
+			stream.close();
+			if (query.clauses().isEmpty()) {
+				// stop words only
+				return null;
+			}
+			return query;
+		}
+		return null;
+	}
+
+	/**
+	 * Parses the search text into a query of the summary and content fields.
+	 * 
+	 * @param text
+	 * @return the query
+	 * @throws org.apache.lucene.queryParser.ParseException
+	 */
+	private static Query parseQuery(String text)
+			throws org.apache.lucene.queryParser.ParseException {
+		StandardAnalyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
+		// default search checks summary and content
+		BooleanQuery query = new BooleanQuery();
+		QueryParser qp;
+		qp = new QueryParser(LUCENE_VERSION, FIELD_SUMMARY, analyzer);
+		qp.setAllowLeadingWildcard(true);
+		query.add(qp.parse(text), Occur.SHOULD);
 
-			qp = new QueryParser(LUCENE_VERSION, FIELD_CONTENT, analyzer);
-			qp.setAllowLeadingWildcard(true);
-			query.add(qp.parse(text), Occur.SHOULD);
+		qp = new QueryParser(LUCENE_VERSION, FIELD_CONTENT, analyzer);
+		qp.setAllowLeadingWildcard(true);
+		query.add(qp.parse(text), Occur.SHOULD);
+		return query;
+	}
+
+	/**
+	 * The searcher and filter for a search of several repositories. The
+	 * searcher must be released when the search is complete.
+	 */
+	private static class IndexSearch {
+
+		final IndexSearcher searcher;
+
+		final Filter filter;
 
-			IndexSearcher searcher;
-			if (repositories.length == 1) {
+		final SearcherManager manager;
+
+		final CompositeSearcher composite;
+
+		final Map<String, String> heads = new HashMap<String, String>();
+
+		final String generation;
+
+		IndexSearch(Repository... repositories) throws IOException {
+			String[] names = new String[repositories.length];
+			for (int i = 0; i < repositories.length; i++) {
+				names[i] = getName(repositories[i]);
+				heads.put(names[i], getHeadBranch(repositories[i]));
+			}
+			if (isSharedIndex()) {
+				// shared index search, filtered by repository
+				filter = new FieldCacheTermsFilter(FIELD_REPOSITORY, names);
+				manager = getSearcherManager(repositories[0]);
+				searcher = manager.acquire();
+				composite = null;
+			} else if (repositories.length == 1) {
 				// single repository search
-				searcher = getIndexSearcher(repositories[0]);
+				filter = null;
+				manager = getSearcherManager(repositories[0]);
+				searcher = manager.acquire();
+				composite = null;
 			} else {
 				// multiple repository search
-				List<IndexReader> readers = new ArrayList<IndexReader>();
-				for (Repository repository : repositories) {
-					IndexSearcher repositoryIndex = getIndexSearcher(repository);
-					readers.add(repositoryIndex.getIndexReader());
-				}
-				IndexReader[] rdrs = readers.toArray(new IndexReader[readers.size()]);
-				MultiReader reader = new MultiReader(rdrs);
-				searcher = new IndexSearcher(reader);
-			}
-			Query rewrittenQuery = searcher.rewrite(query);
-			TopScoreDocCollector collector = TopScoreDocCollector.create(maximumHits, true);
-			searcher.search(rewrittenQuery, collector);
-			ScoreDoc[] hits = collector.topDocs().scoreDocs;
-			for (int i = 0; i < hits.length; i++) {
-				int docId = hits[i].doc;
-				Document doc = searcher.doc(docId);
-				SearchResult result = createSearchResult(doc, hits[i].score);
-				results.add(result);
+				filter = null;
+				manager = null;
+				composite = acquireCompositeSearcher(repositories);
+				searcher = composite.searcher;
+			}
+			generation = getGeneration(names);
+		}
+
+		/**
+		 * Returns the generation of the searched indexes. The generation
+		 * changes when the set of repositories changes or when one of the
+		 * index readers is reopened on a changed index.
+		 * 
+		 * @param names
+		 *            the names of the searched repositories
+		 * @return the generation
+		 */
+		private String getGeneration(String[] names) {
+			IndexReader[] readers;
+			if (composite != null) {
+				readers = composite.readers;
+			} else {
+				readers = new IndexReader[] { searcher.getIndexReader() };
+			}
+			String[] sorted = Arrays.copyOf(names, names.length);
+			Arrays.sort(sorted);
+			StringBuilder sb = new StringBuilder();
+			sb.append(StringUtils.flattenStrings(Arrays.asList(sorted), File.pathSeparator));
+			for (IndexReader reader : readers) {
+				sb.append(':').append(reader.getVersion());
+			}
+			return sb.toString();
+		}
+
+		void release() throws IOException {
+			if (composite != null) {
+				composite.release();
+			} else {
+				manager.release(searcher);
+			}
+		}
+	}
+
+	/**
+	 * Highlights the matching fragments of the content of the results. Blob
+	 * content and commit messages are not stored in the index and are read
+	 * from the repositories.
+	 * 
+	 * @param query
+	 * @param docs
+	 *            the documents of the results
+	 * @param results
+	 * @param repositories
+	 */
+	private static void highlight(Query query, List<Document> docs, List<SearchResult> results,
+			Repository... repositories) {
+		Map<String, Repository> map = new HashMap<String, Repository>();
+		for (Repository repository : repositories) {
+			map.put(getName(repository), repository);
+		}
+		StandardAnalyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
+		Highlighter contentHighlighter = createHighlighter(query, FIELD_CONTENT);
+		Highlighter summaryHighlighter = createHighlighter(query, FIELD_SUMMARY);
+		for (int i = 0; i < results.size(); i++) {
+			SearchResult result = results.get(i);
+			Document doc = docs.get(i);
+			Repository repository = map.get(result.repository);
+			try {
+				String field = FIELD_CONTENT;
+				String content = null;
+				switch (result.type) {
+				case blob:
+					if (repository != null) {
+						content = readBlob(repository, ObjectId.fromString(doc.get(FIELD_BLOB_ID)));
+					}
+					break;
+				case commit:
+					if (repository != null) {
+						RevWalk rw = new RevWalk(repository);
+						try {
+							content = rw.parseCommit(ObjectId.fromString(result.id))
+									.getFullMessage();
+						} finally {
+							rw.release();
+						}
+					}
+					break;
+				case issue:
+					field = FIELD_SUMMARY;
+					content = result.summary;
+					break;
+				}
+				if (StringUtils.isEmpty(content)) {
+					continue;
+				}
+				Highlighter highlighter = FIELD_SUMMARY.equals(field) ? summaryHighlighter
+						: contentHighlighter;
+				TokenStream stream = analyzer.tokenStream(field, new StringReader(content));
+				String fragment = highlighter.getBestFragments(stream, content, 3, "...");
+				if (!StringUtils.isEmpty(fragment)) {
+					result.fragment = fragment;
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static Highlighter createHighlighter(Query query, String field) {
+		QueryScorer scorer = new QueryScorer(query, field);
+		Highlighter highlighter = new Highlighter(new SimpleHTMLFormatter(
+				"<span class=\"highlight\">", "</span>"), new SimpleHTMLEncoder(), scorer);
+		highlighter.setTextFragmenter(new SimpleSpanFragmenter(scorer, FRAGMENT_SIZE));
+		return highlighter;
+	}
+
+	/**
+	 * Reads the indexed content of a blob.
+	 * 
+	 * @param repository
+	 * @param blobId
+	 * @return the content or null if the blob is binary
+	 * @throws IOException
+	 */
+	private static String readBlob(Repository repository, ObjectId blobId) throws IOException {
+		ObjectReader reader = repository.newObjectReader();
+		try {
+			BlobContent content = BlobContent.open(reader, blobId);
+			if (content == null) {
+				return null;
+			}
+			Reader in = content.openReader();
+			try {
+				StringBuilder sb = new StringBuilder();
+				char[] buffer = new char[4096];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					sb.append(buffer, 0, n);
+				}
+				return sb.toString();
+			} finally {
+				in.close();
+			}
+		} finally {
+			reader.release();
+		}
+	}
+
+	/**
+	 * Counts the values of the facet fields of the hits while delegating the
+	 * hits to the collector of the page.
+	 */
+	private static class FacetCollector extends Collector {
+
+		final Collector delegate;
+
+		final FieldFacet repositories = new FieldFacet(FIELD_REPOSITORY);
+
+		final BranchFacet branches = new BranchFacet();
+
+		final FieldFacet types = new FieldFacet(FIELD_OBJECT_TYPE);
+
+		final FieldFacet authors = new FieldFacet(FIELD_AUTHOR);
+
+		FacetCollector(Collector delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void setScorer(Scorer scorer) throws IOException {
+			delegate.setScorer(scorer);
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			delegate.collect(doc);
+			repositories.collect(doc);
+			branches.collect(doc);
+			types.collect(doc);
+			authors.collect(doc);
+		}
+
+		@Override
+		public void setNextReader(IndexReader reader, int docBase) throws IOException {
+			delegate.setNextReader(reader, docBase);
+			repositories.setNextReader(reader);
+			branches.setNextReader(reader);
+			types.setNextReader(reader);
+			authors.setNextReader(reader);
+		}
+
+		@Override
+		public boolean acceptsDocsOutOfOrder() {
+			return delegate.acceptsDocsOutOfOrder();
+		}
+
+		void finish() {
+			repositories.flush();
+			branches.flush();
+			types.flush();
+			authors.flush();
+		}
+	}
+
+	/**
+	 * Counts the values of a single-valued field using the field cache of each
+	 * index segment.
+	 */
+	private static class FieldFacet {
+
+		final String field;
+
+		final Map<String, Integer> counts = new TreeMap<String, Integer>();
+
+		String[] lookup;
+
+		int[] order;
+
+		int[] segmentCounts;
+
+		FieldFacet(String field) {
+			this.field = field;
+		}
+
+		void setNextReader(IndexReader reader) throws IOException {
+			flush();
+			StringIndex index = FieldCache.DEFAULT.getStringIndex(reader, field);
+			lookup = index.lookup;
+			order = index.order;
+			segmentCounts = new int[lookup.length];
+		}
+
+		void collect(int doc) {
+			segmentCounts[order[doc]]++;
+		}
+
+		void flush() {
+			if (segmentCounts == null) {
+				return;
+			}
+			// ordinal 0 is a document without a value
+			for (int i = 1; i < segmentCounts.length; i++) {
+				if (segmentCounts[i] > 0) {
+					increment(counts, lookup[i], segmentCounts[i]);
+				}
+			}
+			segmentCounts = null;
+		}
+	}
+
+	/**
+	 * Counts the values of the multi-valued branch field. The documents of
+	 * each branch are cached per index segment.
+	 */
+	private static class BranchFacet {
+
+		final Map<String, Integer> counts = new TreeMap<String, Integer>();
+
+		BranchDocs docs;
+
+		int[] segmentCounts;
+
+		void setNextReader(IndexReader reader) throws IOException {
+			flush();
+			docs = BranchDocs.get(reader);
+			segmentCounts = new int[docs.branches.length];
+		}
+
+		void collect(int doc) {
+			for (int i = 0; i < docs.branches.length; i++) {
+				if (docs.docs[i].fastGet(doc)) {
+					segmentCounts[i]++;
+				}
+			}
+		}
+
+		void flush() {
+			if (segmentCounts == null) {
+				return;
+			}
+			for (int i = 0; i < segmentCounts.length; i++) {
+				if (segmentCounts[i] > 0) {
+					increment(counts, docs.branches[i], segmentCounts[i]);
+				}
+			}
+			segmentCounts = null;
+		}
+	}
+
+	/**
+	 * The documents of each branch of an index segment. Segments never change
+	 * once they are written so the branch documents are cached until the
+	 * segment is garbage collected.
+	 */
+	private static class BranchDocs {
+
+		static final Map<Object, BranchDocs> CACHE = new WeakHashMap<Object, BranchDocs>();
+
+		final String[] branches;
+
+		final OpenBitSet[] docs;
+
+		BranchDocs(String[] branches, OpenBitSet[] docs) {
+			this.branches = branches;
+			this.docs = docs;
+		}
+
+		static BranchDocs get(IndexReader reader) throws IOException {
+			Object key = reader.getCoreCacheKey();
+			synchronized (CACHE) {
+				BranchDocs branchDocs = CACHE.get(key);
+				if (branchDocs == null) {
+					branchDocs = load(reader);
+					CACHE.put(key, branchDocs);
+				}
+				return branchDocs;
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
-		return new ArrayList<SearchResult>(results);
+
+		static BranchDocs load(IndexReader reader) throws IOException {
+			List<String> branches = new ArrayList<String>();
+			List<OpenBitSet> docs = new ArrayList<OpenBitSet>();
+			TermEnum terms = reader.terms(new Term(FIELD_BRANCH, ""));
+			TermDocs termDocs = reader.termDocs();
+			try {
+				do {
+					Term term = terms.term();
+					if (term == null || !FIELD_BRANCH.equals(term.field())) {
+						break;
+					}
+					OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+					termDocs.seek(terms);
+					while (termDocs.next()) {
+						bits.fastSet(termDocs.doc());
+					}
+					branches.add(term.text());
+					docs.add(bits);
+				} while (terms.next());
+			} finally {
+				termDocs.close();
+				terms.close();
+			}
+			return new BranchDocs(branches.toArray(new String[branches.size()]),
+					docs.toArray(new OpenBitSet[docs.size()]));
+		}
+	}
+
+	private static void increment(Map<String, Integer> counts, String value, int count) {
+		Integer current = counts.get(value);
+		counts.put(value, current == null ? count : current + count);
 	}
 
 	/**
 	 * Close all the index writers and searchers
 	 */
 	public static void close() {
-		// close writers
-		for (File file : WRITERS.keySet()) {
-			try {
-				WRITERS.get(file).close(true);
-			} catch (Throwable t) {
-				t.printStackTrace();
+		// release composite searchers
+		synchronized (COMPOSITES) {
+			for (CompositeSearcher composite : COMPOSITES.values()) {
+				composite.release();
 			}
+			COMPOSITES.clear();
 		}
-		WRITERS.clear();
 
 		// close searchers
 		for (File file : SEARCHERS.keySet()) {
@@ -790,10 +2547,56 @@ public class LuceneUtils {
 			}
 		}
 		SEARCHERS.clear();
+
+		// close writers
+		for (File file : WRITERS.keySet()) {
+			try {
+				WRITERS.get(file).close(true);
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+		WRITERS.clear();
 	}
 
 	public static class IndexResult {
 		public boolean success;
 		public int commitCount;
+		public int blobCount;
+	}
+
+	/**
+	 * The position of the last hit of a page of search results. The cursor is
+	 * only valid for the index generation it was created with.
+	 */
+	public static class SearchCursor implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final ScoreDoc hit;
+
+		final String generation;
+
+		SearchCursor(ScoreDoc hit, String generation) {
+			this.hit = hit;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * A page of search results and the facet counts of all hits.
+	 */
+	public static class SearchPage implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		public int page;
+		public int totalHits;
+		public SearchCursor last;
+		public List<SearchResult> results = new ArrayList<SearchResult>();
+		public Map<String, Integer> repositories;
+		public Map<String, Integer> branches;
+		public Map<String, Integer> types;
+		public Map<String, Integer> authors;
 	}
 }
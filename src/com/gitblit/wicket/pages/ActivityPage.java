@@ -17,6 +17,7 @@ package com.gitblit.wicket.pages;
 
 import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,7 +34,6 @@ import com.gitblit.Keys;
 import com.gitblit.models.Activity;
 import com.gitblit.models.Metric;
 import com.gitblit.models.RepositoryModel;
-import com.gitblit.utils.ActivityUtils;
 import com.gitblit.utils.StringUtils;
 import com.gitblit.wicket.PageRegistration;
 import com.gitblit.wicket.PageRegistration.DropDownMenuItem;
@@ -67,8 +67,22 @@ public class ActivityPage extends RootPage {
 
 		// determine repositories to view and retrieve the activity
 		List<RepositoryModel> models = getRepositories(params);
-		List<Activity> recentActivity = ActivityUtils.getRecentActivity(models, 
-				daysBack, objectId, getTimeZone());
+		List<String> pending = new ArrayList<String>();
+		List<Activity> recentActivity = GitBlit.self().getRecentActivity(models, daysBack,
+				objectId, getTimeZone(), pending);
+
+		if (pending.size() == 0) {
+			add(new Label("pending").setVisible(false));
+		} else {
+			// the walks of these repositories did not finish in time
+			StringUtils.sortRepositorynames(pending);
+			List<String> names = new ArrayList<String>();
+			for (String repository : pending) {
+				names.add(StringUtils.stripDotGit(repository));
+			}
+			add(new Label("pending", MessageFormat.format(getString("gb.recentActivityPending"),
+					pending.size(), StringUtils.flattenStrings(names, ", "))));
+		}
 
 		if (recentActivity.size() == 0) {
 			// no activity, skip graphs and activity panel
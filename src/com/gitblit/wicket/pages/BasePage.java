@@ -88,6 +88,10 @@ public abstract class BasePage extends WebPage {
 		if (!GitBlit.getBoolean(Keys.web.allowCookieAuthentication, false)) {
 			return;
 		}
+		if (GitBlitWebSession.get().isLoggedIn()) {
+			// the cookie was authenticated when the session started
+			return;
+		}
 		UserModel user = null;
 
 		// Grab cookie from Browser Session
@@ -104,8 +108,9 @@ public abstract class BasePage extends WebPage {
 			session.replaceSession();
 			session.setUser(user);
 
-			// Set Cookie
+			// Renew Cookie
 			WebResponse response = (WebResponse) getRequestCycle().getResponse();
+			GitBlit.self().revokeCookie(cookies);
 			GitBlit.self().setCookie(response, user);
 			continueToOriginalDestination();
 		}
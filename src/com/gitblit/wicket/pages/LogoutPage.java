@@ -16,6 +16,7 @@
 package com.gitblit.wicket.pages;
 
 import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.protocol.http.WebRequest;
 import org.apache.wicket.protocol.http.WebResponse;
 
 import com.gitblit.GitBlit;
@@ -25,6 +26,7 @@ public class LogoutPage extends WebPage {
 
 	public LogoutPage() {
 		GitBlitWebSession.get().invalidate();
+		GitBlit.self().revokeCookie(((WebRequest) getRequest()).getCookies());
 		GitBlit.self().setCookie((WebResponse) getResponse(), null);
 		setRedirect(true);
 		setResponsePage(getApplication().getHomePage());
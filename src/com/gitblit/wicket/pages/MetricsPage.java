@@ -38,8 +38,8 @@ import org.wicketstuff.googlecharts.LineStyle;
 import org.wicketstuff.googlecharts.MarkerType;
 import org.wicketstuff.googlecharts.ShapeMarker;
 
+import com.gitblit.GitBlit;
 import com.gitblit.models.Metric;
-import com.gitblit.utils.MetricUtils;
 import com.gitblit.utils.StringUtils;
 import com.gitblit.utils.TimeUtils;
 import com.gitblit.wicket.WicketUtils;
@@ -55,7 +55,8 @@ public class MetricsPage extends RepositoryPage {
 			add(new Label("branchTitle", objectId));
 		}
 		Metric metricsTotal = null;
-		List<Metric> metrics = MetricUtils.getDateMetrics(r, objectId, true, null, getTimeZone());
+		List<Metric> metrics = GitBlit.self().getDateMetrics(repositoryName, r, objectId, true,
+				null, getTimeZone());
 		metricsTotal = metrics.remove(0);
 		if (metricsTotal == null) {
 			add(new Label("branchStats", ""));
@@ -135,7 +136,8 @@ public class MetricsPage extends RepositoryPage {
 	}
 
 	private List<Metric> getDayOfWeekMetrics(Repository repository, String objectId) {
-		List<Metric> list = MetricUtils.getDateMetrics(repository, objectId, false, "E", getTimeZone());
+		List<Metric> list = GitBlit.self().getDateMetrics(repositoryName, repository, objectId,
+				false, "E", getTimeZone());
 		SimpleDateFormat sdf = new SimpleDateFormat("E");
 		Calendar cal = Calendar.getInstance();
 
@@ -160,7 +162,8 @@ public class MetricsPage extends RepositoryPage {
 	}
 
 	private List<Metric> getAuthorMetrics(Repository repository, String objectId) {
-		List<Metric> authors = MetricUtils.getAuthorMetrics(repository, objectId, true);
+		List<Metric> authors = GitBlit.self().getAuthorMetrics(repositoryName, repository,
+				objectId, true);
 		Collections.sort(authors, new Comparator<Metric>() {
 			@Override
 			public int compare(Metric o1, Metric o2) {
@@ -78,11 +78,11 @@ public class HistoryPanel extends BasePanel {
 		List<RevCommit> commits;
 		if (pageResults) {
 			// Paging result set
-			commits = JGitUtils.getRevLog(r, objectId, path, pageOffset * itemsPerPage,
-					itemsPerPage);
+			commits = GitBlit.self().getRevLog(repositoryName, r, objectId, path,
+					pageOffset * itemsPerPage, itemsPerPage);
 		} else {
 			// Fixed size result set
-			commits = JGitUtils.getRevLog(r, objectId, path, 0, limit);
+			commits = GitBlit.self().getRevLog(repositoryName, r, objectId, path, 0, limit);
 		}
 
 		// inaccurate way to determine if there are more commits.
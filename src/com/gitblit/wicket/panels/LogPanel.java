@@ -61,10 +61,11 @@ public class LogPanel extends BasePanel {
 		List<RevCommit> commits;
 		if (pageResults) {
 			// Paging result set
-			commits = JGitUtils.getRevLog(r, objectId, pageOffset * itemsPerPage, itemsPerPage);
+			commits = GitBlit.self().getRevLog(repositoryName, r, objectId, pageOffset
+					* itemsPerPage, itemsPerPage);
 		} else {
 			// Fixed size result set
-			commits = JGitUtils.getRevLog(r, objectId, 0, limit);
+			commits = GitBlit.self().getRevLog(repositoryName, r, objectId, 0, limit);
 		}
 
 		// inaccurate way to determine if there are more commits.
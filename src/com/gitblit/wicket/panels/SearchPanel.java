@@ -61,11 +61,11 @@ public class SearchPanel extends BasePanel {
 		List<RevCommit> commits;
 		if (pageResults) {
 			// Paging result set
-			commits = JGitUtils.searchRevlogs(r, objectId, value, searchType, pageOffset
+			commits = GitBlit.self().searchRevlogs(r, objectId, value, searchType, pageOffset
 					* itemsPerPage, itemsPerPage);
 		} else {
 			// Fixed size result set
-			commits = JGitUtils.searchRevlogs(r, objectId, value, searchType, 0, limit);
+			commits = GitBlit.self().searchRevlogs(r, objectId, value, searchType, 0, limit);
 		}
 
 		// inaccurate way to determine if there are more commits.
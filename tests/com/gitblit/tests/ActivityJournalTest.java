@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Test;
+
+import com.gitblit.ActivityJournal;
+import com.gitblit.models.Activity.RepositoryCommit;
+import com.gitblit.utils.JGitUtils;
+import com.gitblit.utils.TimeUtils;
+
+public class ActivityJournalTest {
+
+	private static final String NAME = "test/activity.git";
+
+	private final int now = (int) (System.currentTimeMillis() / 1000);
+
+	private final Date threshold = new Date(System.currentTimeMillis() - 7 * TimeUtils.ONEDAY);
+
+	@Test
+	public void testJournal() throws Exception {
+		Repository repository = GitBlitSuite.createTestRepository(NAME);
+		File journalFile = new File(repository.getDirectory(), "activity.dat");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			RevCommit[] c = new RevCommit[12];
+			c[0] = commit(repository, "refs/heads/master", 0, "c0", null);
+			for (int i = 1; i < 10; i++) {
+				c[i] = commit(repository, "refs/heads/master", i, "c" + i, c[i - 1]);
+			}
+			RevCommit f = c[5];
+			for (int i = 1; i <= 3; i++) {
+				f = commit(repository, "refs/heads/feature", 10 + i, "f" + i, f);
+			}
+			ActivityJournal journal = new ActivityJournal(GitBlitSuite.REPOSITORIES, executor,
+					30);
+
+			// the first request queues the update, a commit is journaled with
+			// the first branch in name order which contains it
+			assertNull(getCommits(journal, repository));
+			waitForUpdates(executor);
+			assertEquals("c0=feature, c1=feature, c2=feature, c3=feature, c4=feature, "
+					+ "c5=feature, c6=master, c7=master, c8=master, c9=master, f1=feature, "
+					+ "f2=feature, f3=feature", toString(getCommits(journal, repository)));
+
+			// fast-forward
+			c[10] = commit(repository, "refs/heads/master", 20, "c10", c[9]);
+			c[11] = commit(repository, "refs/heads/master", 21, "c11", c[10]);
+			update(journal, executor);
+			assertEquals("c0=feature, c1=feature, c10=master, c11=master, c2=feature, "
+					+ "c3=feature, c4=feature, c5=feature, c6=master, c7=master, c8=master, "
+					+ "c9=master, f1=feature, f2=feature, f3=feature",
+					toString(getCommits(journal, repository)));
+
+			// forced push, the rewound commits are removed
+			RevCommit d1 = commit(repository, "refs/heads/master", 22, "d1", c[7]);
+			update(journal, executor);
+			String expected = "c0=feature, c1=feature, c2=feature, c3=feature, c4=feature, "
+					+ "c5=feature, c6=master, c7=master, d1=master, f1=feature, f2=feature, "
+					+ "f3=feature";
+			assertEquals(expected, toString(getCommits(journal, repository)));
+
+			// the removal records are replayed when the journal is loaded
+			assertEquals(expected, toString(getCommits(newLoadingJournal(), repository)));
+
+			// records after the persisted length are a partially written update
+			FileOutputStream out = new FileOutputStream(journalFile, true);
+			out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+			out.close();
+			journal = new ActivityJournal(GitBlitSuite.REPOSITORIES, executor, 30);
+			assertEquals(expected, toString(getCommits(journal, repository)));
+			RevCommit d2 = commit(repository, "refs/heads/master", 23, "d2", d1);
+			update(journal, executor);
+			expected = "c0=feature, c1=feature, c2=feature, c3=feature, c4=feature, "
+					+ "c5=feature, c6=master, c7=master, d1=master, d2=master, f1=feature, "
+					+ "f2=feature, f3=feature";
+			assertEquals(expected, toString(getCommits(journal, repository)));
+			assertEquals(expected, toString(getCommits(newLoadingJournal(), repository)));
+
+			// most records are removals after the branches are rewound, the
+			// next update compacts the journal
+			RevCommit e1 = commit(repository, "refs/heads/master", 24, "e1", c[0]);
+			RefUpdate delete = repository.updateRef("refs/heads/feature");
+			delete.setForceUpdate(true);
+			delete.delete();
+			update(journal, executor);
+			assertEquals("c0=feature, e1=master", toString(getCommits(journal, repository)));
+			long length = journalFile.length();
+			commit(repository, "refs/heads/master", 25, "e2", e1);
+			update(journal, executor);
+			assertTrue(journalFile.length() < length);
+			assertEquals("c0=feature, e1=master, e2=master",
+					toString(getCommits(journal, repository)));
+			assertEquals("c0=feature, e1=master, e2=master",
+					toString(getCommits(newLoadingJournal(), repository)));
+		} finally {
+			executor.shutdownNow();
+			repository.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws Exception {
+		Repository repository = GitBlitSuite.createTestRepository(NAME);
+		File journalFile = new File(repository.getDirectory(), "activity.dat");
+		File configFile = new File(repository.getDirectory(), "activity.conf");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			RevCommit tip = commit(repository, "refs/heads/master", 0, "c0", null);
+			for (int i = 1; i < 300; i++) {
+				tip = commit(repository, "refs/heads/master", i, "c" + i, tip);
+			}
+
+			// updates which are queued while an update is running do not
+			// journal the same commits again
+			ActivityJournal journal = new ActivityJournal(GitBlitSuite.REPOSITORIES, executor,
+					30);
+			for (int i = 0; i < 50; i++) {
+				journal.update(NAME);
+				Thread.sleep(2);
+			}
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+			assertEquals(300, getCommits(journal, repository).size());
+			long length = journalFile.length();
+
+			// the journal of a single update
+			assertTrue(journalFile.delete());
+			assertTrue(configFile.delete());
+			executor = Executors.newSingleThreadExecutor();
+			journal = new ActivityJournal(GitBlitSuite.REPOSITORIES, executor, 30);
+			update(journal, executor);
+			assertEquals(300, getCommits(journal, repository).size());
+			assertEquals(journalFile.length(), length);
+		} finally {
+			executor.shutdownNow();
+			repository.close();
+		}
+	}
+
+	/**
+	 * Commits to a branch, commit i is i minutes after the first commit of
+	 * the last hours.
+	 */
+	private RevCommit commit(Repository repository, String branch, int i, String message,
+			RevCommit parent) throws Exception {
+		String[] files = { "file.txt", message };
+		int time = now - 6 * 60 * 60 + i * 60;
+		if (parent == null) {
+			return GitBlitSuite.commit(repository, branch, time, message, files);
+		}
+		return GitBlitSuite.commit(repository, branch, time, message, files, parent);
+	}
+
+	private List<RepositoryCommit> getCommits(ActivityJournal journal, Repository repository) {
+		return journal.getCommits(NAME, JGitUtils.getLastChange(repository), threshold);
+	}
+
+	private void update(ActivityJournal journal, ExecutorService executor) throws Exception {
+		journal.update(NAME);
+		waitForUpdates(executor);
+	}
+
+	private void waitForUpdates(ExecutorService executor) throws Exception {
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).get();
+	}
+
+	/**
+	 * Returns a journal which can only serve persisted journals, the updates
+	 * of the journal are rejected.
+	 */
+	private ActivityJournal newLoadingJournal() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		return new ActivityJournal(GitBlitSuite.REPOSITORIES, executor, 30);
+	}
+
+	private String toString(List<RepositoryCommit> commits) {
+		assertNotNull(commits);
+		Map<String, String> branches = new TreeMap<String, String>();
+		for (RepositoryCommit commit : commits) {
+			assertNull(branches.put(commit.getShortMessage(), commit.branch));
+		}
+		return branches.toString().replace("{", "").replace("}", "");
+	}
+}
\ No newline at end of file
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.gitblit.AuthenticationCache;
+import com.gitblit.GitBlit;
+import com.gitblit.models.UserModel;
+
+public class AuthenticationCacheTest {
+
+	@Test
+	public void testCache() throws Exception {
+		AuthenticationCache cache = new AuthenticationCache(10, 60000);
+		assertTrue(cache.isEnabled());
+		String key = cache.getKey("alice", "secret".toCharArray());
+		assertFalse(key.contains("secret"));
+		assertFalse(key.equals(cache.getKey("alice", "secret2".toCharArray())));
+		assertFalse(key.equals(new AuthenticationCache(10, 60000).getKey("alice",
+				"secret".toCharArray())));
+
+		assertNull(cache.get(key));
+		UserModel user = new UserModel("alice");
+		user.repositories.add("alice.git");
+		cache.put(key, user, cache.getGeneration());
+		UserModel cached = cache.get(key);
+		assertNotNull(cached);
+		assertEquals("alice", cached.username);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// cached users are copies
+		cached.repositories.add("bob.git");
+		user.repositories.add("carol.git");
+		assertEquals(1, cache.get(key).repositories.size());
+	}
+
+	@Test
+	public void testSeparatorInUsername() throws Exception {
+		AuthenticationCache cache = new AuthenticationCache(10, 60000);
+		String key = cache.getKey("alice:x", "secret".toCharArray());
+		assertFalse(key.equals(cache.getKey("alice", "x:secret".toCharArray())));
+		assertFalse(key.equals(cache.getKey("alice:", "xsecret".toCharArray())));
+
+		cache.put(key, new UserModel("alice:x"), cache.getGeneration());
+		assertNull(cache.get(cache.getKey("alice", "x:secret".toCharArray())));
+		assertEquals("alice:x", cache.get(key).username);
+	}
+
+	@Test
+	public void testFailures() throws Exception {
+		AuthenticationCache cache = new AuthenticationCache(10, 60000);
+		String key = cache.getKey("alice", "wrong".toCharArray());
+		cache.put(key, null, cache.getGeneration());
+		assertEquals(0, cache.size());
+		assertNull(cache.get(key));
+		assertNull(cache.get(key));
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		AuthenticationCache cache = new AuthenticationCache(10, 200);
+		String key = cache.getKey("alice", "secret".toCharArray());
+		cache.put(key, new UserModel("alice"), cache.getGeneration());
+		assertNotNull(cache.get(key));
+		Thread.sleep(300);
+		assertNull(cache.get(key));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		AuthenticationCache cache = new AuthenticationCache(2, 60000);
+		String[] keys = new String[3];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = cache.getKey("user" + i, "secret".toCharArray());
+		}
+		cache.put(keys[0], new UserModel("user0"), cache.getGeneration());
+		cache.put(keys[1], new UserModel("user1"), cache.getGeneration());
+
+		// the least recently used entry is evicted
+		assertNotNull(cache.get(keys[0]));
+		cache.put(keys[2], new UserModel("user2"), cache.getGeneration());
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(keys[0]));
+		assertNull(cache.get(keys[1]));
+		assertNotNull(cache.get(keys[2]));
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		for (AuthenticationCache cache : new AuthenticationCache[] {
+				new AuthenticationCache(0, 60000), new AuthenticationCache(10, 0) }) {
+			assertFalse(cache.isEnabled());
+			String key = cache.getKey("alice", "secret".toCharArray());
+			cache.put(key, new UserModel("alice"), cache.getGeneration());
+			assertEquals(0, cache.size());
+			assertNull(cache.get(key));
+		}
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		AuthenticationCache cache = new AuthenticationCache(10, 60000);
+		String key = cache.getKey("alice", "secret".toCharArray());
+		cache.put(key, new UserModel("alice"), cache.getGeneration());
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.get(key));
+
+		// an authentication which started before the cache was cleared may
+		// have verified credentials which are no longer valid
+		long generation = cache.getGeneration();
+		cache.clear();
+		cache.put(key, new UserModel("alice"), generation);
+		assertEquals(0, cache.size());
+		assertNull(cache.get(key));
+
+		cache.put(key, new UserModel("alice"), cache.getGeneration());
+		assertNotNull(cache.get(key));
+	}
+
+	@Test
+	public void testGitBlit() throws Exception {
+		GitBlit gitblit = GitBlit.self();
+		UserModel user = new UserModel("cacheduser");
+		user.password = "secret1";
+		gitblit.updateUserModel(user.username, user, true);
+		try {
+			long hits = gitblit.getStatus().authenticationCacheHits;
+			assertNotNull(gitblit.authenticate("cacheduser", "secret1".toCharArray()));
+			assertNotNull(gitblit.authenticate("cacheduser", "secret1".toCharArray()));
+			assertTrue(gitblit.getStatus().authenticationCacheHits > hits);
+			assertNull(gitblit.authenticate("cacheduser", "wrong".toCharArray()));
+
+			// a changed password clears the cache
+			user.password = "secret2";
+			gitblit.updateUserModel(user.username, user, false);
+			assertNull(gitblit.authenticate("cacheduser", "secret1".toCharArray()));
+			assertNotNull(gitblit.authenticate("cacheduser", "secret2".toCharArray()));
+			assertNotNull(gitblit.authenticate("cacheduser", "secret2".toCharArray()));
+		} finally {
+			// a deleted user clears the cache
+			assertTrue(gitblit.deleteUser(user.username));
+		}
+		assertNull(gitblit.authenticate("cacheduser", "secret2".toCharArray()));
+	}
+}
\ No newline at end of file
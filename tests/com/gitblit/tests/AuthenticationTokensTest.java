@@ -0,0 +1,276 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.wicket.protocol.http.WebResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gitblit.AuthenticationTokens;
+import com.gitblit.ConfigUserService;
+import com.gitblit.Constants;
+import com.gitblit.GitBlit;
+import com.gitblit.models.UserModel;
+import com.gitblit.utils.FileUtils;
+import com.gitblit.utils.StringUtils;
+
+public class AuthenticationTokensTest {
+
+	private File realmFile;
+
+	private File tokensFile;
+
+	private ConfigUserService userService;
+
+	@Before
+	public void setUp() throws Exception {
+		realmFile = File.createTempFile("gitblit", ".conf");
+		realmFile.delete();
+		tokensFile = File.createTempFile("gitblit", ".dat");
+		tokensFile.delete();
+		userService = new ConfigUserService(realmFile);
+		for (String username : new String[] { "alice", "bob" }) {
+			UserModel user = new UserModel(username);
+			user.password = username + "1234";
+			userService.updateUserModel(user);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		realmFile.delete();
+		tokensFile.delete();
+	}
+
+	@Test
+	public void testIssue() throws Exception {
+		AuthenticationTokens tokens = newTokens(60000);
+		String token = tokens.issue("alice");
+		assertFalse(token.equals(tokens.issue("alice")));
+		assertEquals(2, tokens.size());
+		assertEquals("alice", tokens.authenticate(token).username);
+		assertNull(tokens.authenticate(null));
+		assertNull(tokens.authenticate(""));
+		assertNull(tokens.authenticate(StringUtils.getSHA1(token)));
+
+		// tokens survive a restart, the tokens file does not contain them
+		assertFalse(FileUtils.readContent(tokensFile, "\n").contains(token));
+		tokens = newTokens(60000);
+		assertEquals(2, tokens.size());
+		assertEquals("alice", tokens.authenticate(token).username);
+
+		// users of tokens are copies
+		tokens.authenticate(token).repositories.add("bob.git");
+		assertTrue(tokens.authenticate(token).repositories.isEmpty());
+	}
+
+	@Test
+	public void testRevoke() throws Exception {
+		AuthenticationTokens tokens = newTokens(60000);
+		String alice1 = tokens.issue("alice");
+		String alice2 = tokens.issue("alice");
+		String bob = tokens.issue("bob");
+		tokens.revoke(alice1);
+		assertNull(tokens.authenticate(alice1));
+		assertNotNull(tokens.authenticate(alice2));
+
+		tokens.revokeUser("ALICE");
+		assertNull(tokens.authenticate(alice2));
+		assertNotNull(tokens.authenticate(bob));
+		assertEquals(1, newTokens(60000).size());
+
+		// deleted users are not authenticated
+		userService.deleteUser("bob");
+		tokens.resetUser("bob");
+		assertNull(tokens.authenticate(bob));
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		AuthenticationTokens tokens = newTokens(200);
+		String token = tokens.issue("alice");
+		assertNotNull(tokens.authenticate(token));
+		Thread.sleep(300);
+		assertNull(tokens.authenticate(token));
+		assertEquals(1, tokens.size());
+		tokens.run();
+		assertEquals(0, tokens.size());
+		assertEquals(0, newTokens(200).size());
+	}
+
+	@Test
+	public void testPasswordChange() throws Exception {
+		AuthenticationTokens tokens = newTokens(60000);
+		String alice = tokens.issue("alice");
+		String bob = tokens.issue("bob");
+		assertNotNull(tokens.authenticate(alice));
+
+		// the password is changed in the realm file, outside of the tokens,
+		// and the cached users are evicted like a realm reload does
+		UserModel user = userService.getUserModel("alice");
+		user.password = "changed1234";
+		new ConfigUserService(realmFile).updateUserModel(user);
+		realmFile.setLastModified(System.currentTimeMillis() + 2000);
+		// the user service checks the realm file at most once per second
+		Thread.sleep(1100);
+		tokens.resetUsers();
+		assertNull(tokens.authenticate(alice));
+		assertNotNull(tokens.authenticate(bob));
+		assertEquals(1, tokens.size());
+
+		// tokens issued after the change are valid
+		String token = tokens.issue("alice");
+		assertEquals("alice", tokens.authenticate(token).username);
+	}
+
+	@Test
+	public void testTokensFile() throws Exception {
+		AuthenticationTokens tokens = newTokens(60000);
+		String alice = tokens.issue("alice");
+		String bob = tokens.issue("bob");
+		long length = tokensFile.length();
+
+		// issued and revoked tokens are appended
+		tokens.revoke(alice);
+		assertTrue(tokensFile.length() > length);
+		assertTrue(tokensFile.length() < 2 * length);
+		tokens = newTokens(60000);
+		assertEquals(1, tokens.size());
+		assertNull(tokens.authenticate(alice));
+		assertNotNull(tokens.authenticate(bob));
+
+		// a partially written record is ignored
+		FileOutputStream out = new FileOutputStream(tokensFile, true);
+		out.write(new byte[] { 1, 0, 40, 'a' });
+		out.close();
+		tokens = newTokens(60000);
+		assertEquals(1, tokens.size());
+		String carol = tokens.issue("alice");
+		tokens = newTokens(60000);
+		assertEquals(2, tokens.size());
+		assertNotNull(tokens.authenticate(carol));
+
+		// the file is compacted when most records are obsolete
+		for (int i = 0; i < 500; i++) {
+			tokens.revoke(tokens.issue("alice"));
+		}
+		assertTrue(tokensFile.length() < 250 * length);
+		tokens = newTokens(60000);
+		assertEquals(2, tokens.size());
+	}
+
+	@Test
+	public void testUserTimeout() throws Exception {
+		AuthenticationTokens tokens = newTokens(60000, 500);
+		String alice = tokens.issue("alice");
+		assertNotNull(tokens.authenticate(alice));
+
+		// the password is changed by a user service which does not notify
+		// the tokens, the cached user expires
+		UserModel user = userService.getUserModel("alice");
+		user.password = "changed1234";
+		new ConfigUserService(realmFile).updateUserModel(user);
+		realmFile.setLastModified(System.currentTimeMillis() + 2000);
+		Thread.sleep(1100);
+		assertNull(tokens.authenticate(alice));
+	}
+
+	@Test
+	public void testGitBlit() throws Exception {
+		GitBlit gitblit = GitBlit.self();
+		UserModel user = new UserModel("tokenuser");
+		user.password = "secret1";
+		gitblit.updateUserModel(user.username, user, true);
+		try {
+			// login
+			Cookie cookie = setCookie(user);
+			assertEquals("tokenuser", authenticate(cookie).username);
+
+			// a new web session renews the cookie
+			gitblit.revokeCookie(new Cookie[] { cookie });
+			Cookie renewed = setCookie(user);
+			assertFalse(cookie.getValue().equals(renewed.getValue()));
+			assertNull(authenticate(cookie));
+			assertEquals("tokenuser", authenticate(renewed).username);
+
+			// cookies of earlier versions are not accepted by default
+			Cookie legacy = new Cookie(Constants.NAME, StringUtils.getSHA1(user.username
+					+ user.password));
+			assertNull(authenticate(legacy));
+
+			// logout
+			gitblit.revokeCookie(new Cookie[] { renewed });
+			assertNull(authenticate(renewed));
+
+			// the password is changed by editing the realm file
+			Cookie token = setCookie(user);
+			assertNotNull(authenticate(token));
+			File file = new File("test-users.conf");
+			ConfigUserService service = new ConfigUserService(file);
+			UserModel model = service.getUserModel(user.username);
+			model.password = "secret2";
+			service.updateUserModel(model);
+			file.setLastModified(System.currentTimeMillis() + 2000);
+			// the realm file is checked at most once per second
+			Thread.sleep(1100);
+			assertNull(authenticate(token));
+			assertNull(authenticate(legacy));
+		} finally {
+			assertTrue(gitblit.deleteUser(user.username));
+		}
+	}
+
+	private AuthenticationTokens newTokens(long lifetime) {
+		return newTokens(lifetime, 60000);
+	}
+
+	private AuthenticationTokens newTokens(long lifetime, long userTimeout) {
+		AuthenticationTokens tokens = new AuthenticationTokens(tokensFile, lifetime, 10,
+				userTimeout);
+		tokens.setUserService(userService);
+		return tokens;
+	}
+
+	private Cookie setCookie(UserModel user) {
+		final List<Cookie> cookies = new ArrayList<Cookie>();
+		GitBlit.self().setCookie(new WebResponse() {
+			@Override
+			public void addCookie(Cookie cookie) {
+				cookies.add(cookie);
+			}
+		}, user);
+		assertEquals(1, cookies.size());
+		return cookies.get(0);
+	}
+
+	private UserModel authenticate(Cookie cookie) {
+		return GitBlit.self().authenticate(new Cookie[] { cookie });
+	}
+}
\ No newline at end of file
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.junit.Test;
+
+import com.gitblit.CommitGraphCache;
+import com.gitblit.utils.JGitUtils;
+
+public class CommitGraphCacheTest {
+
+	private static final String[] PATHS = { "a.txt", "dir/b.txt", "dir/c.txt", "dir/sub/d.txt" };
+
+	@Test
+	public void testLogOrder() throws Exception {
+		String name = "test/commitgraph.git";
+		Repository repository = GitBlitSuite.createTestRepository(name);
+		createHistory(repository, 72, 3);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CommitGraphCache cache = new CommitGraphCache(GitBlitSuite.REPOSITORIES, executor, 10);
+			build(cache, name, executor);
+
+			// commits with the same time are emitted in the order of a RevWalk
+			assertLog(JGitUtils.getRevLog(repository, null, null, 0, -1),
+					cache.getRevLog(name, repository, null, null, 0, -1));
+			assertLog(JGitUtils.getRevLog(repository, null, null, 10, 20),
+					cache.getRevLog(name, repository, null, null, 10, 20));
+		} finally {
+			executor.shutdownNow();
+			repository.close();
+		}
+	}
+
+	@Test
+	public void testPathHistory() throws Exception {
+		String name = "test/commitgraph.git";
+		Repository repository = GitBlitSuite.createTestRepository(name);
+		String[] paths = { "a.txt", "dir/b.txt", "dir/c.txt", "dir/sub/d.txt", "dir", "dir/sub",
+				"missing.txt" };
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			for (long seed = 1; seed <= 5; seed++) {
+				createHistory(repository, 120, seed);
+				CommitGraphCache cache = new CommitGraphCache(GitBlitSuite.REPOSITORIES,
+						executor, 10);
+				build(cache, name, executor);
+
+				// file and folder histories through merges which took the path
+				// from either parent or changed it
+				for (String path : paths) {
+					assertLog(JGitUtils.getRevLog(repository, null, path, 0, -1),
+							cache.getRevLog(name, repository, null, path, 0, -1));
+					assertLog(JGitUtils.getRevLog(repository, null, path, 5, 10),
+							cache.getRevLog(name, repository, null, path, 5, 10));
+				}
+				repository.close();
+				repository = GitBlitSuite.createTestRepository(name);
+			}
+		} finally {
+			executor.shutdownNow();
+			repository.close();
+		}
+	}
+
+	@Test
+	public void testGenerations() throws Exception {
+		String name = "test/commitgraph.git";
+		Repository repository = GitBlitSuite.createTestRepository(name);
+		RevCommit root = GitBlitSuite.commit(repository, "refs/heads/master", 1000000000,
+				"root", new String[] { "a.txt", "a" });
+		RevCommit left = GitBlitSuite.commit(repository, "refs/heads/left", 1000000000, "left",
+				new String[] { "a.txt", "left" }, root);
+		RevCommit right = GitBlitSuite.commit(repository, "refs/heads/right", 1000000000,
+				"right", new String[] { "a.txt", "right" }, root);
+		RevCommit right2 = GitBlitSuite.commit(repository, "refs/heads/right", 1000000000,
+				"right2", new String[] { "a.txt", "right2" }, right);
+		RevCommit merge = GitBlitSuite.commit(repository, "refs/heads/master", 1000000000,
+				"merge", new String[] { "a.txt", "merge" }, left, right2);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CommitGraphCache cache = new CommitGraphCache(GitBlitSuite.REPOSITORIES, executor, 10);
+			build(cache, name, executor);
+			assertEquals(1, cache.getGeneration(name, root));
+			assertEquals(2, cache.getGeneration(name, left));
+			assertEquals(3, cache.getGeneration(name, right2));
+			assertEquals(4, cache.getGeneration(name, merge));
+			assertTrue(cache.isMergedInto(name, right, merge));
+			assertTrue(cache.isMergedInto(name, root, left));
+			assertFalse(cache.isMergedInto(name, left, right2));
+			assertFalse(cache.isMergedInto(name, merge, root));
+		} finally {
+			executor.shutdownNow();
+			repository.close();
+		}
+	}
+
+	@Test
+	public void testPersistedGraph() throws Exception {
+		String name = "test/commitgraph.git";
+		Repository repository = GitBlitSuite.createTestRepository(name);
+		createHistory(repository, 40, 5);
+		File graphFile = new File(repository.getDirectory(), "commitgraph.dat");
+		File configFile = new File(repository.getDirectory(), "commitgraph.conf");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CommitGraphCache cache = new CommitGraphCache(GitBlitSuite.REPOSITORIES, executor, 10);
+			build(cache, name, executor);
+			assertTrue(graphFile.exists());
+			assertEquals(getCommitCount(repository), getCount(configFile));
+
+			// a new cache reads the graph file and does not walk the history,
+			// the rejected update would return null
+			assertLog(JGitUtils.getRevLog(repository, null, null, 0, -1),
+					newLoadingCache().getRevLog(name, repository, null, null, 0, -1));
+
+			// a partially written update is discarded by the next update
+			FileOutputStream out = new FileOutputStream(graphFile, true);
+			out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+			out.close();
+			cache = new CommitGraphCache(GitBlitSuite.REPOSITORIES, executor, 10);
+			assertLog(JGitUtils.getRevLog(repository, null, null, 0, -1),
+					cache.getRevLog(name, repository, null, null, 0, -1));
+			RevCommit tip = JGitUtils.getCommit(repository, "refs/heads/master");
+			RevCommit next = GitBlitSuite.commit(repository, "refs/heads/master", 1000000900,
+					"next", new String[] { "a.txt", "next" }, tip);
+			build(cache, name, executor);
+			assertEquals(getCommitCount(repository), getCount(configFile));
+			CommitGraphCache loaded = newLoadingCache();
+			assertLog(JGitUtils.getRevLog(repository, null, null, 0, -1),
+					loaded.getRevLog(name, repository, null, null, 0, -1));
+			assertEquals(cache.getGeneration(name, next), loaded.getGeneration(name, next));
+
+			// a graph of another version is rebuilt
+			FileBasedConfig config = new FileBasedConfig(configFile, FS.detect());
+			config.load();
+			config.setInt("graph", null, "version", 1);
+			config.save();
+			assertNull(newLoadingCache().getRevLog(name, repository, null, null, 0, -1));
+			cache = new CommitGraphCache(GitBlitSuite.REPOSITORIES, executor, 10);
+			build(cache, name, executor);
+			assertLog(JGitUtils.getRevLog(repository, null, null, 0, -1),
+					newLoadingCache().getRevLog(name, repository, null, null, 0, -1));
+		} finally {
+			executor.shutdownNow();
+			repository.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws Exception {
+		String name = "test/commitgraph.git";
+		Repository repository = GitBlitSuite.createTestRepository(name);
+		createHistory(repository, 300, 7);
+		File configFile = new File(repository.getDirectory(), "commitgraph.conf");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			// updates which are queued while an update is running scan the
+			// history concurrently, every commit is added once
+			CommitGraphCache cache = new CommitGraphCache(GitBlitSuite.REPOSITORIES, executor, 10);
+			for (int i = 0; i < 50; i++) {
+				cache.update(name);
+				Thread.sleep(2);
+			}
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+			assertEquals(getCommitCount(repository), getCount(configFile));
+			assertLog(JGitUtils.getRevLog(repository, null, null, 0, -1),
+					newLoadingCache().getRevLog(name, repository, null, null, 0, -1));
+		} finally {
+			executor.shutdownNow();
+			repository.close();
+		}
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		Repository first = GitBlitSuite.createTestRepository("test/commitgraph.git");
+		Repository second = GitBlitSuite.createTestRepository("test/commitgraph2.git");
+		createHistory(first, 20, 11);
+		createHistory(second, 30, 13);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			// only one graph is held, the other graph is reloaded from disk
+			CommitGraphCache cache = new CommitGraphCache(GitBlitSuite.REPOSITORIES, executor, 1);
+			build(cache, "test/commitgraph.git", executor);
+			build(cache, "test/commitgraph2.git", executor);
+			for (int i = 0; i < 3; i++) {
+				assertLog(JGitUtils.getRevLog(first, null, null, 0, -1),
+						cache.getRevLog("test/commitgraph.git", first, null, null, 0, -1));
+				assertLog(JGitUtils.getRevLog(second, null, null, 0, -1),
+						cache.getRevLog("test/commitgraph2.git", second, null, null, 0, -1));
+			}
+		} finally {
+			executor.shutdownNow();
+			first.close();
+			second.close();
+		}
+	}
+
+	/**
+	 * Creates a history with branches and merges whose commits share a few
+	 * commit times. Each commit changes or deletes one of the paths, a merge
+	 * takes each path from one of its parents or changes it.
+	 */
+	static void createHistory(Repository repository, int count, long seed) throws Exception {
+		Random random = new Random(seed);
+		Map<ObjectId, Map<String, String>> trees = new HashMap<ObjectId, Map<String, String>>();
+		List<RevCommit> tips = new ArrayList<RevCommit>();
+		Map<String, String> files = new TreeMap<String, String>();
+		for (String path : PATHS) {
+			files.put(path, path);
+		}
+		tips.add(commit(repository, 1000000000, "root", files, trees));
+		for (int i = 1; i < count; i++) {
+			// three distinct commit times, most commits tie with others
+			int time = 1000000000 + random.nextInt(3) * 60;
+			if (tips.size() > 1 && (random.nextInt(4) == 0 || i == count - 1)) {
+				RevCommit p1 = tips.remove(random.nextInt(tips.size()));
+				RevCommit p2 = tips.remove(random.nextInt(tips.size()));
+				files = new TreeMap<String, String>();
+				for (String path : PATHS) {
+					String content;
+					switch (random.nextInt(5)) {
+					case 0:
+						content = "merge " + i;
+						break;
+					case 1:
+					case 2:
+						content = trees.get(p2).get(path);
+						break;
+					default:
+						content = trees.get(p1).get(path);
+					}
+					if (content != null) {
+						files.put(path, content);
+					}
+				}
+				tips.add(commit(repository, time, "merge " + i, files, trees, p1, p2));
+			} else {
+				RevCommit parent = tips.get(random.nextInt(tips.size()));
+				files = new TreeMap<String, String>(trees.get(parent));
+				String path = PATHS[random.nextInt(PATHS.length)];
+				if (random.nextInt(6) == 0) {
+					files.remove(path);
+				} else {
+					files.put(path, "change " + i);
+				}
+				RevCommit commit = commit(repository, time, "change " + i, files, trees, parent);
+				if (tips.size() < 5 && random.nextInt(3) == 0) {
+					tips.add(commit);
+				} else {
+					tips.set(tips.indexOf(parent), commit);
+				}
+			}
+		}
+		// merge the remaining branches so that master reaches every commit
+		while (tips.size() > 1) {
+			RevCommit p1 = tips.remove(0);
+			RevCommit p2 = tips.remove(0);
+			tips.add(0, commit(repository, 1000000000, "merge", trees.get(p1), trees, p1, p2));
+		}
+	}
+
+	private static RevCommit commit(Repository repository, int time, String message,
+			Map<String, String> files, Map<ObjectId, Map<String, String>> trees,
+			RevCommit... parents) throws Exception {
+		String[] entries = new String[files.size() * 2];
+		int i = 0;
+		for (Map.Entry<String, String> entry : files.entrySet()) {
+			entries[i++] = entry.getKey();
+			entries[i++] = entry.getValue();
+		}
+		RevCommit commit = GitBlitSuite.commit(repository, "refs/heads/master", time, message,
+				entries, parents);
+		trees.put(commit.copy(), files);
+		return commit;
+	}
+
+	/**
+	 * Builds or updates the graph and waits for the update.
+	 */
+	static void build(CommitGraphCache cache, String name, ExecutorService executor)
+			throws Exception {
+		cache.update(name);
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).get();
+	}
+
+	/**
+	 * Returns a cache which can only serve persisted graphs, the updates of
+	 * the cache are rejected.
+	 */
+	static CommitGraphCache newLoadingCache() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		return new CommitGraphCache(GitBlitSuite.REPOSITORIES, executor, 10);
+	}
+
+	static void assertLog(List<RevCommit> expected, List<RevCommit> actual) {
+		assertNotNull(actual);
+		assertEquals(toString(expected), toString(actual));
+	}
+
+	private static String toString(List<RevCommit> commits) {
+		StringBuilder sb = new StringBuilder();
+		for (RevCommit commit : commits) {
+			sb.append(commit.getShortMessage()).append(' ').append(commit.getName()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static int getCommitCount(Repository repository) {
+		return JGitUtils.getRevLog(repository, null, null, 0, -1).size();
+	}
+
+	private static int getCount(File configFile) throws Exception {
+		StoredConfig config = new FileBasedConfig(configFile, FS.detect());
+		config.load();
+		return config.getInt("graph", null, "count", 0);
+	}
+}
\ No newline at end of file
@@ -19,8 +19,21 @@ import java.io.File;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.util.FileUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.runner.RunWith;
@@ -52,7 +65,10 @@ import com.gitblit.utils.JGitUtils;
 		ObjectCacheTest.class, UserServiceTest.class, MarkdownUtilsTest.class, JGitUtilsTest.class,
 		SyndicationUtilsTest.class, DiffUtilsTest.class, MetricUtilsTest.class,
 		TicgitUtilsTest.class, GitBlitTest.class, FederationTests.class, RpcTests.class,
-		GitServletTest.class, GroovyScriptTest.class, LuceneUtilsTest.class, IssuesTest.class })
+		GitServletTest.class, GroovyScriptTest.class, LuceneUtilsTest.class, IssuesTest.class,
+		CommitGraphCacheTest.class, MetricsStoreTest.class,
+		ActivityJournalTest.class, AuthenticationCacheTest.class,
+		RepositoryAccessIndexTest.class, AuthenticationTokensTest.class })
 public class GitBlitSuite {
 
 	public static final File REPOSITORIES = new File("git");
@@ -94,6 +110,97 @@ public class GitBlitSuite {
 		return new FileRepository(new File("test/gitective.git"));
 	}
 
+	/**
+	 * Creates an empty bare repository for a test. An existing repository of
+	 * the same name is deleted first.
+	 * 
+	 * @param name
+	 * @return the repository
+	 * @throws Exception
+	 */
+	public static Repository createTestRepository(String name) throws Exception {
+		File folder = new File(REPOSITORIES, name);
+		if (folder.exists()) {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+		return JGitUtils.createRepository(REPOSITORIES, name);
+	}
+
+	/**
+	 * Commits a tree of files to a branch of a test repository. The branch is
+	 * updated to the new commit even if the commit does not descend from the
+	 * current tip, like a forced push.
+	 * 
+	 * @param repository
+	 * @param branch
+	 *            the full name of the branch
+	 * @param time
+	 *            the author and commit time in seconds
+	 * @param message
+	 * @param files
+	 *            alternating paths and contents of the files of the tree
+	 * @param parents
+	 * @return the commit
+	 * @throws Exception
+	 */
+	public static RevCommit commit(Repository repository, String branch, int time,
+			String message, String[] files, RevCommit... parents) throws Exception {
+		return commit(repository, branch, new PersonIdent("Gitblit", "gitblit@localhost",
+				time * 1000L, 0), message, files, parents);
+	}
+
+	/**
+	 * Commits a tree of files to a branch of a test repository with the
+	 * specified author and committer.
+	 * 
+	 * @param repository
+	 * @param branch
+	 *            the full name of the branch
+	 * @param ident
+	 *            the author and committer, including the commit time
+	 * @param message
+	 * @param files
+	 *            alternating paths and contents of the files of the tree
+	 * @param parents
+	 * @return the commit
+	 * @throws Exception
+	 */
+	public static RevCommit commit(Repository repository, String branch, PersonIdent ident,
+			String message, String[] files, RevCommit... parents) throws Exception {
+		ObjectInserter inserter = repository.newObjectInserter();
+		RevWalk walk = new RevWalk(repository);
+		try {
+			DirCache index = DirCache.newInCore();
+			DirCacheBuilder builder = index.builder();
+			for (int i = 0; i < files.length; i += 2) {
+				DirCacheEntry entry = new DirCacheEntry(files[i]);
+				entry.setFileMode(FileMode.REGULAR_FILE);
+				entry.setObjectId(inserter.insert(Constants.OBJ_BLOB,
+						Constants.encode(files[i + 1])));
+				builder.add(entry);
+			}
+			builder.finish();
+
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(index.writeTree(inserter));
+			commit.setParentIds(parents);
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage(message);
+			ObjectId id = inserter.insert(commit);
+			inserter.flush();
+
+			RefUpdate update = repository.updateRef(branch);
+			update.setNewObjectId(id);
+			update.setForceUpdate(true);
+			update.update();
+			return walk.parseCommit(id);
+		} finally {
+			walk.release();
+			inserter.release();
+		}
+	}
+
 	public static boolean startGitblit() throws Exception {
 		if (started.get()) {
 			// already started
@@ -138,6 +245,7 @@ public class GitBlitSuite {
 			cloneOrFetch("test/gitective.git", "https://github.com/kevinsawicki/gitective.git");
 			
 			JGitUtils.createRepository(REPOSITORIES, "gb-issues.git").close();
+			GitBlit.self().refreshRepositoryList();
 
 			enableTickets("ticgit.git");
 			enableDocs("ticgit.git");
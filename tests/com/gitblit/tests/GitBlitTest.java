@@ -20,8 +20,11 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.util.List;
 
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
 import org.junit.Test;
 
 import com.gitblit.Constants.AccessRestrictionType;
@@ -47,6 +50,51 @@ public class GitBlitTest {
 		assertTrue(GitBlit.self().calculateSize(model) > 22000L);
 	}
 
+	@Test
+	public void testRepositoryModelCache() throws Exception {
+		String repository = GitBlitSuite.getHelloworldRepository().getDirectory().getName();
+		RepositoryModel model = GitBlit.self().getRepositoryModel(repository);
+		String description = model.description;
+
+		// cached models are copied on retrieval
+		model.description = "cached model test";
+		assertEquals(description, GitBlit.self().getRepositoryModel(repository).description);
+
+		// updating the repository invalidates the cached model
+		GitBlit.self().updateRepositoryModel(model.name, model, false);
+		assertEquals("cached model test", GitBlit.self().getRepositoryModel(repository).description);
+
+		model.description = description;
+		GitBlit.self().updateRepositoryModel(model.name, model, false);
+		assertEquals(description, GitBlit.self().getRepositoryModel(repository).description);
+	}
+
+	@Test
+	public void testRepositoryModelChangedOnDisk() throws Exception {
+		String name = "test/model.git";
+		Repository repository = GitBlitSuite.createTestRepository(name);
+		try {
+			StoredConfig config = repository.getConfig();
+			config.setString("gitblit", null, "description", "original");
+			config.save();
+			assertEquals("original", GitBlit.self().getRepositoryModel(name).description);
+
+			// a change within the same second as the load keeps the timestamp
+			// and the length of the config
+			File configFile = new File(repository.getDirectory(), "config");
+			long modified = configFile.lastModified();
+			config.setString("gitblit", null, "description", "modified");
+			config.save();
+			configFile.setLastModified(modified);
+
+			// the files are checked at most once per second
+			Thread.sleep(1100);
+			assertEquals("modified", GitBlit.self().getRepositoryModel(name).description);
+		} finally {
+			repository.close();
+		}
+	}
+
 	@Test
 	public void testUserModel() throws Exception {
 		List<String> users = GitBlit.self().getAllUsernames();
@@ -20,7 +20,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.bouncycastle.util.Arrays;
 import org.eclipse.jgit.lib.Repository;
@@ -124,6 +127,17 @@ public class IssuesTest {
 		assertTrue(allIssues.size() > 0);
 		assertEquals(1, openIssues.size());
 		assertEquals(1, closedIssues.size());
+
+		// query the field indexes
+		List<IssueModel> fixedIssues = IssueUtils.getIssues(repository, Field.Status,
+				Status.Fixed, null);
+		List<IssueModel> ownedIssues = IssueUtils.getIssues(repository, Field.Owner, c2.author,
+				null);
+		List<IssueModel> labeledIssues = IssueUtils.getIssues(repository, Field.Labels,
+				"helpdesk", null);
+		assertEquals(1, fixedIssues.size());
+		assertEquals(1, ownedIssues.size());
+		assertEquals(2, labeledIssues.size());
 		
 		// build a new Lucene index
 		LuceneUtils.deleteIndex(repository);
@@ -193,6 +207,46 @@ public class IssuesTest {
 		repository.close();
 	}
 
+	@Test
+	public void testBatchUpdate() throws Exception {
+		Repository repository = GitBlitSuite.getIssuesTestRepository();
+		// C1: create the issues
+		IssueModel issue1 = IssueUtils.createIssue(repository,
+				newChange("testBatchUpdate() 1 " + Long.toHexString(System.currentTimeMillis())));
+		IssueModel issue2 = IssueUtils.createIssue(repository,
+				newChange("testBatchUpdate() 2 " + Long.toHexString(System.currentTimeMillis())));
+
+		// relabel both issues and close the second issue in one batch
+		Map<String, List<Change>> changes = new LinkedHashMap<String, List<Change>>();
+		Change c2 = new Change("C2");
+		c2.setField(Field.Labels, "relabeled");
+		changes.put(issue1.id, new ArrayList<Change>());
+		changes.get(issue1.id).add(c2);
+		Change c3 = new Change("C3");
+		c3.setField(Field.Labels, "relabeled");
+		Change c4 = new Change("C4");
+		c4.comment("closing issue");
+		c4.setField(Field.Status, Status.Fixed);
+		changes.put(issue2.id, new ArrayList<Change>());
+		changes.get(issue2.id).add(c3);
+		changes.get(issue2.id).add(c4);
+		assertTrue(IssueUtils.updateIssues(repository, changes));
+
+		issue1 = IssueUtils.getIssue(repository, issue1.id);
+		issue2 = IssueUtils.getIssue(repository, issue2.id);
+		assertEquals(2, issue1.changes.size());
+		assertEquals(3, issue2.changes.size());
+		assertTrue(issue1.hasLabel("relabeled"));
+		assertTrue(issue2.hasLabel("relabeled"));
+		assertTrue(issue2.status.isClosed());
+		assertEquals(2, IssueUtils.getIssues(repository, Field.Labels, "relabeled", null).size());
+
+		assertTrue(IssueUtils.deleteIssue(repository, issue1.id, "D"));
+		assertTrue(IssueUtils.deleteIssue(repository, issue2.id, "D"));
+
+		repository.close();
+	}
+
 	private Change newChange(String summary) {
 		Change change = new Change("C1");
 		change.setField(Field.Summary, summary);
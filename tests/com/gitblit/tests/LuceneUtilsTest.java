@@ -16,14 +16,34 @@
 package com.gitblit.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.FileUtils;
 import org.junit.Test;
 
+import com.gitblit.Constants.SearchType;
+import com.gitblit.models.RefModel;
 import com.gitblit.models.SearchResult;
+import com.gitblit.utils.JGitUtils;
 import com.gitblit.utils.LuceneUtils;
+import com.gitblit.utils.LuceneUtils.IndexResult;
+import com.gitblit.utils.LuceneUtils.SearchPage;
 
 /**
  * Tests Lucene indexing and querying.
@@ -81,8 +101,12 @@ public class LuceneUtilsTest {
 		assertEquals("2648c0c98f2101180715b4d432fc58d0e21a51d7", results.get(0).id);
 		assertEquals("refs/heads/gh-pages", results.get(0).branch);
 		
+		// blobs are indexed once per path for all branches which share them,
+		// the four branches with the file have one hit per version of it
 		results = LuceneUtils.search("type:blob AND \"src/intro.rst\"", 10, repository);
-		assertEquals(4, results.size());
+		List<ObjectId> versions = getBranchBlobs(repository, "src/intro.rst");
+		assertEquals(4, versions.size());
+		assertEquals(new HashSet<ObjectId>(versions).size(), results.size());
 		
 		// hash id tests
 		results = LuceneUtils.search("id:57c4f26f157ece24b02f4f10f5f68db1d2ce7ff5", 10, repository);
@@ -109,7 +133,243 @@ public class LuceneUtilsTest {
 		List<SearchResult> results = LuceneUtils.search("test", 10,
 				GitBlitSuite.getHelloworldRepository(), 
 				GitBlitSuite.getJGitRepository());
-		LuceneUtils.close();
 		assertEquals(10, results.size());
+
+		// repeat the search with the cached composite searcher
+		List<SearchResult> cached = LuceneUtils.search("test", 10,
+				GitBlitSuite.getJGitRepository(),
+				GitBlitSuite.getHelloworldRepository());
+		LuceneUtils.close();
+		assertEquals(results.toString(), cached.toString());
+	}
+
+	@Test
+	public void testPagedSearch() throws Exception {
+		Repository helloworld = GitBlitSuite.getHelloworldRepository();
+		Repository jgit = GitBlitSuite.getJGitRepository();
+		List<SearchResult> results = LuceneUtils.search("test", 30, helloworld, jgit);
+
+		// sequential pages with the search-after cursor
+		SearchPage page1 = LuceneUtils.search("test", 1, 10, null, helloworld, jgit);
+		SearchPage page2 = LuceneUtils.search("test", 2, 10, page1.last, helloworld, jgit);
+		SearchPage page3 = LuceneUtils.search("test", 3, 10, page2.last, helloworld, jgit);
+		assertEquals(results.subList(0, 10).toString(), page1.results.toString());
+		assertEquals(results.subList(10, 20).toString(), page2.results.toString());
+		assertEquals(results.subList(20, 30).toString(), page3.results.toString());
+
+		// direct jump to a page
+		SearchPage direct = LuceneUtils.search("test", 3, 10, null, helloworld, jgit);
+		assertEquals(page3.results.toString(), direct.results.toString());
+
+		// facets count all hits, not just the page
+		int count = 0;
+		for (int value : page1.repositories.values()) {
+			count += value;
+		}
+		assertEquals(page1.totalHits, count);
+		assertTrue(page1.totalHits > 30);
+		LuceneUtils.close();
+	}
+
+	@Test
+	public void testCommitSearch() throws Exception {
+		Repository repository = GitBlitSuite.getHelloworldRepository();
+		LuceneUtils.reindex(repository);
+		List<String> ids = LuceneUtils.searchCommits(repository, null, "mike", SearchType.COMMITTER,
+				2, 5);
+		List<RevCommit> commits = JGitUtils.searchRevlogs(repository, null, "mike",
+				SearchType.COMMITTER, 2, 5);
+		assertEquals(commits.size(), ids.size());
+		for (int i = 0; i < commits.size(); i++) {
+			assertEquals(commits.get(i).getName(), ids.get(i));
+		}
+		repository.close();
+		LuceneUtils.close();
+	}
+
+	@Test
+	public void testCommitSearchPages() throws Exception {
+		Repository repository = GitBlitSuite.createTestRepository("test/lucenecommits.git");
+		RevCommit tip = null;
+		for (int i = 0; i < 25; i++) {
+			// commits of the same second
+			String[] files = { "file.txt", "change " + i };
+			if (tip == null) {
+				tip = GitBlitSuite.commit(repository, "refs/heads/master", 1000000000, "commit "
+						+ i, files);
+			} else {
+				tip = GitBlitSuite.commit(repository, "refs/heads/master", 1000000000, "commit "
+						+ i, files, tip);
+			}
+		}
+		LuceneUtils.reindex(repository);
+
+		List<String> all = LuceneUtils.searchCommits(repository, null, "gitblit",
+				SearchType.COMMITTER, 0, -1);
+		assertEquals(25, all.size());
+
+		// commits of the same date are ordered by id so that pages are stable
+		List<String> sorted = new ArrayList<String>(all);
+		Collections.sort(sorted);
+		assertEquals(sorted, all);
+		List<String> pages = new ArrayList<String>();
+		for (int page = 0; page < 3; page++) {
+			pages.addAll(LuceneUtils.searchCommits(repository, null, "gitblit",
+					SearchType.COMMITTER, page * 10, 10));
+		}
+		assertEquals(all, pages);
+		assertEquals(0, LuceneUtils.searchCommits(repository, null, "gitblit",
+				SearchType.COMMITTER, 30, 10).size());
+		assertEquals(0, LuceneUtils.searchCommits(repository, null, "nobody",
+				SearchType.COMMITTER, 0, -1).size());
+
+		LuceneUtils.close();
+		repository.close();
+	}
+
+	@Test
+	public void testBranchesOfBlobs() throws Exception {
+		Repository repository = GitBlitSuite.createTestRepository("test/lucenebranches.git");
+		RevCommit base = GitBlitSuite.commit(repository, "refs/heads/master", 1000000000,
+				"base", new String[] { "shared.txt", "shared wombat", "other.txt", "master" });
+		RevCommit dev = GitBlitSuite.commit(repository, "refs/heads/dev", 1000000100, "dev",
+				new String[] { "shared.txt", "shared wombat", "dev.txt", "dev" }, base);
+		GitBlitSuite.commit(repository, "refs/heads/zeta", 1000000200, "zeta",
+				new String[] { "orphan.txt", "orphan quokka" });
+		GitBlitSuite.commit(repository, "refs/heads/alpha", 1000000300, "alpha",
+				new String[] { "orphan.txt", "orphan quokka" });
+		LuceneUtils.reindex(repository);
+
+		// one hit for a blob which is shared by branches, the default branch
+		// is reported
+		List<SearchResult> results = LuceneUtils.search("type:blob AND wombat", 10, repository);
+		assertEquals(1, results.size());
+		assertEquals("shared.txt", results.get(0).id);
+		assertEquals("refs/heads/master", results.get(0).branch);
+
+		// the first branch in name order is reported if the default branch
+		// does not reference the blob
+		results = LuceneUtils.search("type:blob AND quokka", 10, repository);
+		assertEquals(1, results.size());
+		assertEquals("refs/heads/alpha", results.get(0).branch);
+
+		// a change on one branch separates the blob of the branch
+		RevCommit change = GitBlitSuite.commit(repository, "refs/heads/dev", 1000000400,
+				"change", new String[] { "shared.txt", "shared wombat changed", "dev.txt", "dev" },
+				dev);
+		assertTrue(LuceneUtils.index(repository, "refs/heads/dev", dev, change).success);
+		results = LuceneUtils.search("type:blob AND wombat", 10, repository);
+		assertEquals(2, results.size());
+		for (SearchResult res : results) {
+			assertEquals("shared.txt", res.id);
+		}
+		assertTrue(results.get(0).branch.equals("refs/heads/master")
+				^ results.get(1).branch.equals("refs/heads/master"));
+		results = LuceneUtils.search("type:blob AND changed", 10, repository);
+		assertEquals(1, results.size());
+		assertEquals("refs/heads/dev", results.get(0).branch);
+
+		LuceneUtils.close();
+		repository.close();
+	}
+
+	@Test
+	public void testStaleCursor() throws Exception {
+		Repository repository = GitBlitSuite.createTestRepository("test/lucenecursor.git");
+		String[] files = new String[12];
+		for (int i = 0; i < 6; i++) {
+			files[2 * i] = "kiwi" + i + ".txt";
+			files[2 * i + 1] = "kiwi " + i;
+		}
+		RevCommit base = GitBlitSuite.commit(repository, "refs/heads/master", 1000000000,
+				"base", files);
+		LuceneUtils.reindex(repository);
+
+		// the cursor is valid while the index is unchanged
+		SearchPage page1 = LuceneUtils.search("type:blob AND kiwi", 1, 3, null, repository);
+		SearchPage page2 = LuceneUtils.search("type:blob AND kiwi", 2, 3, page1.last,
+				repository);
+		SearchPage direct = LuceneUtils.search("type:blob AND kiwi", 2, 3, null, repository);
+		assertEquals(direct.results.toString(), page2.results.toString());
+
+		// the cursor of the previous generation is ignored after an update
+		for (int i = 0; i < 6; i++) {
+			files[2 * i + 1] = "kiwi kiwi " + i;
+		}
+		RevCommit change = GitBlitSuite.commit(repository, "refs/heads/master", 1000000100,
+				"change", files, base);
+		assertTrue(LuceneUtils.index(repository, "refs/heads/master", base, change).success);
+		page2 = LuceneUtils.search("type:blob AND kiwi", 2, 3, page1.last, repository);
+		direct = LuceneUtils.search("type:blob AND kiwi", 2, 3, null, repository);
+		assertEquals(3, page2.results.size());
+		assertEquals(direct.results.toString(), page2.results.toString());
+
+		LuceneUtils.close();
+		repository.close();
+	}
+
+	@Test
+	public void testSharedIndexUpdates() throws Exception {
+		File sharedFolder = new File(GitBlitSuite.REPOSITORIES, "test/lucene-shared");
+		final Repository[] repositories = new Repository[2];
+		for (int i = 0; i < repositories.length; i++) {
+			repositories[i] = GitBlitSuite.createTestRepository("test/luceneshared" + i + ".git");
+			GitBlitSuite.commit(repositories[i], "refs/heads/master", 1000000000, "base",
+					new String[] { "file.txt", "platypus " + i });
+		}
+		LuceneUtils.close();
+		LuceneUtils.setSharedIndexFolder(sharedFolder);
+		ExecutorService executor = Executors.newFixedThreadPool(repositories.length);
+		try {
+			// the first updates of the shared index open its writer
+			for (int round = 0; round < 10; round++) {
+				LuceneUtils.close();
+				if (sharedFolder.exists()) {
+					FileUtils.delete(sharedFolder, FileUtils.RECURSIVE);
+				}
+				final CountDownLatch start = new CountDownLatch(1);
+				List<Future<IndexResult>> results = new ArrayList<Future<IndexResult>>();
+				for (final Repository repository : repositories) {
+					results.add(executor.submit(new Callable<IndexResult>() {
+						@Override
+						public IndexResult call() throws Exception {
+							start.await();
+							return LuceneUtils.reindex(repository);
+						}
+					}));
+				}
+				start.countDown();
+				for (Future<IndexResult> result : results) {
+					assertTrue(result.get().success);
+				}
+				assertEquals(2, LuceneUtils.search("type:blob AND platypus", 10, repositories)
+						.size());
+			}
+		} finally {
+			executor.shutdownNow();
+			LuceneUtils.close();
+			LuceneUtils.setSharedIndexFolder(null);
+			for (Repository repository : repositories) {
+				repository.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the blob of a path in the tip of each branch which has the path.
+	 */
+	private List<ObjectId> getBranchBlobs(Repository repository, String path) throws Exception {
+		List<ObjectId> blobs = new ArrayList<ObjectId>();
+		RevWalk revWalk = new RevWalk(repository);
+		for (RefModel branch : JGitUtils.getLocalBranches(repository, true, -1)) {
+			RevCommit tip = revWalk.parseCommit(branch.getObjectId());
+			TreeWalk treeWalk = TreeWalk.forPath(repository, path, tip.getTree());
+			if (treeWalk != null) {
+				blobs.add(treeWalk.getObjectId(0));
+				treeWalk.release();
+			}
+		}
+		revWalk.release();
+		return blobs;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Test;
+
+import com.gitblit.CommitGraphCache;
+import com.gitblit.MetricsStore;
+import com.gitblit.models.Metric;
+import com.gitblit.utils.MetricUtils;
+
+public class MetricsStoreTest {
+
+	private static final String NAME = "test/metrics.git";
+
+	private static final String[] AUTHORS = { "Alice", "Bob", "Carol", "" };
+
+	private static final TimeZone[] TIMEZONES = { TimeZone.getTimeZone("UTC"),
+			TimeZone.getTimeZone("America/New_York"), TimeZone.getTimeZone("Asia/Kolkata") };
+
+	@Test
+	public void testMetrics() throws Exception {
+		Repository repository = GitBlitSuite.createTestRepository(NAME);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			MetricsStore store = new MetricsStore(GitBlitSuite.REPOSITORIES, executor,
+					new CommitGraphCache(GitBlitSuite.REPOSITORIES, executor, 10), 2);
+			RevCommit[] master = new RevCommit[40];
+			master[0] = commit(repository, "refs/heads/master", 0, null);
+			for (int i = 1; i < master.length; i++) {
+				master[i] = commit(repository, "refs/heads/master", i, master[i - 1]);
+				if (i % 9 == 0) {
+					tag(repository, "refs/tags/v" + i, master[i]);
+				}
+			}
+
+			// the initial count is queued by the first request
+			assertNull(store.getDateMetrics(NAME, repository, null, true, null, TIMEZONES[0]));
+			waitForUpdates(executor);
+			assertMetrics(store, repository, null);
+
+			// fast-forward
+			RevCommit tip = master[master.length - 1];
+			for (int i = 40; i < 45; i++) {
+				tip = commit(repository, "refs/heads/master", i, tip);
+			}
+			tag(repository, "refs/tags/v44", tip);
+			update(store, executor);
+			assertMetrics(store, repository, null);
+
+			// forced push which rewinds the branch and adds other commits
+			tip = master[30];
+			for (int i = 45; i < 48; i++) {
+				tip = commit(repository, "refs/heads/master", i, tip);
+			}
+			update(store, executor);
+			assertMetrics(store, repository, null);
+
+			// new branch, counted from the counters of the default branch
+			tip = master[20];
+			for (int i = 48; i < 52; i++) {
+				tip = commit(repository, "refs/heads/feature", i, tip);
+			}
+			tag(repository, "refs/tags/feature", tip);
+			update(store, executor);
+			assertNull(store.getAuthorMetrics(NAME, repository, "refs/heads/feature", true));
+			waitForUpdates(executor);
+			assertMetrics(store, repository, "refs/heads/feature");
+			assertMetrics(store, repository, null);
+		} finally {
+			executor.shutdownNow();
+			repository.close();
+		}
+	}
+
+	@Test
+	public void testBranchLimit() throws Exception {
+		Repository repository = GitBlitSuite.createTestRepository(NAME);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			MetricsStore store = new MetricsStore(GitBlitSuite.REPOSITORIES, executor,
+					new CommitGraphCache(GitBlitSuite.REPOSITORIES, executor, 10), 2);
+			RevCommit base = commit(repository, "refs/heads/master", 0, null);
+			for (int i = 1; i < 10; i++) {
+				base = commit(repository, "refs/heads/master", i, base);
+			}
+			String[] branches = { "refs/heads/a", "refs/heads/b", "refs/heads/c" };
+			for (int i = 0; i < branches.length; i++) {
+				commit(repository, branches[i], 10 + i, base);
+			}
+			update(store, executor);
+			assertMetrics(store, repository, null);
+
+			// only the two most recently requested branches keep counters
+			for (String branch : branches) {
+				assertNull(store.getDateMetrics(NAME, repository, branch, true, null,
+						TIMEZONES[0]));
+				waitForUpdates(executor);
+				assertMetrics(store, repository, branch);
+			}
+			assertNotNull(store.getDateMetrics(NAME, repository, "refs/heads/b", true, null,
+					TIMEZONES[0]));
+			assertNotNull(store.getDateMetrics(NAME, repository, "refs/heads/c", true, null,
+					TIMEZONES[0]));
+			assertNull(store.getDateMetrics(NAME, repository, "refs/heads/a", true, null,
+					TIMEZONES[0]));
+			waitForUpdates(executor);
+			assertMetrics(store, repository, "refs/heads/a");
+			assertMetrics(store, repository, null);
+		} finally {
+			executor.shutdownNow();
+			repository.close();
+		}
+	}
+
+	/**
+	 * Commits a change by one of the authors. Commits are spread over several
+	 * days and months so that the daily and monthly metrics differ.
+	 */
+	private RevCommit commit(Repository repository, String branch, int i, RevCommit parent)
+			throws Exception {
+		String author = AUTHORS[i % AUTHORS.length];
+		String email = i % 5 == 0 ? "" : author.toLowerCase() + "@localhost";
+		long time = (1300000000L + i * 4L * 24 * 60 * 60 + (i % 7) * 3 * 60 * 60) * 1000L;
+		PersonIdent ident = new PersonIdent(author, email, time, 0);
+		String[] files = { "file.txt", branch + " " + i };
+		if (parent == null) {
+			return GitBlitSuite.commit(repository, branch, ident, "commit " + i, files);
+		}
+		return GitBlitSuite.commit(repository, branch, ident, "commit " + i, files, parent);
+	}
+
+	private void tag(Repository repository, String name, RevCommit commit) throws Exception {
+		RefUpdate update = repository.updateRef(name);
+		update.setNewObjectId(commit);
+		update.setForceUpdate(true);
+		update.update();
+	}
+
+	private void update(MetricsStore store, ExecutorService executor) throws Exception {
+		store.update(NAME);
+		waitForUpdates(executor);
+	}
+
+	private void waitForUpdates(ExecutorService executor) throws Exception {
+		// updates queue further updates, the executor is drained twice
+		for (int i = 0; i < 2; i++) {
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		}
+	}
+
+	private void assertMetrics(MetricsStore store, Repository repository, String objectId) {
+		for (TimeZone timezone : TIMEZONES) {
+			for (String format : new String[] { null, "yyyy-MM", "E" }) {
+				assertMetricsEqual(MetricUtils.getDateMetrics(repository, objectId, true, format,
+						timezone), store.getDateMetrics(NAME, repository, objectId, true,
+						format, timezone));
+			}
+		}
+		for (boolean byEmail : new boolean[] { true, false }) {
+			assertMetricsEqual(MetricUtils.getAuthorMetrics(repository, objectId, byEmail),
+					store.getAuthorMetrics(NAME, repository, objectId, byEmail));
+		}
+	}
+
+	private void assertMetricsEqual(List<Metric> expected, List<Metric> actual) {
+		assertNotNull(actual);
+		assertEquals(toString(expected), toString(actual));
+	}
+
+	private String toString(List<Metric> metrics) {
+		StringBuilder sb = new StringBuilder();
+		for (Metric metric : metrics) {
+			sb.append(metric.name).append(' ').append(metric.count).append(' ')
+					.append(metric.tag).append(' ').append(metric.duration).append('\n');
+		}
+		return sb.toString();
+	}
+}
\ No newline at end of file
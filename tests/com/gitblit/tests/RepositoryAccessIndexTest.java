@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.junit.Test;
+
+import com.gitblit.ConfigUserService;
+import com.gitblit.Constants.AccessRestrictionType;
+import com.gitblit.GitBlit;
+import com.gitblit.RepositoryAccessIndex;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.TeamModel;
+import com.gitblit.models.UserModel;
+
+public class RepositoryAccessIndexTest {
+
+	private static final String[] USERS = { null, "admin", "alice", "bob", "carol", "dave" };
+
+	private static final String[] OWNERS = { "", "alice", "carol", "Carol", "nobody" };
+
+	@Test
+	public void testIndex() throws Exception {
+		File realmFile = File.createTempFile("gitblit", ".conf");
+		realmFile.delete();
+		realmFile.deleteOnExit();
+		try {
+			ConfigUserService userService = new ConfigUserService(realmFile);
+			UserModel admin = new UserModel("admin");
+			admin.canAdmin = true;
+			userService.updateUserModel(admin);
+			UserModel alice = new UserModel("alice");
+			alice.addRepository("r0.git");
+			alice.addRepository("R5.git");
+			userService.updateUserModel(alice);
+			userService.updateUserModel(new UserModel("bob"));
+			userService.updateUserModel(new UserModel("carol"));
+			userService.updateUserModel(new UserModel("dave"));
+			TeamModel developers = new TeamModel("developers");
+			developers.addRepository("r1.git");
+			developers.addRepository("r6.git");
+			developers.addUser("bob");
+			developers.addUser("alice");
+			userService.updateTeamModel(developers);
+			TeamModel testers = new TeamModel("testers");
+			testers.addRepository("r2.git");
+			testers.addUser("bob");
+			testers.addUser("dave");
+			userService.updateTeamModel(testers);
+
+			RepositoryAccessIndex index = new RepositoryAccessIndex();
+
+			// every combination of restriction and owner, some of them granted
+			// to users or teams
+			AccessRestrictionType[] restrictions = AccessRestrictionType.values();
+			List<RepositoryModel> models = new ArrayList<RepositoryModel>();
+			for (int i = 0; i < restrictions.length * OWNERS.length; i++) {
+				RepositoryModel model = new RepositoryModel();
+				model.name = "r" + i + ".git";
+				model.accessRestriction = restrictions[i % restrictions.length];
+				model.owner = OWNERS[(i / restrictions.length) % OWNERS.length];
+				models.add(model);
+			}
+			// the first check of a repository is filtered as unrestricted
+			assertAgree(index, userService, models, false);
+			for (RepositoryModel model : models) {
+				index.setRepository(model);
+			}
+			assertAgree(index, userService, models, true);
+
+			// changed restrictions, owners, and grants
+			for (int i = 0; i < models.size(); i++) {
+				RepositoryModel model = models.get(i);
+				model.accessRestriction = restrictions[(i + 2) % restrictions.length];
+				model.owner = OWNERS[(i + 1) % OWNERS.length];
+				index.setRepository(model);
+			}
+			assertAgree(index, userService, models, true);
+
+			testers.removeRepository("r2.git");
+			testers.addRepository("r3.git");
+			testers.removeUser("dave");
+			userService.updateTeamModel(testers);
+			index.resetTeam(testers.name);
+			index.resetUser("dave");
+			alice.removeRepository("R5.git");
+			alice.addRepository("r7.git");
+			userService.updateUserModel(alice);
+			index.resetUser(alice.username);
+			assertAgree(index, userService, models, true);
+
+			// a repository whose model is no longer known is not hidden
+			index.removeRepository(models.get(3).name);
+			models.get(3).accessRestriction = AccessRestrictionType.NONE;
+			assertAgree(index, userService, models, true);
+		} finally {
+			realmFile.delete();
+		}
+	}
+
+	@Test
+	public void testCallerModels() throws Exception {
+		RepositoryAccessIndex index = new RepositoryAccessIndex();
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 3; i++) {
+			RepositoryModel model = new RepositoryModel();
+			model.name = "r" + i + ".git";
+			model.accessRestriction = AccessRestrictionType.VIEW;
+			index.setRepository(model);
+			names.add(model.name);
+		}
+
+		// the grants of a user which is unknown to a realm file, like a user
+		// of an external user service, are taken from the caller's model
+		UserModel erin = new UserModel("erin");
+		erin.addRepository("r0.git");
+		TeamModel team = new TeamModel("external");
+		team.addRepository("r2.git");
+		erin.teams.add(team);
+		assertEquals(Arrays.asList("r0.git", "r2.git"), index.filter(erin, names));
+
+		// a new model of the user is evaluated again
+		erin = new UserModel("erin");
+		erin.addRepository("r1.git");
+		assertEquals(Arrays.asList("r1.git"), index.filter(erin, names));
+
+		// a changed model is evaluated again after a reset
+		erin.addRepository("r2.git");
+		index.resetUser(erin.username);
+		assertEquals(Arrays.asList("r1.git", "r2.git"), index.filter(erin, names));
+	}
+
+	@Test
+	public void testChangedOnDisk() throws Exception {
+		String name = "test/access.git";
+		Repository repository = GitBlitSuite.createTestRepository(name);
+		try {
+			GitBlit gitblit = GitBlit.self();
+			gitblit.refreshRepositoryList();
+			setConfig(repository, AccessRestrictionType.VIEW, "");
+			UserModel dave = new UserModel("dave");
+			assertFalse(getRepositoryNames(null).contains(name));
+			assertFalse(getRepositoryNames(dave).contains(name));
+
+			// the owner is changed on disk
+			setConfig(repository, AccessRestrictionType.VIEW, "dave");
+			assertFalse(getRepositoryNames(null).contains(name));
+			assertTrue(getRepositoryNames(dave).contains(name));
+
+			// the restriction is removed on disk
+			setConfig(repository, AccessRestrictionType.NONE, "");
+			assertTrue(getRepositoryNames(null).contains(name));
+			assertTrue(gitblit.getRepositoryModel(null, name) != null);
+		} finally {
+			repository.close();
+		}
+	}
+
+	private void assertAgree(RepositoryAccessIndex index, ConfigUserService userService,
+			List<RepositoryModel> models, boolean loaded) {
+		List<String> names = new ArrayList<String>();
+		for (RepositoryModel model : models) {
+			names.add(model.name);
+		}
+		for (String username : USERS) {
+			UserModel user = username == null ? null : userService.getUserModel(username);
+			List<String> expected = new ArrayList<String>();
+			for (RepositoryModel model : models) {
+				boolean canView = !model.accessRestriction.atLeast(AccessRestrictionType.VIEW)
+						|| (user != null && user.canAccessRepository(model));
+				if (canView || !loaded) {
+					expected.add(model.name);
+				}
+			}
+			assertEquals(username, expected, index.filter(user, names));
+		}
+		// checking a model updates the index
+		for (String username : USERS) {
+			UserModel user = username == null ? null : userService.getUserModel(username);
+			for (RepositoryModel model : models) {
+				boolean canView = !model.accessRestriction.atLeast(AccessRestrictionType.VIEW)
+						|| (user != null && user.canAccessRepository(model));
+				assertEquals(username + " " + model.name, canView, index.canView(user, model));
+			}
+		}
+	}
+
+	private void setConfig(Repository repository, AccessRestrictionType restriction,
+			String owner) throws Exception {
+		File configFile = new File(repository.getDirectory(), "config");
+		long modified = configFile.lastModified();
+		StoredConfig config = repository.getConfig();
+		config.setString("gitblit", null, "accessRestriction", restriction.name());
+		config.setString("gitblit", null, "owner", owner);
+		config.save();
+		// the change is detected by the modification time of the config
+		configFile.setLastModified(Math.max(System.currentTimeMillis(), modified + 2000));
+		// the files of a cached model are checked at most once per second
+		Thread.sleep(1100);
+	}
+
+	private List<String> getRepositoryNames(UserModel user) {
+		List<String> names = new ArrayList<String>();
+		for (RepositoryModel model : GitBlit.self().getRepositoryModels(user)) {
+			names.add(model.name);
+		}
+		return names;
+	}
+}
\ No newline at end of file
@@ -21,14 +21,17 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 import org.junit.Test;
 
 import com.gitblit.ConfigUserService;
 import com.gitblit.FileUserService;
 import com.gitblit.IUserService;
+import com.gitblit.JournalUserService;
 import com.gitblit.models.TeamModel;
 import com.gitblit.models.UserModel;
+import com.gitblit.utils.FileUtils;
 
 public class UserServiceTest {
 
@@ -52,6 +55,78 @@ public class UserServiceTest {
 		file.delete();
 	}
 
+	@Test
+	public void testJournalUserService() throws IOException {
+		File file = new File("us-test.db");
+		file.delete();
+		IUserService service = new JournalUserService(file);
+		testUsers(service);
+		testTeams(service);
+
+		// reload the journal
+		IUserService reloaded = new JournalUserService(file);
+		assertEquals(service.getAllUsernames(), reloaded.getAllUsernames());
+		assertEquals(service.getAllTeamNames(), reloaded.getAllTeamNames());
+		assertEquals("password", reloaded.getUserModel("admin").password);
+		assertTrue(reloaded.getUserModel("admin").isTeamMember("admins"));
+
+		// an incomplete transaction is discarded
+		long length = file.length();
+		UserModel user = new UserModel("partial");
+		user.password = "partial";
+		service.updateUserModel(user);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(file.length() - 1);
+		raf.close();
+		reloaded = new JournalUserService(file);
+		assertEquals(null, reloaded.getUserModel("partial"));
+		assertEquals(service.getAllTeamNames(), reloaded.getAllTeamNames());
+		reloaded.updateUserModel(user);
+		assertTrue(file.length() > length);
+		assertTrue(new JournalUserService(file).getUserModel("partial") != null);
+		file.delete();
+	}
+
+	@Test
+	public void testJournalImport() throws IOException {
+		File file = new File("us-test.conf");
+		file.delete();
+		IUserService config = new ConfigUserService(file);
+		testUsers(config);
+
+		File journal = new File("us-test.db");
+		journal.delete();
+		JournalUserService service = new JournalUserService(journal);
+		assertTrue(service.importUsers(config));
+		assertEquals(config.getAllUsernames(), service.getAllUsernames());
+		assertEquals(config.getAllTeamNames(), service.getAllTeamNames());
+		assertEquals(config.getUsernamesForRepositoryRole("newrepo1"),
+				service.getUsernamesForRepositoryRole("newrepo1"));
+		testTeams(service);
+		file.delete();
+		journal.delete();
+	}
+
+	@Test
+	public void testConfigUserServiceReload() throws Exception {
+		File file = new File("us-test.conf");
+		file.delete();
+		IUserService service = new ConfigUserService(file);
+		UserModel user = new UserModel("reload");
+		user.password = "original";
+		service.updateUserModel(user);
+
+		// an external edit with the lastModified of the write is read after
+		// the write (issue-55)
+		long lastModified = file.lastModified();
+		String content = FileUtils.readContent(file, "\n");
+		FileUtils.writeContent(file, content.replace("original", "modified"));
+		file.setLastModified(lastModified);
+		Thread.sleep(1100);
+		assertEquals("modified", service.getUserModel("reload").password);
+		file.delete();
+	}
+
 	protected void testUsers(IUserService service) {
 
 		UserModel admin = service.getUserModel("admin");